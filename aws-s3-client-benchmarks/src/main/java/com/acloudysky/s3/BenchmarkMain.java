@@ -0,0 +1,51 @@
+package com.acloudysky.s3;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options, for example <i>-p latencyMicros=0 Upload</i>.
+ * Unless other options are given, the results are written in JSON to jmh-result.json,
+ * so that runs can be compared by tools.
+ * <p>
+ * Run it with:
+ * <pre>
+ *   java -jar aws-s3-client-benchmarks/target/benchmarks.jar [JMH options] [benchmark regexp]
+ * </pre>
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class BenchmarkMain {
+
+	/** Result file used when the -rff option is not given. */
+	public static final String DEFAULT_RESULT = "jmh-result.json";
+
+	/**
+	 * Runs the benchmarks.
+	 * @param args JMH command line options. -h lists them.
+	 * @throws Exception Invalid options or benchmark failure.
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if (!commandLine.getResult().hasValue())
+			options.result(DEFAULT_RESULT);
+
+		Runner runner = new Runner(options.build());
+		if (commandLine.shouldList())
+			runner.list();
+		else
+			runner.run();
+	}
+}
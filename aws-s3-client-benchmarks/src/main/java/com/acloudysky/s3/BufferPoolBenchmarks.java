@@ -0,0 +1,110 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Measures the cost of lending a 64 KB buffer from the shared {@link BufferPool}s, compared with
+ * allocating a new heap or direct buffer, and the cost of a small download through the pooled
+ * transfer path, against a {@link LocalS3Stub}. Run with <code>-t</code> to lend from concurrent
+ * threads, and with <code>-prof gc</code> to see that the downloads allocate no buffers once warm,
+ * only the stand-in's request and response objects.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmarks {
+
+	private static final String BUCKET = "buffer-pool-benchmark";
+
+	private static final int SIZE = 64 * 1024;
+
+	private ChannelDownloader downloader;
+	private FileChannel sink;
+
+	@Setup
+	public void setUp() throws IOException {
+		AmazonS3 s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(SIZE);
+		s3Client.putObject(BUCKET, "object", new ByteArrayInputStream(new byte[SIZE]), metadata);
+		downloader = new ChannelDownloader(s3Client);
+		sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sink.close();
+	}
+
+	@Benchmark
+	public ByteBuffer heapPool() {
+		ByteBuffer buffer = BufferPool.heap().acquire(SIZE);
+		try {
+			return touch(buffer);
+		}
+		finally {
+			BufferPool.heap().release(buffer);
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer directPool() {
+		ByteBuffer buffer = BufferPool.direct().acquire(SIZE);
+		try {
+			return touch(buffer);
+		}
+		finally {
+			BufferPool.direct().release(buffer);
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer newHeap() {
+		return touch(ByteBuffer.allocate(SIZE));
+	}
+
+	@Benchmark
+	public ByteBuffer newDirect() {
+		return touch(ByteBuffer.allocateDirect(SIZE));
+	}
+
+	@Benchmark
+	public long smallDownload() throws IOException {
+		return downloader.download(BUCKET, "object", sink);
+	}
+
+	/*
+	 * Writes the buffer, which is returned so that the allocation is not eliminated.
+	 */
+	private static ByteBuffer touch(ByteBuffer buffer) {
+		buffer.put(0, (byte) 1);
+		return buffer;
+	}
+}
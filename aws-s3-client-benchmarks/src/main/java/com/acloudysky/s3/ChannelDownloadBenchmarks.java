@@ -0,0 +1,131 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Compares the ways of reading a large text object from a {@link LocalS3Stub}: displaying it
+ * with {@link Utility#displayTextInputStream(InputStream)}, which decodes it line by line, reading
+ * it in memory, and streaming it with a {@link ChannelDownloader} to <i>/dev/null</i> and to a file.
+ * The standard output is discarded while the text is displayed.
+ * Run with <code>-prof gc</code> to compare the bytes allocated as well.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChannelDownloadBenchmarks {
+
+	private static final String BUCKET = "channel-download-benchmark";
+
+	private static final String KEY = "text";
+
+	/** Size of the object in MB. */
+	@Param({ "64" })
+	public int megabytes;
+
+	private AmazonS3 s3Client;
+	private ChannelDownloader downloader;
+	private FileChannel sink;
+	private File file;
+	private FileChannel fileChannel;
+	private PrintStream standardOutput;
+	private PrintStream discarded;
+
+	@Setup
+	public void setUp() throws IOException {
+		// Lines of 80 characters.
+		byte[] text = new byte[megabytes * 1024 * 1024];
+		for (int i = 0; i < text.length; i++)
+			text[i] = (byte) (i % 81 == 80 ? '\n' : 'a' + i % 26);
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(text.length);
+		s3Client.putObject(BUCKET, KEY, new ByteArrayInputStream(text), metadata);
+
+		downloader = new ChannelDownloader(s3Client);
+		sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+		file = File.createTempFile("channel-download", ".bin");
+		fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		standardOutput = System.out;
+		discarded = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sink.close();
+		fileChannel.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void displayTextInputStream() throws IOException {
+		System.setOut(discarded);
+		try {
+			Utility.displayTextInputStream(s3Client.getObject(BUCKET, KEY).getObjectContent());
+		}
+		finally {
+			System.setOut(standardOutput);
+		}
+	}
+
+	@Benchmark
+	public long inMemory() throws IOException {
+		InputStream content = s3Client.getObject(BUCKET, KEY).getObjectContent();
+		try {
+			return IOUtils.toByteArray(content).length;
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	@Benchmark
+	public long channelToDevNull() throws IOException {
+		return downloader.download(BUCKET, KEY, sink);
+	}
+
+	@Benchmark
+	public long channelToFile() throws IOException {
+		fileChannel.position(0);
+		return downloader.download(BUCKET, KEY, fileChannel);
+	}
+}
@@ -0,0 +1,170 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Compares uploading and downloading text data (log lines, CSV rows and JSON records) as it is,
+ * and compressed with each {@link CompressionCodec} on the thread of a {@link CompressionStage},
+ * through a {@link LocalS3Stub} whose link has a limited bandwidth and a fixed latency per request.
+ * The codec alone is measured as well, without the link. The compression ratio is checked by the
+ * tests of aws-s3-client.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmarks {
+
+	private static final String BUCKET = "compression-benchmark";
+
+	/** Codec: none, gzip or snappy. */
+	@Param({ "none", "gzip", "snappy" })
+	public String codec;
+
+	/** Size of the data in MB. */
+	@Param({ "128" })
+	public int megabytes;
+
+	/** Bandwidth of the link in MB per second. */
+	@Param({ "100" })
+	public long bandwidth;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "20000" })
+	public long latencyMicros;
+
+	private CompressionCodec compressionCodec;
+	private byte[] data;
+	private AmazonS3 s3Client;
+	private StreamingUploader uploader;
+	private ChannelDownloader downloader;
+	private FileChannel sink;
+
+	@Setup
+	public void setUp() throws IOException {
+		compressionCodec = CompressionCodec.parse(codec);
+		data = generate(megabytes << 20);
+		s3Client = LocalS3Stub.newClient();
+		// Each upload replaces the previous object, so the stand-in holds one copy.
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		uploader = new StreamingUploader(s3Client);
+		downloader = new ChannelDownloader(s3Client);
+		sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+		// The object downloaded.
+		upload();
+		LocalS3Stub.of(s3Client).setBandwidth(bandwidth << 20);
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		uploader.shutdown();
+		sink.close();
+	}
+
+	@Benchmark
+	public long codecAlone() throws IOException {
+		InputStream input = new ByteArrayInputStream(data);
+		if (compressionCodec != null)
+			input = CompressionStage.compress(input, compressionCodec);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			long length = 0;
+			int n;
+			while ((n = input.read(buffer)) >= 0)
+				length += n;
+			return length;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	@Benchmark
+	public StreamingUploader.Result upload() throws IOException {
+		InputStream input = new ByteArrayInputStream(data);
+		if (compressionCodec == null)
+			return uploader.upload(BUCKET, "object", input);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentEncoding(compressionCodec.getContentEncoding());
+		CompressionStage stage = CompressionStage.compress(input, compressionCodec);
+		try {
+			return uploader.upload(BUCKET, "object", stage, metadata);
+		}
+		finally {
+			stage.close();
+		}
+	}
+
+	@Benchmark
+	public long download() throws IOException {
+		return downloader.download(BUCKET, "object", sink);
+	}
+
+	/*
+	 * Log lines, CSV rows and JSON records with random values.
+	 */
+	private static byte[] generate(int length) {
+		Random random = new Random(42);
+		String[] levels = { "INFO", "INFO", "INFO", "WARN", "ERROR", "DEBUG" };
+		String[] paths = { "/api/orders", "/api/customers", "/api/products", "/health", "/login" };
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 256);
+		while (out.size() < length) {
+			String line;
+			switch (random.nextInt(3)) {
+				case 0:
+					line = String.format("2016-11-%02d %02d:%02d:%02d.%03d %-5s [worker-%d] GET %s/%d %d %d ms%n",
+							random.nextInt(30) + 1, random.nextInt(24), random.nextInt(60), random.nextInt(60),
+							random.nextInt(1000), levels[random.nextInt(levels.length)], random.nextInt(16),
+							paths[random.nextInt(paths.length)], random.nextInt(100000),
+							random.nextInt(10) == 0 ? 500 : 200, random.nextInt(800));
+					break;
+				case 1:
+					line = String.format("%d,%s,%d,%.2f,%s%n", random.nextInt(1000000),
+							random.nextBoolean() ? "Torino" : "San Martino", random.nextInt(50),
+							random.nextDouble() * 1000, random.nextBoolean() ? "shipped" : "pending");
+					break;
+				default:
+					line = String.format("{\"id\":%d,\"customer\":\"c-%d\",\"amount\":%.2f,\"currency\":\"EUR\","
+							+ "\"items\":[%d,%d],\"status\":\"%s\"}%n", random.nextInt(1000000), random.nextInt(5000),
+							random.nextDouble() * 500, random.nextInt(10000), random.nextInt(10000),
+							random.nextBoolean() ? "paid" : "open");
+			}
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+			out.write(bytes, 0, bytes.length);
+		}
+		byte[] data = out.toByteArray();
+		return data.length == length ? data : Arrays.copyOf(data, length);
+	}
+}
@@ -0,0 +1,135 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Compares plain GETs with a {@link ContentCache} when the same reference objects are read
+ * again and again, against a {@link LocalS3Stub} that adds a fixed latency to every request.
+ * The objects are read in turn. The cache is warm: it revalidates each object with a conditional
+ * GET, or serves it without a request while it is younger than the maximum age.
+ * The cached content is copied to <i>/dev/null</i> with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentCacheBenchmarks {
+
+	private static final String BUCKET = "content-cache-benchmark";
+
+	/** Number of objects read in turn. */
+	@Param({ "32" })
+	public int objects;
+
+	/** Size of the objects in bytes. */
+	@Param({ "4194304" })
+	public int size;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "20000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private File directory;
+	private ContentCache revalidatingCache;
+	private ContentCache freshCache;
+	private FileChannel sink;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		for (int i = 0; i < objects; i++)
+			s3Client.putObject(BUCKET, "reference/" + i, new ByteArrayInputStream(data), metadata);
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+
+		directory = Files.createTempDirectory("content-cache").toFile();
+		sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+		revalidatingCache = new ContentCache(s3Client, new File(directory, "revalidating"));
+		freshCache = new ContentCache(s3Client, null, new File(directory, "fresh"),
+				ContentCache.DEFAULT_MAX_BYTES, TimeUnit.HOURS.toMillis(1));
+		for (int i = 0; i < objects; i++) {
+			revalidatingCache.transferTo(BUCKET, "reference/" + i, sink);
+			freshCache.transferTo(BUCKET, "reference/" + i, sink);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		revalidatingCache.close();
+		freshCache.close();
+		sink.close();
+		delete(directory);
+	}
+
+	@Benchmark
+	public long plainGet() throws IOException {
+		InputStream content = s3Client.getObject(BUCKET, nextKey()).getObjectContent();
+		try {
+			return IOUtils.toByteArray(content).length;
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	@Benchmark
+	public long revalidatedCache() throws IOException {
+		return revalidatingCache.transferTo(BUCKET, nextKey(), sink);
+	}
+
+	@Benchmark
+	public long freshCache() throws IOException {
+		return freshCache.transferTo(BUCKET, nextKey(), sink);
+	}
+
+	private String nextKey() {
+		next = (next + 1) % objects;
+		return "reference/" + next;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
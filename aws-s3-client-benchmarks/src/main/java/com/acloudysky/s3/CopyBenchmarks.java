@@ -0,0 +1,130 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Compares two ways of moving the objects of a prefix to another prefix of a {@link LocalS3Stub}
+ * that adds a fixed latency to every request: downloading each object and uploading it again under
+ * its new key before deleting it, and {@link ObjectCopier#movePrefix(String, String, String, String)},
+ * which copies the objects concurrently inside S3 and deletes the sources in batches.
+ * Each move starts from the same objects, created again before each invocation. The requests
+ * sent and the bytes that go through the host are reported as secondary results.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmarks {
+
+	private static final String BUCKET = "copy-benchmark";
+
+	/** Number of objects moved. */
+	@Param({ "2000" })
+	public int objects;
+
+	/** Size of the objects in KB. */
+	@Param({ "256" })
+	public int kilobytes;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "5000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private ObjectCopier copier;
+	private byte[] data;
+
+	/**
+	 * Requests sent and bytes transferred through the host by the moves of an iteration.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long requests;
+		public long hostBytes;
+	}
+
+	@Setup
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		data = new byte[kilobytes * 1024];
+		copier = new ObjectCopier(s3Client);
+	}
+
+	@TearDown
+	public void tearDown() {
+		copier.shutdown();
+	}
+
+	/*
+	 * Creates the objects to move, without latency.
+	 */
+	@Setup(Level.Invocation)
+	public void populate() {
+		LocalS3Stub.of(s3Client).setLatencyMicros(0);
+		for (int i = 0; i < objects; i++) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(data.length);
+			s3Client.putObject(BUCKET, "from/" + i, new ByteArrayInputStream(data), metadata);
+			s3Client.deleteObject(BUCKET, "to/" + i);
+		}
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+	}
+
+	@Benchmark
+	public void downloadAndUpload(Counters counters) throws IOException {
+		long requests = LocalS3Stub.of(s3Client).getRequestCount();
+		for (int i = 0; i < objects; i++) {
+			InputStream content = s3Client.getObject(BUCKET, "from/" + i).getObjectContent();
+			byte[] object;
+			try {
+				object = IOUtils.toByteArray(content);
+			}
+			finally {
+				content.close();
+			}
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(object.length);
+			s3Client.putObject(BUCKET, "to/" + i, new ByteArrayInputStream(object), metadata);
+			s3Client.deleteObject(BUCKET, "from/" + i);
+			counters.hostBytes += 2L * object.length;
+		}
+		counters.requests += LocalS3Stub.of(s3Client).getRequestCount() - requests;
+	}
+
+	@Benchmark
+	public ObjectCopier.Result serverSideCopy(Counters counters) throws IOException {
+		long requests = LocalS3Stub.of(s3Client).getRequestCount();
+		ObjectCopier.Result result = copier.movePrefix(BUCKET, "from/", BUCKET, "to/");
+		counters.requests += LocalS3Stub.of(s3Client).getRequestCount() - requests;
+		return result;
+	}
+}
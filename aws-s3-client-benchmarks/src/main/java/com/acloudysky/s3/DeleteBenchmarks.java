@@ -0,0 +1,94 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Compares the deletion of the objects under a prefix one key at a time with their
+ * deletion in batches by the {@link BatchDeleter}, against a {@link LocalS3Stub} that adds
+ * a fixed latency to every request. The objects are put back, without latency, before each call.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeleteBenchmarks {
+
+	private static final String BUCKET = "delete-benchmark";
+
+	private static final String PREFIX = "delete/";
+
+	/** Number of objects deleted by each call. */
+	@Param({ "2000" })
+	public int objects;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "5000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private BatchDeleter deleter;
+
+	@Setup
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		// Deletes remove the objects instead of adding delete markers.
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		deleter = new BatchDeleter(s3Client);
+	}
+
+	@Setup(Level.Invocation)
+	public void populate() {
+		LocalS3Stub stub = LocalS3Stub.of(s3Client);
+		stub.setLatencyMicros(0);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(0);
+		for (int i = 0; i < objects; i++)
+			s3Client.putObject(BUCKET, key(i), new ByteArrayInputStream(new byte[0]), metadata);
+		stub.setLatencyMicros(latencyMicros);
+	}
+
+	@TearDown
+	public void tearDown() {
+		deleter.shutdown();
+	}
+
+	@Benchmark
+	public int perKey() {
+		for (int i = 0; i < objects; i++)
+			s3Client.deleteObject(BUCKET, key(i));
+		return objects;
+	}
+
+	@Benchmark
+	public BatchDeleter.Result batched() throws IOException {
+		return deleter.deleteObjects(BUCKET, PREFIX);
+	}
+
+	private static String key(int i) {
+		return String.format("%sobject-%09d", PREFIX, i);
+	}
+}
@@ -0,0 +1,76 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Utility#displayTextInputStream(java.io.InputStream)}, which the download
+ * command uses to print an object, on text of lines of 80 characters.
+ * The standard output is replaced by a stream discarding the text during the benchmark,
+ * so that the decoding, line splitting and formatting are measured, not the console.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DisplayTextBenchmarks {
+
+	/** Number of lines of the text. */
+	@Param({ "1000", "100000" })
+	public int lines;
+
+	private byte[] text;
+	private PrintStream standardOutput;
+
+	@Setup
+	public void setUp() {
+		StringBuilder builder = new StringBuilder(lines * 81);
+		for (int i = 0; i < lines; i++) {
+			for (int c = 0; c < 80; c++)
+				builder.append((char) ('a' + (i + c) % 26));
+			builder.append('\n');
+		}
+		text = builder.toString().getBytes();
+
+		standardOutput = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(standardOutput);
+	}
+
+	@Benchmark
+	public void displayText() throws IOException {
+		Utility.displayTextInputStream(new ByteArrayInputStream(text));
+	}
+}
@@ -0,0 +1,96 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Compares the download of an object to a file in a single stream with its download
+ * in ranges by the {@link RangedDownloader}, against a {@link LocalS3Stub} that adds a fixed
+ * latency to every request.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmarks {
+
+	private static final String BUCKET = "download-benchmark";
+
+	private static final String KEY = "object";
+
+	/** Size of the object in MB. */
+	@Param({ "16", "64" })
+	public int megabytes;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "20000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private RangedDownloader downloader;
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		byte[] content = new byte[megabytes * 1024 * 1024];
+		new Random(1).nextBytes(content);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		s3Client.putObject(BUCKET, KEY, new ByteArrayInputStream(content), metadata);
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+
+		downloader = new RangedDownloader(s3Client, RangedDownloader.DEFAULT_RANGE_SIZE,
+				RangedDownloader.DEFAULT_CONCURRENCY, 0);
+		file = File.createTempFile("download-benchmark", ".bin");
+	}
+
+	@TearDown
+	public void tearDown() {
+		downloader.shutdown();
+		file.delete();
+	}
+
+	@Benchmark
+	public long singleStream() throws IOException {
+		InputStream content = s3Client.getObject(BUCKET, KEY).getObjectContent();
+		try {
+			return Files.copy(content, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	@Benchmark
+	public ObjectMetadata rangedDownload() throws IOException {
+		return downloader.download(BUCKET, KEY, file);
+	}
+}
@@ -0,0 +1,111 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Compares the sequential listing of a bucket by an {@link ObjectIterator} with its listing
+ * in shards by a {@link ParallelLister}, against a {@link LocalS3Stub} that adds a fixed
+ * latency to every request. The shards are discovered from the top-level prefixes, which
+ * the parallel listings include in their time, or built from split points.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmarks {
+
+	private static final String BUCKET = "listing-benchmark";
+
+	/** Number of objects in the bucket. */
+	@Param({ "20000" })
+	public int objects;
+
+	/** Number of top-level prefixes the objects are spread over. */
+	@Param({ "32" })
+	public int prefixes;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "10000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private ParallelLister lister;
+	private List<String> splitPoints;
+
+	@Setup
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(0);
+		for (int i = 0; i < objects; i++) {
+			s3Client.putObject(BUCKET, String.format("p%04d/object-%09d", i % prefixes, i),
+					new ByteArrayInputStream(new byte[0]), metadata);
+		}
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+		lister = new ParallelLister(s3Client, new ForkJoinPool(ParallelLister.DEFAULT_PARALLELISM));
+		splitPoints = new ArrayList<String>();
+		for (int p = 1; p < prefixes; p++)
+			splitPoints.add(String.format("p%04d/", p));
+	}
+
+	@Benchmark
+	public long sequential() {
+		ObjectIterator iterator = new ObjectIterator(s3Client, BUCKET, null, null, null);
+		long count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public long parallel() {
+		return count(lister.stream(lister.discoverShards(BUCKET, null, "/"), false));
+	}
+
+	@Benchmark
+	public long parallelOrdered() {
+		return count(lister.stream(lister.discoverShards(BUCKET, null, "/"), true));
+	}
+
+	@Benchmark
+	public long parallelSplitPoints() {
+		return count(lister.stream(lister.splitShards(BUCKET, null, splitPoints), true));
+	}
+
+	private static long count(Stream<S3ObjectSummary> summaries) {
+		try {
+			return summaries.count();
+		}
+		finally {
+			summaries.close();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Compares the latency of object metadata lookups and bucket region lookups with and
+ * without a {@link MetadataCache}, against a {@link LocalS3Stub} that adds a fixed latency
+ * to every request. The lookups pick keys at random among a set of hot keys, which all fit
+ * in the cache.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmarks {
+
+	private static final String BUCKET = "metadata-benchmark";
+
+	/** Number of hot keys. */
+	@Param({ "1000" })
+	public int keys;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "20000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private AmazonS3 cachedClient;
+
+	@Setup
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		for (int i = 0; i < keys; i++) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(1);
+			s3Client.putObject(BUCKET, "hot/" + i, new ByteArrayInputStream(new byte[1]), metadata);
+		}
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+
+		// The time to live outlasts the run, so that every cached lookup is a hit.
+		cachedClient = new MetadataCache(keys + 1, TimeUnit.HOURS.toMillis(1), false).cache(s3Client);
+		for (int i = 0; i < keys; i++)
+			cachedClient.getObjectMetadata(BUCKET, "hot/" + i);
+		cachedClient.getBucketLocation(BUCKET);
+	}
+
+	@Benchmark
+	public ObjectMetadata metadata() {
+		return s3Client.getObjectMetadata(BUCKET, hotKey());
+	}
+
+	@Benchmark
+	public ObjectMetadata cachedMetadata() {
+		return cachedClient.getObjectMetadata(BUCKET, hotKey());
+	}
+
+	@Benchmark
+	public String region() {
+		return s3Client.getBucketLocation(BUCKET);
+	}
+
+	@Benchmark
+	public String cachedRegion() {
+		return cachedClient.getBucketLocation(BUCKET);
+	}
+
+	private String hotKey() {
+		return "hot/" + ThreadLocalRandom.current().nextInt(keys);
+	}
+}
@@ -0,0 +1,62 @@
+package com.acloudysky.s3;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of recording a call in {@link OperationMetrics}, from one thread and from
+ * as many threads as processors all recording the same operation, and the cost of a snapshot,
+ * which computes the percentiles of the {@link LatencyHistogram}s.
+ * The accuracy of the percentiles is checked by the tests of aws-s3-client.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmarks {
+
+	private OperationMetrics metrics;
+
+	@Setup
+	public void setUp() {
+		metrics = new OperationMetrics();
+		// Latencies spread over a few powers of two, as the requests of one operation are.
+		for (int i = 0; i < 100000; i++)
+			metrics.succeeded("getObject", System.nanoTime() - ThreadLocalRandom.current().nextLong(100000000), 1024);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void recordOneThread() {
+		metrics.succeeded("getObject", System.nanoTime() - ThreadLocalRandom.current().nextInt(0x10000) * 1000L, 1024);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void recordAllThreads() {
+		metrics.succeeded("getObject", System.nanoTime() - ThreadLocalRandom.current().nextInt(0x10000) * 1000L, 1024);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public List<OperationMetrics.Snapshot> snapshot() {
+		return metrics.snapshot();
+	}
+}
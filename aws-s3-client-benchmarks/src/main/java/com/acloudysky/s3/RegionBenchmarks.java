@@ -0,0 +1,101 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Compares two ways of reaching buckets spread over several regions from a client of the
+ * home region, against {@link LocalS3Stub} stand-ins of each region which add a fixed latency
+ * to every request: following each redirect, by looking up the bucket's region and sending the
+ * request again to that region as a client without a region cache does, and a {@link RegionResolver},
+ * which looks up each bucket's region once. The requests go to the buckets of each region in turn.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegionBenchmarks {
+
+	private static final String HOME_REGION = "us-west-2";
+
+	private static final String[] REGIONS = { HOME_REGION, "eu-west-1", "ap-southeast-2" };
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "20000" })
+	public long latencyMicros;
+
+	// Stand-in of each region, sharing the bucket names. Each region has a bucket with one object.
+	private final Map<String, AmazonS3> regionalClients = new HashMap<String, AmazonS3>();
+	private AmazonS3 homeClient;
+	private AmazonS3 routedClient;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		AmazonS3 namespace = LocalS3Stub.newClient();
+		for (String region : REGIONS) {
+			AmazonS3 client = LocalS3Stub.newRegionalClient(namespace, region);
+			client.createBucket(bucket(region));
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(1);
+			client.putObject(bucket(region), "object", new ByteArrayInputStream(new byte[1]), metadata);
+			LocalS3Stub.of(client).setLatencyMicros(latencyMicros);
+			regionalClients.put(region, client);
+		}
+		homeClient = regionalClients.get(HOME_REGION);
+		routedClient = new RegionResolver(null, homeClient, HOME_REGION) {
+			@Override
+			protected AmazonS3 newClient(String region) {
+				return regionalClients.get(region);
+			}
+		}.route();
+	}
+
+	@Benchmark
+	public ObjectMetadata followRedirects() {
+		String bucketName = nextBucket();
+		try {
+			return homeClient.getObjectMetadata(bucketName, "object");
+		}
+		catch (AmazonServiceException ase) {
+			String region = RegionResolver.regionName(homeClient.getBucketLocation(bucketName));
+			return regionalClients.get(region).getObjectMetadata(bucketName, "object");
+		}
+	}
+
+	@Benchmark
+	public ObjectMetadata regionResolver() {
+		return routedClient.getObjectMetadata(nextBucket(), "object");
+	}
+
+	private String nextBucket() {
+		next = (next + 1) % REGIONS.length;
+		return bucket(REGIONS[next]);
+	}
+
+	private static String bucket(String region) {
+		return "region-benchmark-" + region;
+	}
+}
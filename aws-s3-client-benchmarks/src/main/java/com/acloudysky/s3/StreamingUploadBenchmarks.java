@@ -0,0 +1,109 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Compares two ways of uploading generated data of unknown length to a {@link LocalS3Stub}
+ * that adds a fixed latency to every request: reading the whole stream in memory to send it
+ * with a single PUT, and the {@link StreamingUploader}, which uploads the parts as they are read
+ * and holds at most (concurrency + 1) parts in memory.
+ * Run with <code>-prof gc</code> to compare the bytes allocated as well. The heap as a whole
+ * is not comparable, since the stand-in keeps the uploaded object in memory.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamingUploadBenchmarks {
+
+	private static final String BUCKET = "streaming-upload-benchmark";
+
+	/** Size of the data in MB. */
+	@Param({ "256" })
+	public int megabytes;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "20000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private StreamingUploader uploader;
+
+	@Setup
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		// Each upload replaces the previous object, so the stand-in holds one copy.
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+		uploader = new StreamingUploader(s3Client);
+	}
+
+	@TearDown
+	public void tearDown() {
+		uploader.shutdown();
+	}
+
+	@Benchmark
+	public PutObjectResult inMemory() throws IOException {
+		byte[] data = IOUtils.toByteArray(generated(megabytes));
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		return s3Client.putObject(BUCKET, "object", new ByteArrayInputStream(data), metadata);
+	}
+
+	@Benchmark
+	public StreamingUploader.Result streamingUploader() throws IOException {
+		return uploader.upload(BUCKET, "object", generated(megabytes));
+	}
+
+	/*
+	 * Returns a stream of generated text, like a dump, whose length the reader does not know.
+	 */
+	private static InputStream generated(int megabytes) {
+		final long length = megabytes * 1024L * 1024;
+		return new InputStream() {
+			private long position;
+
+			@Override
+			public int read() {
+				return position < length ? 'a' + (int) (position++ % 26) : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (position >= length)
+					return -1;
+				int n = (int) Math.min(len, length - position);
+				for (int i = 0; i < n; i++)
+					b[off + i] = (byte) ('a' + (int) (position++ % 26));
+				return n;
+			}
+		};
+	}
+}
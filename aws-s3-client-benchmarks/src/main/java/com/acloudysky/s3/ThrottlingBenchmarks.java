@@ -0,0 +1,155 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Compares immediate retries with the {@link RequestGovernor} on small-file uploads against a
+ * {@link LocalS3Stub} that throttles the requests above a rate limit.
+ * Each iteration starts from a new stand-in and governor, and uploads all the objects once.
+ * The requests throttled and the uploads failed are reported as secondary results.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThrottlingBenchmarks {
+
+	private static final String BUCKET = "throttling-benchmark";
+
+	/** Number of objects uploaded by each iteration. */
+	@Param({ "10000" })
+	public int objects;
+
+	/** Rate limit of the stand-in in requests per second. */
+	@Param({ "2000" })
+	public double rateLimit;
+
+	/** Number of requests in flight. */
+	@Param({ "128" })
+	public int concurrency;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "2000" })
+	public long latencyMicros;
+
+	private File file;
+	private AmazonS3 stubClient;
+	private ExecutorService executor;
+
+	/**
+	 * Requests throttled and uploads failed during an iteration.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long throttled;
+		public long failed;
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		file = File.createTempFile("throttling-benchmark", ".bin");
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(new byte[256]);
+		}
+		finally {
+			output.close();
+		}
+		executor = ExecutionMode.PLATFORM.newExecutor("benchmark", concurrency);
+	}
+
+	@Setup(Level.Iteration)
+	public void newStub() {
+		stubClient = LocalS3Stub.newClient(latencyMicros);
+		LocalS3Stub.of(stubClient).setVersioned(false);
+		stubClient.createBucket(BUCKET);
+		LocalS3Stub.of(stubClient).setRateLimit(rateLimit);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+		file.delete();
+	}
+
+	@Benchmark
+	public long immediateRetries(Counters counters) throws InterruptedException {
+		return upload(stubClient, true, counters);
+	}
+
+	@Benchmark
+	public long governed(Counters counters) throws InterruptedException {
+		return upload(new RequestGovernor().govern(stubClient), false, counters);
+	}
+
+	/*
+	 * Uploads the file under every key. Without a governor, a throttled request is sent
+	 * again at once, like a naive retry loop.
+	 */
+	private long upload(final AmazonS3 s3Client, final boolean retry, Counters counters) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(objects);
+		final AtomicLong stored = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		long throttledBefore = LocalS3Stub.of(stubClient).getThrottledCount();
+		for (int i = 0; i < objects; i++) {
+			final String key = "objects/" + i;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int attempt = 0; ; attempt++) {
+							try {
+								s3Client.putObject(BUCKET, key, file);
+								stored.incrementAndGet();
+								return;
+							}
+							catch (AmazonServiceException ase) {
+								if (!retry || attempt >= RequestGovernor.DEFAULT_MAX_RETRIES
+										|| !RequestGovernor.isThrottling(ase)) {
+									failed.incrementAndGet();
+									return;
+								}
+							}
+						}
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		counters.throttled += LocalS3Stub.of(stubClient).getThrottledCount() - throttledBefore;
+		counters.failed += failed.get();
+		return stored.get();
+	}
+}
@@ -0,0 +1,153 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Compares the {@link ExecutionMode}s on many small-object PUTs and GETs against a
+ * {@link LocalS3Stub} that adds a fixed latency to every request.
+ * Every request is submitted at once to an executor of the mode, which runs at most
+ * the configured number at the same time.
+ * On runtimes without virtual threads the virtual mode starts a platform thread per
+ * running request.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmarks {
+
+	private static final String BUCKET = "transfer-benchmark";
+
+	private static final byte[] PAYLOAD = new byte[256];
+
+	/** Number of objects put or got by each operation. */
+	@Param({ "10000" })
+	public int objects;
+
+	/** Mode of the executor running the requests. */
+	@Param({ "PLATFORM", "VIRTUAL" })
+	public ExecutionMode mode;
+
+	/** Maximum number of requests running at the same time. */
+	@Param({ "64", "256", "1024" })
+	public int concurrency;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "1000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private ExecutorService executor;
+
+	@Setup
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		for (int i = 0; i < objects; i++)
+			put(i);
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+		executor = mode.newExecutor("benchmark", concurrency);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public long put() throws InterruptedException {
+		return run(new Request() {
+			@Override
+			public void execute(int i) {
+				put(i);
+			}
+		});
+	}
+
+	@Benchmark
+	public long get() throws InterruptedException {
+		return run(new Request() {
+			@Override
+			public void execute(int i) throws Exception {
+				InputStream content = s3Client.getObject(BUCKET, key(i)).getObjectContent();
+				try {
+					if (IOUtils.toByteArray(content).length != PAYLOAD.length)
+						throw new IllegalStateException("Short read of " + key(i));
+				}
+				finally {
+					content.close();
+				}
+			}
+		});
+	}
+
+	private interface Request {
+		void execute(int i) throws Exception;
+	}
+
+	/*
+	 * Submits a request per object and waits for all of them.
+	 */
+	private long run(final Request request) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(objects);
+		final AtomicLong failures = new AtomicLong();
+		for (int i = 0; i < objects; i++) {
+			final int index = i;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						request.execute(index);
+					}
+					catch (Exception e) {
+						failures.incrementAndGet();
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		if (failures.get() > 0)
+			throw new IllegalStateException(failures.get() + " requests failed");
+		return objects;
+	}
+
+	private void put(int i) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(PAYLOAD.length);
+		s3Client.putObject(BUCKET, key(i), new ByteArrayInputStream(PAYLOAD), metadata);
+	}
+
+	private static String key(int i) {
+		return "object-" + i;
+	}
+}
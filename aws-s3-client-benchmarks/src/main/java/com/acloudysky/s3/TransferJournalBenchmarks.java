@@ -0,0 +1,128 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Measures the cost of recording the progress of a bulk job in a {@link TransferJournal}:
+ * the completion of an operation, compared with writing a line per operation to a file
+ * stream, and a multipart upload of 100 parts, whose records become garbage and are compacted.
+ * Then measures the time to open a journal again, as a restarted job does. Each iteration
+ * starts from a new journal. The replay is checked by the tests of aws-s3-client.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferJournalBenchmarks {
+
+	private File file;
+	private File lines;
+	private TransferJournal journal;
+	private FileOutputStream out;
+	private int next;
+
+	/**
+	 * A journal of completed operations, written once and opened again by each call.
+	 */
+	@State(Scope.Benchmark)
+	public static class Recorded {
+
+		/** Number of completed operations in the journal. */
+		@Param({ "500000" })
+		public int operations;
+
+		File file;
+
+		@Setup
+		public void setUp() throws IOException {
+			file = File.createTempFile("transfer", ".journal");
+			file.delete();
+			TransferJournal journal = new TransferJournal(file);
+			for (int i = 0; i < operations; i++)
+				journal.markCompleted(id(i));
+			journal.close();
+		}
+
+		@TearDown
+		public void tearDown() {
+			file.delete();
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		file = File.createTempFile("transfer", ".journal");
+		file.delete();
+		lines = File.createTempFile("transfer", ".log");
+		journal = new TransferJournal(file);
+		out = new FileOutputStream(lines);
+		next = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		out.close();
+		journal.delete();
+		lines.delete();
+	}
+
+	@Benchmark
+	public void linePerOperation() throws IOException {
+		out.write((id(next++) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public void markCompleted() throws IOException {
+		journal.markCompleted(id(next++));
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void multipartUpload() throws IOException {
+		String uploadId = "upload-" + next++;
+		journal.uploadStarted("bucket", "key-" + uploadId, "file-" + uploadId, uploadId);
+		for (int part = 1; part <= 100; part++)
+			journal.partCompleted(uploadId, new PartETag(part, "0123456789abcdef0123456789abcdef"));
+		journal.uploadEnded(uploadId);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int reopen(Recorded recorded) throws IOException {
+		TransferJournal reopened = new TransferJournal(recorded.file);
+		try {
+			return reopened.getCompletedCount();
+		}
+		finally {
+			reopened.close();
+		}
+	}
+
+	private static String id(int i) {
+		return i + "\tuo nightly-bucket backups/2016/11/object-" + i + " /data/backups/object-" + i;
+	}
+}
@@ -0,0 +1,99 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+/**
+ * Compares the upload of a file in a single PUT with its upload in parts by the
+ * {@link MultipartUploader}, against a {@link LocalS3Stub} that adds a fixed latency to every request.
+ * The stand-in keeps only the latest version of the object, so that the repeated uploads
+ * do not fill the memory.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadBenchmarks {
+
+	private static final String BUCKET = "upload-benchmark";
+
+	/** Size of the file in MB. */
+	@Param({ "16", "64" })
+	public int megabytes;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "0", "20000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private MultipartUploader uploader;
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		s3Client = LocalS3Stub.newClient();
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+
+		// Every file is uploaded in parts, however small.
+		uploader = new MultipartUploader(s3Client, 0, MultipartUploader.DEFAULT_PART_SIZE,
+				MultipartUploader.DEFAULT_CONCURRENCY, 0);
+
+		file = File.createTempFile("upload-benchmark", ".bin");
+		byte[] buffer = new byte[1024 * 1024];
+		Random random = new Random(1);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < megabytes; i++) {
+				random.nextBytes(buffer);
+				out.write(buffer);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		uploader.shutdown();
+		file.delete();
+	}
+
+	@Benchmark
+	public PutObjectResult singlePut() {
+		return s3Client.putObject(new PutObjectRequest(BUCKET, "single", file));
+	}
+
+	@Benchmark
+	public CompleteMultipartUploadResult multipartUpload() throws IOException {
+		return uploader.upload(BUCKET, "multipart", file);
+	}
+}
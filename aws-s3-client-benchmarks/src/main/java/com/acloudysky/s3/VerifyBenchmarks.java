@@ -0,0 +1,127 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Compares two ways of verifying a directory against the objects of a prefix, through a
+ * {@link LocalS3Stub} with a fixed latency per request: listing all the objects, then computing
+ * the MD5 of each file in turn on the calling thread, and the {@link ObjectVerifier}, which
+ * digests the files, and the parts of the multipart objects, on a fork-join pool while the next
+ * listing pages are fetched. One file in 20 is uploaded in three parts of 5 MB, the others with
+ * a single PUT. The outcome of a verification is checked by the tests of aws-s3-client.
+ * @author Michael Miele
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VerifyBenchmarks {
+
+	private static final String BUCKET = "verify-benchmark";
+
+	private static final String PREFIX = "data/";
+
+	/** Number of files. */
+	@Param({ "1000" })
+	public int files;
+
+	/** Size of the files uploaded with a single PUT in KB. */
+	@Param({ "256" })
+	public int kilobytes;
+
+	/** Latency of every request in microseconds. */
+	@Param({ "1000" })
+	public long latencyMicros;
+
+	private AmazonS3 s3Client;
+	private File directory;
+	private ObjectVerifier verifier;
+
+	@Setup
+	public void setUp() throws IOException {
+		s3Client = LocalS3Stub.newClient();
+		LocalS3Stub.of(s3Client).setVersioned(false);
+		s3Client.createBucket(BUCKET);
+		directory = Files.createTempDirectory("verify").toFile();
+		populate();
+		LocalS3Stub.of(s3Client).setLatencyMicros(latencyMicros);
+		verifier = new ObjectVerifier(s3Client);
+	}
+
+	@TearDown
+	public void tearDown() {
+		verifier.shutdown();
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children)
+				child.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public long sequential() throws IOException {
+		long verified = 0;
+		ObjectIterator objects = new ObjectIterator(s3Client, BUCKET, PREFIX, null, null);
+		while (objects.hasNext()) {
+			S3ObjectSummary objectSummary = objects.next();
+			File file = new File(directory, objectSummary.getKey().substring(PREFIX.length()));
+			if (Boolean.TRUE.equals(RangedDownloader.matchesETag(file, file.length(), objectSummary.getETag())))
+				verified++;
+		}
+		return verified;
+	}
+
+	@Benchmark
+	public long forkJoin() throws IOException {
+		return verifier.verify(BUCKET, PREFIX, directory).getVerifiedCount();
+	}
+
+	/*
+	 * Writes the files and uploads them: one in 20 in three parts of 5 MB, the others with a single PUT.
+	 */
+	private void populate() throws IOException {
+		Random random = new Random(42);
+		MultipartUploader uploader = new MultipartUploader(s3Client, 0, MultipartUploader.MIN_PART_SIZE, 8, 0);
+		try {
+			for (int i = 0; i < files; i++) {
+				boolean multipart = i % 20 == 0;
+				byte[] data = new byte[multipart ? (int) (3 * MultipartUploader.MIN_PART_SIZE) : kilobytes << 10];
+				random.nextBytes(data);
+				File file = new File(directory, String.format("file-%06d", i));
+				Files.write(file.toPath(), data);
+				String key = PREFIX + file.getName();
+				if (multipart)
+					uploader.upload(BUCKET, key, file);
+				else
+					s3Client.putObject(BUCKET, key, file);
+			}
+		}
+		finally {
+			uploader.shutdown();
+		}
+	}
+}
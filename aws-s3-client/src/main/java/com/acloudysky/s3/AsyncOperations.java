@@ -0,0 +1,430 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.IOUtils;
+
+/***
+ * Performs S3 bucket and object operations asynchronously.
+ * Each method returns at once with a {@link CompletableFuture} which is completed with
+ * the typed result of the operation, or exceptionally with the
+ * {@link com.amazonaws.AmazonServiceException}, {@link com.amazonaws.AmazonClientException}
+ * or {@link IOException} that made it fail.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>At most the configured number of operations are in flight at the same time.
+ * 	The operations in excess are queued, and started as the running ones complete,
+ * 	so submitting never blocks the caller</li>
+ * 	<li>The S3 client of the SDK is blocking, so each operation in flight holds a
+ * 	worker thread, a virtual one in {@link ExecutionMode#VIRTUAL} mode. The number of
+ * 	connections of the client should be at least the in-flight limit. See {@link S3ClientFactory}</li>
+ * 	<li>Cancelling a future of a queued operation removes the operation; an operation
+ * 	already running completes</li>
+ * 	<li>After {@link #shutdown()}, the futures of the queued and of the new operations
+ * 	fail with a {@link RejectedExecutionException}</li>
+ * 	<li>The futures are completed on the worker threads: dependent stages which block
+ * 	should use the async variants with their own executor</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class AsyncOperations {
+
+	/**
+	 * Maximum number of operations in flight at the same time.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final MultipartUploader multipartUploader;
+	private final RangedDownloader rangedDownloader;
+	private final BatchDeleter batchDeleter;
+
+	// Operations waiting for a free slot, in submission order.
+	private final Queue<Operation<?>> pending = new ConcurrentLinkedQueue<Operation<?>>();
+
+	// One permit per operation in flight.
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+
+	// Worker threads, one per operation in flight.
+	private final ExecutorService executor;
+
+	/**
+	 * Creates the asynchronous operations with the default in-flight limit and transfer engines.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public AsyncOperations(AmazonS3 authorizedClient) {
+		this(authorizedClient, new MultipartUploader(authorizedClient), new RangedDownloader(authorizedClient),
+				new BatchDeleter(authorizedClient), DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * Creates the asynchronous operations.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param uploader Uploader used for files above its multipart threshold
+	 * @param downloader Downloader used to save objects to files
+	 * @param deleter Deleter used to empty buckets
+	 * @param maxInFlight Maximum number of operations in flight at the same time
+	 */
+	public AsyncOperations(AmazonS3 authorizedClient, MultipartUploader uploader, RangedDownloader downloader,
+			BatchDeleter deleter, int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("The in-flight limit must be at least 1");
+		this.s3Client = authorizedClient;
+		this.multipartUploader = uploader;
+		this.rangedDownloader = downloader;
+		this.batchDeleter = deleter;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-async", maxInFlight);
+	}
+
+	/**
+	 * Creates a bucket.
+	 * @param bucketName The name of the bucket to create
+	 * @return The future of the created bucket.
+	 */
+	public CompletableFuture<Bucket> createBucket(final String bucketName) {
+		return submit(new Callable<Bucket>() {
+			@Override
+			public Bucket call() {
+				return s3Client.createBucket(bucketName);
+			}
+		});
+	}
+
+	/**
+	 * Lists the buckets in the client's account.
+	 * @return The future of the buckets.
+	 */
+	public CompletableFuture<List<Bucket>> listBuckets() {
+		return submit(new Callable<List<Bucket>>() {
+			@Override
+			public List<Bucket> call() {
+				return s3Client.listBuckets();
+			}
+		});
+	}
+
+	/**
+	 * Deletes a bucket after deleting all its object versions.
+	 * See {@link BatchDeleter#deleteVersions(String, String)}.
+	 * @param bucketName The name of the bucket to delete
+	 * @return The future of the number of object versions deleted. It fails with an
+	 * {@link IOException} when some versions could not be deleted; the bucket is then kept.
+	 */
+	public CompletableFuture<Long> deleteBucket(final String bucketName) {
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException {
+				BatchDeleter.Result versions = batchDeleter.deleteVersions(bucketName, null);
+				if (!versions.getErrors().isEmpty())
+					throw new IOException(String.format("Bucket %s not deleted: %d versions could not be deleted",
+							bucketName, versions.getErrors().size()));
+				s3Client.deleteBucket(bucketName);
+				return versions.getDeletedCount();
+			}
+		});
+	}
+
+	/**
+	 * Uploads a file. Files larger than the multipart threshold are uploaded in parts.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param file The file to upload
+	 * @return The future of the uploaded object.
+	 */
+	public CompletableFuture<UploadResult> uploadObject(final String bucketName, final String keyName,
+			final File file) {
+		return submit(new Callable<UploadResult>() {
+			@Override
+			public UploadResult call() throws IOException {
+				long length = file.length();
+				if (multipartUploader.isMultipart(length)) {
+					CompleteMultipartUploadResult result = multipartUploader.upload(bucketName, keyName, file);
+					return new UploadResult(bucketName, keyName, result.getETag(), result.getVersionId(), length);
+				}
+				PutObjectResult result = s3Client.putObject(new PutObjectRequest(bucketName, keyName, file));
+				return new UploadResult(bucketName, keyName, result.getETag(), result.getVersionId(), length);
+			}
+		});
+	}
+
+	/**
+	 * Downloads an object in memory. Meant for small objects.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @return The future of the content of the object.
+	 */
+	public CompletableFuture<byte[]> getObject(final String bucketName, final String keyName) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, keyName));
+				InputStream content = object.getObjectContent();
+				try {
+					return IOUtils.toByteArray(content);
+				}
+				finally {
+					content.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Downloads an object to a file with parallel ranges. See {@link RangedDownloader}.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param file The file to write
+	 * @return The future of the metadata of the downloaded object.
+	 */
+	public CompletableFuture<ObjectMetadata> downloadObject(final String bucketName, final String keyName,
+			final File file) {
+		return submit(new Callable<ObjectMetadata>() {
+			@Override
+			public ObjectMetadata call() throws IOException {
+				return rangedDownloader.download(bucketName, keyName, file);
+			}
+		});
+	}
+
+	/**
+	 * Lists the objects under a prefix. The pages are fetched while the previous
+	 * one is collected. See {@link ObjectIterator}.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix Only keys starting with this prefix are returned, or null for all the keys
+	 * @return The future of the object summaries, in key order.
+	 */
+	public CompletableFuture<List<S3ObjectSummary>> listObjects(final String bucketName, final String prefix) {
+		return submit(new Callable<List<S3ObjectSummary>>() {
+			@Override
+			public List<S3ObjectSummary> call() {
+				List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+				ObjectIterator iterator = new ObjectIterator(s3Client, bucketName, prefix, null, null);
+				while (iterator.hasNext())
+					objects.add(iterator.next());
+				return objects;
+			}
+		});
+	}
+
+	/**
+	 * Deletes an object.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to delete
+	 * @return The future completed when the object is deleted.
+	 */
+	public CompletableFuture<Void> deleteObject(final String bucketName, final String keyName) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				s3Client.deleteObject(new DeleteObjectRequest(bucketName, keyName));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return The number of operations running.
+	 */
+	public int getInFlightCount() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * @return The number of operations waiting for a free slot.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Stops the worker threads of the operations and of the transfer engines.
+	 * Queued operations are not started: their futures, and the futures of the operations
+	 * submitted afterwards, fail with a {@link RejectedExecutionException}.
+	 * The client is not shut down, since it can be shared.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		multipartUploader.shutdown();
+		rangedDownloader.shutdown();
+		batchDeleter.shutdown();
+		reject(new RejectedExecutionException("The operations are shut down"));
+	}
+
+	/**
+	 * The result of an upload.
+	 */
+	public static class UploadResult {
+
+		private final String bucketName, keyName, eTag, versionId;
+		private final long length;
+
+		UploadResult(String bucketName, String keyName, String eTag, String versionId, long length) {
+			this.bucketName = bucketName;
+			this.keyName = keyName;
+			this.eTag = eTag;
+			this.versionId = versionId;
+			this.length = length;
+		}
+
+		/**
+		 * @return The name of the bucket that holds the object.
+		 */
+		public String getBucketName() {
+			return bucketName;
+		}
+
+		/**
+		 * @return The name of the object.
+		 */
+		public String getKeyName() {
+			return keyName;
+		}
+
+		/**
+		 * @return The ETag of the object.
+		 */
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @return The version ID of the object, or null if the bucket is not versioned.
+		 */
+		public String getVersionId() {
+			return versionId;
+		}
+
+		/**
+		 * @return The number of bytes uploaded.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s/%s (%d bytes, ETag %s)", bucketName, keyName, length, eTag);
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Queues an operation and starts it if a slot is free.
+	 */
+	private <T> CompletableFuture<T> submit(Callable<T> call) {
+		final Operation<T> operation = new Operation<T>(call);
+		pending.add(operation);
+		// A queued operation cancelled by the caller leaves the queue at once, without taking a slot.
+		operation.future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable failure) {
+				if (operation.future.isCancelled())
+					pending.remove(operation);
+			}
+		});
+		dispatch();
+		return operation.future;
+	}
+
+	/*
+	 * Starts queued operations while slots are free.
+	 */
+	private void dispatch() {
+		while (inFlight.tryAcquire()) {
+			final Operation<?> next = pending.poll();
+			if (next == null) {
+				inFlight.release();
+				// An operation queued after the poll would otherwise wait for the next completion.
+				if (pending.isEmpty())
+					return;
+				continue;
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							next.run();
+						}
+						finally {
+							inFlight.release();
+							dispatch();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException ree) {
+				// Shut down: the operation never runs, so its slot is free and its future fails.
+				inFlight.release();
+				next.future.completeExceptionally(ree);
+				reject(ree);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Fails the futures of the queued operations.
+	 */
+	private void reject(RejectedExecutionException ree) {
+		for (Operation<?> operation; (operation = pending.poll()) != null; )
+			operation.future.completeExceptionally(ree);
+	}
+
+	/*
+	 * A submitted operation and its future.
+	 */
+	private static class Operation<T> implements Runnable {
+
+		private final Callable<T> call;
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Operation(Callable<T> call) {
+			this.call = call;
+		}
+
+		@Override
+		public void run() {
+			// Cancelled after it was taken from the queue.
+			if (future.isDone())
+				return;
+			try {
+				future.complete(call.call());
+			}
+			catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package com.acloudysky.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/***
+ * Deletes objects in batches using the multi-object delete API.
+ * Each request removes up to 1000 keys, and several requests run at the same
+ * time on a bounded pool of worker threads while the next listing page is fetched.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>A multi-object delete can partially fail. The keys reported as failed
+ * 	are collected and retried; the ones still failing after the configured
+ * 	number of retries are returned in the {@link Result}</li>
+ * 	<li>The number of batches waiting to run is bounded, so the listing does
+ * 	not run ahead of the deletes and memory use stays constant</li>
+ * 	<li>{@link #deleteVersions(String, String)} walks every page of versions and
+ * 	delete markers, so it also empties versioned buckets</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/DeletingMultipleObjects.html" target="_blank">Deleting Multiple Objects Using a Single Request</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class BatchDeleter {
+
+	/**
+	 * Largest number of keys accepted by a multi-object delete request.
+	 */
+	public static final int MAX_BATCH_SIZE = 1000;
+
+	/**
+	 * Number of batches deleted at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	/**
+	 * Number of times the failed keys of a batch are retried.
+	 */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	// Initial delay before retrying failed keys, doubled at each attempt.
+	private static final long RETRY_BASE_DELAY_MS = 200;
+
+	// Minimum interval between two progress reports.
+	private static final long PROGRESS_INTERVAL_MS = 5000;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final int concurrency;
+	private final int maxRetries;
+
+	// Bounded executor running the delete requests.
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a deleter with the default concurrency and retries.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public BatchDeleter(AmazonS3 authorizedClient) {
+		this(authorizedClient, DEFAULT_CONCURRENCY, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Creates a deleter.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param concurrency Maximum number of delete requests running at the same time
+	 * @param maxRetries Number of times the failed keys of a batch are retried
+	 */
+	public BatchDeleter(AmazonS3 authorizedClient, int concurrency, int maxRetries) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.s3Client = authorizedClient;
+		this.concurrency = concurrency;
+		this.maxRetries = maxRetries;
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-delete-batch", concurrency);
+	}
+
+	/**
+	 * Deletes all the objects whose key starts with the specified prefix.
+	 * Blocks until every batch has been processed.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The key prefix of the objects to delete, or null for all the objects
+	 * @return The number of deleted objects and the keys that could not be deleted
+	 * @throws IOException The deletion was interrupted
+	 */
+	public Result deleteObjects(String bucketName, String prefix) throws IOException {
+		Session session = newSession(bucketName);
+		try {
+			ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+				.withBucketName(bucketName)
+				.withPrefix(prefix)
+				.withMaxKeys(MAX_BATCH_SIZE);
+			ObjectListing objectListing;
+			do {
+				objectListing = s3Client.listObjects(listObjectsRequest);
+				List<KeyVersion> keys = new ArrayList<KeyVersion>(objectListing.getObjectSummaries().size());
+				for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
+					keys.add(new KeyVersion(objectSummary.getKey()));
+				session.submit(keys);
+				listObjectsRequest.setMarker(objectListing.getNextMarker());
+			} while (objectListing.isTruncated());
+		}
+		finally {
+			session.close();
+		}
+		return session.await();
+	}
+
+	/**
+	 * Deletes all the versions and delete markers whose key starts with the specified prefix.
+	 * Version pages are walked with key and version ID markers, and each page is 
+	 * deleted while the next one is fetched. Progress is reported periodically.
+	 * Blocks until every batch has been processed.
+	 * <p>In a bucket that has never been versioned each object has a single 
+	 * version, so this also deletes all the objects.</p>
+	 * @param bucketName The name of the bucket that contains the versions
+	 * @param prefix The key prefix of the versions to delete, or null for all the versions
+	 * @return The number of deleted versions, the bytes freed and the versions that 
+	 * could not be deleted
+	 * @throws IOException The deletion was interrupted
+	 */
+	public Result deleteVersions(String bucketName, String prefix) throws IOException {
+		Session session = newSession(bucketName);
+		long lastReport = System.currentTimeMillis();
+		try {
+			ListVersionsRequest listVersionsRequest = new ListVersionsRequest()
+				.withBucketName(bucketName)
+				.withPrefix(prefix)
+				.withMaxResults(MAX_BATCH_SIZE);
+			VersionListing versionListing;
+			do {
+				versionListing = s3Client.listVersions(listVersionsRequest);
+				List<S3VersionSummary> summaries = versionListing.getVersionSummaries();
+				List<KeyVersion> keys = new ArrayList<KeyVersion>(summaries.size());
+				long[] sizes = new long[summaries.size()];
+				for (int i = 0; i < sizes.length; i++) {
+					S3VersionSummary versionSummary = summaries.get(i);
+					keys.add(new KeyVersion(versionSummary.getKey(), versionSummary.getVersionId()));
+					sizes[i] = versionSummary.isDeleteMarker() ? 0 : versionSummary.getSize();
+				}
+				session.submit(keys, sizes);
+				listVersionsRequest.setKeyMarker(versionListing.getNextKeyMarker());
+				listVersionsRequest.setVersionIdMarker(versionListing.getNextVersionIdMarker());
+
+				long now = System.currentTimeMillis();
+				if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+					displayProgress(session.snapshot());
+					lastReport = now;
+				}
+			} while (versionListing.isTruncated());
+		}
+		finally {
+			session.close();
+		}
+		Result result = session.await();
+		displayProgress(result);
+		return result;
+	}
+
+	/**
+	 * Starts a deletion session on a bucket. Keys submitted to the session are
+	 * deleted in the background.
+	 * @param bucketName The name of the bucket that contains the keys
+	 * @return The new session
+	 */
+	public Session newSession(String bucketName) {
+		return new Session(bucketName);
+	}
+
+	/**
+	 * Stops the worker threads. Deletions in progress are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/*
+	 * Displays the deletion counters and rate.
+	 */
+	private static void displayProgress(Result result) {
+		System.out.println(String.format("Deleted %d versions (%.0f versions/sec), %d bytes freed", 
+				result.getDeletedCount(), result.getDeletedPerSecond(), result.getBytesFreed()));
+	}
+
+	/**
+	 * Outcome of a batched deletion.
+	 */
+	public static class Result {
+
+		private final long deletedCount;
+		private final long bytesFreed;
+		private final long elapsedMillis;
+		private final List<DeleteError> errors;
+
+		Result(long deletedCount, long bytesFreed, long elapsedMillis, List<DeleteError> errors) {
+			this.deletedCount = deletedCount;
+			this.bytesFreed = bytesFreed;
+			this.elapsedMillis = elapsedMillis;
+			this.errors = Collections.unmodifiableList(errors);
+		}
+
+		/**
+		 * @return The number of keys deleted.
+		 */
+		public long getDeletedCount() {
+			return deletedCount;
+		}
+
+		/**
+		 * @return The size of the deleted versions, when submitted with their sizes.
+		 */
+		public long getBytesFreed() {
+			return bytesFreed;
+		}
+
+		/**
+		 * @return The time elapsed since the deletion started, in milliseconds.
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return The average number of keys deleted per second.
+		 */
+		public double getDeletedPerSecond() {
+			return elapsedMillis == 0 ? 0 : deletedCount * 1000.0 / elapsedMillis;
+		}
+
+		/**
+		 * @return The keys that could not be deleted after all the retries.
+		 */
+		public List<DeleteError> getErrors() {
+			return errors;
+		}
+	}
+
+	/**
+	 * Accepts batches of keys from a single producer, typically a listing loop,
+	 * and deletes them on the worker threads of the deleter.
+	 * The producer is blocked when too many batches are pending.
+	 */
+	public class Session {
+
+		private final String bucketName;
+
+		// Limits the batches submitted but not yet completed.
+		private final Semaphore pending = new Semaphore(2 * concurrency);
+
+		private final AtomicLong deletedCount = new AtomicLong();
+		private final AtomicLong bytesFreed = new AtomicLong();
+		private final List<DeleteError> errors = Collections.synchronizedList(new ArrayList<DeleteError>());
+		private final long startTime = System.currentTimeMillis();
+		private int submitted;
+		private boolean closed;
+
+		Session(String bucketName) {
+			this.bucketName = bucketName;
+		}
+
+		/**
+		 * Submits keys for deletion. Lists larger than {@link BatchDeleter#MAX_BATCH_SIZE}
+		 * are split into several requests.
+		 * @param keys The keys, optionally with version IDs, to delete
+		 * @throws IOException The producer was interrupted while waiting for a free slot
+		 */
+		public void submit(List<KeyVersion> keys) throws IOException {
+			submit(keys, null);
+		}
+
+		/**
+		 * Submits keys for deletion along with their sizes, which are added to the 
+		 * bytes freed when the keys are deleted.
+		 * @param keys The keys, optionally with version IDs, to delete
+		 * @param sizes The size of each key, in the same order, or null if unknown
+		 * @throws IOException The producer was interrupted while waiting for a free slot
+		 */
+		public void submit(List<KeyVersion> keys, long[] sizes) throws IOException {
+			if (closed)
+				throw new IllegalStateException("Session closed");
+			for (int from = 0; from < keys.size(); from += MAX_BATCH_SIZE) {
+				int to = Math.min(from + MAX_BATCH_SIZE, keys.size());
+				final List<KeyVersion> batch = new ArrayList<KeyVersion>(keys.subList(from, to));
+				final long[] batchSizes = sizes == null ? null : Arrays.copyOfRange(sizes, from, to);
+				try {
+					pending.acquire();
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while submitting keys for deletion");
+				}
+				submitted++;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							deleteBatch(batch, batchSizes);
+						}
+						finally {
+							pending.release();
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * Marks the end of the submissions.
+		 */
+		public void close() {
+			closed = true;
+		}
+
+		/**
+		 * Waits for all the submitted batches to complete.
+		 * @return The number of deleted keys and the keys that could not be deleted
+		 * @throws IOException Interrupted while waiting
+		 */
+		public Result await() throws IOException {
+			close();
+			int permits = 2 * concurrency;
+			try {
+				pending.acquire(permits);
+				pending.release(permits);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for deletions");
+			}
+			return snapshot();
+		}
+
+		/**
+		 * @return The counters of the deletions completed so far.
+		 */
+		public Result snapshot() {
+			return new Result(deletedCount.get(), bytesFreed.get(), 
+					System.currentTimeMillis() - startTime, new ArrayList<DeleteError>(errors));
+		}
+
+		/**
+		 * @return The number of batches submitted so far.
+		 */
+		public int getSubmittedCount() {
+			return submitted;
+		}
+
+		/*
+		 * Deletes one batch, retrying the keys reported as failed.
+		 */
+		private void deleteBatch(List<KeyVersion> keys, long[] sizes) {
+			List<KeyVersion> remaining = keys;
+			long remainingBytes = 0;
+			Map<String, Long> sizeOf = null;
+			if (sizes != null) {
+				sizeOf = new HashMap<String, Long>(2 * keys.size());
+				for (int i = 0; i < sizes.length; i++) {
+					sizeOf.put(id(keys.get(i).getKey(), keys.get(i).getVersion()), sizes[i]);
+					remainingBytes += sizes[i];
+				}
+			}
+			for (int attempt = 0; ; attempt++) {
+				DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName)
+					.withKeys(remaining)
+					.withQuiet(true);
+				try {
+					s3Client.deleteObjects(request);
+					deletedCount.addAndGet(remaining.size());
+					bytesFreed.addAndGet(remainingBytes);
+					return;
+				}
+				catch (MultiObjectDeleteException mode) {
+					long failedBytes = 0;
+					remaining = new ArrayList<KeyVersion>(mode.getErrors().size());
+					for (DeleteError error : mode.getErrors()) {
+						remaining.add(new KeyVersion(error.getKey(), error.getVersionId()));
+						Long size = sizeOf == null ? null : sizeOf.get(id(error.getKey(), error.getVersionId()));
+						if (size != null)
+							failedBytes += size;
+					}
+					deletedCount.addAndGet(request.getKeys().size() - remaining.size());
+					bytesFreed.addAndGet(remainingBytes - failedBytes);
+					remainingBytes = failedBytes;
+					if (attempt >= maxRetries) {
+						errors.addAll(mode.getErrors());
+						return;
+					}
+				}
+				catch (AmazonClientException ace) {
+					if (attempt >= maxRetries) {
+						for (KeyVersion key : remaining)
+							errors.add(toError(key, ace));
+						return;
+					}
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(RETRY_BASE_DELAY_MS << attempt);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					for (KeyVersion key : remaining)
+						errors.add(toError(key, ie));
+					return;
+				}
+			}
+		}
+
+		private String id(String key, String versionId) {
+			return versionId == null ? key : key + '\u0000' + versionId;
+		}
+
+		private DeleteError toError(KeyVersion key, Exception cause) {
+			DeleteError error = new DeleteError();
+			error.setKey(key.getKey());
+			error.setVersionId(key.getVersion());
+			error.setCode(cause.getClass().getSimpleName());
+			error.setMessage(cause.getMessage());
+			return error;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package com.acloudysky.s3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Runs the operations listed in a manifest without user interaction.
+ * Each line of the manifest is one operation, using the menu commands:
+ * <pre>
+ *   cb bucket                 create a bucket
+ *   uo bucket key file        upload a file
+ *   do bucket key file        download an object to a file
+ *   lo bucket [prefix]        count the objects and their bytes
+ *   xo bucket key             delete an object
+ *   db bucket                 delete a bucket and all its objects
+ *   wait                      wait for all the previous operations
+ * </pre>
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The fields are separated by tabs or, when the line contains no tab, by spaces.
+ * 	Blank lines and lines starting with <i>#</i> are ignored</li>
+ * 	<li>The manifest is read as the operations run, so its size is not limited by memory.
+ * 	At most the configured number of operations run at the same time</li>
+ * 	<li><i>cb</i> and <i>db</i> wait for all the previous operations and complete before
+ * 	the next ones start, so a manifest can create a bucket, fill it and delete it</li>
+ * 	<li>A result line is printed as each operation completes: the manifest line number,
+ * 	<i>OK</i> or <i>FAILED</i>, the elapsed time, the operation and a message</li>
+ * 	<li>With a {@link TransferJournal}, each operation that succeeds is recorded with its line
+ * 	number. A run of the same manifest with the same journal, after a crash, skips the recorded
+ * 	operations and reports them as <i>SKIPPED</i>, and resumes the multipart uploads in progress</li>
+ * 	<li>The operations run through {@link BucketOperations} and {@link ObjectOperations}, so they
+ * 	are recorded in the metrics, invalidate the content cache and use the same transfer engines</li>
+ * 	<li>Files are uploaded as they are, so that an interrupted upload can resume with the same parts,
+ * 	unless a codec is configured: they are then compressed as they are uploaded, and an interrupted
+ * 	upload starts again. Objects compressed by the client are decompressed once downloaded.
+ * 	See {@link CompressionCodec}</li>
+ * 	<li>The exit code is {@value #EXIT_OK} when all the operations succeed,
+ * 	{@value #EXIT_FAILED} when some failed and {@value #EXIT_INVALID} when the manifest
+ * 	contains invalid lines, which are reported and skipped</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class BatchRunner {
+
+	/**
+	 * Number of operations run at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/** Exit code when all the operations succeed. */
+	public static final int EXIT_OK = 0;
+
+	/** Exit code when at least one operation failed. */
+	public static final int EXIT_FAILED = 1;
+
+	/** Exit code when the manifest contains invalid lines. */
+	public static final int EXIT_INVALID = 2;
+
+	private final BucketOperations bucketOperations;
+	private final ObjectOperations objectOperations;
+
+	private final int concurrency;
+
+	// Destination of the result lines.
+	private final PrintStream out;
+
+	// Bounded executor running the operations.
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a runner using operations with the default settings.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param concurrency Maximum number of operations running at the same time
+	 * @param out Destination of the result lines
+	 */
+	public BatchRunner(AmazonS3 authorizedClient, int concurrency, PrintStream out) {
+		this(new BucketOperations(authorizedClient), new ObjectOperations(authorizedClient), concurrency, out);
+	}
+
+	/**
+	 * Creates a runner.
+	 * @param bucketOperations Operations used to create and delete the buckets
+	 * @param objectOperations Operations used to upload, download, list and delete the objects
+	 * @param concurrency Maximum number of operations running at the same time
+	 * @param out Destination of the result lines
+	 */
+	public BatchRunner(BucketOperations bucketOperations, ObjectOperations objectOperations,
+			int concurrency, PrintStream out) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.bucketOperations = bucketOperations;
+		this.objectOperations = objectOperations;
+		this.concurrency = concurrency;
+		this.out = out;
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-batch", concurrency);
+	}
+
+	/**
+	 * Runs all the operations of a manifest.
+	 * Blocks until every operation has completed.
+	 * @param manifest The manifest, one operation per line
+	 * @return The operation counts and the exit code
+	 * @throws IOException The manifest could not be read, or the run was interrupted
+	 */
+	public Summary run(Reader manifest) throws IOException {
+		return run(manifest, null);
+	}
+
+	/**
+	 * Runs the operations of a manifest which were not completed by a previous run, and
+	 * records the operations completed in a journal.
+	 * Blocks until every operation has completed.
+	 * @param manifest The manifest, one operation per line
+	 * @param journal The journal of the runs of the manifest, or null
+	 * @return The operation counts and the exit code
+	 * @throws IOException The manifest could not be read, or the run was interrupted
+	 */
+	public Summary run(Reader manifest, TransferJournal journal) throws IOException {
+		Summary summary = new Summary();
+		// Twice the pool size, so that workers find a queued operation when they complete one.
+		Semaphore slots = new Semaphore(2 * concurrency);
+		BufferedReader reader = manifest instanceof BufferedReader
+				? (BufferedReader) manifest : new BufferedReader(manifest);
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("#"))
+					continue;
+				String[] fields = trimmed.indexOf('\t') >= 0 ? trimmed.split("\t+") : trimmed.split(" +");
+				String invalid = validate(fields);
+				if (invalid != null) {
+					summary.invalid.incrementAndGet();
+					report(lineNumber, "INVALID", 0, trimmed, invalid);
+					continue;
+				}
+				// The line number makes identical lines distinct operations.
+				String id = lineNumber + "\t" + trimmed;
+				if (journal != null && journal.isCompleted(id)) {
+					summary.skipped.incrementAndGet();
+					report(lineNumber, "SKIPPED", 0, trimmed, "completed by a previous run");
+					continue;
+				}
+				if ("wait".equals(fields[0]))
+					drain(slots);
+				else if ("cb".equals(fields[0]) || "db".equals(fields[0])) {
+					drain(slots);
+					slots.acquire();
+					new Operation(lineNumber, trimmed, fields, journal, summary, slots).run();
+				}
+				else {
+					slots.acquire();
+					executor.execute(new Operation(lineNumber, trimmed, fields, journal, summary, slots));
+				}
+			}
+			drain(slots);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Batch run interrupted");
+		}
+		return summary;
+	}
+
+	/**
+	 * Stops the worker threads of the runner and of its operations.
+	 * The client is not shut down, since it can be shared.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		bucketOperations.shutdown();
+		objectOperations.shutdown();
+	}
+
+	/**
+	 * Counts of the operations of a run.
+	 */
+	public static class Summary {
+
+		private final AtomicLong succeeded = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong invalid = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+
+		/**
+		 * @return The number of operations that succeeded.
+		 */
+		public long getSucceededCount() {
+			return succeeded.get();
+		}
+
+		/**
+		 * @return The number of operations that failed.
+		 */
+		public long getFailedCount() {
+			return failed.get();
+		}
+
+		/**
+		 * @return The number of invalid manifest lines, which were skipped.
+		 */
+		public long getInvalidCount() {
+			return invalid.get();
+		}
+
+		/**
+		 * @return The number of operations skipped because a previous run completed them.
+		 */
+		public long getSkippedCount() {
+			return skipped.get();
+		}
+
+		/**
+		 * @return {@link #EXIT_INVALID}, {@link #EXIT_FAILED} or {@link #EXIT_OK}.
+		 */
+		public int getExitCode() {
+			if (invalid.get() > 0)
+				return EXIT_INVALID;
+			return failed.get() > 0 ? EXIT_FAILED : EXIT_OK;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d succeeded, %d failed, %d invalid, %d skipped",
+					succeeded.get(), failed.get(), invalid.get(), skipped.get());
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Checks the command and its number of arguments.
+	 * Returns the error message, or null if the line is valid.
+	 */
+	private static String validate(String[] fields) {
+		int arguments = fields.length - 1;
+		switch (fields[0]) {
+			case "cb":
+			case "db":
+				return arguments == 1 ? null : "usage: " + fields[0] + " bucket";
+			case "uo":
+			case "do":
+				return arguments == 3 ? null : "usage: " + fields[0] + " bucket key file";
+			case "lo":
+				return arguments == 1 || arguments == 2 ? null : "usage: lo bucket [prefix]";
+			case "xo":
+				return arguments == 2 ? null : "usage: xo bucket key";
+			case "wait":
+				return arguments == 0 ? null : "usage: wait";
+			default:
+				return String.format("%s is not allowed", fields[0]);
+		}
+	}
+
+	/*
+	 * Waits until all the submitted operations have completed.
+	 */
+	private void drain(Semaphore slots) throws InterruptedException {
+		slots.acquire(2 * concurrency);
+		slots.release(2 * concurrency);
+	}
+
+	private void report(int lineNumber, String status, long millis, String line, String message) {
+		synchronized (out) {
+			out.println(String.format("%d\t%s\t%d ms\t%s\t%s", lineNumber, status, millis, line, message));
+		}
+	}
+
+	/*
+	 * Runs one manifest line and reports its result.
+	 */
+	private class Operation implements Runnable {
+
+		private final int lineNumber;
+		private final String line;
+		private final String[] fields;
+		private final TransferJournal journal;
+		private final Summary summary;
+		private final Semaphore slots;
+
+		Operation(int lineNumber, String line, String[] fields, TransferJournal journal, Summary summary,
+				Semaphore slots) {
+			this.lineNumber = lineNumber;
+			this.line = line;
+			this.fields = fields;
+			this.journal = journal;
+			this.summary = summary;
+			this.slots = slots;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long start = System.nanoTime();
+				String status = "OK";
+				String message;
+				try {
+					message = execute();
+					if (journal != null)
+						journal.markCompleted(lineNumber + "\t" + line);
+					summary.succeeded.incrementAndGet();
+				}
+				catch (AmazonServiceException ase) {
+					status = "FAILED";
+					message = String.format("%s (%d): %s", ase.getErrorCode(), ase.getStatusCode(), ase.getErrorMessage());
+					summary.failed.incrementAndGet();
+				}
+				catch (AmazonClientException | IOException e) {
+					status = "FAILED";
+					message = e.getMessage();
+					summary.failed.incrementAndGet();
+				}
+				catch (RuntimeException re) {
+					status = "FAILED";
+					message = re.toString();
+					summary.failed.incrementAndGet();
+				}
+				report(lineNumber, status, (System.nanoTime() - start) / 1000000, line, message);
+			}
+			finally {
+				slots.release();
+			}
+		}
+
+		/*
+		 * Runs the operation of the command. Returns the result message.
+		 */
+		private String execute() throws IOException {
+			String bucketName = fields[1];
+			switch (fields[0]) {
+				case "cb": {
+					return "region " + bucketOperations.create(bucketName);
+				}
+				case "uo": {
+					File file = new File(fields[3]);
+					if (!file.isFile())
+						throw new IOException("No such file: " + file);
+					return String.format("%d bytes", objectOperations.upload(bucketName, fields[2], file, journal));
+				}
+				case "do": {
+					File file = new File(fields[3]);
+					String eTag = objectOperations.download(bucketName, fields[2], file);
+					return String.format("%d bytes, ETag %s", file.length(), eTag);
+				}
+				case "lo": {
+					long count = 0, bytes = 0;
+					ObjectIterator objects = objectOperations.listObjects(bucketName,
+							fields.length > 2 ? fields[2] : null, null, null);
+					while (objects.hasNext()) {
+						S3ObjectSummary objectSummary = objects.next();
+						count++;
+						bytes += objectSummary.getSize();
+					}
+					return String.format("%d objects, %d bytes", count, bytes);
+				}
+				case "xo": {
+					objectOperations.delete(bucketName, fields[2]);
+					return "deleted";
+				}
+				case "db": {
+					BatchDeleter.Result versions = bucketOperations.delete(bucketName);
+					if (!versions.getErrors().isEmpty())
+						throw new IOException(String.format("%d versions could not be deleted, first: %s %s",
+								versions.getErrors().size(), versions.getErrors().get(0).getKey(),
+								versions.getErrors().get(0).getCode()));
+					return String.format("%d versions deleted", versions.getDeletedCount());
+				}
+				default:
+					throw new IllegalStateException(fields[0]);
+			}
+		}
+	}
+}
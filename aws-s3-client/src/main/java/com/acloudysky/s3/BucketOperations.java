@@ -7,14 +7,7 @@ import com.amazonaws.AmazonServiceException;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.Bucket;
-
-import com.amazonaws.services.s3.model.ListVersionsRequest;
-import com.amazonaws.services.s3.model.MultiObjectDeleteException;
-import com.amazonaws.services.s3.model.ObjectListing;
-
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.model.S3VersionSummary;
-import com.amazonaws.services.s3.model.VersionListing;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 
 
 import java.util.Iterator;
@@ -24,6 +17,8 @@ import java.util.List;
 /***
  * Performs S3 bucket operations. 
  * Each method calls the related AWS S3 API. 
+ * The operations hold no per-call state, so one instance can be used by 
+ * many threads at once.
  * <p>
  * For more information, see 
  * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingBucket.html" target="_blank">Working with Amazon S3 Buckets</a>.
@@ -33,15 +28,51 @@ import java.util.List;
  */
 public class BucketOperations {
 
-	// Authorized client
-	private static AmazonS3 s3Client;
+	// Authorized client, shared by all the threads using the operations.
+	private final AmazonS3 s3Client;
+	
+	// Deletes objects with multi-object delete requests.
+	private final BatchDeleter batchDeleter;
+	
+	// Records the calls of the operations.
+	private final OperationMetrics metrics;
+	
+	/***
+	 * Creates the bucket operations.
+	 * Objects are deleted in batches using the default settings.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public BucketOperations(AmazonS3 authorizedClient) {
+		this(authorizedClient, new BatchDeleter(authorizedClient));
+	}
+	
+	/***
+	 * Creates the bucket operations.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param deleter Deleter used to empty buckets.
+	 */
+	public BucketOperations(AmazonS3 authorizedClient, BatchDeleter deleter) {
+		this(authorizedClient, deleter, new OperationMetrics());
+	}
 	
 	/***
-	 * Initializes global status variables.
+	 * Creates the bucket operations.
 	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param deleter Deleter used to empty buckets.
+	 * @param metrics Metrics recording the calls of the operations.
+	 */
+	public BucketOperations(AmazonS3 authorizedClient, BatchDeleter deleter, OperationMetrics metrics) {
+		this.s3Client = authorizedClient;
+		this.batchDeleter = deleter;
+		this.metrics = metrics;
+	}
+	
+	/***
+	 * Stops the threads of the deleter.
+	 * The client is not shut down, since it can be shared.
 	 */
-	public static void initBucketOperations(AmazonS3 authorizedClient) {
-		s3Client = authorizedClient;
+	public void shutdown() {
+		batchDeleter.shutdown();
 	}
 	
     /**
@@ -57,13 +88,12 @@ public class BucketOperations {
      * @param bucketName The name of the bucket to create
      * @throws IOException Error encountered while creating the bucket
      */
-	public static void createBucket(String bucketName) throws IOException {			
+	public void createBucket(String bucketName) throws IOException {			
 		
 		try {
             	System.out.println("Creating bucket " + bucketName + "\n");
             	// Create the bucket.
-            	s3Client.createBucket(bucketName);
-            	String region = s3Client.getBucketLocation(bucketName); 
+            	String region = create(bucketName); 
             	System.out.println(String.format("Created bucket %s in region %s", bucketName, region));
             }
         	catch (AmazonServiceException ase) {
@@ -91,8 +121,9 @@ public class BucketOperations {
 	 * Lists the buckets in the client's account.
 	 * @throws IOException Error encountered while listing buckets
 	 */
-	public static void listBuckets() throws IOException {
+	public void listBuckets() throws IOException {
 		
+		long start = System.nanoTime();
 		try {
 				
 				List<Bucket> bucketList = s3Client.listBuckets();
@@ -109,8 +140,10 @@ public class BucketOperations {
 			}
 			else	
 				System.out.println(String.format("%s", "The account does not contain any bucket."));
+			metrics.succeeded("listBuckets", start, 0);
 
         } catch (AmazonServiceException ase) {
+        	metrics.failed("listBuckets", start, ase);
         	StringBuffer buffer = new StringBuffer();
         	
         	buffer.append(("Caught an AmazonServiceException, which means your request made it "
@@ -124,6 +157,7 @@ public class BucketOperations {
         	System.out.print(buffer.toString());
         	
         } catch (AmazonClientException ace) {
+        	metrics.failed("listBuckets", start, ace);
             System.out.println("Caught an AmazonClientException, which means the client encountered "
                     + "a serious internal problem while trying to communicate with S3, "
                     + "such as not being able to access the network.");
@@ -134,39 +168,28 @@ public class BucketOperations {
 	
 	/**
 	 * Deletes a bucket.
-	 * <p><bNote.</b> A bucket must be completely empty before it can be
-	 * deleted, so remember to delete any objects from your bucket before
-	 * you try to delete it.</p>
+	 * <p><b>Note.</b> A bucket must be completely empty before it can be
+	 * deleted, so all the object versions and delete markers are removed first.</p>
+	 * <p>Versions are listed page by page using key and version ID markers, and each page 
+	 * is removed with multi-object delete requests of up to 1000 keys while the next 
+	 * page is fetched. See {@link BatchDeleter#deleteVersions(String, String)}.</p>
 	 * @param bucketName The name of the bucket to delete
 	 * @throws IOException Error encountered while deleting the bucket
 	 */
-	public static void deleteBucket(String bucketName) throws IOException {	
+	public void deleteBucket(String bucketName) throws IOException {	
 		try {
 			
 			 	System.out.println(String.format("Deleting bucket %s %n", bucketName));
-	            ObjectListing objectListing = s3Client.listObjects(bucketName);
-	     
-	            while (true) {
-	                for ( Iterator<?> iterator = objectListing.getObjectSummaries().iterator(); iterator.hasNext(); ) {
-	                    S3ObjectSummary objectSummary = (S3ObjectSummary) iterator.next();
-	                    s3Client.deleteObject(bucketName, objectSummary.getKey());
-	                }
-	     
-	                if (objectListing.isTruncated()) {
-	                    objectListing = s3Client.listNextBatchOfObjects(objectListing);
-	                } else {
-	                    break;
-	                }
-	            };
-	            VersionListing list = s3Client.listVersions(new ListVersionsRequest().withBucketName(bucketName));
-	            for ( Iterator<?> iterator = list.getVersionSummaries().iterator(); iterator.hasNext(); ) {
-	                S3VersionSummary s = (S3VersionSummary)iterator.next();
-	                s3Client.deleteVersion(bucketName, s.getKey(), s.getVersionId());
-	            }
-	          
-	           
+			 	BatchDeleter.Result versions = delete(bucketName);
+			 	displayDeleteErrors(versions);
+			 	
+			 	if (versions.getErrors().isEmpty())
+			 		System.out.println(String.format("Deleted bucket %s", bucketName));
+			 	else
+			 		System.out.println(String.format("Bucket %s not deleted: %d versions could not be deleted", 
+			 				bucketName, versions.getErrors().size()));
             
-        } catch (MultiObjectDeleteException  ase) {
+        } catch (AmazonServiceException ase) {
         	StringBuffer buffer = new StringBuffer();
         	
         	buffer.append(("Caught an AmazonServiceException, which means your request made it "
@@ -186,6 +209,61 @@ public class BucketOperations {
             System.out.println("Error Message: " + ace.getMessage());
         }
     }
-		
+	
+	/*
+	 * Creates a bucket and records the call. Returns its region.
+	 * Errors are thrown to the caller, so that the batch runner can report them.
+	 */
+	String create(String bucketName) {
+		long start = System.nanoTime();
+		try {
+			s3Client.createBucket(bucketName);
+			String region = s3Client.getBucketLocation(bucketName);
+			metrics.succeeded("createBucket", start, 0);
+			return region;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("createBucket", start, ace);
+			throw ace;
+		}
+	}
+	
+	/*
+	 * Deletes all the object versions of a bucket, then the bucket if they are all deleted,
+	 * and records the call. Returns the versions deleted and the ones that could not be.
+	 * Errors are thrown to the caller, so that the batch runner can report them.
+	 */
+	BatchDeleter.Result delete(String bucketName) throws IOException {
+		long start = System.nanoTime();
+		try {
+			BatchDeleter.Result versions = batchDeleter.deleteVersions(bucketName, null);
+			if (versions.getErrors().isEmpty()) {
+				s3Client.deleteBucket(bucketName);
+				metrics.succeeded("deleteBucket", start, 0);
+			}
+			else
+				metrics.failed("deleteBucket", start, versions.getErrors().get(0).getCode());
+			return versions;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("deleteBucket", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("deleteBucket", start, e);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Displays the keys that could not be deleted.
+	 */
+	private static void displayDeleteErrors(BatchDeleter.Result result) {
+		for (DeleteError error : result.getErrors()) {
+			System.out.println(String.format(" - %s %s: %s %s", error.getKey(), 
+					error.getVersionId() == null ? "" : error.getVersionId(), 
+					error.getCode(), error.getMessage()));
+		}
+	}
 	
 }
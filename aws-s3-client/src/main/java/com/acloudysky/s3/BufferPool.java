@@ -0,0 +1,438 @@
+package com.acloudysky.s3;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Lends the buffers of the transfer paths, so that steady transfers reuse the same buffers
+ * instead of allocating new ones for each request.
+ * The buffers are grouped in size classes, the powers of two from {@value #MIN_SIZE} bytes to
+ * {@value #MAX_SIZE} bytes; a request gets a buffer of the smallest class that holds it.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Two pools are shared by the application. The {@link #direct()} pool holds direct buffers,
+ * 	which the JDK reads and writes from channels without an intermediate copy. The {@link #heap()}
+ * 	pool holds heap buffers, for the paths going through the streams of the SDK, which can only
+ * 	read into and write from arrays; a direct buffer there would add a copy</li>
+ * 	<li>Released buffers are kept for reuse up to a maximum number of free bytes, beyond which they
+ * 	are left to the garbage collector. Requests above the largest class get unpooled buffers</li>
+ * 	<li>Every lent buffer is recorded with the time it was acquired, so buffers held for too long,
+ * 	usually because a path does not release them, are listed by {@link #findLeaks(long)}.
+ * 	With {@link #setLeakTracking(boolean)}, or the <i>s3.bufferPool.leakTracking</i> system property,
+ * 	the stack of each acquisition is kept as well, at the cost of an allocation per request. Releasing a buffer twice, or one not lent by the pool,
+ * 	throws an {@link IllegalArgumentException}</li>
+ * 	<li>The pool is thread-safe. The free buffers and the leases of a class are guarded by the lock
+ * 	of the class, taken once per acquisition and once per release; the counters are atomic.
+ * 	A buffer must not be used after it is released</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class BufferPool {
+
+	/** Size of the smallest class, in bytes. */
+	public static final int MIN_SIZE = 4 * 1024;
+
+	/** Size of the largest class, in bytes. */
+	public static final int MAX_SIZE = 32 * 1024 * 1024;
+
+	/** Free bytes kept by the shared heap pool. */
+	public static final long DEFAULT_HEAP_FREE_BYTES = 256L * 1024 * 1024;
+
+	/** Free bytes kept by the shared direct pool. */
+	public static final long DEFAULT_DIRECT_FREE_BYTES = 64L * 1024 * 1024;
+
+	/** Name of the system property turning leak tracking on in the pools created afterwards. */
+	public static final String LEAK_TRACKING_PROPERTY = "s3.bufferPool.leakTracking";
+
+	// log2(MIN_SIZE).
+	private static final int MIN_SHIFT = 12;
+
+	private static final int CLASSES = 32 - Integer.numberOfLeadingZeros(MAX_SIZE) - MIN_SHIFT;
+
+	private static final BufferPool HEAP = new BufferPool(false, DEFAULT_HEAP_FREE_BYTES);
+	private static final BufferPool DIRECT = new BufferPool(true, DEFAULT_DIRECT_FREE_BYTES);
+
+	private final boolean direct;
+	private final long maxFreeBytes;
+	private final SizeClass[] classes = new SizeClass[CLASSES];
+	private final AtomicLong freeBytes = new AtomicLong();
+	private final AtomicLong bytesInUse = new AtomicLong();
+	private final AtomicLong peakBytesInUse = new AtomicLong();
+	private final LongAdder unpooled = new LongAdder();
+
+	// Leases of the unpooled buffers lent. Guarded by the map.
+	private final Map<ByteBuffer, Lease> unpooledLeases = new IdentityHashMap<ByteBuffer, Lease>();
+
+	private volatile boolean leakTracking;
+
+	/**
+	 * Creates a pool. Most paths use the shared pools instead.
+	 * @param direct true for direct buffers, false for heap buffers.
+	 * @param maxFreeBytes Largest number of bytes kept in released buffers.
+	 */
+	public BufferPool(boolean direct, long maxFreeBytes) {
+		this.direct = direct;
+		this.maxFreeBytes = maxFreeBytes;
+		this.leakTracking = Boolean.getBoolean(LEAK_TRACKING_PROPERTY);
+		for (int i = 0; i < CLASSES; i++)
+			classes[i] = new SizeClass(MIN_SIZE << i);
+	}
+
+	/**
+	 * @return The shared pool of heap buffers, for the paths reading or writing streams.
+	 */
+	public static BufferPool heap() {
+		return HEAP;
+	}
+
+	/**
+	 * @return The shared pool of direct buffers, for the paths reading or writing channels.
+	 */
+	public static BufferPool direct() {
+		return DIRECT;
+	}
+
+	/**
+	 * Lends a buffer. Release it when done, usually in a finally block.
+	 * @param size The number of bytes needed.
+	 * @return A buffer with a capacity of at least the size, its position at 0 and its limit at the size.
+	 * A heap buffer has an accessible array starting at offset 0.
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Negative buffer size: " + size);
+		Throwable site = leakTracking ? new Throwable() : null;
+		ByteBuffer buffer;
+		if (size > MAX_SIZE) {
+			unpooled.increment();
+			buffer = allocate(size);
+			synchronized (unpooledLeases) {
+				lend(unpooledLeases, buffer, site);
+			}
+		}
+		else {
+			SizeClass sizeClass = classes[classIndex(size)];
+			sizeClass.acquires.increment();
+			synchronized (sizeClass) {
+				buffer = sizeClass.free.pollFirst();
+				if (buffer != null)
+					lend(sizeClass.leases, buffer, site);
+			}
+			if (buffer != null)
+				freeBytes.addAndGet(-buffer.capacity());
+			else {
+				sizeClass.allocations.increment();
+				buffer = allocate(sizeClass.size);
+				synchronized (sizeClass) {
+					lend(sizeClass.leases, buffer, site);
+				}
+			}
+			raise(sizeClass.peakInUse, sizeClass.inUse.incrementAndGet());
+		}
+		raise(peakBytesInUse, bytesInUse.addAndGet(buffer.capacity()));
+		// Through Buffer, whose methods return ByteBuffer only from Java 9.
+		Buffer bounds = buffer;
+		bounds.clear();
+		bounds.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 * @param buffer A buffer acquired from this pool and not yet released.
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (capacity > MAX_SIZE) {
+			synchronized (unpooledLeases) {
+				endLease(unpooledLeases, buffer);
+				unpooledLeases.remove(buffer);
+			}
+			bytesInUse.addAndGet(-capacity);
+			return;
+		}
+		SizeClass sizeClass = classes[classIndex(capacity)];
+		boolean kept;
+		synchronized (sizeClass) {
+			endLease(sizeClass.leases, buffer);
+			kept = freeBytes.addAndGet(capacity) <= maxFreeBytes;
+			if (kept)
+				sizeClass.free.offerFirst(buffer);
+			else {
+				freeBytes.addAndGet(-capacity);
+				sizeClass.leases.remove(buffer);
+			}
+		}
+		if (!kept)
+			sizeClass.discards.increment();
+		sizeClass.inUse.decrementAndGet();
+		bytesInUse.addAndGet(-capacity);
+	}
+
+	/**
+	 * Records the stack of each acquisition from now on, so that leaked buffers are listed with
+	 * the code which acquired them.
+	 * @param leakTracking true to record the stacks.
+	 */
+	public void setLeakTracking(boolean leakTracking) {
+		this.leakTracking = leakTracking;
+	}
+
+	/**
+	 * Lists the buffers lent for longer than a duration, which are likely never to be released.
+	 * @param minAgeMillis The duration in milliseconds.
+	 * @return The leases of the buffers, the oldest first.
+	 */
+	public List<Lease> findLeaks(long minAgeMillis) {
+		long minAgeNanos = TimeUnit.MILLISECONDS.toNanos(minAgeMillis);
+		List<Lease> leaks = new ArrayList<Lease>();
+		for (SizeClass sizeClass : classes) {
+			synchronized (sizeClass) {
+				addLeaks(sizeClass.leases, minAgeNanos, leaks);
+			}
+		}
+		synchronized (unpooledLeases) {
+			addLeaks(unpooledLeases, minAgeNanos, leaks);
+		}
+		Collections.sort(leaks);
+		return leaks;
+	}
+
+	/**
+	 * @return true if the pool holds direct buffers.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return The number of bytes in the buffers lent.
+	 */
+	public long getBytesInUse() {
+		return bytesInUse.get();
+	}
+
+	/**
+	 * @return The largest number of bytes lent at the same time.
+	 */
+	public long getPeakBytesInUse() {
+		return peakBytesInUse.get();
+	}
+
+	/**
+	 * @return The number of bytes in the buffers kept for reuse.
+	 */
+	public long getFreeBytes() {
+		return freeBytes.get();
+	}
+
+	/**
+	 * @return The number of buffers requested, in all classes.
+	 */
+	public long getAcquireCount() {
+		long count = unpooled.sum();
+		for (SizeClass sizeClass : classes)
+			count += sizeClass.acquires.sum();
+		return count;
+	}
+
+	/**
+	 * @return The number of buffers allocated because no free buffer was available, including the
+	 * unpooled ones. It stops growing once the transfers reach a steady state.
+	 */
+	public long getAllocationCount() {
+		long count = unpooled.sum();
+		for (SizeClass sizeClass : classes)
+			count += sizeClass.allocations.sum();
+		return count;
+	}
+
+	/**
+	 * Formats the occupancy of the classes used so far: the buffers lent, the peak lent, the
+	 * buffers kept free, the requests and the allocations.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder table = new StringBuilder();
+		table.append(String.format("%s buffer pool: %d bytes in use (peak %d), %d bytes free%n",
+				direct ? "Direct" : "Heap", bytesInUse.get(), peakBytesInUse.get(), freeBytes.get()));
+		table.append(String.format("%10s %8s %8s %8s %12s %12s %10s%n", "class", "in use", "peak", "free",
+				"acquires", "allocations", "discards"));
+		for (SizeClass sizeClass : classes) {
+			long acquires = sizeClass.acquires.sum();
+			if (acquires == 0)
+				continue;
+			int free;
+			synchronized (sizeClass) {
+				free = sizeClass.free.size();
+			}
+			table.append(String.format("%10d %8d %8d %8d %12d %12d %10d%n", sizeClass.size, sizeClass.inUse.get(),
+					sizeClass.peakInUse.get(), free, acquires, sizeClass.allocations.sum(), sizeClass.discards.sum()));
+		}
+		if (unpooled.sum() > 0)
+			table.append(String.format("%10s %8s %8s %8s %12d%n", "unpooled", "", "", "", unpooled.sum()));
+		return table.toString();
+	}
+
+	/**
+	 * A buffer lent by the pool.
+	 */
+	public static class Lease implements Comparable<Lease> {
+
+		private final int capacity;
+		private volatile boolean lent;
+		private volatile long acquiredNanos;
+		private volatile String threadName;
+		private volatile Throwable site;
+
+		Lease(int capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * @return The capacity of the buffer.
+		 */
+		public int getCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * @return The time since the buffer was acquired, in milliseconds.
+		 */
+		public long getAgeMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquiredNanos);
+		}
+
+		/**
+		 * @return The name of the thread which acquired the buffer.
+		 */
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * @return The stack of the acquisition, or null if leak tracking was off.
+		 */
+		public StackTraceElement[] getSite() {
+			return site == null ? null : site.getStackTrace();
+		}
+
+		@Override
+		public int compareTo(Lease other) {
+			return Long.compare(acquiredNanos, other.acquiredNanos);
+		}
+
+		@Override
+		public String toString() {
+			StackTraceElement[] stack = getSite();
+			// The first frames are the pool's own.
+			String caller = stack != null && stack.length > 2 ? " at " + stack[2] : "";
+			return String.format("%d bytes held %d ms by %s%s", capacity, getAgeMillis(), threadName, caller);
+		}
+
+		private Lease copy() {
+			Lease copy = new Lease(capacity);
+			copy.lent = lent;
+			copy.acquiredNanos = acquiredNanos;
+			copy.threadName = threadName;
+			copy.site = site;
+			return copy;
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Returns the index of the smallest class holding a size.
+	 */
+	private static int classIndex(int size) {
+		if (size <= MIN_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/*
+	 * Raises a peak to a value if it is higher.
+	 */
+	private static void raise(AtomicLong peak, long value) {
+		long current = peak.get();
+		while (value > current && !peak.compareAndSet(current, value))
+			current = peak.get();
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/*
+	 * Records a buffer as lent. The lease of a pooled buffer is created once and reused.
+	 * Called with the lock of the leases held.
+	 */
+	private static void lend(Map<ByteBuffer, Lease> leases, ByteBuffer buffer, Throwable site) {
+		Lease lease = leases.get(buffer);
+		if (lease == null) {
+			lease = new Lease(buffer.capacity());
+			leases.put(buffer, lease);
+		}
+		lease.lent = true;
+		lease.acquiredNanos = System.nanoTime();
+		lease.threadName = Thread.currentThread().getName();
+		lease.site = site;
+	}
+
+	/*
+	 * Records a buffer as returned. Called with the lock of the leases held.
+	 */
+	private static void endLease(Map<ByteBuffer, Lease> leases, ByteBuffer buffer) {
+		Lease lease = leases.get(buffer);
+		if (lease == null || !lease.lent)
+			throw new IllegalArgumentException("Buffer released twice or not acquired from this pool");
+		lease.lent = false;
+		lease.site = null;
+	}
+
+	/*
+	 * Adds copies of the leases lent for at least a duration. Called with the lock of the leases held.
+	 */
+	private static void addLeaks(Map<ByteBuffer, Lease> leases, long minAgeNanos, List<Lease> leaks) {
+		long now = System.nanoTime();
+		for (Lease lease : leases.values()) {
+			if (lease.lent && now - lease.acquiredNanos >= minAgeNanos)
+				leaks.add(lease.copy());
+		}
+	}
+
+	/*
+	 * The buffers of one size.
+	 */
+	private static class SizeClass {
+
+		private final int size;
+		// Most recently released first, so the buffers in use stay in the CPU caches. Guarded by the class.
+		private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+		// Lease of every buffer of the class, lent or free. Buffers compare by content, hence the
+		// identity map. Guarded by the class.
+		private final Map<ByteBuffer, Lease> leases = new IdentityHashMap<ByteBuffer, Lease>();
+		private final AtomicLong inUse = new AtomicLong();
+		private final AtomicLong peakInUse = new AtomicLong();
+		private final LongAdder acquires = new LongAdder();
+		private final LongAdder allocations = new LongAdder();
+		private final LongAdder discards = new LongAdder();
+
+		SizeClass(int size) {
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.acloudysky.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/***
+ * Streams the content of objects to any {@link WritableByteChannel}: a file, a socket, a pipe.
+ * The bytes are moved as they are, without charset decoding and without allocating per line
+ * or per read, so binary objects are copied intact and large objects at the speed of the network.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The SDK returns the content as an {@link InputStream}, which reads into an array lent by
+ * 	the shared heap {@link BufferPool}. The bytes are then written to the channel from a buffer of
+ * 	the shared direct pool: the JDK would otherwise copy a heap buffer into a temporary direct buffer
+ * 	of its own, cached per thread, and allocated at each write on a virtual thread</li>
+ * 	<li>A download that fails in the middle aborts the HTTP connection instead of reading the rest
+ * 	of the object to reuse it</li>
+ * 	<li>The content of an object compressed by the client is decompressed on the fly, on the
+ * 	thread of a {@link CompressionStage}, according to its Content-Encoding. A range of such an
+ * 	object is written as it is stored, since it cannot be decompressed alone</li>
+ * 	<li>The target channel must be in blocking mode, and is left open</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class ChannelDownloader {
+
+	/**
+	 * Size of the buffer of each download.
+	 */
+	public static final int BUFFER_SIZE = 128 * 1024;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	/**
+	 * Creates a downloader.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public ChannelDownloader(AmazonS3 authorizedClient) {
+		this.s3Client = authorizedClient;
+	}
+
+	/**
+	 * Downloads the content of an object to a channel.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param target The channel to write. It is not closed
+	 * @return The number of bytes written
+	 * @throws IOException Error reading the content or writing the channel
+	 */
+	public long download(String bucketName, String keyName, WritableByteChannel target) throws IOException {
+		return download(new GetObjectRequest(bucketName, keyName), target);
+	}
+
+	/**
+	 * Downloads the content selected by a request to a channel, for example a range of an object.
+	 * @param request The request: bucket, key and optional range, version or constraints
+	 * @param target The channel to write. It is not closed
+	 * @return The number of bytes written, or -1 if the constraints of the request were not met
+	 * @throws IOException Error reading the content or writing the channel
+	 */
+	public long download(GetObjectRequest request, WritableByteChannel target) throws IOException {
+		S3Object object = s3Client.getObject(request);
+		if (object == null)
+			return -1;
+		S3ObjectInputStream content = object.getObjectContent();
+		CompressionCodec codec = request.getRange() == null 
+				? CompressionCodec.forContentEncoding(object.getObjectMetadata().getContentEncoding()) : null;
+		boolean completed = false;
+		try {
+			long written;
+			if (codec == null)
+				written = transfer(content, target);
+			else {
+				CompressionStage decompressed = CompressionStage.decompress(content, codec);
+				try {
+					written = transfer(decompressed, target);
+				}
+				finally {
+					decompressed.close();
+				}
+			}
+			completed = true;
+			return written;
+		}
+		finally {
+			if (completed)
+				content.close();
+			else
+				content.abort();
+		}
+	}
+
+	/**
+	 * Copies a stream to a file through a pooled buffer.
+	 * @param input The stream to read to its end. It is not closed
+	 * @param file The file to write. It is created or overwritten
+	 * @return The number of bytes written
+	 * @throws IOException Error reading the stream or writing the file
+	 */
+	public static long transfer(InputStream input, Path file) throws IOException {
+		FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			return transfer(input, target);
+		}
+		finally {
+			target.close();
+		}
+	}
+
+	/**
+	 * Copies a stream to a channel through pooled buffers.
+	 * @param input The stream to read to its end. It is not closed
+	 * @param target The channel to write. It is not closed
+	 * @return The number of bytes written
+	 * @throws IOException Error reading the stream or writing the channel
+	 */
+	public static long transfer(InputStream input, WritableByteChannel target) throws IOException {
+		ByteBuffer chunk = BufferPool.heap().acquire(BUFFER_SIZE);
+		ByteBuffer buffer = BufferPool.direct().acquire(BUFFER_SIZE);
+		// Positioned through Buffer, whose methods return ByteBuffer only from Java 9.
+		Buffer bounds = buffer;
+		try {
+			byte[] array = chunk.array();
+			long written = 0;
+			int n;
+			while ((n = input.read(array, 0, BUFFER_SIZE)) >= 0) {
+				bounds.clear();
+				buffer.put(array, 0, n);
+				bounds.flip();
+				while (buffer.hasRemaining())
+					written += target.write(buffer);
+			}
+			return written;
+		}
+		finally {
+			BufferPool.direct().release(buffer);
+			BufferPool.heap().release(chunk);
+		}
+	}
+}
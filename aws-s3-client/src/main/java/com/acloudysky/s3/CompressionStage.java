@@ -0,0 +1,381 @@
+package com.acloudysky.s3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Compresses or decompresses a stream on a thread of its own, so that the codec and the
+ * network run at the same time: while the uploader sends a part, the next part is being
+ * compressed, and while the downloader writes decompressed bytes, the next bytes are
+ * being received and decompressed.
+ * The stage is an {@link InputStream} returning the transformed bytes of its source.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The codec thread writes the transformed bytes into chunks lent by the shared heap
+ * 	{@link BufferPool}, and hands them over through a queue of {@link #DEPTH} chunks. When the
+ * 	reader is slower, the codec thread waits, so the memory of a stage is bounded</li>
+ * 	<li>An error of the source or of the codec is thrown by the next read, after the bytes
+ * 	transformed before it</li>
+ * 	<li>Closing the stage before its end returns the chunks to the pool, and the codec
+ * 	thread stops at its next write. The thread is not interrupted, and the source is not
+ * 	closed</li>
+ * 	<li>Each stage uses a thread of a shared pool of daemon threads until its source ends</li>
+ * </ul>
+ * @see CompressionCodec
+ * @author Michael Miele
+ *
+ */
+public class CompressionStage extends InputStream {
+
+	/**
+	 * Size of the chunks handed over by the codec thread (in bytes).
+	 */
+	public static final int CHUNK_SIZE = 256 * 1024;
+
+	/**
+	 * Number of chunks the codec thread can fill ahead of the reader.
+	 */
+	public static final int DEPTH = 4;
+
+	// Time between two checks of a closed reader while the queue is full.
+	private static final long OFFER_TIMEOUT_MS = 100;
+
+	// Marks the end of the transformed bytes in the queue.
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	// Threads of the stages, started on demand and kept a minute when idle.
+	private static final ExecutorService executor =
+			Executors.newCachedThreadPool(MultipartUploader.daemonThreadFactory("s3-codec"));
+
+	private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(DEPTH);
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	// Set by the reader, read by the codec thread.
+	private volatile boolean closed;
+
+	// Error of the codec thread, visible to the reader after the end marker.
+	private volatile Throwable failure;
+
+	// Chunk being read, and whether the end marker was taken. Used by the reader only.
+	private ByteBuffer current;
+	private boolean ended;
+
+	private CompressionStage(final InputStream source, final CompressionCodec codec, final boolean compress) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				transform(source, codec, compress);
+			}
+		});
+	}
+
+	/**
+	 * Starts compressing a stream.
+	 * @param source The stream to compress, read to its end on the codec thread. It is not closed
+	 * @param codec The codec
+	 * @return The stage returning the compressed bytes. Close it when done.
+	 */
+	public static CompressionStage compress(InputStream source, CompressionCodec codec) {
+		return new CompressionStage(source, codec, true);
+	}
+
+	/**
+	 * Starts decompressing a stream.
+	 * @param source The stream of compressed bytes, read to its end on the codec thread. It is not closed
+	 * @param codec The codec of the compressed bytes
+	 * @return The stage returning the decompressed bytes. Close it when done.
+	 */
+	public static CompressionStage decompress(InputStream source, CompressionCodec codec) {
+		return new CompressionStage(source, codec, false);
+	}
+
+	/**
+	 * Decompresses a file in place, through a temporary file in the same directory.
+	 * @param file The file of compressed bytes, replaced by the decompressed bytes
+	 * @param codec The codec of the compressed bytes
+	 * @return The length of the decompressed file.
+	 * @throws IOException Error reading, decompressing or writing; the file is left unchanged
+	 */
+	public static long decompress(Path file, CompressionCodec codec) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".decompressing");
+		try {
+			InputStream source = Files.newInputStream(file);
+			try {
+				CompressionStage stage = decompress(source, codec);
+				try {
+					ChannelDownloader.transfer(stage, temp);
+				}
+				finally {
+					stage.close();
+				}
+			}
+			finally {
+				source.close();
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			return Files.size(file);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		ByteBuffer chunk = next();
+		return chunk == null ? -1 : chunk.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		ByteBuffer chunk = next();
+		if (chunk == null)
+			return -1;
+		int n = Math.min(len, chunk.remaining());
+		chunk.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.remaining();
+	}
+
+	/**
+	 * Returns the chunks to the pool. If the source was not read to its end, the codec thread stops
+	 * at its next write.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (current != null) {
+			BufferPool.heap().release(current);
+			current = null;
+		}
+		drain();
+	}
+
+	/**
+	 * @return The number of bytes read from the source so far.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return The number of transformed bytes produced so far.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Returns the chunk with the next bytes, waiting for the codec thread, or null at the end.
+	 */
+	private ByteBuffer next() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (current == null || !current.hasRemaining()) {
+			if (current != null) {
+				BufferPool.heap().release(current);
+				current = null;
+			}
+			if (!ended) {
+				try {
+					ByteBuffer chunk = chunks.take();
+					if (chunk != END) {
+						current = chunk;
+						continue;
+					}
+					ended = true;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for the codec");
+				}
+			}
+			Throwable error = failure;
+			if (error instanceof IOException)
+				throw new IOException(error.getMessage(), error);
+			if (error != null)
+				throw new IOException("Codec failed: " + error, error);
+			return null;
+		}
+		return current;
+	}
+
+	/*
+	 * Runs on the codec thread: reads the source to its end through the codec, then queues the end marker.
+	 */
+	private void transform(InputStream source, CompressionCodec codec, boolean compress) {
+		Sink sink = new Sink();
+		// The codec streams close what they wrap: the source stays open for its owner.
+		InputStream counted = new FilterInputStream(source) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					bytesIn.incrementAndGet();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0)
+					bytesIn.addAndGet(n);
+				return n;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		ByteBuffer buffer = BufferPool.heap().acquire(CHUNK_SIZE);
+		try {
+			InputStream input = compress ? counted : codec.decompress(counted);
+			OutputStream output = compress ? codec.compress(sink) : sink;
+			byte[] array = buffer.array();
+			int n;
+			while ((n = input.read(array, 0, CHUNK_SIZE)) >= 0)
+				output.write(array, 0, n);
+			if (!compress)
+				input.close();
+			// Writes the end of the compressed data and queues the last chunk.
+			output.close();
+		}
+		catch (Throwable t) {
+			failure = t;
+			sink.discard();
+		}
+		finally {
+			BufferPool.heap().release(buffer);
+			end();
+			if (closed)
+				drain();
+		}
+	}
+
+	/*
+	 * Queues a chunk, waiting while the reader is behind. Fails if the reader has closed the stage.
+	 */
+	private void hand(ByteBuffer chunk) throws IOException {
+		try {
+			while (!chunks.offer(chunk, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				if (closed)
+					throw new IOException("Stage closed by the reader");
+			}
+		}
+		catch (InterruptedException e) {
+			BufferPool.heap().release(chunk);
+			throw new InterruptedIOException("Stage closed by the reader");
+		}
+		catch (IOException e) {
+			BufferPool.heap().release(chunk);
+			throw e;
+		}
+	}
+
+	/*
+	 * Queues the end marker unless the reader is gone.
+	 */
+	private void end() {
+		try {
+			while (!closed && !chunks.offer(END, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+				;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Returns the queued chunks to the pool. Called by both threads once the reader has closed the stage,
+	 * so that a chunk queued while the reader was draining is released by the codec thread.
+	 */
+	private void drain() {
+		ByteBuffer chunk;
+		while ((chunk = chunks.poll()) != null) {
+			if (chunk != END)
+				BufferPool.heap().release(chunk);
+		}
+	}
+
+	/*
+	 * Collects the transformed bytes of the codec thread into chunks.
+	 */
+	private class Sink extends OutputStream {
+
+		private ByteBuffer filling;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (closed)
+					throw new IOException("Stage closed by the reader");
+				if (filling == null)
+					filling = BufferPool.heap().acquire(CHUNK_SIZE);
+				int n = Math.min(len, filling.remaining());
+				filling.put(b, off, n);
+				off += n;
+				len -= n;
+				bytesOut.addAndGet(n);
+				if (!filling.hasRemaining())
+					pass();
+			}
+		}
+
+		/*
+		 * Queues the last chunk, if any bytes are left in it.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (filling != null && filling.position() > 0)
+				pass();
+			discard();
+		}
+
+		void discard() {
+			if (filling != null) {
+				BufferPool.heap().release(filling);
+				filling = null;
+			}
+		}
+
+		private void pass() throws IOException {
+			ByteBuffer chunk = filling;
+			filling = null;
+			// Through Buffer, whose flip() returns ByteBuffer only from Java 9.
+			((Buffer) chunk).flip();
+			hand(chunk);
+		}
+	}
+}
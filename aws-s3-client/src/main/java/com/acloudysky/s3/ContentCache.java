@@ -0,0 +1,677 @@
+package com.acloudysky.s3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/***
+ * Keeps the content of downloaded objects in a local directory, so that the objects
+ * read again are served from the disk instead of the network.
+ * Each object is stored in a file named after its bucket, key and ETag.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>A cached object is revalidated with a conditional GET carrying its ETag
+ * 	(<i>If-None-Match</i>): the service answers <i>304 Not Modified</i> without the content
+ * 	when the object is unchanged, and sends the new content otherwise. A revalidated object
+ * 	is served without a request for the configured maximum age, 0 by default</li>
+ * 	<li>The cached content is served from a read-only {@link FileChannel}: it can be copied
+ * 	to another channel with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * 	which lets the kernel move the bytes without copying them to the heap, or mapped in memory</li>
+ * 	<li>The total size of the cached objects is bounded. When a new object exceeds the budget
+ * 	the least recently used ones are deleted. An object larger than the budget is kept until
+ * 	the next one is cached</li>
+ * 	<li>The objects cached and evicted are appended to an index file in the directory, so a
+ * 	restarted application finds the cached objects. The index is compacted when the cache is
+ * 	opened and closed. Only the files named like the cache's own, cached objects and files
+ * 	being written, are deleted when not listed in the index: the other files of the directory
+ * 	are left alone</li>
+ * 	<li>Objects larger than the range size of the downloader are fetched with parallel ranges.
+ * 	See {@link RangedDownloader}</li>
+ * 	<li>Objects compressed by the client are cached decompressed, so the budget counts their
+ * 	original size. See {@link CompressionCodec}</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/API/RESTObjectGET.html" target="_blank">GET Object</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ContentCache implements Closeable {
+
+	/** Default total size of the cached objects, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	/** Default time during which a revalidated object is served without a request, in milliseconds. */
+	public static final long DEFAULT_MAX_AGE = 0;
+
+	/** Prefix of the property names read by {@link #configuration(AmazonS3, RangedDownloader, Properties)}. */
+	public static final String PROPERTY_PREFIX = "s3.contentCache.";
+
+	// Name of the index file in the cache directory.
+	static final String INDEX_FILE = "index";
+
+	// Suffix of the files being written.
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// Names of the files the cache writes: cached objects, named by the SHA-1 of their identifier,
+	// and the temporary files of the downloads with their decompression and range state files.
+	private static final Pattern OWN_FILE = Pattern.compile(
+			"[0-9a-f]{40}|object[0-9]*\\" + TEMP_SUFFIX + "(\\.decompressing|\\" + RangedDownloader.STATE_SUFFIX + ")?");
+
+	// Marks of the index lines.
+	private static final String ADDED = "+", REMOVED = "-";
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Fetches the large objects, or null.
+	private final RangedDownloader rangedDownloader;
+
+	private final Path directory;
+	private final long maxBytes;
+	private final long maxAgeNanos;
+
+	// Cached objects by bucket and key, the least recently used first. Guarded by this.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes;
+
+	// Appends the changes to the index. Guarded by this.
+	private Writer index;
+	private long indexLines;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Opens a cache with the default size and maximum age, loading the index of the directory.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param directory The cache directory. It is created if missing
+	 * @throws IOException Error reading the directory
+	 */
+	public ContentCache(AmazonS3 authorizedClient, File directory) throws IOException {
+		this(authorizedClient, null, directory, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Opens a cache, loading the index of the directory.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param downloader Downloader used for the objects larger than its range size, or null
+	 * @param directory The cache directory. It is created if missing
+	 * @param maxBytes Total size of the cached objects, in bytes
+	 * @param maxAge Time during which a revalidated object is served without a request, in milliseconds
+	 * @throws IOException Error reading the directory
+	 */
+	public ContentCache(AmazonS3 authorizedClient, RangedDownloader downloader, File directory,
+			long maxBytes, long maxAge) throws IOException {
+		if (maxBytes < 1 || maxAge < 0)
+			throw new IllegalArgumentException("The size must be positive and the maximum age not negative");
+		this.s3Client = authorizedClient;
+		this.rangedDownloader = downloader;
+		this.directory = directory.toPath();
+		this.maxBytes = maxBytes;
+		this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAge);
+		Files.createDirectories(this.directory);
+		synchronized (this) {
+			load();
+			compact();
+		}
+	}
+
+	/**
+	 * Opens a cache configured by properties, or returns null when no directory is configured.
+	 * <ul>
+	 * 	<li><i>s3.contentCache.dir</i> the cache directory</li>
+	 * 	<li><i>s3.contentCache.maxBytes</i></li>
+	 * 	<li><i>s3.contentCache.maxAge</i> in milliseconds</li>
+	 * </ul>
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param downloader Downloader used for the objects larger than its range size, or null
+	 * @param properties The properties, for example the system properties.
+	 * @return The cache, or null.
+	 * @throws IOException Error reading the directory
+	 * @throws NumberFormatException A numeric property is not a valid integer.
+	 */
+	public static ContentCache configuration(AmazonS3 authorizedClient, RangedDownloader downloader,
+			Properties properties) throws IOException {
+		String directory = properties.getProperty(PROPERTY_PREFIX + "dir");
+		if (directory == null || directory.trim().isEmpty())
+			return null;
+		String maxBytes = properties.getProperty(PROPERTY_PREFIX + "maxBytes");
+		String maxAge = properties.getProperty(PROPERTY_PREFIX + "maxAge");
+		return new ContentCache(authorizedClient, downloader, new File(directory.trim()),
+				maxBytes == null ? DEFAULT_MAX_BYTES : Long.parseLong(maxBytes.trim()),
+				maxAge == null ? DEFAULT_MAX_AGE : Long.parseLong(maxAge.trim()));
+	}
+
+	/**
+	 * Opens the cached content of an object, downloading it first if it is not cached
+	 * or has changed.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @return The content. Close it when done; it stays readable even if the object is evicted meanwhile.
+	 * @throws IOException Error writing or reading the cache directory
+	 */
+	public Content open(String bucketName, String keyName) throws IOException {
+		String id = bucketName + "/" + keyName;
+		for (int attempt = 0; ; attempt++) {
+			Entry entry;
+			synchronized (this) {
+				entry = entries.get(id);
+			}
+			if (entry != null && entry.isFresh(maxAgeNanos)) {
+				Content content = openCached(id, entry);
+				if (content != null) {
+					hits.incrementAndGet();
+					return content;
+				}
+				continue;
+			}
+
+			GetObjectRequest request = new GetObjectRequest(bucketName, keyName);
+			if (entry != null)
+				request.setNonmatchingETagConstraints(Collections.singletonList(entry.eTag));
+			S3Object object = s3Client.getObject(request);
+			if (object == null) {
+				// 304 Not Modified: the cached content is current.
+				revalidations.incrementAndGet();
+				entry.validated();
+				Content content = openCached(id, entry);
+				if (content != null) {
+					hits.incrementAndGet();
+					return content;
+				}
+				// Evicted meanwhile.
+				if (attempt > 0)
+					throw new IOException("Cached content of " + id + " evicted while being opened");
+				continue;
+			}
+			misses.incrementAndGet();
+			return fetch(id, bucketName, keyName, object);
+		}
+	}
+
+	/**
+	 * Copies the content of an object to a channel, through the cache.
+	 * When the target is a file or socket channel the bytes are moved by the kernel.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @param target The channel to write. It is not closed
+	 * @return The number of bytes written
+	 * @throws IOException Error reading the cache or writing the channel
+	 */
+	public long transferTo(String bucketName, String keyName, WritableByteChannel target) throws IOException {
+		Content content = open(bucketName, keyName);
+		try {
+			FileChannel channel = content.getChannel();
+			long position = 0, length = channel.size();
+			while (position < length)
+				position += channel.transferTo(position, length - position, target);
+			return length;
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	/**
+	 * Copies the content of an object to a file, through the cache.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @param file The file to write. It is created or overwritten
+	 * @return The ETag of the copied content
+	 * @throws IOException Error reading the cache or writing the file
+	 */
+	public String copyTo(String bucketName, String keyName, File file) throws IOException {
+		Content content = open(bucketName, keyName);
+		try {
+			FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				FileChannel channel = content.getChannel();
+				long position = 0, length = channel.size();
+				while (position < length)
+					position += channel.transferTo(position, length - position, target);
+			}
+			finally {
+				target.close();
+			}
+			return content.getETag();
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	/**
+	 * Removes an object from the cache, for example after it has been overwritten.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @throws IOException Error writing the index
+	 */
+	public synchronized void invalidate(String bucketName, String keyName) throws IOException {
+		Entry entry = entries.remove(bucketName + "/" + keyName);
+		if (entry != null)
+			delete(entry);
+	}
+
+	/**
+	 * Removes the objects whose key starts with a prefix, for example after they have been moved.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The key prefix of the objects
+	 * @throws IOException Error writing the index
+	 */
+	public synchronized void invalidatePrefix(String bucketName, String prefix) throws IOException {
+		String idPrefix = bucketName + "/" + prefix;
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			Entry entry = i.next();
+			if ((entry.bucketName + "/" + entry.keyName).startsWith(idPrefix)) {
+				i.remove();
+				delete(entry);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of cached objects.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The total size of the cached objects, in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of objects served from the disk.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of objects downloaded.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of cached objects found unchanged by a conditional GET.
+	 */
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+
+	/**
+	 * @return The number of objects deleted to stay within the size budget.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Compacts the index and closes it. The cached objects stay in the directory.
+	 * @throws IOException Error writing the index
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		compact();
+		index.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d objects, %d of %d bytes, %d hits (%d revalidated), %d misses, %d evictions",
+				entries.size(), bytes, maxBytes, hits.get(), revalidations.get(), misses.get(), evictions.get());
+	}
+
+	/**
+	 * The cached content of an object.
+	 */
+	public static class Content implements Closeable {
+
+		private final FileChannel channel;
+		private final String eTag, contentType;
+
+		Content(FileChannel channel, String eTag, String contentType) {
+			this.channel = channel;
+			this.eTag = eTag;
+			this.contentType = contentType;
+		}
+
+		/**
+		 * @return A read-only channel on the content.
+		 */
+		public FileChannel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * @return A stream reading the content from the start. Closing it closes the content.
+		 */
+		public InputStream getInputStream() {
+			return Channels.newInputStream(channel);
+		}
+
+		/**
+		 * Maps the content in memory, read-only.
+		 * @return The mapped content.
+		 * @throws IOException Error mapping the file
+		 */
+		public MappedByteBuffer map() throws IOException {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		/**
+		 * @return The ETag of the object.
+		 */
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @return The content type of the object, or null.
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return The length of the content, in bytes.
+		 * @throws IOException Error reading the file size
+		 */
+		public long getLength() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Opens the file of an entry. Returns null if the file was evicted meanwhile.
+	 */
+	private Content openCached(String id, Entry entry) throws IOException {
+		try {
+			return new Content(FileChannel.open(directory.resolve(entry.fileName), StandardOpenOption.READ),
+					entry.eTag, entry.contentType);
+		}
+		catch (NoSuchFileException e) {
+			synchronized (this) {
+				if (entries.get(id) == entry)
+					entries.remove(id);
+			}
+			return null;
+		}
+	}
+
+	/*
+	 * Writes the content of an object to a temporary file, moves it in place and records it.
+	 */
+	private Content fetch(String id, String bucketName, String keyName, S3Object object) throws IOException {
+		Path temp = Files.createTempFile(directory, "object", TEMP_SUFFIX);
+		Path state = temp.resolveSibling(temp.getFileName() + RangedDownloader.STATE_SUFFIX);
+		try {
+			ObjectMetadata metadata = object.getObjectMetadata();
+			S3ObjectInputStream content = object.getObjectContent();
+			if (rangedDownloader != null && rangedDownloader.isRanged(metadata.getContentLength())) {
+				// Stop the single GET and fetch the ranges in parallel instead.
+				content.abort();
+				metadata = rangedDownloader.download(bucketName, keyName, temp.toFile());
+			}
+			else {
+				try {
+					ChannelDownloader.transfer(content, temp);
+				}
+				finally {
+					content.close();
+				}
+			}
+			// Kept decompressed, so that every read of the cached content gets the original bytes.
+			CompressionCodec codec = CompressionCodec.forContentEncoding(metadata.getContentEncoding());
+			if (codec != null)
+				CompressionStage.decompress(temp, codec);
+			Entry entry = new Entry(bucketName, keyName, metadata.getETag(), metadata.getContentType(),
+					Files.size(temp));
+			entry.validated();
+			Path file = directory.resolve(entry.fileName);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			// Opened before being recorded, so that an eviction cannot remove it first.
+			Content cached = new Content(FileChannel.open(file, StandardOpenOption.READ), entry.eTag, entry.contentType);
+			add(id, entry);
+			return cached;
+		}
+		finally {
+			Files.deleteIfExists(temp);
+			Files.deleteIfExists(state);
+		}
+	}
+
+	/*
+	 * Records an entry, replacing the previous content of the object, and evicts
+	 * the least recently used entries beyond the budget.
+	 */
+	private synchronized void add(String id, Entry entry) throws IOException {
+		Entry previous = entries.put(id, entry);
+		if (previous != null && !previous.fileName.equals(entry.fileName))
+			delete(previous);
+		else if (previous != null)
+			bytes -= previous.length;
+		bytes += entry.length;
+		append(ADDED, entry);
+
+		for (Iterator<Entry> eldest = entries.values().iterator(); bytes > maxBytes && eldest.hasNext(); ) {
+			Entry evicted = eldest.next();
+			if (evicted == entry)
+				break;
+			eldest.remove();
+			delete(evicted);
+			evictions.incrementAndGet();
+		}
+		// The index holds mostly obsolete lines.
+		if (indexLines > 2 * entries.size() + 1000)
+			compact();
+	}
+
+	/*
+	 * Deletes the file of an entry removed from the map.
+	 */
+	private void delete(Entry entry) throws IOException {
+		bytes -= entry.length;
+		Files.deleteIfExists(directory.resolve(entry.fileName));
+		append(REMOVED, entry);
+	}
+
+	private void append(String mark, Entry entry) throws IOException {
+		index.write(mark + "\t" + entry.toLine() + "\n");
+		index.flush();
+		indexLines++;
+	}
+
+	/*
+	 * Replays the index, keeping the entries whose file is complete, and deletes the other files
+	 * the cache wrote.
+	 */
+	private void load() throws IOException {
+		Path indexFile = directory.resolve(INDEX_FILE);
+		if (Files.exists(indexFile)) {
+			BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8);
+			try {
+				for (String line; (line = reader.readLine()) != null; ) {
+					String[] fields = line.split("\t", -1);
+					// The last line may be truncated by a crash.
+					if (fields.length != 6)
+						continue;
+					Entry entry = Entry.parse(fields);
+					String id = entry.bucketName + "/" + entry.keyName;
+					if (ADDED.equals(fields[0]))
+						entries.put(id, entry);
+					else if (entries.containsKey(id) && entries.get(id).fileName.equals(entry.fileName))
+						entries.remove(id);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			Entry entry = i.next();
+			Path file = directory.resolve(entry.fileName);
+			if (!Files.isRegularFile(file) || Files.size(file) != entry.length)
+				i.remove();
+			else
+				bytes += entry.length;
+		}
+
+		Set<String> cached = new HashSet<String>();
+		for (Entry entry : entries.values())
+			cached.add(entry.fileName);
+		DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+		try {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (OWN_FILE.matcher(name).matches() && !cached.contains(name) && Files.isRegularFile(file))
+					Files.deleteIfExists(file);
+			}
+		}
+		finally {
+			files.close();
+		}
+	}
+
+	/*
+	 * Rewrites the index with the current entries, the least recently used first.
+	 */
+	private void compact() throws IOException {
+		if (index != null)
+			index.close();
+		Path indexFile = directory.resolve(INDEX_FILE);
+		Path temp = directory.resolve(INDEX_FILE + TEMP_SUFFIX);
+		Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+		try {
+			for (Entry entry : entries.values())
+				writer.write(ADDED + "\t" + entry.toLine() + "\n");
+		}
+		finally {
+			writer.close();
+		}
+		Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		indexLines = entries.size();
+		index = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(indexFile,
+				StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * A cached object. The names are URL-encoded in the index, since keys can contain any character.
+	 */
+	private static final class Entry {
+
+		private final String bucketName, keyName, eTag, contentType, fileName;
+		private final long length;
+
+		// Time of the last revalidation, if any since the cache was opened.
+		private volatile long validatedNanos;
+		private volatile boolean validated;
+
+		Entry(String bucketName, String keyName, String eTag, String contentType, long length) {
+			this.bucketName = bucketName;
+			this.keyName = keyName;
+			this.eTag = eTag;
+			this.contentType = contentType;
+			this.length = length;
+			this.fileName = fileName(bucketName, keyName, eTag);
+		}
+
+		/*
+		 * Loaded from the index: revalidated on its first use.
+		 */
+		static Entry parse(String[] fields) throws IOException {
+			return new Entry(decode(fields[1]), decode(fields[2]), decode(fields[3]),
+					fields[4].isEmpty() ? null : decode(fields[4]), Long.parseLong(fields[5]));
+		}
+
+		void validated() {
+			validatedNanos = System.nanoTime();
+			validated = true;
+		}
+
+		boolean isFresh(long maxAgeNanos) {
+			return validated && System.nanoTime() - validatedNanos < maxAgeNanos;
+		}
+
+		String toLine() throws IOException {
+			return encode(bucketName) + "\t" + encode(keyName) + "\t" + encode(eTag) + "\t"
+					+ (contentType == null ? "" : encode(contentType)) + "\t" + length;
+		}
+
+		/*
+		 * The SHA-1 of the bucket, key and ETag.
+		 */
+		private static String fileName(String bucketName, String keyName, String eTag) {
+			try {
+				MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+				sha1.update((bucketName + "\u0000" + keyName + "\u0000" + eTag).getBytes(StandardCharsets.UTF_8));
+				return RangedDownloader.toHex(sha1.digest());
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static String encode(String value) throws UnsupportedEncodingException {
+			return URLEncoder.encode(value, "UTF-8");
+		}
+
+		private static String decode(String value) throws UnsupportedEncodingException {
+			return URLDecoder.decode(value, "UTF-8");
+		}
+	}
+}
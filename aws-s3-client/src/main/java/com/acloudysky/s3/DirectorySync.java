@@ -0,0 +1,671 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Synchronizes a local directory tree with the objects under a key prefix, in either direction.
+ * Only the files which differ from their object are transferred.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The directory tree is walked in parallel, and the objects under the prefix are
+ * 	listed in parallel shards while the walk results are compared. See {@link ParallelLister}</li>
+ * 	<li>A file and its object are the same when they have the same size and the file
+ * 	was not modified after the object was uploaded. With {@link Comparison#CHECKSUM} the
+ * 	MD5 of the file is compared with the ETag instead, which also detects changes
+ * 	that keep size and time. Downloads compare the checksums unless asked otherwise</li>
+ * 	<li>The changed files are transferred on a bounded pool of worker threads; large
+ * 	files are uploaded in parts and large objects are downloaded in parallel ranges.
+ * 	See {@link MultipartUploader} and {@link RangedDownloader}</li>
+ * 	<li>A download is written to a temporary file in the target directory, which is
+ * 	renamed to the target only when complete and verified against the size and ETag of
+ * 	its object, so a reader never sees a partial file. The file gets the upload time of
+ * 	its object as modification time</li>
+ * 	<li>Objects compressed by the client are written decompressed. Their files are then
+ * 	compared by time only. See {@link CompressionCodec}</li>
+ * 	<li>Entries without a source are deleted only on request. Objects are deleted with
+ * 	multi-object delete requests. See {@link BatchDeleter}</li>
+ * 	<li>The walk keeps one entry per local file in memory; the objects are not kept.
+ * 	Keys ending with "/", used as folder placeholders, are ignored</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class DirectorySync {
+
+	/**
+	 * Number of files compared or transferred at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/**
+	 * How a file is compared with its object.
+	 */
+	public enum Comparison {
+		/**
+		 * Same size, and the file was not modified after the object was uploaded.
+		 * A downloaded file must have exactly the upload time of its object.
+		 * Cheaper, since the files are not read, but blind to changes keeping size and time.
+		 */
+		SIZE_AND_TIME,
+		/**
+		 * Same size and same MD5 as the ETag, the default of the downloads. Falls back to 
+		 * the time when the ETag cannot be recomputed.
+		 */
+		CHECKSUM
+	}
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final MultipartUploader multipartUploader;
+	private final RangedDownloader rangedDownloader;
+	private final BatchDeleter batchDeleter;
+	private final ParallelLister parallelLister;
+
+	private final int concurrency;
+
+	// Pool walking the directory tree.
+	private final ForkJoinPool walkPool;
+
+	// Bounded executor comparing and transferring the files.
+	private final ExecutorService executor;
+
+	// Suffix of the temporary file of a download in progress.
+	static final String TEMP_SUFFIX = ".s3sync";
+
+	/**
+	 * Creates a synchronizer with the default settings.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public DirectorySync(AmazonS3 authorizedClient) {
+		this(authorizedClient, new MultipartUploader(authorizedClient), new RangedDownloader(authorizedClient),
+				new BatchDeleter(authorizedClient), new ParallelLister(authorizedClient), DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * Creates a synchronizer.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param uploader Uploader used for files above its multipart threshold
+	 * @param downloader Downloader used for objects larger than its range size
+	 * @param deleter Deleter used to remove the objects without a local file
+	 * @param lister Lister used to list the objects under the prefix
+	 * @param concurrency Maximum number of files compared or transferred at the same time
+	 */
+	public DirectorySync(AmazonS3 authorizedClient, MultipartUploader uploader, RangedDownloader downloader,
+			BatchDeleter deleter, ParallelLister lister, int concurrency) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.s3Client = authorizedClient;
+		this.multipartUploader = uploader;
+		this.rangedDownloader = downloader;
+		this.batchDeleter = deleter;
+		this.parallelLister = lister;
+		this.concurrency = concurrency;
+		this.walkPool = new ForkJoinPool(concurrency);
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-sync", concurrency);
+	}
+
+	/**
+	 * Uploads the new and changed files of a directory tree.
+	 * The key of a file is the prefix followed by its path relative to the directory,
+	 * with "/" separators. Blocks until every file has been processed.
+	 * @param directory The local directory to upload
+	 * @param bucketName The name of the bucket to hold the objects
+	 * @param prefix The key prefix of the objects, or null for the root of the bucket.
+	 * A "/" is appended when missing
+	 * @param comparison How a file is compared with its object
+	 * @param deleteExtras true to delete the objects under the prefix which have no local file
+	 * @return The counts of the synchronization and the files that could not be uploaded
+	 * @throws IOException The directory could not be read, or the synchronization was interrupted
+	 * @throws AmazonClientException The objects could not be listed
+	 */
+	public Result upload(File directory, String bucketName, String prefix, Comparison comparison,
+			boolean deleteExtras) throws IOException {
+		if (!directory.isDirectory())
+			throw new IOException("Not a directory: " + directory);
+		String keyPrefix = normalize(prefix);
+		Result result = new Result();
+
+		// Walk the local tree.
+		Map<String, LocalFile> localFiles = new ConcurrentHashMap<String, LocalFile>();
+		walk(directory.toPath(), localFiles);
+		result.scanned.addAndGet(localFiles.size());
+
+		Semaphore slots = new Semaphore(2 * concurrency);
+		BatchDeleter.Session deletions = deleteExtras ? batchDeleter.newSession(bucketName) : null;
+		try {
+			// Compare the listed objects with the local files.
+			List<KeyVersion> extras = new ArrayList<KeyVersion>(BatchDeleter.MAX_BATCH_SIZE);
+			Stream<S3ObjectSummary> objects = parallelLister.stream(
+					parallelLister.discoverShards(bucketName, keyPrefix, "/"), false);
+			try {
+				for (Iterator<S3ObjectSummary> i = objects.iterator(); i.hasNext(); ) {
+					S3ObjectSummary objectSummary = i.next();
+					// Folder placeholders have no local file to compare.
+					if (objectSummary.getKey().endsWith("/"))
+						continue;
+					String relativePath = objectSummary.getKey().substring(keyPrefix.length());
+					LocalFile localFile = localFiles.remove(relativePath);
+					if (localFile != null) {
+						slots.acquire();
+						executor.execute(new UploadTask(bucketName, objectSummary.getKey(), localFile,
+								objectSummary, comparison, result, slots));
+					}
+					else if (deletions != null) {
+						extras.add(new KeyVersion(objectSummary.getKey()));
+						if (extras.size() == BatchDeleter.MAX_BATCH_SIZE) {
+							deletions.submit(extras);
+							extras = new ArrayList<KeyVersion>(BatchDeleter.MAX_BATCH_SIZE);
+						}
+					}
+					else
+						result.extras.incrementAndGet();
+				}
+			}
+			finally {
+				objects.close();
+			}
+			if (deletions != null && !extras.isEmpty())
+				deletions.submit(extras);
+
+			// The files left have no object.
+			for (Map.Entry<String, LocalFile> entry : localFiles.entrySet()) {
+				slots.acquire();
+				executor.execute(new UploadTask(bucketName, keyPrefix + entry.getKey(), entry.getValue(),
+						null, comparison, result, slots));
+			}
+
+			drain(slots);
+		}
+		catch (InterruptedException ie) {
+			if (deletions != null)
+				deletions.close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Synchronization of " + directory + " interrupted");
+		}
+
+		if (deletions != null) {
+			deletions.close();
+			BatchDeleter.Result deleted = deletions.await();
+			result.deleted.addAndGet(deleted.getDeletedCount());
+			for (DeleteError error : deleted.getErrors())
+				result.errors.add(String.format("%s: %s %s", error.getKey(), error.getCode(), error.getMessage()));
+		}
+		result.elapsedMillis = (System.nanoTime() - result.start) / 1000000;
+		return result;
+	}
+
+	/**
+	 * Downloads the new and changed objects under a prefix into a directory tree.
+	 * The path of a file is the key of its object without the prefix, relative to the
+	 * directory. Blocks until every object has been processed.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The key prefix of the objects, or null for the whole bucket.
+	 * A "/" is appended when missing
+	 * @param directory The local directory to write. It is created when missing
+	 * @param comparison How a file is compared with its object
+	 * @param deleteExtras true to delete the local files which have no object
+	 * @return The counts of the synchronization and the objects that could not be downloaded
+	 * @throws IOException The directory could not be read, or the synchronization was interrupted
+	 * @throws AmazonClientException The objects could not be listed
+	 */
+	public Result download(String bucketName, String prefix, File directory, Comparison comparison,
+			boolean deleteExtras) throws IOException {
+		Files.createDirectories(directory.toPath());
+		Path root = directory.toPath().toAbsolutePath().normalize();
+		String keyPrefix = normalize(prefix);
+		Result result = new Result();
+
+		// Walk the local tree.
+		Map<String, LocalFile> localFiles = new ConcurrentHashMap<String, LocalFile>();
+		walk(root, localFiles);
+
+		Semaphore slots = new Semaphore(2 * concurrency);
+		try {
+			// Compare the listed objects with the local files.
+			Stream<S3ObjectSummary> objects = parallelLister.stream(
+					parallelLister.discoverShards(bucketName, keyPrefix, "/"), false);
+			try {
+				for (Iterator<S3ObjectSummary> i = objects.iterator(); i.hasNext(); ) {
+					S3ObjectSummary objectSummary = i.next();
+					// Folder placeholders have no content to download.
+					if (objectSummary.getKey().endsWith("/"))
+						continue;
+					result.scanned.incrementAndGet();
+					String relativePath = objectSummary.getKey().substring(keyPrefix.length());
+					Path target = root.resolve(relativePath).normalize();
+					if (!target.startsWith(root) || target.equals(root)) {
+						result.errors.add(String.format("%s: outside of %s", objectSummary.getKey(), root));
+						continue;
+					}
+					LocalFile localFile = localFiles.remove(relativePath);
+					slots.acquire();
+					executor.execute(new DownloadTask(bucketName, target, localFile, objectSummary,
+							comparison, result, slots));
+				}
+			}
+			finally {
+				objects.close();
+			}
+			drain(slots);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Synchronization of " + directory + " interrupted");
+		}
+
+		// The files left have no object.
+		for (LocalFile localFile : localFiles.values()) {
+			if (!deleteExtras)
+				result.extras.incrementAndGet();
+			else if (localFile.file.delete())
+				result.deleted.incrementAndGet();
+			else
+				result.errors.add(String.format("%s: could not be deleted", localFile.file));
+		}
+		result.elapsedMillis = (System.nanoTime() - result.start) / 1000000;
+		return result;
+	}
+
+	/**
+	 * Stops the worker threads of the synchronizer and of its transfer engines.
+	 * The client is not shut down, since it can be shared.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		walkPool.shutdown();
+		multipartUploader.shutdown();
+		rangedDownloader.shutdown();
+		batchDeleter.shutdown();
+	}
+
+	/**
+	 * Counts of a synchronization.
+	 */
+	public static class Result {
+
+		private final long start = System.nanoTime();
+		private final AtomicLong scanned = new AtomicLong();
+		private final AtomicLong unchanged = new AtomicLong();
+		private final AtomicLong transferred = new AtomicLong();
+		private final AtomicLong bytesTransferred = new AtomicLong();
+		private final AtomicLong deleted = new AtomicLong();
+		private final AtomicLong extras = new AtomicLong();
+		private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		private volatile long elapsedMillis;
+
+		/**
+		 * @return The number of entries to synchronize: local files for an upload,
+		 * objects for a download.
+		 */
+		public long getScannedCount() {
+			return scanned.get();
+		}
+
+		/**
+		 * @return The number of entries skipped because they were already up to date.
+		 */
+		public long getUnchangedCount() {
+			return unchanged.get();
+		}
+
+		/**
+		 * @return The number of files transferred.
+		 */
+		public long getTransferredCount() {
+			return transferred.get();
+		}
+
+		/**
+		 * @return The number of bytes transferred.
+		 */
+		public long getBytesTransferred() {
+			return bytesTransferred.get();
+		}
+
+		/**
+		 * @return The number of extra entries deleted.
+		 */
+		public long getDeletedCount() {
+			return deleted.get();
+		}
+
+		/**
+		 * @return The number of extra entries found and not deleted.
+		 */
+		public long getExtraCount() {
+			return extras.get();
+		}
+
+		/**
+		 * @return The elapsed time of the synchronization, in milliseconds.
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return The transfer throughput over the whole synchronization, in bytes per second.
+		 */
+		public double getBytesPerSecond() {
+			return elapsedMillis == 0 ? 0 : bytesTransferred.get() * 1000.0 / elapsedMillis;
+		}
+
+		/**
+		 * @return The entries which could not be processed, with the reason.
+		 */
+		public List<String> getErrors() {
+			synchronized (errors) {
+				return new ArrayList<String>(errors);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d entries: %d skipped, %d transferred (%d bytes, %.0f bytes/sec), "
+					+ "%d extras deleted, %d extras kept, %d errors in %d ms", scanned.get(), unchanged.get(),
+					transferred.get(), bytesTransferred.get(), getBytesPerSecond(), deleted.get(), extras.get(),
+					errors.size(), elapsedMillis);
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Appends the "/" separator to a non-empty prefix.
+	 */
+	static String normalize(String prefix) {
+		if (prefix == null || prefix.isEmpty())
+			return "";
+		return prefix.endsWith("/") ? prefix : prefix + "/";
+	}
+
+	/*
+	 * Collects the regular files of a tree, keyed by their relative path with "/" separators.
+	 * The temporary files of the downloads in progress are left out.
+	 */
+	private void walk(Path root, Map<String, LocalFile> files) throws IOException {
+		WalkTask task = new WalkTask(root, root, files);
+		walkPool.invoke(task);
+		if (task.error != null)
+			throw task.error;
+	}
+
+	/*
+	 * Waits until all the submitted tasks have completed.
+	 */
+	private void drain(Semaphore slots) throws InterruptedException {
+		slots.acquire(2 * concurrency);
+		slots.release(2 * concurrency);
+	}
+
+	/*
+	 * Checks if a file is the temporary file, or its download state, of a download in progress.
+	 */
+	private static boolean isTemporary(Path file) {
+		String name = file.getFileName().toString();
+		return name.endsWith(TEMP_SUFFIX) || name.endsWith(TEMP_SUFFIX + RangedDownloader.STATE_SUFFIX);
+	}
+
+	/*
+	 * A local file with the attributes read during the walk.
+	 */
+	static class LocalFile {
+
+		final File file;
+		final long size;
+		final long lastModified;
+
+		LocalFile(File file, long size, long lastModified) {
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/*
+	 * Lists one directory and forks a task for each subdirectory.
+	 */
+	private static class WalkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path root, directory;
+		private final Map<String, LocalFile> files;
+		private volatile IOException error;
+
+		WalkTask(Path root, Path directory, Map<String, LocalFile> files) {
+			this.root = root;
+			this.directory = directory;
+			this.files = files;
+		}
+
+		@Override
+		protected void compute() {
+			List<WalkTask> subdirectories = new ArrayList<WalkTask>();
+			try {
+				DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+				try {
+					for (Path entry : entries) {
+						BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+						if (attributes.isDirectory())
+							subdirectories.add(new WalkTask(root, entry, files));
+						else if (attributes.isRegularFile() && !isTemporary(entry)) {
+							String relativePath = root.relativize(entry).toString().replace(File.separatorChar, '/');
+							files.put(relativePath, new LocalFile(entry.toFile(), attributes.size(),
+									attributes.lastModifiedTime().toMillis()));
+						}
+					}
+				}
+				finally {
+					entries.close();
+				}
+			}
+			catch (IOException ioe) {
+				error = ioe;
+				return;
+			}
+			invokeAll(subdirectories);
+			for (WalkTask subdirectory : subdirectories) {
+				if (subdirectory.error != null) {
+					error = subdirectory.error;
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Compares a file with its object, if any, and uploads it when they differ.
+	 */
+	private class UploadTask implements Runnable {
+
+		private final String bucketName, keyName;
+		private final LocalFile localFile;
+		private final S3ObjectSummary objectSummary;
+		private final Comparison comparison;
+		private final Result result;
+		private final Semaphore slots;
+
+		UploadTask(String bucketName, String keyName, LocalFile localFile, S3ObjectSummary objectSummary,
+				Comparison comparison, Result result, Semaphore slots) {
+			this.bucketName = bucketName;
+			this.keyName = keyName;
+			this.localFile = localFile;
+			this.objectSummary = objectSummary;
+			this.comparison = comparison;
+			this.result = result;
+			this.slots = slots;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (objectSummary != null && isUnchanged()) {
+					result.unchanged.incrementAndGet();
+					return;
+				}
+				if (multipartUploader.isMultipart(localFile.size))
+					multipartUploader.upload(bucketName, keyName, localFile.file);
+				else
+					s3Client.putObject(new PutObjectRequest(bucketName, keyName, localFile.file));
+				result.transferred.incrementAndGet();
+				result.bytesTransferred.addAndGet(localFile.size);
+			}
+			catch (AmazonClientException | IOException e) {
+				result.errors.add(String.format("%s: %s", localFile.file, e.getMessage()));
+			}
+			finally {
+				slots.release();
+			}
+		}
+
+		private boolean isUnchanged() throws IOException {
+			if (objectSummary.getSize() != localFile.size)
+				return false;
+			if (comparison == Comparison.CHECKSUM && objectSummary.getETag() != null) {
+				Boolean matches = RangedDownloader.matchesETag(localFile.file, localFile.size, objectSummary.getETag());
+				if (matches != null)
+					return matches;
+			}
+			// The listing reports the upload time in whole seconds.
+			return localFile.lastModified / 1000 <= objectSummary.getLastModified().getTime() / 1000;
+		}
+	}
+
+	/*
+	 * Compares an object with its local file, if any, and downloads it when they differ.
+	 * The object is written to a temporary file which then replaces the local file.
+	 */
+	private class DownloadTask implements Runnable {
+
+		private final String bucketName;
+		private final Path target;
+		private final LocalFile localFile;
+		private final S3ObjectSummary objectSummary;
+		private final Comparison comparison;
+		private final Result result;
+		private final Semaphore slots;
+
+		DownloadTask(String bucketName, Path target, LocalFile localFile, S3ObjectSummary objectSummary,
+				Comparison comparison, Result result, Semaphore slots) {
+			this.bucketName = bucketName;
+			this.target = target;
+			this.localFile = localFile;
+			this.objectSummary = objectSummary;
+			this.comparison = comparison;
+			this.result = result;
+			this.slots = slots;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (localFile != null && isUnchanged()) {
+					result.unchanged.incrementAndGet();
+					return;
+				}
+				Files.createDirectories(target.getParent());
+				Path temp = target.resolveSibling("." + target.getFileName() + TEMP_SUFFIX);
+				String keyName = objectSummary.getKey();
+				ObjectMetadata metadata;
+				if (rangedDownloader.isRanged(objectSummary.getSize()))
+					metadata = rangedDownloader.download(bucketName, keyName, temp.toFile());
+				else {
+					S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, keyName));
+					metadata = object.getObjectMetadata();
+					InputStream content = object.getObjectContent();
+					try {
+						ChannelDownloader.transfer(content, temp);
+					}
+					finally {
+						content.close();
+					}
+					// Verified like the ranged downloads, before it replaces the local file.
+					try {
+						RangedDownloader.verify(temp.toFile(), metadata.getContentLength(), 
+								PartDigest.isContentMd5(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm()) 
+										? metadata.getETag() : null);
+					}
+					catch (IOException e) {
+						Files.deleteIfExists(temp);
+						throw e;
+					}
+				}
+				// Written decompressed, like the other downloads of compressed objects.
+				CompressionCodec codec = CompressionCodec.forContentEncoding(metadata.getContentEncoding());
+				if (codec != null)
+					CompressionStage.decompress(temp, codec);
+				Files.setLastModifiedTime(temp, FileTime.fromMillis(objectSummary.getLastModified().getTime()));
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				result.transferred.incrementAndGet();
+				result.bytesTransferred.addAndGet(objectSummary.getSize());
+			}
+			catch (AmazonClientException | IOException e) {
+				result.errors.add(String.format("%s: %s", objectSummary.getKey(), e.getMessage()));
+			}
+			finally {
+				slots.release();
+			}
+		}
+
+		private boolean isUnchanged() throws IOException {
+			if (objectSummary.getSize() != localFile.size)
+				return hasUploadTime() && isCompressed();
+			if (comparison == Comparison.CHECKSUM && objectSummary.getETag() != null) {
+				Boolean matches = RangedDownloader.matchesETag(localFile.file, localFile.size, objectSummary.getETag());
+				if (matches != null)
+					return matches;
+			}
+			return hasUploadTime();
+		}
+
+		private boolean hasUploadTime() {
+			// A downloaded file gets the upload time of its object, in whole seconds.
+			return localFile.lastModified / 1000 == objectSummary.getLastModified().getTime() / 1000;
+		}
+
+		/*
+		 * A compressed object was written decompressed, so its file has another size and 
+		 * another MD5: only the time can be compared. The listing does not report the 
+		 * encoding, which is read from the object metadata.
+		 */
+		private boolean isCompressed() {
+			ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, objectSummary.getKey());
+			return CompressionCodec.forContentEncoding(metadata.getContentEncoding()) != null;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.acloudysky.s3;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Selects the threads running the blocking S3 calls of the bulk operations:
+ * the part uploads, the range downloads, the delete batches, the batch and
+ * synchronization transfers and the asynchronous operations.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>{@link #PLATFORM} runs the calls on a fixed pool of platform threads, one per
+ * 	concurrent call</li>
+ * 	<li>{@link #VIRTUAL} starts a virtual thread per call, and caps the calls running
+ * 	at the same time with a semaphore; the calls in excess are queued until a permit is
+ * 	released. A call waiting for the network costs a few hundred bytes of heap instead
+ * 	of a platform thread stack, so the cap can be much higher</li>
+ * 	<li>Virtual threads need Java 21. On older runtimes {@link #VIRTUAL} starts a
+ * 	platform thread per call instead, with the same semaphore cap.
+ * 	See {@link #isVirtualThreadAvailable()}</li>
+ * 	<li>The mode of the engines created afterwards is read from the <i>s3.executionMode</i>
+ * 	system property, <i>platform</i> (the default) or <i>virtual</i>, and can be changed
+ * 	with {@link #setDefault(ExecutionMode)}</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="https://openjdk.org/jeps/444" target="_blank">JEP 444: Virtual Threads</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public enum ExecutionMode {
+
+	/**
+	 * A fixed pool of platform threads.
+	 */
+	PLATFORM {
+		@Override
+		public ExecutorService newExecutor(String threadPrefix, int concurrency) {
+			return Executors.newFixedThreadPool(concurrency, MultipartUploader.daemonThreadFactory(threadPrefix));
+		}
+	},
+
+	/**
+	 * A virtual thread per call, with at most the concurrency running at the same time.
+	 */
+	VIRTUAL {
+		@Override
+		public ExecutorService newExecutor(String threadPrefix, int concurrency) {
+			ThreadFactory threadFactory = virtualThreadFactory(threadPrefix);
+			ExecutorService threadPerTask = threadFactory != null
+					? newThreadPerTaskExecutor(threadFactory)
+					: Executors.newCachedThreadPool(MultipartUploader.daemonThreadFactory(threadPrefix));
+			return new BoundedExecutor(threadPerTask, concurrency);
+		}
+	};
+
+	/**
+	 * Name of the system property selecting the default mode.
+	 */
+	public static final String PROPERTY = "s3.executionMode";
+
+	// Mode of the engines created from now on.
+	private static volatile ExecutionMode defaultMode = parse(System.getProperty(PROPERTY));
+
+	/**
+	 * Creates an executor running at most the specified number of tasks at the same time.
+	 * @param threadPrefix Prefix of the thread names
+	 * @param concurrency Maximum number of tasks running at the same time
+	 * @return The executor. Shut it down when it is no longer used.
+	 */
+	public abstract ExecutorService newExecutor(String threadPrefix, int concurrency);
+
+	/**
+	 * @return The mode of the engines created from now on.
+	 */
+	public static ExecutionMode getDefault() {
+		return defaultMode;
+	}
+
+	/**
+	 * Changes the mode of the engines created from now on. The existing engines keep their threads.
+	 * @param mode The new default mode
+	 */
+	public static void setDefault(ExecutionMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("mode");
+		defaultMode = mode;
+	}
+
+	/**
+	 * Parses a mode name, ignoring case.
+	 * @param name <i>platform</i> or <i>virtual</i>, or null for {@link #PLATFORM}
+	 * @return The mode.
+	 * @throws IllegalArgumentException The name is not a mode.
+	 */
+	public static ExecutionMode parse(String name) {
+		if (name == null || name.trim().isEmpty())
+			return PLATFORM;
+		return valueOf(name.trim().toUpperCase());
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads.
+	 */
+	public static boolean isVirtualThreadAvailable() {
+		return virtualThreadFactory("s3-probe") != null;
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Creates a factory of named virtual threads, or returns null when the runtime
+	 * has no virtual threads. Reflection keeps the code compatible with Java 8.
+	 */
+	private static ThreadFactory virtualThreadFactory(String threadPrefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadPrefix + "-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+		try {
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, threadFactory);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Thread-per-task executor not available", e);
+		}
+	}
+
+	/*
+	 * Starts a thread per task, with at most the concurrency running at the same time.
+	 * The tasks in excess are queued and get their thread when a running task completes,
+	 * so execute never blocks and no thread is started just to wait.
+	 */
+	static class BoundedExecutor extends AbstractExecutorService {
+
+		private final ExecutorService threadPerTask;
+		private final Queue<Runnable> queued = new ConcurrentLinkedQueue<Runnable>();
+		private final Semaphore permits;
+		private volatile boolean shutdown;
+
+		BoundedExecutor(ExecutorService threadPerTask, int concurrency) {
+			if (concurrency < 1)
+				throw new IllegalArgumentException("Concurrency must be at least 1");
+			this.threadPerTask = threadPerTask;
+			this.permits = new Semaphore(concurrency);
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			if (shutdown)
+				throw new RejectedExecutionException("Executor shut down");
+			queued.add(task);
+			dispatch();
+		}
+
+		/*
+		 * Starts queued tasks while permits are free.
+		 */
+		private void dispatch() {
+			while (permits.tryAcquire()) {
+				final Runnable task = queued.poll();
+				if (task == null) {
+					permits.release();
+					// A task queued after the poll would otherwise wait for the next completion.
+					if (queued.isEmpty())
+						return;
+					continue;
+				}
+				try {
+					threadPerTask.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								task.run();
+							}
+							finally {
+								permits.release();
+								dispatch();
+								// The queued tasks have all been started: let the running ones complete.
+								if (shutdown && queued.isEmpty())
+									threadPerTask.shutdown();
+							}
+						}
+					});
+				}
+				catch (RejectedExecutionException ree) {
+					// Shut down while the task was being started: run it on this thread.
+					try {
+						task.run();
+					}
+					finally {
+						permits.release();
+					}
+				}
+			}
+		}
+
+		/*
+		 * Rejects new tasks. The queued tasks are still started.
+		 */
+		@Override
+		public void shutdown() {
+			shutdown = true;
+			if (queued.isEmpty())
+				threadPerTask.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			threadPerTask.shutdownNow();
+			List<Runnable> notStarted = new ArrayList<Runnable>();
+			for (Runnable task; (task = queued.poll()) != null; )
+				notStarted.add(task);
+			return notStarted;
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return threadPerTask.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return threadPerTask.awaitTermination(timeout, unit);
+		}
+	}
+}
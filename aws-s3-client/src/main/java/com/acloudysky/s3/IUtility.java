@@ -41,27 +41,35 @@ public interface IUtility {
 							"lb - List buckets",
 							"db - Delete bucket",
 							"uo - Upload object",
+							"su - Sync directory to bucket",
 							"do - Download object",
+							"df - Download object to file",
+							"sd - Sync bucket to directory",
 							"lo - List objects",
 							"xo - Delete object",
+							"co - Copy object",
+							"mo - Move object",
+							"mp - Move objects to another prefix",
+							"vd - Verify directory against bucket",
+							"mt - Display operation metrics",
 							"m  - Display menu",
 							"x  - Quit the application"
 						)
 	);
 	
 	/**
-	 * AWS S3 US regions  
-	 * <b>Note</b>: Only US regions are used, for simplicity.
+	 * AWS S3 regions, by name.
+	 * <b>Note</b>: The buckets of any region can be accessed from the selected region. See {@link RegionResolver}.
 	 */
 	HashMap<String, Enum<Regions>> s3Regions = new HashMap<String, Enum<Regions>>()
 	{ 
 		// Avoid compiler warning. 
 		private static final long serialVersionUID = 1L;
-		// Initialize the ec2Regions. 
+		// Initialize the s3Regions. 
 		{
-			put("us-east-1", Regions.US_EAST_1); // US East (N. Virginia) 
-			put("us-west-1", Regions.US_WEST_1); // US West (N. California)
-			put("us-west-2", Regions.US_WEST_2); // US West (Oregon)	
+			// All the regions known to the SDK, for example "eu-west-1".
+			for (Regions region : Regions.values())
+				put(region.getName(), region);
 		}
 	};
 	
@@ -0,0 +1,140 @@
+package com.acloudysky.s3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Records latencies in buckets of bounded relative width, in the manner of HdrHistogram, so that
+ * the percentiles of millions of values are kept in a fixed amount of memory.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The values below {@value #SUB_BUCKETS} are counted exactly. Above, each power of two is split
+ * 	into {@value #HALF_SUB_BUCKETS} buckets, so a value is reported with an error of less than 1/64,
+ * 	about two significant digits, over the whole range of long values</li>
+ * 	<li>Recording a value is lock-free: it increments one bucket and a few striped counters.
+ * 	Concurrent threads rarely update the same bucket counter</li>
+ * 	<li>The percentiles are computed while values are recorded, so they can mix values recorded
+ * 	before and during the computation</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class LatencyHistogram {
+
+	/** Number of the smallest values, counted exactly. */
+	public static final int SUB_BUCKETS = 128;
+
+	/** Number of buckets per power of two above {@value #SUB_BUCKETS}. */
+	public static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+	// log2(HALF_SUB_BUCKETS).
+	private static final int SUB_BUCKET_BITS = 6;
+
+	// Buckets of values up to Long.MAX_VALUE.
+	private static final int BUCKETS = (62 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 * @param value The value, for example a latency in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	/**
+	 * @return The number of values recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return The largest value recorded, or 0.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean of the values recorded, or 0.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Gets the value below which a percentage of the values fall.
+	 * @param percentile The percentage, from 0 to 100, for example 99.9.
+	 * @return The highest value of the bucket holding the percentile, at most the largest value
+	 * recorded, or 0 if no value was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("The percentile must be between 0 and 100: " + percentile);
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clears the values recorded.
+	 * Values recorded during the reset may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Values below SUB_BUCKETS have their own bucket. Above, the bucket is given by the position
+	 * of the highest bit and the SUB_BUCKET_BITS bits that follow it.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/*
+	 * Returns the highest value counted in a bucket.
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / HALF_SUB_BUCKETS - 1;
+		long lowest = (long) (index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS) << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+}
@@ -1,9 +1,17 @@
 package com.acloudysky.s3;
 
-import com.amazonaws.AmazonServiceException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
-import com.acloudysky.auth.AwsClientAuthencation;
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.acloudysky.s3.Utility;
 
 
@@ -20,12 +28,35 @@ import com.acloudysky.s3.Utility;
  * For more information, see <a href="http://docs.aws.amazon.com/AWSSdkDocsJava/latest/DeveloperGuide/credentials.html" target="_blank">Providing AWS Credentials in the AWS SDK for Java</a> 
  * and <a href="https://console.aws.amazon.com/iam/home?#security_credential" target="_blank">Welcome to Identity and Access Management</a>.
  * <b>WARNING</b>: To avoid accidental leakage of your credentials, DO NOT keep the credentials file in your source directory.
+ * <p>The HTTP connection pool of the client can be tuned with system properties such as 
+ * <i>-Ds3.client.maxConnections=1024</i>. See {@link S3ClientFactory#configuration(java.util.Properties)}.</p>
+ * <p>The bulk operations run on virtual threads with <i>-Ds3.executionMode=virtual</i>.
+ * See {@link ExecutionMode}.</p>
+ * <p>The requests are paced by a {@link RequestGovernor}, which slows down when the service
+ * throttles them. It can be tuned with system properties such as <i>-Ds3.governor.prefixDepth=1</i>.
+ * See {@link RequestGovernor#configuration(java.util.Properties)}.</p>
+ * <p>The object metadata and bucket regions are cached in memory with <i>-Ds3.cache.maxEntries=10000</i>,
+ * for <i>-Ds3.cache.ttl</i> milliseconds. See {@link MetadataCache#configuration(java.util.Properties)}.</p>
+ * <p>The downloaded objects are kept on disk, and revalidated before being read again, with 
+ * <i>-Ds3.contentCache.dir=path</i>. See {@link ContentCache}.</p>
+ * <p>The buckets of other regions than the selected one are accessed through clients of their
+ * region. See {@link RegionResolver}.</p>
+ * <p>The requests, errors, bytes and latency percentiles of the operations are displayed with the
+ * <i>mt</i> command, or exported every <i>-Ds3.metrics.exportPeriod</i> milliseconds.
+ * See {@link OperationMetrics#configuration(java.util.Properties)}.</p>
  * @author Michael Miele
  *
  */
 public class Main {
 
-	private static AmazonS3  s3Client = null;
+	private static AmazonS3Client s3Client = null;
+	
+	// Client used by the operations. It caches the metadata lookups, paces the requests and sends them
+	// to the client of the region of their bucket: s3Client or a client created by the region resolver.
+	private static AmazonS3 operationsClient = null;
+	
+	// Clients of the regions other than the selected one.
+	private static RegionResolver regionResolver = null;
 	
 	// Selected S3 region. Enumerated value.
 	private static Regions currentRegion = null;
@@ -33,85 +64,214 @@ public class Main {
 	// Selected region. String value such as "us-west-2".
 	private static String region = null;
 	
+	// Manifest of the batch mode, "-" for the standard input, or null for the interactive mode.
+	private static String manifest = null;
+	
+	// Records the calls of the bucket and object operations.
+	private static OperationMetrics metrics = null;
+	
+	// Journal of the batch mode, recording the completed operations, or null.
+	private static String journal = null;
+	
+	// Number of operations run at the same time in batch mode.
+	private static int concurrency = BatchRunner.DEFAULT_CONCURRENCY;
+	
 	/**
-	 * Instantiates the S3 client, initializes the operation classes. 
-	 * Instantiates the SimpleUI class to display the selection menu and process the user's input. 
-	 * @see SimpleUI#SimpleUI()
-	 * @see BucketOperations#initBucketOperations(AmazonS3)
-	 * @see ObjectOperations#initObjectOperations(AmazonS3)
+	 * Instantiates the S3 client, creates the operation classes. 
+	 * Instantiates the SimpleUI class to display the selection menu and process the user's input 
+	 * or, in batch mode, runs the operations of a manifest and exits with the {@link BatchRunner} exit code. 
+	 * @see SimpleUI#SimpleUI(BucketOperations, ObjectOperations)
+	 * @see BatchRunner#run(java.io.Reader)
+	 * @see S3ClientFactory#newClient(Regions)
 	 * @param args; 
-	 *  args[0] = region (key) for example, us-west-2
+	 *  args[0] = region (key) for example, us-west-2 <br>
+	 *  -batch manifest = runs the operations of the manifest file, or of the standard input if "-" <br>
+	 *  -concurrency n = number of operations run at the same time in batch mode <br>
+	 *  -journal file = records the completed operations, so that a run of the same manifest 
+	 *  after a crash skips them. The journal is deleted when all the operations succeed
 	 */
 	public static void main(String[] args) {
 		
-		
-		// Display application menu.
-		Utility.displayWelcomeMessage("AWS S3");
-				
 		// Read input parameters.
 		try {
 				region = args[0];
+				for (int i = 1; i < args.length; i++) {
+					if ("-batch".equals(args[i]))
+						manifest = args[++i];
+					else if ("-concurrency".equals(args[i]))
+						concurrency = Integer.parseInt(args[++i]);
+					else if ("-journal".equals(args[i]))
+						journal = args[++i];
+					else
+						throw new IllegalArgumentException(args[i]);
+				}
 				// System.out.println(region);
 		}
 		catch (Exception e) {
-			System.out.println("IO error trying to read application input! Assigning default values.");
 			// Assign default values if none are passed.
 			if (args.length==0) {
+				System.out.println("IO error trying to read application input! Assigning default values.");
 				region = "us-west-2";
 			}
 			else {
 				System.out.println("IO error trying to read application input!");
-				System.exit(1); 
+				System.out.println("Usage: region [-batch manifest|-] [-concurrency n] [-journal file]");
+				System.exit(BatchRunner.EXIT_INVALID); 
 			}
 		}
 		
+		if (manifest != null) {
+			System.exit(runBatch());
+		}
 		
-		try {
-			
-				// Instantiate AwsClientAuthencation class.
-				AwsClientAuthencation clientAuth = new AwsClientAuthencation();
-			
-				// Obtain authenticated S3 client.
-				s3Client = (AmazonS3) clientAuth.getAuthenticatedClient("s3");
-				
-				// Set region.
-				currentRegion = Utility.getRegion(region);
-				
-				if (currentRegion != null)
-					clientAuth.setClientRegion("s3", currentRegion);
-		} 
+		// Display application menu.
+		Utility.displayWelcomeMessage("AWS S3");
 		
-		catch (AmazonServiceException ase) {
-        	StringBuffer err = new StringBuffer();
-        	err.append(("Caught an AmazonServiceException, which means your request made it "
-                      + "to Amazon S3, but was rejected with an error response for some reason."));
-       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-        	
-    	} 
+		createClient();
 		
 		if (s3Client != null) {
 			
-			// Initialize the BucketOperations class to handle related REST API calls.
-			BucketOperations.initBucketOperations(s3Client); 
-			
-			// Initialize the ObjectOperations class to handle related REST API calls.
-			ObjectOperations.initObjectOperations(s3Client);
+			// Create the operation classes. They share the client and its connection pool, and the metrics.
+			createMetrics();
+			BucketOperations bucketOperations = new BucketOperations(operationsClient, 
+					new BatchDeleter(operationsClient), metrics); 
+			ObjectOperations objectOperations = createObjectOperations();
 			
 			// Instantiate the SimpleUI class and display menu.
-			SimpleUI sui = new SimpleUI();
+			SimpleUI sui = new SimpleUI(bucketOperations, objectOperations, metrics);
 	
 			// Start processing user's input.
 			sui.processUserInput();
+			
+			// Release the threads and the connections.
+			bucketOperations.shutdown();
+			objectOperations.shutdown();
+			metrics.shutdown();
+			regionResolver.shutdown();
+			s3Client.shutdown();
 		}
 		else 
-			String.format("Error %s", "Main: authorized S3 client object is null.");
+			System.out.println(String.format("Error %s", "Main: authorized S3 client object is null."));
 		
 
 		Utility.displayGoodbyeMessage("AWS S3");	
 	}
 	
+	/*
+	 * Runs the operations of the manifest. Returns the exit code.
+	 */
+	private static int runBatch() {
+		
+		createClient();
+		if (s3Client == null)
+			return BatchRunner.EXIT_FAILED;
+		
+		// The same operations as the menu, so that the batch is recorded in the metrics and the cache.
+		createMetrics();
+		BatchRunner runner = new BatchRunner(new BucketOperations(operationsClient, 
+				new BatchDeleter(operationsClient), metrics), createObjectOperations(), concurrency, System.out);
+		try {
+			TransferJournal transferJournal = journal != null ? new TransferJournal(new File(journal)) : null;
+			Reader reader = "-".equals(manifest) 
+					? new InputStreamReader(System.in, StandardCharsets.UTF_8) 
+					: new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8);
+			try {
+				BatchRunner.Summary summary = runner.run(reader, transferJournal);
+				System.err.println(summary);
+				// Keep the journal for the next run only when some operations did not succeed.
+				if (transferJournal != null && summary.getExitCode() == BatchRunner.EXIT_OK)
+					transferJournal.delete();
+				return summary.getExitCode();
+			}
+			finally {
+				reader.close();
+				if (transferJournal != null)
+					transferJournal.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println(String.format("Error reading manifest %s: %s", manifest, e.getMessage()));
+			return BatchRunner.EXIT_INVALID;
+		}
+		finally {
+			runner.shutdown();
+			metrics.shutdown();
+			regionResolver.shutdown();
+			s3Client.shutdown();
+		}
+	}
+	
+	/*
+	 * Creates the object operations, with a content cache if a cache directory is configured.
+	 * The objects are downloaded without cache if the cache cannot be opened.
+	 */
+	private static ObjectOperations createObjectOperations() {
+		
+		MultipartUploader uploader = new MultipartUploader(operationsClient);
+		RangedDownloader downloader = new RangedDownloader(operationsClient);
+		ContentCache contentCache = null;
+		try {
+				contentCache = ContentCache.configuration(operationsClient, downloader, System.getProperties());
+				if (contentCache != null)
+					System.out.println(String.format("Content cache: %s", contentCache));
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.out.println(String.format("Error opening the content cache: %s", e.getMessage()));
+		}
+		return new ObjectOperations(operationsClient, uploader, downloader, contentCache, metrics);
+	}
+	
+	/*
+	 * Creates the metrics of the operations, exported periodically if an export period is configured.
+	 * The metrics are only displayed on demand if the export settings are invalid.
+	 */
+	private static void createMetrics() {
+		
+		try {
+				metrics = OperationMetrics.configuration(System.getProperties());
+		}
+		catch (IllegalArgumentException iae) {
+			System.out.println(String.format("Invalid metrics setting: %s", iae.getMessage()));
+			metrics = new OperationMetrics();
+		}
+	}
+	
+	/*
+	 * Creates the authenticated client for the selected region.
+	 */
+	private static void createClient() {
+		
+		try {
+			
+				// Instantiate the request governor and the client factory, with the settings passed as system properties.
+				RequestGovernor governor = RequestGovernor.configuration(System.getProperties());
+				S3ClientFactory clientFactory = new S3ClientFactory(new ProfileCredentialsProvider(), 
+						governor.configure(S3ClientFactory.configuration(System.getProperties())));
+				
+				// Set region.
+				currentRegion = Utility.getRegion(region);
+			
+				// Obtain authenticated S3 client.
+				s3Client = clientFactory.newClient(currentRegion);
+				
+				// Route the requests of the buckets of other regions to clients of their region.
+				// Without a selected region, the client uses the default US Standard endpoint.
+				regionResolver = new RegionResolver(clientFactory, s3Client, 
+						currentRegion == null ? RegionResolver.US_STANDARD : currentRegion.getName());
+				
+				// Wrap it to pace its requests, and to cache its metadata lookups when a cache is configured.
+				AmazonS3 governedClient = governor.govern(regionResolver.route());
+				MetadataCache cache = MetadataCache.configuration(System.getProperties());
+				operationsClient = cache == null ? governedClient : cache.cache(governedClient);
+		} 
+		
+		catch (IllegalArgumentException iae) {
+			System.out.println(String.format("Invalid client setting: %s", iae.getMessage()));
+		}
+		catch (AmazonClientException ace) {
+			System.out.println("Caught an AmazonClientException, which means the client could not be created.");
+			System.out.println("Error Message: " + ace.getMessage());
+    	} 
+	}
+	
 }
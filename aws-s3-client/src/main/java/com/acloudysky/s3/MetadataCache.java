@@ -0,0 +1,485 @@
+package com.acloudysky.s3;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetBucketLocationRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/***
+ * Keeps in memory the object metadata, the bucket regions and, optionally, the listing pages
+ * read through a client, so that repeated lookups are answered without a request.
+ * A cached client serves <i>getObjectMetadata</i>, <i>getBucketLocation</i> and, when listings
+ * are cached, <i>listObjects</i> and <i>listNextBatchOfObjects</i> from the cache, and
+ * sends every other call to the wrapped client.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The cache holds at most the configured number of objects: one for the metadata of a key
+ * 	or the region of a bucket, and one for each object summary and common prefix of a listing page.
+ * 	The least recently used entries are evicted to stay within it. An entry expires after the
+ * 	configured time to live</li>
+ * 	<li>The listing pages are not cached by default: a listing is usually read once, and caching
+ * 	its pages would keep up to a thousand summaries per page on the heap, where the iterators
+ * 	and the parallel lister hold one or two pages</li>
+ * 	<li>The writes made through the cached client invalidate what they change: the metadata of
+ * 	the written or deleted keys, the listing pages of their bucket and, when a bucket is created
+ * 	or deleted, its region. The changes made by other clients are seen when the entries expire,
+ * 	so the time to live bounds how stale a lookup can be</li>
+ * 	<li>The metadata is returned as a copy. The listing pages are shared and must not be changed</li>
+ * 	<li>The error responses, such as <i>404 Not Found</i>, are not cached</li>
+ * 	<li>A lookup that must see the current version of an object, such as the ETag of a conditional
+ * 	request, goes to the service with a request made by {@link #uncached(String, String)}</li>
+ * 	<li>The cache is off unless its size is set in properties, such as the system properties
+ * 	passed with <i>-Ds3.cache.maxEntries=10000</i>. See {@link #configuration(Properties)}</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class MetadataCache {
+
+	/** Default maximum number of objects held. */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** Default time to live of an entry, in milliseconds. */
+	public static final long DEFAULT_TTL = 30 * 1000;
+
+	/** Prefix of the property names read by {@link #configuration(Properties)}. */
+	public static final String PROPERTY_PREFIX = "s3.cache.";
+
+	// Client methods which change objects, listings or buckets.
+	private static final Set<String> WRITES = new HashSet<String>(Arrays.asList(
+			"putObject", "copyObject", "completeMultipartUpload", "deleteObject", "deleteVersion",
+			"deleteObjects", "restoreObject", "changeObjectStorageClass", "setObjectRedirectLocation",
+			"createBucket", "deleteBucket"));
+
+	// Separates the fields of the entry keys. It cannot appear in a bucket name or in a key.
+	private static final char SEPARATOR = '\0';
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final boolean listings;
+
+	// Entries in access order, the least recently used first. Guarded by itself.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// Number of objects held by the entries. Guarded by entries.
+	private long weight;
+
+	// Count of the writes to each bucket, to discard its listing pages and the lookups racing with a write.
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache of metadata and regions with the default size and time to live.
+	 */
+	public MetadataCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, false);
+	}
+
+	/**
+	 * Creates a cache.
+	 * @param maxEntries Maximum number of objects held, counting each summary of a listing page
+	 * @param ttl Time to live of an entry, in milliseconds
+	 * @param listings true to cache the listing pages as well
+	 */
+	public MetadataCache(int maxEntries, long ttl, boolean listings) {
+		if (maxEntries < 1 || ttl < 1)
+			throw new IllegalArgumentException("The size and the time to live must be positive");
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.listings = listings;
+	}
+
+	/**
+	 * Creates a cache configured by properties, or returns null when no size is configured.
+	 * The other missing properties take the default value.
+	 * <ul>
+	 * 	<li><i>s3.cache.maxEntries</i> the maximum number of objects held</li>
+	 * 	<li><i>s3.cache.ttl</i> in milliseconds</li>
+	 * 	<li><i>s3.cache.listings</i> <i>true</i> to cache the listing pages</li>
+	 * </ul>
+	 * @param properties The properties, for example the system properties.
+	 * @return The cache, or null.
+	 * @throws NumberFormatException A numeric property is not a valid integer.
+	 */
+	public static MetadataCache configuration(Properties properties) {
+		String maxEntries = properties.getProperty(PROPERTY_PREFIX + "maxEntries");
+		if (maxEntries == null || maxEntries.trim().isEmpty())
+			return null;
+		String ttl = properties.getProperty(PROPERTY_PREFIX + "ttl");
+		String listings = properties.getProperty(PROPERTY_PREFIX + "listings");
+		return new MetadataCache(Integer.parseInt(maxEntries.trim()),
+				ttl == null ? DEFAULT_TTL : Long.parseLong(ttl.trim()),
+				listings != null && Boolean.parseBoolean(listings.trim()));
+	}
+
+	/**
+	 * Makes a metadata request that a cached client sends to the service even when the metadata
+	 * is cached, for the lookups that must see the current version of an object, such as the ETag
+	 * of an <i>If-Match</i> condition. The response replaces the cached metadata.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @return The request, also accepted by clients without a cache.
+	 */
+	public static GetObjectMetadataRequest uncached(String bucketName, String keyName) {
+		return new UncachedRequest(bucketName, keyName);
+	}
+
+	/**
+	 * Wraps a client so that its metadata lookups go through this cache.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @return The cached client. It is thread-safe, and shares the connections of the wrapped one.
+	 */
+	public AmazonS3 cache(final AmazonS3 authorizedClient) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							if (method.getName().equals("equals"))
+								return proxy == args[0];
+							if (method.getName().equals("hashCode"))
+								return System.identityHashCode(proxy);
+							return "Cached " + authorizedClient;
+						}
+						return call(authorizedClient, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Removes the metadata of an object, and the listing pages of its bucket.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 */
+	public void invalidate(String bucketName, String keyName) {
+		synchronized (entries) {
+			generation(bucketName).incrementAndGet();
+			remove(metadataKey(bucketName, keyName));
+		}
+	}
+
+	/**
+	 * Removes all the entries of a bucket.
+	 * @param bucketName The name of the bucket
+	 */
+	public void invalidateBucket(String bucketName) {
+		synchronized (entries) {
+			generation(bucketName).incrementAndGet();
+			remove(regionKey(bucketName));
+			for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<String, Entry> entry = i.next();
+				if (entry.getKey().startsWith(bucketName + SEPARATOR, 1)) {
+					weight -= entry.getValue().weight;
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all the entries.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			for (AtomicLong generation : generations.values())
+				generation.incrementAndGet();
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	/**
+	 * @return The number of entries, including the expired ones not yet evicted.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return The number of objects held by the entries, at most the configured maximum.
+	 */
+	public long getWeight() {
+		synchronized (entries) {
+			return weight;
+		}
+	}
+
+	/**
+	 * @return The number of lookups answered by the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups sent to the wrapped client.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of entries evicted to make room for new ones.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		long hitCount = hits.get(), missCount = misses.get();
+		return String.format("%d entries holding %d objects of %d, %d hits, %d misses (%.1f%% hits), %d evictions",
+				size(), getWeight(), maxEntries, hitCount, missCount,
+				hitCount + missCount == 0 ? 0.0 : 100.0 * hitCount / (hitCount + missCount), evictions.get());
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Answers a lookup from the cache, or calls the client and invalidates what a write changes.
+	 */
+	private Object call(AmazonS3 authorizedClient, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		String bucketName = null, key = null;
+		boolean listing = false;
+		boolean refresh = false;
+		if (name.equals("getObjectMetadata")) {
+			if (args[0] instanceof GetObjectMetadataRequest) {
+				GetObjectMetadataRequest request = (GetObjectMetadataRequest) args[0];
+				// The versions are looked up rarely, and are not invalidated by the writes of the key.
+				if (request.getVersionId() != null)
+					return invoke(authorizedClient, method, args);
+				bucketName = request.getBucketName();
+				key = metadataKey(bucketName, request.getKey());
+				refresh = request instanceof UncachedRequest;
+			}
+			else {
+				bucketName = (String) args[0];
+				key = metadataKey(bucketName, (String) args[1]);
+			}
+		}
+		else if (name.equals("listObjects") && listings) {
+			ListObjectsRequest request = args[0] instanceof ListObjectsRequest ? (ListObjectsRequest) args[0]
+					: new ListObjectsRequest((String) args[0], args.length > 1 ? (String) args[1] : null, null, null, null);
+			bucketName = request.getBucketName();
+			key = listingKey(bucketName, request.getPrefix(), request.getMarker(), request.getDelimiter(),
+					request.getMaxKeys(), request.getEncodingType());
+			listing = true;
+		}
+		else if (name.equals("listNextBatchOfObjects") && listings) {
+			ObjectListing previous = (ObjectListing) args[0];
+			// The SDK returns an empty page without a request.
+			if (!previous.isTruncated())
+				return invoke(authorizedClient, method, args);
+			bucketName = previous.getBucketName();
+			key = listingKey(bucketName, previous.getPrefix(), ObjectIterator.nextMarker(previous),
+					previous.getDelimiter(), previous.getMaxKeys(), previous.getEncodingType());
+			listing = true;
+		}
+		else if (name.equals("getBucketLocation")) {
+			bucketName = args[0] instanceof GetBucketLocationRequest
+					? ((GetBucketLocationRequest) args[0]).getBucketName() : (String) args[0];
+			key = regionKey(bucketName);
+		}
+		else if (WRITES.contains(name)) {
+			try {
+				return invoke(authorizedClient, method, args);
+			}
+			finally {
+				// Also after a failure, since the write may have been applied.
+				invalidate(name, args);
+			}
+		}
+		else
+			return invoke(authorizedClient, method, args);
+
+		long generation = generation(bucketName).get();
+		long now = System.nanoTime();
+		Object value = refresh ? null : lookup(key, now, listing ? generation : -1);
+		if (value != null) {
+			hits.incrementAndGet();
+			return value instanceof ObjectMetadata ? ((ObjectMetadata) value).clone() : value;
+		}
+		misses.incrementAndGet();
+		value = invoke(authorizedClient, method, args);
+		if (value != null) {
+			Object cached = value instanceof ObjectMetadata ? ((ObjectMetadata) value).clone() : value;
+			synchronized (entries) {
+				// Not cached if a write to the bucket happened meanwhile: the value may be older than the write.
+				if (generation(bucketName).get() == generation)
+					put(key, new Entry(cached, now + ttlNanos, generation, weightOf(cached)));
+			}
+		}
+		return value;
+	}
+
+	/*
+	 * Adds an entry, then evicts the least recently used ones beyond the maximum. Called with the lock of entries.
+	 */
+	private void put(String key, Entry entry) {
+		remove(key);
+		// An entry larger than the whole cache would evict everything else for nothing.
+		if (entry.weight > maxEntries)
+			return;
+		entries.put(key, entry);
+		weight += entry.weight;
+		for (Iterator<Entry> eldest = entries.values().iterator(); weight > maxEntries; ) {
+			weight -= eldest.next().weight;
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/*
+	 * Removes an entry. Called with the lock of entries.
+	 */
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			weight -= entry.weight;
+	}
+
+	/*
+	 * Number of objects held by a value: the summaries and common prefixes of a listing page, or one.
+	 */
+	private static int weightOf(Object value) {
+		if (value instanceof ObjectListing) {
+			ObjectListing listing = (ObjectListing) value;
+			return Math.max(1, listing.getObjectSummaries().size() + listing.getCommonPrefixes().size());
+		}
+		return 1;
+	}
+
+	/*
+	 * Returns the live value of a key, or null. A listing page is live only while
+	 * its bucket has not been written.
+	 */
+	private Object lookup(String key, long now, long generation) {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry == null)
+				return null;
+			if (now - entry.expiresNanos >= 0 || (generation >= 0 && entry.generation != generation)) {
+				remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+
+	/*
+	 * Invalidates the entries changed by a write call.
+	 */
+	private void invalidate(String name, Object[] args) {
+		if (name.equals("createBucket") || name.equals("deleteBucket"))
+			invalidateBucket(RequestGovernor.target(args)[0]);
+		else if (name.equals("deleteObjects")) {
+			DeleteObjectsRequest request = (DeleteObjectsRequest) args[0];
+			synchronized (entries) {
+				generation(request.getBucketName()).incrementAndGet();
+				for (KeyVersion keyVersion : request.getKeys())
+					remove(metadataKey(request.getBucketName(), keyVersion.getKey()));
+			}
+		}
+		else if (name.equals("copyObject") && args.length == 4)
+			// copyObject(sourceBucket, sourceKey, destinationBucket, destinationKey)
+			invalidate((String) args[2], (String) args[3]);
+		else {
+			String[] target = RequestGovernor.target(args);
+			invalidate(target[0], target[1]);
+		}
+	}
+
+	private static Object invoke(AmazonS3 authorizedClient, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(authorizedClient, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private AtomicLong generation(String bucketName) {
+		String bucket = bucketName == null ? "" : bucketName;
+		AtomicLong generation = generations.get(bucket);
+		if (generation == null) {
+			AtomicLong created = new AtomicLong();
+			generation = generations.putIfAbsent(bucket, created);
+			if (generation == null)
+				generation = created;
+		}
+		return generation;
+	}
+
+	/*
+	 * The entry keys start with a type letter followed by the bucket name.
+	 */
+	private static String metadataKey(String bucketName, String keyName) {
+		return "m" + bucketName + SEPARATOR + keyName;
+	}
+
+	private static String listingKey(String bucketName, String prefix, String marker, String delimiter,
+			Integer maxKeys, String encodingType) {
+		return "l" + bucketName + SEPARATOR + prefix + SEPARATOR + marker + SEPARATOR + delimiter
+				+ SEPARATOR + maxKeys + SEPARATOR + encodingType;
+	}
+
+	private static String regionKey(String bucketName) {
+		return "r" + bucketName;
+	}
+
+	/*
+	 * A cached value with its expiry time, the bucket generation it was read at and the number of objects it holds.
+	 */
+	private static final class Entry {
+
+		private final Object value;
+		private final long expiresNanos;
+		private final long generation;
+		private final int weight;
+
+		Entry(Object value, long expiresNanos, long generation, int weight) {
+			this.value = value;
+			this.expiresNanos = expiresNanos;
+			this.generation = generation;
+			this.weight = weight;
+		}
+	}
+
+	/*
+	 * Metadata request answered by the service rather than by the cache.
+	 */
+	private static final class UncachedRequest extends GetObjectMetadataRequest {
+
+		UncachedRequest(String bucketName, String keyName) {
+			super(bucketName, keyName);
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/***
+ * Uploads large files to S3 using the multipart upload API.
+ * The file is split into fixed-size parts which are uploaded concurrently
+ * on a bounded pool of worker threads.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Each part is retried individually, so a transient failure near the end
+ * 	of a large file does not restart the whole transfer. Only the transient errors
+ * 	(5xx, throttling, timeouts, network errors) are retried: a denied part fails at once</li>
+ * 	<li>If a part still fails after the configured number of retries the
+ * 	upload is aborted, so that S3 does not keep (and bill) the uploaded parts</li>
+ * 	<li>S3 requires every part but the last one to be at least 5 MB and
+ * 	allows at most 10000 parts per upload</li>
+ * 	<li>With a {@link TransferJournal}, the upload ID and the uploaded parts are recorded,
+ * 	so that an upload interrupted by the death of the process is resumed by the next
+ * 	upload of the same file to the same object, which only sends the missing parts.
+ * 	A journaled upload whose parts still fail with transient errors, such as throttling or
+ * 	server errors, is not aborted either, and is resumed the same way</li>
+ * 	<li>The MD5 and the CRC32C of each part are computed as the SDK reads it from the file,
+ * 	on the thread sending the part. A part whose ETag is not its MD5 is sent again, and the
+ * 	ETag of the completed object is compared with the one computed from the part MD5s; a
+ * 	mismatch is reported, since the object is stored. The ETags of the objects encrypted with
+ * 	SSE-KMS or SSE-C are not MD5s, and are not compared. See {@link PartDigest}. The parts of a resumed upload are read again and checked against
+ * 	their recorded ETag; the ones which changed are sent again</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/uploadobjusingmpu.html" target="_blank">Uploading Objects Using Multipart Upload API</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class MultipartUploader {
+
+	/**
+	 * Files larger than this size (in bytes) are uploaded in parts.
+	 */
+	public static final long DEFAULT_THRESHOLD = 16L * 1024 * 1024;
+
+	/**
+	 * Size of each part (in bytes).
+	 */
+	public static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+
+	/**
+	 * Number of parts uploaded at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 8;
+
+	/**
+	 * Number of times a part failing with a transient error is retried before the upload is aborted.
+	 */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	// Smallest part size accepted by S3.
+	static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+	// Largest number of parts accepted by S3.
+	static final int MAX_PARTS = 10000;
+
+	// Initial delay before retrying a failed part, doubled at each attempt.
+	private static final long RETRY_BASE_DELAY_MS = 200;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final long threshold;
+	private final long partSize;
+	private final int maxRetries;
+
+	// Bounded executor running the part uploads.
+	private final ExecutorService executor;
+
+	/**
+	 * Creates an uploader with the default threshold, part size, concurrency and retries.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public MultipartUploader(AmazonS3 authorizedClient) {
+		this(authorizedClient, DEFAULT_THRESHOLD, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Creates an uploader.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param threshold Files larger than this size (in bytes) are uploaded in parts
+	 * @param partSize Size of each part (in bytes). Must be at least 5 MB
+	 * @param concurrency Maximum number of parts uploaded at the same time
+	 * @param maxRetries Number of times a part failing with a transient error is retried
+	 */
+	public MultipartUploader(AmazonS3 authorizedClient, long threshold, long partSize,
+			int concurrency, int maxRetries) {
+		if (partSize < MIN_PART_SIZE)
+			throw new IllegalArgumentException(String.format("Part size must be at least %d bytes", MIN_PART_SIZE));
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.s3Client = authorizedClient;
+		this.threshold = threshold;
+		this.partSize = partSize;
+		this.maxRetries = maxRetries;
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-upload-part", concurrency);
+	}
+
+	/**
+	 * Checks if a file of the specified length is uploaded in parts.
+	 * @param length The length of the file in bytes
+	 * @return true if the file is larger than the threshold
+	 */
+	public boolean isMultipart(long length) {
+		return length > threshold;
+	}
+
+	/**
+	 * Uploads a file in parts.
+	 * Blocks until all the parts are uploaded and the upload is completed or aborted.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param file The file to upload
+	 * @return The result of the completed upload
+	 * @throws IOException Error reading the file, the upload was interrupted, or the ETag of the 
+	 * completed object does not match the parts sent
+	 * @throws AmazonClientException A part failed after all the retries; the upload has been aborted
+	 */
+	public CompleteMultipartUploadResult upload(String bucketName, String keyName, File file) throws IOException {
+		return upload(bucketName, keyName, file, null);
+	}
+
+	/**
+	 * Uploads a file in parts, recording its progress in a journal.
+	 * An upload of the same file to the same object recorded in the journal is resumed:
+	 * only the parts not yet uploaded are sent. A recorded upload of a file which changed
+	 * since is aborted, and the file is uploaded again.
+	 * Blocks until all the parts are uploaded and the upload is completed or aborted.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param file The file to upload
+	 * @param journal The journal recording the upload, or null
+	 * @return The result of the completed upload
+	 * @throws IOException Error reading the file, the upload was interrupted, the journal could not be 
+	 * written, or the ETag of the completed object does not match the parts sent
+	 * @throws AmazonClientException A part failed after all the retries. The upload has been aborted,
+	 * unless the error is transient: it is then kept in the journal, to be resumed
+	 */
+	public CompleteMultipartUploadResult upload(String bucketName, String keyName, File file,
+			TransferJournal journal) throws IOException {
+
+		long length = file.length();
+		long size = partSizeFor(length);
+		int partCount = (int) ((length + size - 1) / size);
+		// Any change of the file or of the part size invalidates the uploaded parts.
+		String source = String.format("%s %d %d %d", file.getAbsolutePath(), length, file.lastModified(), size);
+
+		String uploadId = null;
+		List<PartETag> uploaded = Collections.emptyList();
+		if (journal != null) {
+			TransferJournal.Upload previous = journal.findUpload(bucketName, keyName);
+			if (previous != null && previous.getSource().equals(source) && exists(bucketName, keyName, previous)) {
+				uploadId = previous.getUploadId();
+				uploaded = previous.getParts();
+				System.out.println(String.format("Resuming upload of %s: %d of %d parts already uploaded",
+						keyName, uploaded.size(), partCount));
+			}
+			else if (previous != null && previous.getSource().equals(source))
+				journal.uploadEnded(previous.getUploadId());
+			else if (previous != null) {
+				abort(bucketName, keyName, previous.getUploadId(), Collections.<Future<PartETag>>emptyList());
+				journal.uploadEnded(previous.getUploadId());
+			}
+		}
+		if (uploadId == null) {
+			uploadId = s3Client.initiateMultipartUpload(
+					new InitiateMultipartUploadRequest(bucketName, keyName)).getUploadId();
+			if (journal != null)
+				journal.uploadStarted(bucketName, keyName, source, uploadId);
+			System.out.println(String.format("Uploading %s in %d parts of %d bytes", keyName, partCount, size));
+		}
+
+		PartETag[] done = new PartETag[partCount];
+		for (PartETag partETag : uploaded) {
+			if (partETag.getPartNumber() <= partCount)
+				done[partETag.getPartNumber() - 1] = partETag;
+		}
+		PartDigest[] digests = new PartDigest[partCount];
+		List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>(partCount);
+		try {
+			for (int i = 0; i < partCount; i++) {
+				long offset = i * size;
+				UploadPartRequest request = new UploadPartRequest()
+					.withBucketName(bucketName)
+					.withKey(keyName)
+					.withUploadId(uploadId)
+					.withPartNumber(i + 1)
+					.withPartSize(Math.min(size, length - offset))
+					.withLastPart(i == partCount - 1);
+				parts.add(executor.submit(new PartTask(request, file, offset, done[i], digests, journal)));
+			}
+
+			List<PartETag> partETags = new ArrayList<PartETag>(partCount);
+			for (Future<PartETag> part : parts)
+				partETags.add(part.get());
+
+			CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(
+					new CompleteMultipartUploadRequest(bucketName, keyName, uploadId, partETags));
+			if (journal != null)
+				journal.uploadEnded(uploadId);
+			// The object is stored, so a mismatch is reported rather than thrown. The ETag of 
+			// an object encrypted with SSE-KMS or SSE-C is not derived from the MD5s.
+			String eTag = PartDigest.compositeETag(Arrays.asList(digests));
+			if (PartDigest.isContentMd5(result.getSSEAlgorithm(), result.getSSECustomerAlgorithm())
+					&& !eTag.equalsIgnoreCase(PartDigest.unquote(result.getETag())))
+				System.out.println(String.format("ETag mismatch for %s: expected %s from the parts, S3 returned %s. "
+						+ "The object is stored, check its content", keyName, eTag, result.getETag()));
+			return result;
+		}
+		catch (InterruptedException ie) {
+			abort(bucketName, keyName, uploadId, parts, journal);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Upload of %s interrupted", keyName));
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (journal != null && cause instanceof AmazonClientException 
+					&& RequestGovernor.isRetryable((AmazonClientException) cause)) {
+				// Kept in the journal, so that the next upload of the file resumes with the parts sent.
+				for (Future<PartETag> part : parts)
+					part.cancel(true);
+				System.out.println(String.format("Upload of %s stopped; it resumes from the journal", keyName));
+			}
+			else
+				abort(bucketName, keyName, uploadId, parts, journal);
+			if (cause instanceof AmazonClientException)
+				throw (AmazonClientException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new AmazonClientException(String.format("Upload of %s failed", keyName), cause);
+		}
+		catch (RuntimeException re) {
+			abort(bucketName, keyName, uploadId, parts, journal);
+			throw re;
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Uploads in progress are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Grows the configured part size when needed to keep the number of parts
+	 * within the S3 limit.
+	 */
+	private long partSizeFor(long length) {
+		long minSize = (length + MAX_PARTS - 1) / MAX_PARTS;
+		return Math.max(partSize, minSize);
+	}
+
+	/*
+	 * Checks that a recorded upload still exists. It can have been aborted since,
+	 * for example by a lifecycle rule.
+	 */
+	private boolean exists(String bucketName, String keyName, TransferJournal.Upload upload) {
+		try {
+			s3Client.listParts(new ListPartsRequest(bucketName, keyName, upload.getUploadId()).withMaxParts(1));
+			return true;
+		}
+		catch (AmazonServiceException ase) {
+			if (ase.getStatusCode() == 404)
+				return false;
+			throw ase;
+		}
+	}
+
+	/*
+	 * Cancels the pending parts, aborts the upload and records its end.
+	 */
+	private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts,
+			TransferJournal journal) throws IOException {
+		abort(bucketName, keyName, uploadId, parts);
+		if (journal != null)
+			journal.uploadEnded(uploadId);
+	}
+
+	/*
+	 * Cancels the pending parts and aborts the upload.
+	 */
+	private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+		for (Future<PartETag> part : parts)
+			part.cancel(true);
+		try {
+			System.out.println(String.format("Aborting upload of %s", keyName));
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+		}
+		catch (AmazonClientException ace) {
+			System.out.println("Error Message: " + ace.getMessage());
+		}
+	}
+
+	/*
+	 * Uploads one part from the file, digesting it as it is read, retrying with exponential backoff.
+	 * A part already uploaded is read and checked against its ETag instead, and sent again if it differs.
+	 */
+	private class PartTask implements Callable<PartETag> {
+
+		private final UploadPartRequest request;
+		private final File file;
+		private final long offset;
+
+		// The part recorded in the journal, or null.
+		private final PartETag uploaded;
+
+		// Receives the digest of the part, at the index of the part.
+		private final PartDigest[] digests;
+
+		// Records the uploaded part, or null.
+		private final TransferJournal journal;
+
+		PartTask(UploadPartRequest request, File file, long offset, PartETag uploaded, PartDigest[] digests,
+				TransferJournal journal) {
+			this.request = request;
+			this.file = file;
+			this.offset = offset;
+			this.uploaded = uploaded;
+			this.digests = digests;
+			this.journal = journal;
+		}
+
+		@Override
+		public PartETag call() throws InterruptedException, IOException {
+			int index = request.getPartNumber() - 1;
+			if (uploaded != null) {
+				FileInputStream input = open();
+				try {
+					digests[index] = PartDigest.of(input.getChannel(), offset, request.getPartSize());
+				}
+				finally {
+					input.close();
+				}
+				if (digests[index].matches(uploaded.getETag()))
+					return uploaded;
+				System.out.println(String.format("Part %d of %s changed since it was uploaded, sending it again",
+						request.getPartNumber(), request.getKey()));
+			}
+			for (int attempt = 0; ; attempt++) {
+				PartETag partETag;
+				PartDigest digest = new PartDigest();
+				FileInputStream input = open();
+				try {
+					request.setInputStream(PartDigest.digesting(input, digest));
+					UploadPartResult uploadedPart = s3Client.uploadPart(request);
+					partETag = uploadedPart.getPartETag();
+					// The ETag of a part encrypted with SSE-KMS or SSE-C is not its MD5.
+					boolean md5 = PartDigest.isContentMd5(uploadedPart.getSSEAlgorithm(), 
+							uploadedPart.getSSECustomerAlgorithm());
+					if (digest.getLength() != request.getPartSize() || (md5 && !digest.matches(partETag.getETag())))
+						throw new AmazonClientException(String.format("Part %d of %s: ETag %s is not the MD5 %s of the %d bytes read",
+								request.getPartNumber(), request.getKey(), partETag.getETag(), digest.getMd5Hex(), digest.getLength()));
+				}
+				catch (AmazonClientException ace) {
+					// A denied part, or an aborted upload, fails the same way however often it is sent.
+					if (attempt >= maxRetries || !RequestGovernor.isRetryable(ace))
+						throw ace;
+					System.out.println(String.format("Retrying part %d of %s: %s",
+							request.getPartNumber(), request.getKey(), ace.getMessage()));
+					Thread.sleep(RETRY_BASE_DELAY_MS << attempt);
+					continue;
+				}
+				finally {
+					input.close();
+				}
+				digests[index] = digest;
+				if (journal != null)
+					journal.partCompleted(request.getUploadId(), partETag);
+				return partETag;
+			}
+		}
+
+		/*
+		 * Opens the file at the offset of the part. The SDK reads the part size from it.
+		 */
+		private FileInputStream open() throws IOException {
+			FileInputStream input = new FileInputStream(file);
+			try {
+				input.getChannel().position(offset);
+				return input;
+			}
+			catch (IOException e) {
+				input.close();
+				throw e;
+			}
+		}
+	}
+
+	/*
+	 * Creates named daemon threads, so that idle workers do not keep the
+	 * application alive.
+	 */
+	static ThreadFactory daemonThreadFactory(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
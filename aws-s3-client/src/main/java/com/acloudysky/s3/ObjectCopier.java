@@ -0,0 +1,597 @@
+package com.acloudysky.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Copies and moves objects inside S3, without downloading them.
+ * Small objects are copied with a single <i>CopyObject</i> request. Larger ones are copied
+ * with a multipart upload whose parts are ranges of the source, copied concurrently by
+ * <i>UploadPartCopy</i> requests. Whole prefixes are copied or moved object by object on a
+ * bounded pool of worker threads while the listing goes on.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The bytes never leave S3, so a copy costs requests but no transfer through the host,
+ * 	whatever the size of the objects</li>
+ * 	<li>A single <i>CopyObject</i> is limited to 5 GB, so the threshold cannot be larger.
+ * 	The parts of a multipart copy are grown when needed to stay within 10000 parts</li>
+ * 	<li>Each part copy requires the ETag of the source read before the copy, so an object
+ * 	overwritten while it is copied makes the copy fail instead of mixing two versions</li>
+ * 	<li>A multipart copy does not copy the metadata by itself. The content headers and the
+ * 	user metadata of the source are read first and given to the new upload</li>
+ * 	<li>A move deletes the source only after its copy succeeded. The sources of a prefix
+ * 	move are deleted in batches of up to 1000 keys. See {@link BatchDeleter}</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/CopyingObjctsUsingAPIs.html" target="_blank">Copying Objects</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ObjectCopier {
+
+	/**
+	 * Largest object accepted by a single copy request (in bytes).
+	 */
+	public static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+	/**
+	 * Objects larger than this size (in bytes) are copied in parts.
+	 */
+	public static final long DEFAULT_THRESHOLD = 1024L * 1024 * 1024;
+
+	/**
+	 * Size of each copied part (in bytes).
+	 */
+	public static final long DEFAULT_PART_SIZE = 256L * 1024 * 1024;
+
+	/**
+	 * Number of objects, and of parts of an object, copied at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/**
+	 * Number of times a part failing with a transient error is retried before the copy is aborted.
+	 */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	// Initial delay before retrying a failed part, doubled at each attempt.
+	private static final long RETRY_BASE_DELAY_MS = 200;
+
+	// Minimum interval between two progress reports.
+	private static final long PROGRESS_INTERVAL_MS = 5000;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final long threshold;
+	private final long partSize;
+	private final int concurrency;
+	private final int maxRetries;
+
+	// Deletes the sources of the moved prefixes.
+	private final BatchDeleter deleter;
+
+	// Bounded executors running the object copies and the part copies. They are
+	// separate, so that the object copies waiting for their parts do not hold the part workers.
+	private final ExecutorService objectExecutor;
+	private final ExecutorService partExecutor;
+
+	/**
+	 * Creates a copier with the default threshold, part size, concurrency and retries.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public ObjectCopier(AmazonS3 authorizedClient) {
+		this(authorizedClient, DEFAULT_THRESHOLD, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY, DEFAULT_MAX_RETRIES,
+				new BatchDeleter(authorizedClient));
+	}
+
+	/**
+	 * Creates a copier.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param threshold Objects larger than this size (in bytes) are copied in parts. At most 5 GB
+	 * @param partSize Size of each part (in bytes). Between 5 MB and 5 GB
+	 * @param concurrency Maximum number of objects, and of parts, copied at the same time
+	 * @param maxRetries Number of times a part failing with a transient error is retried
+	 * @param deleter Deleter of the sources of the moved prefixes
+	 */
+	public ObjectCopier(AmazonS3 authorizedClient, long threshold, long partSize, int concurrency,
+			int maxRetries, BatchDeleter deleter) {
+		if (threshold > MAX_COPY_SIZE)
+			throw new IllegalArgumentException(String.format("Threshold must be at most %d bytes", MAX_COPY_SIZE));
+		if (partSize < MultipartUploader.MIN_PART_SIZE || partSize > MAX_COPY_SIZE)
+			throw new IllegalArgumentException(String.format("Part size must be between %d and %d bytes",
+					MultipartUploader.MIN_PART_SIZE, MAX_COPY_SIZE));
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.s3Client = authorizedClient;
+		this.threshold = threshold;
+		this.partSize = partSize;
+		this.concurrency = concurrency;
+		this.maxRetries = maxRetries;
+		this.deleter = deleter;
+		this.objectExecutor = ExecutionMode.getDefault().newExecutor("s3-copy-object", concurrency);
+		this.partExecutor = ExecutionMode.getDefault().newExecutor("s3-copy-part", concurrency);
+	}
+
+	/**
+	 * Copies an object. The copy keeps the metadata of the source.
+	 * Blocks until the copy is completed or aborted.
+	 * @param sourceBucketName The name of the bucket that contains the source object
+	 * @param sourceKey The name of the source object
+	 * @param destinationBucketName The name of the bucket to hold the copy
+	 * @param destinationKey The name of the copy
+	 * @return The ETag of the copy
+	 * @throws IOException The copy was interrupted
+	 * @throws AmazonClientException The copy failed; a multipart copy has been aborted
+	 */
+	public String copy(String sourceBucketName, String sourceKey, String destinationBucketName,
+			String destinationKey) throws IOException {
+		// The part copies are conditional on the ETag read here, which must be the current one.
+		ObjectMetadata metadata = s3Client.getObjectMetadata(MetadataCache.uncached(sourceBucketName, sourceKey));
+		if (metadata.getContentLength() > threshold)
+			return copyInParts(sourceBucketName, sourceKey, destinationBucketName, destinationKey, metadata);
+		return copyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+	}
+
+	/**
+	 * Moves an object: copies it, then deletes the source.
+	 * In a versioned bucket the deletion adds a delete marker, and the versions of the source are kept.
+	 * @param sourceBucketName The name of the bucket that contains the source object
+	 * @param sourceKey The name of the source object
+	 * @param destinationBucketName The name of the bucket to hold the object
+	 * @param destinationKey The new name of the object
+	 * @return The ETag of the moved object
+	 * @throws IOException The move was interrupted
+	 * @throws AmazonClientException The copy or the deletion failed. The source is kept if the copy failed
+	 */
+	public String move(String sourceBucketName, String sourceKey, String destinationBucketName,
+			String destinationKey) throws IOException {
+		if (sourceBucketName.equals(destinationBucketName) && sourceKey.equals(destinationKey))
+			throw new IllegalArgumentException("The source and the destination are the same object");
+		String eTag = copy(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+		s3Client.deleteObject(new DeleteObjectRequest(sourceBucketName, sourceKey));
+		return eTag;
+	}
+
+	/**
+	 * Copies all the objects whose key starts with a prefix, replacing the prefix in the keys
+	 * of the copies. Progress is reported periodically.
+	 * Blocks until every object has been processed.
+	 * @param sourceBucketName The name of the bucket that contains the source objects
+	 * @param sourcePrefix The key prefix of the objects to copy, or null for all the objects
+	 * @param destinationBucketName The name of the bucket to hold the copies
+	 * @param destinationPrefix The prefix replacing the source prefix, or null for none
+	 * @return The number of copied objects, the bytes copied and the keys that could not be copied
+	 * @throws IOException The copy was interrupted
+	 */
+	public Result copyPrefix(String sourceBucketName, String sourcePrefix, String destinationBucketName,
+			String destinationPrefix) throws IOException {
+		return transferPrefix(sourceBucketName, sourcePrefix, destinationBucketName, destinationPrefix, false);
+	}
+
+	/**
+	 * Moves all the objects whose key starts with a prefix, replacing the prefix in their keys:
+	 * renames the prefix. Each source is deleted once its copy succeeded, in batches.
+	 * Progress is reported periodically. Blocks until every object has been processed.
+	 * @param sourceBucketName The name of the bucket that contains the objects
+	 * @param sourcePrefix The key prefix of the objects to move, or null for all the objects
+	 * @param destinationBucketName The name of the bucket to hold the objects
+	 * @param destinationPrefix The prefix replacing the source prefix, or null for none
+	 * @return The number of moved objects, the bytes copied and the keys that could not be moved
+	 * @throws IOException The move was interrupted
+	 */
+	public Result movePrefix(String sourceBucketName, String sourcePrefix, String destinationBucketName,
+			String destinationPrefix) throws IOException {
+		return transferPrefix(sourceBucketName, sourcePrefix, destinationBucketName, destinationPrefix, true);
+	}
+
+	/**
+	 * Stops the worker threads and those of the deleter. Copies in progress are completed.
+	 */
+	public void shutdown() {
+		objectExecutor.shutdown();
+		partExecutor.shutdown();
+		deleter.shutdown();
+	}
+
+	/**
+	 * Outcome of a prefix copy or move.
+	 */
+	public static class Result {
+
+		private final long copiedCount;
+		private final long bytesCopied;
+		private final long deletedCount;
+		private final long elapsedMillis;
+		private final Map<String, String> errors;
+
+		Result(long copiedCount, long bytesCopied, long deletedCount, long elapsedMillis, Map<String, String> errors) {
+			this.copiedCount = copiedCount;
+			this.bytesCopied = bytesCopied;
+			this.deletedCount = deletedCount;
+			this.elapsedMillis = elapsedMillis;
+			this.errors = Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return The number of objects copied.
+		 */
+		public long getCopiedCount() {
+			return copiedCount;
+		}
+
+		/**
+		 * @return The size of the objects copied, none of which went through the host.
+		 */
+		public long getBytesCopied() {
+			return bytesCopied;
+		}
+
+		/**
+		 * @return The number of sources deleted after their copy, 0 for a copy.
+		 */
+		public long getDeletedCount() {
+			return deletedCount;
+		}
+
+		/**
+		 * @return The time elapsed since the operation started, in milliseconds.
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return The average number of objects copied per second.
+		 */
+		public double getCopiedPerSecond() {
+			return elapsedMillis == 0 ? 0 : copiedCount * 1000.0 / elapsedMillis;
+		}
+
+		/**
+		 * @return The error message of each source key that could not be copied or deleted, in key order.
+		 */
+		public Map<String, String> getErrors() {
+			return errors;
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Lists the objects of the source prefix and copies them while the next ones are listed.
+	 */
+	private Result transferPrefix(String sourceBucketName, String sourcePrefix, String destinationBucketName,
+			String destinationPrefix, boolean move) throws IOException {
+		String from = sourcePrefix == null ? "" : sourcePrefix;
+		String to = destinationPrefix == null ? "" : destinationPrefix;
+		// The listing would otherwise return the copies as well.
+		if (sourceBucketName.equals(destinationBucketName) && to.startsWith(from))
+			throw new IllegalArgumentException("The destination prefix must not start with the source prefix");
+
+		PrefixTransfer transfer = new PrefixTransfer(sourceBucketName, destinationBucketName, move);
+		long lastReport = System.currentTimeMillis();
+		try {
+			ObjectIterator objects = new ObjectIterator(s3Client, sourceBucketName, sourcePrefix, null, null);
+			while (objects.hasNext()) {
+				S3ObjectSummary objectSummary = objects.next();
+				String key = objectSummary.getKey();
+				transfer.submit(key, to + key.substring(from.length()), objectSummary.getSize());
+
+				long now = System.currentTimeMillis();
+				if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+					displayProgress(transfer.snapshot());
+					lastReport = now;
+				}
+			}
+		}
+		finally {
+			// The copies submitted complete, and their sources are deleted, even if the listing failed.
+			transfer.close();
+		}
+		Result result = transfer.snapshot();
+		displayProgress(result);
+		return result;
+	}
+
+	/*
+	 * Copies an object of known length, in parts if it is larger than the threshold.
+	 */
+	private void copy(String sourceBucketName, String sourceKey, String destinationBucketName,
+			String destinationKey, long length) throws IOException {
+		if (length > threshold)
+			copyInParts(sourceBucketName, sourceKey, destinationBucketName, destinationKey,
+					s3Client.getObjectMetadata(MetadataCache.uncached(sourceBucketName, sourceKey)));
+		else
+			copyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+	}
+
+	/*
+	 * Copies an object with a single request. The request carries the destination bucket,
+	 * so it is sent to the region of the destination.
+	 */
+	private String copyObject(String sourceBucketName, String sourceKey, String destinationBucketName,
+			String destinationKey) {
+		CopyObjectResult result = s3Client.copyObject(
+				new CopyObjectRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey));
+		return result.getETag();
+	}
+
+	/*
+	 * Copies an object with a multipart upload whose parts are copied concurrently.
+	 */
+	private String copyInParts(String sourceBucketName, String sourceKey, String destinationBucketName,
+			String destinationKey, ObjectMetadata sourceMetadata) throws IOException {
+
+		long length = sourceMetadata.getContentLength();
+		long size = Math.max(partSize, (length + MultipartUploader.MAX_PARTS - 1) / MultipartUploader.MAX_PARTS);
+		int partCount = (int) ((length + size - 1) / size);
+
+		String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(
+				destinationBucketName, destinationKey, copiedMetadata(sourceMetadata))).getUploadId();
+		System.out.println(String.format("Copying %s in %d parts of %d bytes", sourceKey, partCount, size));
+
+		List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>(partCount);
+		try {
+			for (int i = 0; i < partCount; i++) {
+				long offset = i * size;
+				CopyPartRequest request = new CopyPartRequest()
+					.withSourceBucketName(sourceBucketName)
+					.withSourceKey(sourceKey)
+					.withDestinationBucketName(destinationBucketName)
+					.withDestinationKey(destinationKey)
+					.withUploadId(uploadId)
+					.withPartNumber(i + 1)
+					.withFirstByte(offset)
+					.withLastByte(Math.min(offset + size, length) - 1)
+					.withMatchingETagConstraint(sourceMetadata.getETag());
+				parts.add(partExecutor.submit(new PartTask(request)));
+			}
+
+			List<PartETag> partETags = new ArrayList<PartETag>(partCount);
+			for (Future<PartETag> part : parts)
+				partETags.add(part.get());
+
+			return s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+					destinationBucketName, destinationKey, uploadId, partETags)).getETag();
+		}
+		catch (InterruptedException ie) {
+			abort(destinationBucketName, destinationKey, uploadId, parts);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Copy of %s interrupted", sourceKey));
+		}
+		catch (ExecutionException ee) {
+			abort(destinationBucketName, destinationKey, uploadId, parts);
+			Throwable cause = ee.getCause();
+			if (cause instanceof AmazonClientException)
+				throw (AmazonClientException) cause;
+			throw new AmazonClientException(String.format("Copy of %s failed", sourceKey), cause);
+		}
+		catch (RuntimeException re) {
+			abort(destinationBucketName, destinationKey, uploadId, parts);
+			throw re;
+		}
+	}
+
+	/*
+	 * Returns the metadata given to the upload of a multipart copy: the content headers
+	 * and the user metadata of the source, without its length, ETag or dates.
+	 */
+	private static ObjectMetadata copiedMetadata(ObjectMetadata source) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setUserMetadata(source.getUserMetadata());
+		if (source.getContentType() != null)
+			metadata.setContentType(source.getContentType());
+		if (source.getContentEncoding() != null)
+			metadata.setContentEncoding(source.getContentEncoding());
+		if (source.getContentDisposition() != null)
+			metadata.setContentDisposition(source.getContentDisposition());
+		if (source.getCacheControl() != null)
+			metadata.setCacheControl(source.getCacheControl());
+		if (source.getHttpExpiresDate() != null)
+			metadata.setHttpExpiresDate(source.getHttpExpiresDate());
+		if (source.getSSEAlgorithm() != null)
+			metadata.setSSEAlgorithm(source.getSSEAlgorithm());
+		return metadata;
+	}
+
+	/*
+	 * Cancels the pending parts and aborts the upload.
+	 */
+	private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+		for (Future<PartETag> part : parts)
+			part.cancel(true);
+		try {
+			System.out.println(String.format("Aborting copy to %s", keyName));
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+		}
+		catch (AmazonClientException ace) {
+			System.out.println("Error Message: " + ace.getMessage());
+		}
+	}
+
+	/*
+	 * Displays the copy counters and rate.
+	 */
+	private static void displayProgress(Result result) {
+		System.out.println(String.format("Copied %d objects (%.0f objects/sec), %d bytes, %d sources deleted, %d errors",
+				result.getCopiedCount(), result.getCopiedPerSecond(), result.getBytesCopied(),
+				result.getDeletedCount(), result.getErrors().size()));
+	}
+
+	/*
+	 * Copies one part, retrying the transient errors with exponential backoff.
+	 */
+	private class PartTask implements Callable<PartETag> {
+
+		private final CopyPartRequest request;
+
+		PartTask(CopyPartRequest request) {
+			this.request = request;
+		}
+
+		@Override
+		public PartETag call() throws InterruptedException {
+			for (int attempt = 0; ; attempt++) {
+				CopyPartResult result;
+				try {
+					result = s3Client.copyPart(request);
+				}
+				catch (AmazonClientException ace) {
+					// A denied or missing source fails the same way however often it is sent.
+					if (attempt >= maxRetries || !RequestGovernor.isRetryable(ace))
+						throw ace;
+					System.out.println(String.format("Retrying part %d of %s: %s",
+							request.getPartNumber(), request.getSourceKey(), ace.getMessage()));
+					Thread.sleep(RETRY_BASE_DELAY_MS << attempt);
+					continue;
+				}
+				// The ETag constraint was not met: the source has been overwritten.
+				if (result == null)
+					throw new AmazonClientException(String.format("%s changed during the copy", request.getSourceKey()));
+				return result.getPartETag();
+			}
+		}
+	}
+
+	/*
+	 * Copies the objects submitted by the listing loop on the worker threads, and
+	 * when moving, deletes in batches the sources whose copy succeeded.
+	 * The listing loop is blocked when too many copies are pending.
+	 */
+	private class PrefixTransfer {
+
+		private final String sourceBucketName;
+		private final String destinationBucketName;
+
+		// Limits the copies submitted but not yet completed.
+		private final Semaphore pending = new Semaphore(2 * concurrency);
+
+		// Deletes the sources copied, or null when copying.
+		private final BatchDeleter.Session deletions;
+
+		// Sources copied and not yet submitted for deletion, guarded by itself.
+		private final List<KeyVersion> copied = new ArrayList<KeyVersion>();
+
+		private final AtomicLong copiedCount = new AtomicLong();
+		private final AtomicLong bytesCopied = new AtomicLong();
+		private final Map<String, String> errors = Collections.synchronizedMap(new TreeMap<String, String>());
+		private final long startTime = System.currentTimeMillis();
+
+		PrefixTransfer(String sourceBucketName, String destinationBucketName, boolean move) {
+			this.sourceBucketName = sourceBucketName;
+			this.destinationBucketName = destinationBucketName;
+			this.deletions = move ? deleter.newSession(sourceBucketName) : null;
+		}
+
+		/*
+		 * Submits the copy of an object, and the deletion of a batch of copied sources if one is full.
+		 */
+		void submit(final String sourceKey, final String destinationKey, final long length) throws IOException {
+			try {
+				pending.acquire();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while submitting objects to copy");
+			}
+			objectExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						copy(sourceBucketName, sourceKey, destinationBucketName, destinationKey, length);
+						copiedCount.incrementAndGet();
+						bytesCopied.addAndGet(length);
+						if (deletions != null) {
+							synchronized (copied) {
+								copied.add(new KeyVersion(sourceKey));
+							}
+						}
+					}
+					catch (Exception e) {
+						errors.put(sourceKey, e.getMessage());
+					}
+					finally {
+						pending.release();
+					}
+				}
+			});
+			if (deletions != null)
+				deleteCopied(BatchDeleter.MAX_BATCH_SIZE);
+		}
+
+		/*
+		 * Waits for the submitted copies, then for the deletion of their sources.
+		 */
+		void close() throws IOException {
+			int permits = 2 * concurrency;
+			try {
+				pending.acquire(permits);
+				pending.release(permits);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for copies");
+			}
+			if (deletions != null) {
+				deleteCopied(1);
+				for (DeleteError error : deletions.await().getErrors())
+					errors.put(error.getKey(), error.getMessage());
+			}
+		}
+
+		/*
+		 * Submits the copied sources for deletion if there are at least the specified number.
+		 */
+		private void deleteCopied(int minCount) throws IOException {
+			List<KeyVersion> batch;
+			synchronized (copied) {
+				if (copied.size() < minCount)
+					return;
+				batch = new ArrayList<KeyVersion>(copied);
+				copied.clear();
+			}
+			deletions.submit(batch);
+		}
+
+		Result snapshot() {
+			long deletedCount = deletions == null ? 0 : deletions.snapshot().getDeletedCount();
+			Map<String, String> errorsCopy;
+			synchronized (errors) {
+				errorsCopy = new TreeMap<String, String>(errors);
+			}
+			return new Result(copiedCount.get(), bytesCopied.get(), deletedCount,
+					System.currentTimeMillis() - startTime, errorsCopy);
+		}
+	}
+}
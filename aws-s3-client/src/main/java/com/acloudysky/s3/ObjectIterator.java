@@ -0,0 +1,209 @@
+package com.acloudysky.s3;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Iterates lazily over the objects of a bucket.
+ * Listing pages are fetched on demand; while the caller consumes a page the
+ * next one is already being fetched in the background.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>At most two pages are held in memory: the one being consumed and
+ * 	the one being prefetched, regardless of the size of the bucket</li>
+ * 	<li>Listing errors are thrown by {@link #hasNext()} as {@link AmazonClientException}</li>
+ * 	<li>Close the iterator, or the stream returned by {@link #stream()}, when it is
+ * 	abandoned before the end, so that the pending prefetch is cancelled</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/ListingKeysUsingAPIs.html" target="_blank">Listing Keys Using the AWS SDK for Java</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ObjectIterator implements Iterator<S3ObjectSummary>, Closeable {
+
+	// Threads fetching the next page, shared by all the iterators.
+	private static final ExecutorService prefetcher =
+			Executors.newCachedThreadPool(MultipartUploader.daemonThreadFactory("s3-list-prefetch"));
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Request for the next page; its marker is advanced after every page.
+	private final ListObjectsRequest request;
+
+	private Iterator<S3ObjectSummary> page = Collections.<S3ObjectSummary>emptyList().iterator();
+	private Future<ObjectListing> nextPage;
+	private final Set<String> commonPrefixes = new LinkedHashSet<String>();
+
+	/**
+	 * Creates an iterator over the objects selected by a listing request.
+	 * The first page is requested immediately in the background.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param request The listing request: bucket name and optional prefix, delimiter
+	 * and max keys, which sets the page size. The request is not modified
+	 */
+	public ObjectIterator(AmazonS3 authorizedClient, ListObjectsRequest request) {
+		this.s3Client = authorizedClient;
+		this.request = new ListObjectsRequest(request.getBucketName(), request.getPrefix(),
+				request.getMarker(), request.getDelimiter(), request.getMaxKeys());
+		this.nextPage = fetch();
+	}
+
+	/**
+	 * Creates an iterator over the objects of a bucket.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix Only keys starting with this prefix are returned, or null for all the keys
+	 * @param delimiter Keys containing the delimiter after the prefix are rolled up into
+	 * common prefixes instead of being returned, or null
+	 * @param maxKeys The maximum number of keys per page, or null for the service default
+	 */
+	public ObjectIterator(AmazonS3 authorizedClient, String bucketName, String prefix,
+			String delimiter, Integer maxKeys) {
+		this(authorizedClient, new ListObjectsRequest(bucketName, prefix, null, delimiter, maxKeys));
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!page.hasNext()) {
+			if (nextPage == null)
+				return false;
+			ObjectListing listing = await(nextPage);
+			commonPrefixes.addAll(listing.getCommonPrefixes());
+			List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+			if (listing.isTruncated()) {
+				request.setMarker(nextMarker(listing));
+				nextPage = fetch();
+			}
+			else
+				nextPage = null;
+			page = summaries.iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public S3ObjectSummary next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return page.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove");
+	}
+
+	/**
+	 * Gets the common prefixes found so far when a delimiter is specified.
+	 * @return The common prefixes of the pages consumed so far, in listing order.
+	 */
+	public List<String> getCommonPrefixes() {
+		return new ArrayList<String>(commonPrefixes);
+	}
+
+	/**
+	 * Cancels the pending page fetch, if any.
+	 */
+	@Override
+	public void close() {
+		if (nextPage != null) {
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+		page = Collections.<S3ObjectSummary>emptyList().iterator();
+	}
+
+	/**
+	 * Wraps the iterator in a sequential, ordered stream.
+	 * Closing the stream closes the iterator.
+	 * @return The stream of object summaries.
+	 */
+	public Stream<S3ObjectSummary> stream() {
+		Spliterator<S3ObjectSummary> spliterator = Spliterators.spliteratorUnknownSize(this,
+				Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Requests the page starting at the current marker in the background.
+	 */
+	private Future<ObjectListing> fetch() {
+		final ListObjectsRequest pageRequest = new ListObjectsRequest(request.getBucketName(),
+				request.getPrefix(), request.getMarker(), request.getDelimiter(), request.getMaxKeys());
+		return prefetcher.submit(new Callable<ObjectListing>() {
+			@Override
+			public ObjectListing call() {
+				return s3Client.listObjects(pageRequest);
+			}
+		});
+	}
+
+	/*
+	 * The service returns the next marker only when a delimiter is specified.
+	 * The SDK normally fills it in; when it does not, the last key or common
+	 * prefix of the page is the marker.
+	 */
+	static String nextMarker(ObjectListing listing) {
+		if (listing.getNextMarker() != null)
+			return listing.getNextMarker();
+		String last = null;
+		List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+		if (!summaries.isEmpty())
+			last = summaries.get(summaries.size() - 1).getKey();
+		List<String> prefixes = listing.getCommonPrefixes();
+		if (!prefixes.isEmpty() && (last == null || prefixes.get(prefixes.size() - 1).compareTo(last) > 0))
+			last = prefixes.get(prefixes.size() - 1);
+		return last;
+	}
+
+	private static ObjectListing await(Future<ObjectListing> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while listing objects",
+					new InterruptedIOException());
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof AmazonClientException)
+				throw (AmazonClientException) cause;
+			throw new AmazonClientException("Error listing objects", cause);
+		}
+	}
+}
@@ -1,13 +1,20 @@
 package com.acloudysky.s3;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.stream.Stream;
+
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.DeleteObjectRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
@@ -15,6 +22,8 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 /***
  * Performs S3 object operations. 
  * Each method calls the related AWS s3 API. 
+ * The operations hold no per-call state, so one instance can be used by 
+ * many threads at once.
  * <p>For more information, see 
  * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingObjects.html" target="_blank">Working with Amazon S3 Objects</a>.
  * </p>
@@ -23,16 +32,136 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
  */
 public class ObjectOperations {
 	
-	// Authorized client
-	private static AmazonS3 s3Client;
+	// Authorized client, shared by all the threads using the operations.
+	private final AmazonS3 s3Client;
+	
+	// Uploads large files in parts.
+	private final MultipartUploader multipartUploader;
+	
+	// Downloads objects to files in parallel ranges.
+	private final RangedDownloader rangedDownloader;
+	
+	// Synchronizes directories with key prefixes.
+	private final DirectorySync directorySync;
+	
+	// Streams objects to channels.
+	private final ChannelDownloader channelDownloader;
+	
+	// Uploads streams of unknown length in parts.
+	private final StreamingUploader streamingUploader;
+	
+	// Copies and moves objects inside S3.
+	private final ObjectCopier objectCopier;
+	
+	// Compares local directories with the objects of a prefix.
+	private final ObjectVerifier objectVerifier;
+	
+	// Keeps the downloaded objects on disk, or null. Invalidated by every write and delete.
+	private final ContentCache contentCache;
+	
+	// Compresses the uploaded content, or null.
+	private final CompressionCodec compression;
+	
+	// Records the calls of the operations.
+	private final OperationMetrics metrics;
+	
 	
+	/***
+	 * Creates the object operations.
+	 * Large files are uploaded in parts and downloads to file use parallel ranges, 
+	 * with the default settings.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public ObjectOperations(AmazonS3 authorizedClient) {
+		this(authorizedClient, new MultipartUploader(authorizedClient), 
+				new RangedDownloader(authorizedClient));
+	}
+	
+	/***
+	 * Creates the object operations.
+	 * Directories are synchronized with the default concurrency, using the uploader.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param uploader Uploader used for files above its multipart threshold.
+	 * @param downloader Downloader used to save objects to files.
+	 */
+	public ObjectOperations(AmazonS3 authorizedClient, MultipartUploader uploader, 
+			RangedDownloader downloader) {
+		this(authorizedClient, uploader, downloader, (ContentCache) null);
+	}
 	
 	/***
-	 * Initialize global status variables.
+	 * Creates the object operations.
+	 * Directories are synchronized with the default concurrency, using the uploader.
 	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param uploader Uploader used for files above its multipart threshold.
+	 * @param downloader Downloader used to save objects to files.
+	 * @param cache Cache serving the downloaded objects from the disk, or null.
 	 */
-	public static void initObjectOperations(AmazonS3 authorizedClient) {
-		s3Client = authorizedClient;
+	public ObjectOperations(AmazonS3 authorizedClient, MultipartUploader uploader, 
+			RangedDownloader downloader, ContentCache cache) {
+		this(authorizedClient, uploader, downloader, cache, new OperationMetrics());
+	}
+	
+	/***
+	 * Creates the object operations.
+	 * Directories are synchronized with the default concurrency, using the uploader.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param uploader Uploader used for files above its multipart threshold.
+	 * @param downloader Downloader used to save objects to files.
+	 * @param cache Cache serving the downloaded objects from the disk, or null.
+	 * @param metrics Metrics recording the calls of the operations.
+	 */
+	public ObjectOperations(AmazonS3 authorizedClient, MultipartUploader uploader, 
+			RangedDownloader downloader, ContentCache cache, OperationMetrics metrics) {
+		this(authorizedClient, uploader, downloader, new DirectorySync(authorizedClient, uploader, downloader, 
+				new BatchDeleter(authorizedClient), new ParallelLister(authorizedClient), 
+				DirectorySync.DEFAULT_CONCURRENCY), cache, metrics);
+	}
+	
+	/***
+	 * Creates the object operations.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param uploader Uploader used for files above its multipart threshold.
+	 * @param downloader Downloader used to save objects to files.
+	 * @param sync Synchronizer used for directories.
+	 * @param cache Cache serving the downloaded objects from the disk, or null.
+	 * @param metrics Metrics recording the calls of the operations.
+	 */
+	public ObjectOperations(AmazonS3 authorizedClient, MultipartUploader uploader, 
+			RangedDownloader downloader, DirectorySync sync, ContentCache cache, OperationMetrics metrics) {
+		this.s3Client = authorizedClient;
+		this.multipartUploader = uploader;
+		this.rangedDownloader = downloader;
+		this.directorySync = sync;
+		this.channelDownloader = new ChannelDownloader(authorizedClient);
+		this.streamingUploader = new StreamingUploader(authorizedClient);
+		this.objectCopier = new ObjectCopier(authorizedClient);
+		this.objectVerifier = new ObjectVerifier(authorizedClient);
+		this.contentCache = cache;
+		this.compression = CompressionCodec.getDefault();
+		this.metrics = metrics;
+	}
+	
+	/***
+	 * Stops the threads of the uploaders, of the downloader, of the synchronizer, of the copier 
+	 * and of the verifier, and closes the content cache.
+	 * The client is not shut down, since it can be shared.
+	 */
+	public void shutdown() {
+		multipartUploader.shutdown();
+		streamingUploader.shutdown();
+		rangedDownloader.shutdown();
+		directorySync.shutdown();
+		objectCopier.shutdown();
+		objectVerifier.shutdown();
+		if (contentCache != null) {
+			try {
+				contentCache.close();
+			}
+			catch (IOException e) {
+				System.out.println(String.format("Error closing the content cache: %s", e.getMessage()));
+			}
+		}
 	}
 	
 	    
@@ -45,6 +174,12 @@ public class ObjectOperations {
      *   <li>You can also specify your own metadata when uploading to S3, which allows you 
      * 		to set a variety of options like content-type and content-encoding, plus additional 
      * 		metadata specific to your applications</li>
+     *   <li>Files larger than the multipart threshold are split into parts which are 
+     * 		uploaded concurrently. See {@link MultipartUploader}</li>
+     *   <li>A resource packed in a jar is read as a stream and uploaded in parts as it is read. 
+     * 		See {@link StreamingUploader}</li>
+     *   <li>With a codec in the <i>s3.compression</i> system property, the content is compressed 
+     * 		as it is uploaded, like a stream. See {@link CompressionCodec}</li>
      * </ul>
      * @param bucketName The name of the bucket to hold the object
      * @param keyName The name (key name) of the object to upload
@@ -52,15 +187,40 @@ public class ObjectOperations {
      * that must already exist in the resources folder. 
      * @throws IOException Error encountered while uploading the object
      */
-	public static void uploadObject(String bucketName, String keyName, String fileName) throws IOException {			
+	public void uploadObject(String bucketName, String keyName, String fileName) throws IOException {			
 		
+		long start = System.nanoTime();
 		try {
 	            // Upload an object to the selected bucket. 
 				System.out.println(String.format("\nUpload %s to S3", keyName));
-	            s3Client.putObject(new PutObjectRequest(bucketName, keyName, Utility.getResourceFile(fileName)));
+				File file = Utility.getResourceFile(fileName);
+				long length;
+				if (file == null || compression != null) {
+					InputStream input = file != null ? new FileInputStream(file) 
+							: Utility.class.getResourceAsStream("/" + fileName);
+					if (input == null)
+						throw new FileNotFoundException(String.format("Resource %s not found", fileName));
+					try {
+						length = upload(bucketName, keyName, input).getLength();
+					}
+					finally {
+						input.close();
+					}
+				}
+				else {
+					length = file.length();
+					if (multipartUploader.isMultipart(length))
+						multipartUploader.upload(bucketName, keyName, file);
+					else
+						s3Client.putObject(new PutObjectRequest(bucketName, keyName, file));
+				}
+				if (contentCache != null)
+					contentCache.invalidate(bucketName, keyName);
+				metrics.succeeded("uploadObject", start, length);
           
             }
         	catch (AmazonServiceException ase) {
+        		metrics.failed("uploadObject", start, ase);
 	        	StringBuffer err = new StringBuffer();
 	        	
 	        	err.append(("Caught an AmazonServiceException, which means your request made it "
@@ -73,14 +233,148 @@ public class ObjectOperations {
 	        	
         	} 
 			catch (AmazonClientException ace) {
+				metrics.failed("uploadObject", start, ace);
 	            System.out.println("Caught an AmazonClientException, which means the client encountered "
 	                    + "a serious internal problem while trying to communicate with S3, "
 	                    + "such as not being able to access the network.");
 	            System.out.println("Error Message: " + ace.getMessage());
         }
+		catch (IOException e) {
+			metrics.failed("uploadObject", start, e);
+			throw e;
+		}
     }
 	
     
+	/***
+	 * Uploads the content of a stream whose length is not known in advance, 
+	 * such as a database dump or a log stream, without temporary files. 
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The stream is read into fixed-size parts which are uploaded concurrently, 
+	 * 	and the memory used stays the same however long the stream. See {@link StreamingUploader}</li>
+	 * 	<li>With a codec in the <i>s3.compression</i> system property, the stream is compressed 
+	 * 	on another thread while the parts are uploaded. See {@link CompressionStage}</li>
+	 * 	<li>Errors are thrown to the caller instead of being displayed</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param input The stream to upload, read to its end. It is not closed
+	 * @return The result of the upload
+	 * @throws IOException Error reading the stream; the upload has been aborted
+	 * @throws AmazonClientException A part failed after all the retries; the upload has been aborted
+	 */
+	public StreamingUploader.Result uploadObject(String bucketName, String keyName, InputStream input) 
+			throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+			StreamingUploader.Result result = upload(bucketName, keyName, input);
+			if (contentCache != null)
+				contentCache.invalidate(bucketName, keyName);
+			metrics.succeeded("uploadStream", start, result.getLength());
+			return result;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("uploadStream", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("uploadStream", start, e);
+			throw e;
+		}
+	}
+	
+	/***
+	 * Uploads the new and changed files of a local directory tree. 
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The key of each file is the prefix followed by the file path relative 
+	 * 	to the directory</li>
+	 * 	<li>Files with the same size as their object, and not modified after it was 
+	 * 	uploaded, are skipped. With checksums, the MD5 of the file is compared with 
+	 * 	the ETag instead</li>
+	 * 	<li>The tree is walked and the prefix is listed in parallel, and the changed 
+	 * 	files are uploaded concurrently. See {@link DirectorySync}</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket to hold the objects
+	 * @param prefix The key prefix of the objects, or an empty string for the root of the bucket
+	 * @param directoryName The path of the local directory
+	 * @param checksum true to compare the MD5 of the files, false to compare size and time
+	 * @param deleteExtras true to delete the objects under the prefix without a local file
+	 * @throws IOException Error encountered while reading the directory
+	 * @throws AmazonClientException The prefix could not be listed
+	 */
+	public void uploadDirectory(String bucketName, String prefix, String directoryName, 
+			boolean checksum, boolean deleteExtras) throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+				System.out.println(String.format("\nSync %s to %s/%s", directoryName, bucketName, prefix));
+				DirectorySync.Result result = directorySync.upload(new File(directoryName), bucketName, prefix, 
+						checksum ? DirectorySync.Comparison.CHECKSUM : DirectorySync.Comparison.SIZE_AND_TIME, 
+						deleteExtras);
+				if (contentCache != null)
+					contentCache.invalidatePrefix(bucketName, prefix);
+				for (String error : result.getErrors())
+					System.out.println(" - " + error);
+				System.out.println(result);
+				metrics.succeeded("uploadDirectory", start, result.getBytesTransferred());
+        }
+		catch (AmazonClientException ace) {
+			metrics.failed("uploadDirectory", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("uploadDirectory", start, e);
+			throw e;
+		}
+    }
+	
+	/***
+	 * Downloads the new and changed objects under a prefix into a local directory tree. 
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The path of each file is the object key without the prefix, relative 
+	 * 	to the directory</li>
+	 * 	<li>Objects with the same size as their file, and the MD5 of the file equal to 
+	 * 	their ETag, are skipped. Without checksums, the upload time is compared instead</li>
+	 * 	<li>The changed objects are downloaded concurrently to temporary files, 
+	 * 	which are renamed when complete and verified. Compressed objects are 
+	 * 	decompressed. See {@link DirectorySync}</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The key prefix of the objects, or an empty string for the root of the bucket
+	 * @param directoryName The path of the local directory
+	 * @param checksum true to compare the MD5 of the files, false to compare size and time
+	 * @param deleteExtras true to delete the local files without an object
+	 * @throws IOException Error encountered while writing the directory
+	 * @throws AmazonClientException The prefix could not be listed
+	 */
+	public void downloadDirectory(String bucketName, String prefix, String directoryName, 
+			boolean checksum, boolean deleteExtras) throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+				System.out.println(String.format("\nSync %s/%s to %s", bucketName, prefix, directoryName));
+				DirectorySync.Result result = directorySync.download(bucketName, prefix, new File(directoryName), 
+						checksum ? DirectorySync.Comparison.CHECKSUM : DirectorySync.Comparison.SIZE_AND_TIME, 
+						deleteExtras);
+				for (String error : result.getErrors())
+					System.out.println(" - " + error);
+				System.out.println(result);
+				metrics.succeeded("downloadDirectory", start, result.getBytesTransferred());
+        }
+		catch (AmazonClientException ace) {
+			metrics.failed("downloadDirectory", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("downloadDirectory", start, e);
+			throw e;
+		}
+    }
+	
 	/***
 	 * Downloads an object. 
 	 * <b>Notes</b>
@@ -93,22 +387,55 @@ public class ObjectOperations {
 	 * 	<li>GetObjectRequest also supports several other options, including conditional 
 	 * 	downloading of objects based on modification times, ETags, and selectively 
 	 * 	downloading a range of an object</li>
+	 * 	<li>With a content cache, the object is read from the disk when it is unchanged. 
+	 * 	See {@link ContentCache}</li>
+	 * 	<li>An object compressed by the client is decompressed as it is read, according to 
+	 * 	its Content-Encoding. See {@link CompressionCodec}</li>
 	 * </ul>
 	 * @param bucketName The name of the bucket that contains the object
 	 * @param keyName The name of the object to download
 	 * @throws IOException Error encountered while downloading the object
 	 */
-	public static void downloadObject(String bucketName, String keyName) throws IOException {
+	public void downloadObject(String bucketName, String keyName) throws IOException {
 	
+		long start = System.nanoTime();
 		try {
 		
 				System.out.println(String.format("\nDownload %s", keyName));
-				S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, keyName));
-				System.out.println(String.format("Content-Type: %s", object.getObjectMetadata().getContentType()));
-				Utility.displayTextInputStream(object.getObjectContent());
+				if (contentCache != null) {
+					ContentCache.Content content = contentCache.open(bucketName, keyName);
+					try {
+						System.out.println(String.format("Content-Type: %s", content.getContentType()));
+						Utility.displayTextInputStream(content.getInputStream());
+						metrics.succeeded("downloadObject", start, content.getLength());
+					}
+					finally {
+						content.close();
+					}
+				}
+				else {
+					S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, keyName));
+					System.out.println(String.format("Content-Type: %s", object.getObjectMetadata().getContentType()));
+					CompressionCodec codec = CompressionCodec.forContentEncoding(
+							object.getObjectMetadata().getContentEncoding());
+					if (codec == null)
+						Utility.displayTextInputStream(object.getObjectContent());
+					else {
+						CompressionStage content = CompressionStage.decompress(object.getObjectContent(), codec);
+						try {
+							Utility.displayTextInputStream(content);
+						}
+						finally {
+							content.close();
+							object.getObjectContent().close();
+						}
+					}
+					metrics.succeeded("downloadObject", start, object.getObjectMetadata().getContentLength());
+				}
         }
         
      	catch (AmazonServiceException ase) {
+     		metrics.failed("downloadObject", start, ase);
      		StringBuffer err = new StringBuffer();
     	
      		err.append(("Caught an AmazonServiceException, which means your request made it "
@@ -121,38 +448,251 @@ public class ObjectOperations {
     	
      	} 
 		catch (AmazonClientException ace) {
+			metrics.failed("downloadObject", start, ace);
      		System.out.println("Caught an AmazonClientException, which means the client encountered "
                 + "a serious internal problem while trying to communicate with S3, "
                 + "such as not being able to access the network.");
      		System.out.println("Error Message: " + ace.getMessage());
      	}
+		catch (IOException e) {
+			metrics.failed("downloadObject", start, e);
+			throw e;
+		}
     }
 	
+	/***
+	 * Downloads an object to a file. 
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The object is fetched with parallel byte-range GETs, each written 
+	 * 	directly to its offset in the file. See {@link RangedDownloader}</li>
+	 * 	<li>If a previous download of the same object to the same file was 
+	 * 	interrupted, only the missing ranges are fetched</li>
+	 * 	<li>The size and the ETag of the downloaded file are verified</li>
+	 * 	<li>With a content cache, the file is copied from the cached object, which 
+	 * 	is revalidated with a conditional GET. See {@link ContentCache}</li>
+	 * 	<li>An object compressed by the client is decompressed once downloaded and verified. 
+	 * 	See {@link CompressionCodec}</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param fileName The path of the file to write
+	 * @throws IOException Error encountered while downloading the object
+	 * @throws AmazonClientException The object could not be downloaded
+	 */
+	public void downloadObject(String bucketName, String keyName, String fileName) throws IOException {
+	
+		System.out.println(String.format("\nDownload %s to %s", keyName, fileName));
+		String eTag = download(bucketName, keyName, new File(fileName));
+		System.out.println(String.format("Downloaded %d bytes, ETag %s", new File(fileName).length(), eTag));
+	}
+	
+	/***
+	 * Downloads the content of an object to a channel, as it is. 
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>Unlike {@link #downloadObject(String, String)}, the content is not decoded as text, 
+	 * 	so binary objects are copied intact. See {@link ChannelDownloader}</li>
+	 * 	<li>With a content cache, the cached file is copied to the channel by the kernel. 
+	 * 	See {@link ContentCache#transferTo(String, String, WritableByteChannel)}</li>
+	 * 	<li>An object compressed by the client is decompressed on another thread while it is 
+	 * 	received. See {@link CompressionStage}</li>
+	 * 	<li>Errors are thrown to the caller instead of being displayed</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param target The channel to write, for example a file or a socket. It is not closed
+	 * @return The number of bytes written
+	 * @throws IOException Error reading the content or writing the channel
+	 * @throws AmazonClientException The object could not be read
+	 */
+	public long downloadObject(String bucketName, String keyName, WritableByteChannel target) throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+			long length = contentCache != null ? contentCache.transferTo(bucketName, keyName, target) 
+					: channelDownloader.download(bucketName, keyName, target);
+			metrics.succeeded("downloadObjectToChannel", start, length);
+			return length;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("downloadObjectToChannel", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("downloadObjectToChannel", start, e);
+			throw e;
+		}
+	}
+	
+	/***
+	 * Copies an object inside S3, without downloading it.
+	 * Objects larger than the copier's threshold are copied in parallel ranges. See {@link ObjectCopier}
+	 * @param sourceBucketName The name of the bucket that contains the object
+	 * @param sourceKey The name of the object to copy
+	 * @param destinationBucketName The name of the bucket to hold the copy
+	 * @param destinationKey The name of the copy
+	 * @return The ETag of the copy
+	 * @throws IOException The copy was interrupted
+	 * @throws AmazonClientException The copy failed
+	 */
+	public String copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, 
+			String destinationKey) throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+			String eTag = objectCopier.copy(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+			if (contentCache != null)
+				contentCache.invalidate(destinationBucketName, destinationKey);
+			metrics.succeeded("copyObject", start, 0);
+			return eTag;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("copyObject", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("copyObject", start, e);
+			throw e;
+		}
+	}
+	
+	/***
+	 * Moves an object inside S3: copies it without downloading it, then deletes the source.
+	 * @param sourceBucketName The name of the bucket that contains the object
+	 * @param sourceKey The name of the object to move
+	 * @param destinationBucketName The name of the bucket to hold the object
+	 * @param destinationKey The new name of the object
+	 * @return The ETag of the moved object
+	 * @throws IOException The move was interrupted
+	 * @throws AmazonClientException The copy or the deletion failed
+	 */
+	public String moveObject(String sourceBucketName, String sourceKey, String destinationBucketName, 
+			String destinationKey) throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+			String eTag = objectCopier.move(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+			if (contentCache != null) {
+				contentCache.invalidate(sourceBucketName, sourceKey);
+				contentCache.invalidate(destinationBucketName, destinationKey);
+			}
+			metrics.succeeded("moveObject", start, 0);
+			return eTag;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("moveObject", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("moveObject", start, e);
+			throw e;
+		}
+	}
+	
+	/***
+	 * Moves all the objects whose key starts with a prefix to another prefix, inside S3.
+	 * The objects are copied concurrently while they are listed, and the sources are deleted 
+	 * in batches once copied. The keys that could not be moved are displayed.
+	 * @param sourceBucketName The name of the bucket that contains the objects
+	 * @param sourcePrefix The key prefix of the objects to move
+	 * @param destinationBucketName The name of the bucket to hold the objects
+	 * @param destinationPrefix The prefix replacing the source prefix in the keys
+	 * @return The number of moved objects, the bytes copied and the keys that could not be moved
+	 * @throws IOException The move was interrupted
+	 * @throws AmazonClientException The listing failed
+	 */
+	public ObjectCopier.Result movePrefix(String sourceBucketName, String sourcePrefix, 
+			String destinationBucketName, String destinationPrefix) throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+			System.out.println(String.format("\nMove %s to %s", sourcePrefix, destinationPrefix));
+			ObjectCopier.Result result;
+			try {
+				result = objectCopier.movePrefix(sourceBucketName, sourcePrefix, 
+						destinationBucketName, destinationPrefix);
+			}
+			finally {
+				// Some objects may have been moved even when the move fails.
+				if (contentCache != null) {
+					contentCache.invalidatePrefix(sourceBucketName, sourcePrefix);
+					contentCache.invalidatePrefix(destinationBucketName, destinationPrefix);
+				}
+			}
+			for (Map.Entry<String, String> error : result.getErrors().entrySet())
+				System.out.println(String.format(" - %s: %s", error.getKey(), error.getValue()));
+			metrics.succeeded("movePrefix", start, 0);
+			return result;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("movePrefix", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("movePrefix", start, e);
+			throw e;
+		}
+	}
+	
+	/***
+	 * Verifies a local directory against the objects of a prefix, without downloading them.
+	 * The MD5 of each file is computed on a fork-join pool while the objects are listed, 
+	 * and compared with the ETag of its object. The keys that were not verified are displayed.
+	 * See {@link ObjectVerifier}
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The key prefix of the objects, or an empty string for the root of the bucket
+	 * @param directoryName The path of the local directory
+	 * @return The number of verified, mismatched, missing and unverifiable files
+	 * @throws IOException The directory does not exist, or the verification was interrupted
+	 * @throws AmazonClientException The listing failed
+	 */
+	public ObjectVerifier.Result verifyDirectory(String bucketName, String prefix, String directoryName) 
+			throws IOException {
+		
+		long start = System.nanoTime();
+		try {
+			System.out.println(String.format("\nVerify %s against %s/%s", directoryName, bucketName, prefix));
+			ObjectVerifier.Result result = objectVerifier.verify(bucketName, prefix, new File(directoryName));
+			for (Map.Entry<String, String> problem : result.getProblems().entrySet())
+				System.out.println(String.format(" - %s: %s", problem.getKey(), problem.getValue()));
+			System.out.println(result);
+			metrics.succeeded("verifyDirectory", start, result.getBytesVerified());
+			return result;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("verifyDirectory", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("verifyDirectory", start, e);
+			throw e;
+		}
+	}
+	
 	/***
 	 * Lists objects contained in the specified object.
+	 * The next listing page is fetched in the background while the current one is displayed.
 	 * @param bucketName The name of the bucket that contains the objects
 	 * @throws IOException Error encountered while lisitng the objects
 	 */
-	public static void listObject(String bucketName) throws IOException {			
+	public void listObject(String bucketName) throws IOException {			
 		
+		long start = System.nanoTime();
 		try {
 				System.out.println(String.format("\nList objects"));
 			   
-	            ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-	            	.withBucketName(bucketName);
-	            ObjectListing objectListing;            
-	            do {
-	                objectListing = s3Client.listObjects(listObjectsRequest);
-	                for (S3ObjectSummary objectSummary : 
-	                	objectListing.getObjectSummaries()) {
-	                    System.out.println(" - " + objectSummary.getKey() + "  " +
-	                            "(size = " + objectSummary.getSize() + 
-	                            ")");
-	                }
-	                listObjectsRequest.setMarker(objectListing.getNextMarker());
-	            } while (objectListing.isTruncated());
+				ObjectIterator objects = listObjects(bucketName, null, null, null);
+				while (objects.hasNext()) {
+					S3ObjectSummary objectSummary = objects.next();
+					System.out.println(" - " + objectSummary.getKey() + "  " +
+							"(size = " + objectSummary.getSize() + 
+							")");
+				}
+				metrics.succeeded("listObject", start, 0);
 		}
 		catch (AmazonServiceException ase) {
+     		metrics.failed("listObject", start, ase);
      		StringBuffer err = new StringBuffer();
     	
      		err.append(("Caught an AmazonServiceException, which means your request made it "
@@ -165,6 +705,7 @@ public class ObjectOperations {
     	
      	} 
 		catch (AmazonClientException ace) {
+			metrics.failed("listObject", start, ace);
      		System.out.println("Caught an AmazonClientException, which means the client encountered "
                 + "a serious internal problem while trying to communicate with S3, "
                 + "such as not being able to access the network.");
@@ -172,17 +713,52 @@ public class ObjectOperations {
      	}	
  	}
 	
+	/***
+	 * Lists lazily the objects contained in the specified bucket.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>Pages are fetched on demand, and the next page is fetched in the 
+	 * 	background while the current one is consumed. At most two pages are held 
+	 * 	in memory. See {@link ObjectIterator}</li>
+	 * 	<li>Listing errors are thrown as {@link AmazonClientException} while iterating</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix Only keys starting with this prefix are returned, or null for all the keys
+	 * @param delimiter Keys containing the delimiter after the prefix are rolled up into 
+	 * common prefixes instead of being returned, or null
+	 * @param maxKeys The maximum number of keys per page, or null for the service default
+	 * @return The iterator over the object summaries, in key order
+	 */
+	public ObjectIterator listObjects(String bucketName, String prefix, String delimiter, Integer maxKeys) {
+		return new ObjectIterator(s3Client, bucketName, prefix, delimiter, maxKeys);
+	}
+	
+	/***
+	 * Streams lazily the objects contained in the specified bucket.
+	 * Close the stream if it is not consumed to the end.
+	 * @see #listObjects(String, String, String, Integer)
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix Only keys starting with this prefix are returned, or null for all the keys
+	 * @param delimiter Keys containing the delimiter after the prefix are rolled up into 
+	 * common prefixes instead of being returned, or null
+	 * @param maxKeys The maximum number of keys per page, or null for the service default
+	 * @return The sequential, ordered stream of object summaries
+	 */
+	public Stream<S3ObjectSummary> streamObjects(String bucketName, String prefix, String delimiter, Integer maxKeys) {
+		return listObjects(bucketName, prefix, delimiter, maxKeys).stream();
+	}
+	
 	/***
 	 * Deletes object in a non-versioned bucket.
 	 * @param bucketName he name of the bucket that contains the object
 	 * @param keyName The name of the object to delete
 	 * @throws IOException Error encountered while deleting the object
 	 */
-	public static void deleteObject(String bucketName, String keyName) throws IOException {
+	public void deleteObject(String bucketName, String keyName) throws IOException {
 		
 		try {
 				System.out.println(String.format("\nDelete object %s", keyName));
-				s3Client.deleteObject(new DeleteObjectRequest(bucketName, keyName));
+				delete(bucketName, keyName);
         }  
      	catch (AmazonServiceException ase) {
      		StringBuffer err = new StringBuffer();
@@ -204,4 +780,124 @@ public class ObjectOperations {
      	}
     }
 	
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+	
+	/*
+	 * Uploads a file, invalidates its cached object and records the call. Returns the bytes sent.
+	 * With a codec, the file is compressed as it is uploaded, like a stream; otherwise a large
+	 * file is uploaded in parts recorded in the journal, if any, so that the upload can resume.
+	 * Errors are thrown to the caller, so that the batch runner can report them.
+	 */
+	long upload(String bucketName, String keyName, File file, TransferJournal journal) throws IOException {
+		long start = System.nanoTime();
+		try {
+			long length;
+			if (compression != null) {
+				InputStream input = new FileInputStream(file);
+				try {
+					length = upload(bucketName, keyName, input).getLength();
+				}
+				finally {
+					input.close();
+				}
+			}
+			else {
+				length = file.length();
+				if (multipartUploader.isMultipart(length))
+					multipartUploader.upload(bucketName, keyName, file, journal);
+				else
+					s3Client.putObject(new PutObjectRequest(bucketName, keyName, file));
+			}
+			if (contentCache != null)
+				contentCache.invalidate(bucketName, keyName);
+			metrics.succeeded("uploadObject", start, length);
+			return length;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("uploadObject", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("uploadObject", start, e);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Downloads an object to a file, through the content cache if any, and records the call.
+	 * Returns the ETag of the object. A compressed object is decompressed once verified.
+	 * Errors are thrown to the caller, so that the batch runner can report them.
+	 */
+	String download(String bucketName, String keyName, File file) throws IOException {
+		long start = System.nanoTime();
+		try {
+			String eTag;
+			long length;
+			if (contentCache != null) {
+				// Copied from the cache file, which is fetched first if missing or changed.
+				eTag = contentCache.copyTo(bucketName, keyName, file);
+				length = file.length();
+			}
+			else {
+				ObjectMetadata metadata = rangedDownloader.download(bucketName, keyName, file);
+				eTag = metadata.getETag();
+				length = metadata.getContentLength();
+				CompressionCodec codec = CompressionCodec.forContentEncoding(metadata.getContentEncoding());
+				if (codec != null)
+					CompressionStage.decompress(file.toPath(), codec);
+			}
+			metrics.succeeded("downloadObjectToFile", start, length);
+			return eTag;
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("downloadObjectToFile", start, ace);
+			throw ace;
+		}
+		catch (IOException e) {
+			metrics.failed("downloadObjectToFile", start, e);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Deletes an object, invalidates its cached copy and records the call.
+	 * Errors are thrown to the caller, so that the batch runner can report them.
+	 */
+	void delete(String bucketName, String keyName) throws IOException {
+		long start = System.nanoTime();
+		try {
+			s3Client.deleteObject(new DeleteObjectRequest(bucketName, keyName));
+			if (contentCache != null)
+				contentCache.invalidate(bucketName, keyName);
+			metrics.succeeded("deleteObject", start, 0);
+		}
+		catch (AmazonClientException ace) {
+			metrics.failed("deleteObject", start, ace);
+			throw ace;
+		}
+	}
+	
+	/*
+	 * Uploads a stream in parts, through the compression stage if a codec is configured.
+	 */
+	private StreamingUploader.Result upload(String bucketName, String keyName, InputStream input) 
+			throws IOException {
+		
+		if (compression == null)
+			return streamingUploader.upload(bucketName, keyName, input);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentEncoding(compression.getContentEncoding());
+		CompressionStage compressed = CompressionStage.compress(input, compression);
+		try {
+			StreamingUploader.Result result = streamingUploader.upload(bucketName, keyName, compressed, metadata);
+			System.out.println(String.format("Compressed %d bytes to %d with %s", 
+					compressed.getBytesIn(), result.getLength(), compression));
+			return result;
+		}
+		finally {
+			compressed.close();
+		}
+	}
 }
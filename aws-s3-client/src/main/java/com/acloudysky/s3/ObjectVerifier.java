@@ -0,0 +1,444 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Verifies a local directory against the objects of a prefix, without downloading them.
+ * The objects are listed page by page, and while the next page is fetched the files of the
+ * listed keys are read on a fork-join pool, their MD5s computed and compared with the ETags
+ * of the listing.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The file of a key is the key without the prefix, resolved under the directory, as
+ * 	written by {@link DirectorySync} and {@link BatchRunner}</li>
+ * 	<li>The ETag of an object uploaded with a single PUT is the MD5 of the whole file. The ETag
+ * 	of an object uploaded in N parts is the MD5 of the part MD5s: the parts of a file are then
+ * 	digested in parallel, one fork-join task per part. See {@link PartDigest}</li>
+ * 	<li>The part size of a multipart upload is not recorded, so the usual part sizes giving N
+ * 	parts are tried. An ETag none of them reproduces, the ETag of an object compressed on
+ * 	the client, or of an object encrypted with SSE-KMS or SSE-C, which is not an MD5, is
+ * 	reported as unverifiable rather than as a mismatch</li>
+ * 	<li>Keys ending with a slash are folders and are skipped. Local files without an object
+ * 	are not reported</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class ObjectVerifier {
+
+	/**
+	 * Number of files, and of parts of a file, digested at the same time.
+	 */
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	// Minimum interval between two progress reports.
+	private static final long PROGRESS_INTERVAL_MS = 5000;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Pool digesting the files and their parts.
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a verifier digesting as many files as there are processors.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public ObjectVerifier(AmazonS3 authorizedClient) {
+		this(authorizedClient, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * Creates a verifier.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param parallelism Number of threads digesting the files
+	 */
+	public ObjectVerifier(AmazonS3 authorizedClient, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.s3Client = authorizedClient;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Compares the files of a directory with the objects of a prefix.
+	 * @param bucketName The name of the bucket
+	 * @param keyPrefix The prefix of the keys, or null for the whole bucket
+	 * @param directory The directory holding a file for each key
+	 * @return The outcome of the verification.
+	 * @throws IOException The directory does not exist, or the verification was interrupted
+	 * @throws AmazonClientException Error listing the objects
+	 */
+	public Result verify(String bucketName, String keyPrefix, File directory) throws IOException {
+		if (!directory.isDirectory())
+			throw new IOException(String.format("%s is not a directory", directory));
+		String prefix = DirectorySync.normalize(keyPrefix);
+		Path root = directory.toPath().toAbsolutePath().normalize();
+		Verification verification = new Verification(bucketName);
+
+		long lastReport = System.currentTimeMillis();
+		ObjectIterator objects = new ObjectIterator(s3Client, bucketName, prefix.isEmpty() ? null : prefix, null, null);
+		try {
+			while (objects.hasNext()) {
+				S3ObjectSummary objectSummary = objects.next();
+				String key = objectSummary.getKey();
+				if (key.endsWith("/"))
+					continue;
+				Path file = root.resolve(key.substring(prefix.length())).normalize();
+				if (!file.startsWith(root))
+					verification.unverifiable(key, "the key resolves outside the directory");
+				else if (!Files.isRegularFile(file))
+					verification.missing(key);
+				else
+					verification.submit(objectSummary, file.toFile());
+
+				long now = System.currentTimeMillis();
+				if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+					displayProgress(verification.snapshot());
+					lastReport = now;
+				}
+			}
+		}
+		finally {
+			verification.drain();
+		}
+		return verification.snapshot();
+	}
+
+	/**
+	 * Stops the threads of the verifier.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Outcome of the verification of a directory.
+	 */
+	public static class Result {
+
+		private final long verifiedCount;
+		private final long mismatchedCount;
+		private final long missingCount;
+		private final long unverifiableCount;
+		private final long bytesVerified;
+		private final long elapsedMillis;
+		private final Map<String, String> problems;
+
+		Result(long verifiedCount, long mismatchedCount, long missingCount, long unverifiableCount,
+				long bytesVerified, long elapsedMillis, Map<String, String> problems) {
+			this.verifiedCount = verifiedCount;
+			this.mismatchedCount = mismatchedCount;
+			this.missingCount = missingCount;
+			this.unverifiableCount = unverifiableCount;
+			this.bytesVerified = bytesVerified;
+			this.elapsedMillis = elapsedMillis;
+			this.problems = Collections.unmodifiableMap(problems);
+		}
+
+		/**
+		 * @return The number of files matching their object.
+		 */
+		public long getVerifiedCount() {
+			return verifiedCount;
+		}
+
+		/**
+		 * @return The number of files whose size or MD5 differs from their object.
+		 */
+		public long getMismatchedCount() {
+			return mismatchedCount;
+		}
+
+		/**
+		 * @return The number of objects without a local file.
+		 */
+		public long getMissingCount() {
+			return missingCount;
+		}
+
+		/**
+		 * @return The number of files that could not be compared with their object.
+		 */
+		public long getUnverifiableCount() {
+			return unverifiableCount;
+		}
+
+		/**
+		 * @return The size of the files matching their object.
+		 */
+		public long getBytesVerified() {
+			return bytesVerified;
+		}
+
+		/**
+		 * @return The time elapsed since the verification started, in milliseconds.
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return The average number of bytes verified per second.
+		 */
+		public double getBytesPerSecond() {
+			return elapsedMillis == 0 ? 0 : bytesVerified * 1000.0 / elapsedMillis;
+		}
+
+		/**
+		 * @return true if every object has a matching file.
+		 */
+		public boolean isConsistent() {
+			return mismatchedCount == 0 && missingCount == 0 && unverifiableCount == 0;
+		}
+
+		/**
+		 * @return The reason of each key that was not verified, in key order.
+		 */
+		public Map<String, String> getProblems() {
+			return problems;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d verified (%d bytes, %.1f MB/s), %d mismatched, %d missing, %d unverifiable",
+					verifiedCount, bytesVerified, getBytesPerSecond() / 1048576, mismatchedCount, missingCount,
+					unverifiableCount);
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	private static void displayProgress(Result result) {
+		System.out.println(String.format("Verified %d files (%.1f MB/s), %d mismatched, %d missing, %d unverifiable",
+				result.getVerifiedCount(), result.getBytesPerSecond() / 1048576, result.getMismatchedCount(),
+				result.getMissingCount(), result.getUnverifiableCount()));
+	}
+
+	/*
+	 * Computes the ETag a file would have if uploaded in parts of the specified size,
+	 * digesting the parts in parallel.
+	 */
+	private static String compositeETag(FileChannel channel, long length, long partSize) {
+		List<PartTask> parts = new ArrayList<PartTask>();
+		for (long offset = 0; offset < length; offset += partSize)
+			parts.add(new PartTask(channel, offset, Math.min(partSize, length - offset)));
+		List<PartDigest> digests = new ArrayList<PartDigest>(parts.size());
+		for (PartTask part : RecursiveTask.invokeAll(parts))
+			digests.add(part.join());
+		return PartDigest.compositeETag(digests);
+	}
+
+	/*
+	 * State of a verification: the counters, the problems, and the slots bounding the files
+	 * queued on the pool, so that the listing does not run far ahead of the digests.
+	 */
+	private class Verification {
+
+		private final String bucketName;
+		private final int capacity = 2 * pool.getParallelism();
+		private final Semaphore slots = new Semaphore(capacity);
+		private final long start = System.currentTimeMillis();
+		private final AtomicLong verified = new AtomicLong();
+		private final AtomicLong mismatched = new AtomicLong();
+		private final AtomicLong missing = new AtomicLong();
+		private final AtomicLong unverifiable = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final Map<String, String> problems = new ConcurrentHashMap<String, String>();
+
+		Verification(String bucketName) {
+			this.bucketName = bucketName;
+		}
+
+		void submit(S3ObjectSummary objectSummary, File file) throws IOException {
+			try {
+				slots.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while verifying");
+			}
+			pool.execute(new FileTask(this, objectSummary, file));
+		}
+
+		void verified(long length) {
+			verified.incrementAndGet();
+			bytes.addAndGet(length);
+		}
+
+		void mismatched(String key, String reason) {
+			mismatched.incrementAndGet();
+			problems.put(key, reason);
+		}
+
+		void missing(String key) {
+			missing.incrementAndGet();
+			problems.put(key, "no local file");
+		}
+
+		void unverifiable(String key, String reason) {
+			unverifiable.incrementAndGet();
+			problems.put(key, reason);
+		}
+
+		/*
+		 * Waits for the files being digested.
+		 */
+		void drain() throws IOException {
+			try {
+				slots.acquire(capacity);
+				slots.release(capacity);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while verifying");
+			}
+		}
+
+		Result snapshot() {
+			return new Result(verified.get(), mismatched.get(), missing.get(), unverifiable.get(), bytes.get(),
+					System.currentTimeMillis() - start, new TreeMap<String, String>(problems));
+		}
+	}
+
+	/*
+	 * Compares a file with the ETag of its object, digesting its parts in subtasks.
+	 */
+	private class FileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Verification verification;
+		private final S3ObjectSummary objectSummary;
+		private final File file;
+
+		FileTask(Verification verification, S3ObjectSummary objectSummary, File file) {
+			this.verification = verification;
+			this.objectSummary = objectSummary;
+			this.file = file;
+		}
+
+		@Override
+		protected void compute() {
+			String key = objectSummary.getKey();
+			try {
+				long length = file.length();
+				if (length != objectSummary.getSize()) {
+					if (unverifiable(key, false))
+						return;
+					verification.mismatched(key, String.format("size %d, object %d bytes",
+							length, objectSummary.getSize()));
+					return;
+				}
+				String eTag = PartDigest.unquote(objectSummary.getETag());
+				Boolean matches = matches(length, eTag);
+				if (matches == null)
+					verification.unverifiable(key, String.format("ETag %s: no usual part size reproduces it", eTag));
+				else if (matches)
+					verification.verified(length);
+				else if (!unverifiable(key, true))
+					verification.mismatched(key, String.format("ETag %s differs from the MD5 of the file", eTag));
+			}
+			catch (IOException | RuntimeException e) {
+				verification.unverifiable(key, e.getMessage());
+			}
+			finally {
+				verification.slots.release();
+			}
+		}
+
+		/*
+		 * Returns null when the ETag is composite and none of the usual part sizes reproduces it.
+		 */
+		private Boolean matches(long length, String eTag) throws IOException {
+			FileChannel channel = new FileInputStream(file).getChannel();
+			try {
+				int dash = eTag.indexOf('-');
+				if (dash < 0)
+					return PartDigest.of(channel, 0, length).matches(eTag);
+				int partCount = Integer.parseInt(eTag.substring(dash + 1));
+				for (long partSize : RangedDownloader.candidatePartSizes(length, partCount)) {
+					if (compositeETag(channel, length, partSize).equalsIgnoreCase(eTag))
+						return Boolean.TRUE;
+				}
+				return null;
+			}
+			finally {
+				channel.close();
+			}
+		}
+
+		/*
+		 * An object compressed on the client has the size and the ETag of the compressed bytes,
+		 * and the ETag of an object encrypted with SSE-KMS or SSE-C is not an MD5: a file which
+		 * differs from such an object is reported as unverifiable rather than as a mismatch.
+		 */
+		private boolean unverifiable(String key, boolean sameSize) {
+			ObjectMetadata metadata = s3Client.getObjectMetadata(verification.bucketName, key);
+			CompressionCodec codec = CompressionCodec.forContentEncoding(metadata.getContentEncoding());
+			if (codec != null) {
+				verification.unverifiable(key, String.format("compressed with %s on the client",
+						codec.name().toLowerCase()));
+				return true;
+			}
+			if (sameSize && !PartDigest.isContentMd5(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm())) {
+				verification.unverifiable(key, String.format("encrypted with %s: the ETag is not an MD5",
+						metadata.getSSECustomerAlgorithm() != null ? "SSE-C" : "SSE-KMS"));
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * Digests a part of a file. The channel is shared: its reads are positional.
+	 */
+	private static class PartTask extends RecursiveTask<PartDigest> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long offset;
+		private final long count;
+
+		PartTask(FileChannel channel, long offset, long count) {
+			this.channel = channel;
+			this.offset = offset;
+			this.count = count;
+		}
+
+		@Override
+		protected PartDigest compute() {
+			try {
+				return PartDigest.of(channel, offset, count);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(String.format("Error reading part at %d: %s", offset, e.getMessage()), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package com.acloudysky.s3;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.amazonaws.AmazonServiceException;
+
+/***
+ * Records the count, the errors, the bytes transferred and the latency of the operations,
+ * by operation name such as <i>uploadObject</i>.
+ * The bucket and object operations record each call when they are given the metrics. The recorded
+ * values are read as {@link Snapshot}s and handed to an {@link Exporter}, on demand or periodically.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The counters are striped ({@link LongAdder}), so that the threads of the bulk operations
+ * 	recording at the same time do not contend on a single counter</li>
+ * 	<li>The latencies are kept in a {@link LatencyHistogram} per operation, with about two
+ * 	significant digits, from which the 50th, 99th and 99.9th percentiles are read</li>
+ * 	<li>The errors are counted by AWS error code, such as <i>NoSuchKey</i> or <i>SlowDown</i>.
+ * 	The errors without a code, such as network failures, are counted by exception class,
+ * 	such as <i>AmazonClientException</i></li>
+ * 	<li>The throughputs are computed over the time since the metrics were created or reset</li>
+ * 	<li>Other exporters implement {@link Exporter} and can be named with the
+ * 	<i>s3.metrics.exporter</i> property. See {@link #configuration(Properties)}</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class OperationMetrics {
+
+	/** Prefix of the property names read by {@link #configuration(Properties)}. */
+	public static final String PROPERTY_PREFIX = "s3.metrics.";
+
+	// Values of each operation, created on its first call.
+	private final ConcurrentMap<String, Values> operations = new ConcurrentHashMap<String, Values>();
+
+	// Exports the metrics periodically, or null.
+	private ScheduledExecutorService scheduler;
+
+	private volatile long startNanos = System.nanoTime();
+
+	/**
+	 * Hands the metrics to a destination, such as the console, a file or a monitoring system.
+	 */
+	public interface Exporter {
+
+		/**
+		 * Exports the metrics.
+		 * @param snapshots The metrics of each operation, in operation name order.
+		 * @throws IOException Error writing the metrics.
+		 */
+		void export(List<Snapshot> snapshots) throws IOException;
+	}
+
+	/**
+	 * Creates the metrics from properties, and starts exporting them periodically
+	 * if an export period is set.
+	 * <ul>
+	 * 	<li><i>s3.metrics.exportPeriod</i> in milliseconds, or 0 (default) to export only on demand</li>
+	 * 	<li><i>s3.metrics.exporter</i> the name of a class implementing {@link Exporter}, with a public
+	 * 	constructor without parameters. By default the metrics are printed to the standard output.
+	 * 	See {@link #textExporter(PrintStream)}</li>
+	 * </ul>
+	 * @param properties The properties, for example the system properties.
+	 * @return The metrics.
+	 * @throws NumberFormatException The period is not a valid integer.
+	 * @throws IllegalArgumentException The exporter class cannot be instantiated.
+	 */
+	public static OperationMetrics configuration(Properties properties) {
+		OperationMetrics metrics = new OperationMetrics();
+		String period = properties.getProperty(PROPERTY_PREFIX + "exportPeriod");
+		long periodMillis = period == null ? 0 : Long.parseLong(period.trim());
+		if (periodMillis > 0) {
+			String exporterName = properties.getProperty(PROPERTY_PREFIX + "exporter");
+			Exporter exporter;
+			if (exporterName == null)
+				exporter = textExporter(System.out);
+			else {
+				try {
+					exporter = (Exporter) Class.forName(exporterName.trim()).getDeclaredConstructor().newInstance();
+				}
+				catch (ReflectiveOperationException | ClassCastException e) {
+					throw new IllegalArgumentException("Invalid exporter " + exporterName + ": " + e, e);
+				}
+			}
+			metrics.schedule(exporter, periodMillis);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Records a successful call.
+	 * @param operation The name of the operation.
+	 * @param startNanos The {@link System#nanoTime()} when the call started.
+	 * @param bytes The number of bytes transferred, or 0.
+	 */
+	public void succeeded(String operation, long startNanos, long bytes) {
+		Values values = values(operation);
+		values.latency.record(System.nanoTime() - startNanos);
+		values.requests.increment();
+		if (bytes > 0)
+			values.bytes.add(bytes);
+	}
+
+	/**
+	 * Records a failed call.
+	 * @param operation The name of the operation.
+	 * @param startNanos The {@link System#nanoTime()} when the call started.
+	 * @param error The error. Its AWS error code is counted, or its class name if it has no code.
+	 */
+	public void failed(String operation, long startNanos, Exception error) {
+		String errorCode = error instanceof AmazonServiceException
+				? ((AmazonServiceException) error).getErrorCode() : null;
+		failed(operation, startNanos, errorCode == null ? error.getClass().getSimpleName() : errorCode);
+	}
+
+	/**
+	 * Records a failed call.
+	 * @param operation The name of the operation.
+	 * @param startNanos The {@link System#nanoTime()} when the call started.
+	 * @param errorCode The code of the error, for example AccessDenied.
+	 */
+	public void failed(String operation, long startNanos, String errorCode) {
+		Values values = values(operation);
+		values.latency.record(System.nanoTime() - startNanos);
+		values.requests.increment();
+		values.errors.increment();
+		values.error(errorCode).increment();
+	}
+
+	/**
+	 * Reads the metrics of the operations called so far.
+	 * @return The metrics of each operation, in operation name order.
+	 */
+	public List<Snapshot> snapshot() {
+		long elapsedNanos = System.nanoTime() - startNanos;
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (Map.Entry<String, Values> entry : new TreeMap<String, Values>(operations).entrySet())
+			snapshots.add(new Snapshot(entry.getKey(), entry.getValue(), elapsedNanos));
+		return snapshots;
+	}
+
+	/**
+	 * Exports the metrics of the operations called so far.
+	 * @param exporter The destination of the metrics.
+	 * @throws IOException Error writing the metrics.
+	 */
+	public void export(Exporter exporter) throws IOException {
+		exporter.export(snapshot());
+	}
+
+	/**
+	 * Exports the metrics periodically, on a daemon thread, until {@link #shutdown()}.
+	 * The errors of the exporter are printed and do not stop the exports.
+	 * @param exporter The destination of the metrics.
+	 * @param periodMillis The time between two exports, in milliseconds.
+	 */
+	public synchronized void schedule(final Exporter exporter, long periodMillis) {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "metrics-exporter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					export(exporter);
+				}
+				catch (IOException | RuntimeException e) {
+					System.out.println(String.format("Error exporting the metrics: %s", e.getMessage()));
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Clears the metrics of all the operations, and restarts the throughput measurement.
+	 * The calls ending during the reset may not be counted.
+	 */
+	public void reset() {
+		operations.clear();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Stops the periodic exports.
+	 */
+	public synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Creates an exporter printing a table of the metrics, one operation per line.
+	 * The latencies are in milliseconds.
+	 * @param out The stream to print to, for example {@link System#out}.
+	 * @return The exporter.
+	 */
+	public static Exporter textExporter(final PrintStream out) {
+		return new Exporter() {
+			@Override
+			public void export(List<Snapshot> snapshots) {
+				StringBuilder table = new StringBuilder();
+				table.append(String.format("%-23s %9s %7s %9s %12s %9s %9s %9s %9s%n", "operation", "requests",
+						"errors", "req/sec", "bytes/sec", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+				for (Snapshot snapshot : snapshots) {
+					table.append(String.format("%-23s %9d %7d %9.1f %12.0f %9.2f %9.2f %9.2f %9.2f%n",
+							snapshot.getOperation(), snapshot.getRequestCount(), snapshot.getErrorCount(),
+							snapshot.getRequestsPerSecond(), snapshot.getBytesPerSecond(),
+							snapshot.getP50() / 1e6, snapshot.getP99() / 1e6, snapshot.getP999() / 1e6,
+							snapshot.getMax() / 1e6));
+					for (Map.Entry<String, Long> error : snapshot.getErrorCounts().entrySet())
+						table.append(String.format("  %-18s %9s %7d%n", error.getKey(), "", error.getValue()));
+				}
+				if (snapshots.isEmpty())
+					table.append(String.format("No operation called.%n"));
+				out.print(table);
+				out.flush();
+			}
+		};
+	}
+
+	/**
+	 * Metrics of an operation, read at a point in time.
+	 * The latencies are in nanoseconds.
+	 */
+	public static class Snapshot {
+
+		private final String operation;
+		private final long requests;
+		private final long errors;
+		private final Map<String, Long> errorCounts;
+		private final long bytes;
+		private final long elapsedNanos;
+		private final long p50, p99, p999, max;
+		private final double mean;
+
+		private Snapshot(String operation, Values values, long elapsedNanos) {
+			this.operation = operation;
+			this.requests = values.requests.sum();
+			this.errors = values.errors.sum();
+			Map<String, Long> counts = new TreeMap<String, Long>();
+			for (Map.Entry<String, LongAdder> entry : values.errorCounts.entrySet())
+				counts.put(entry.getKey(), entry.getValue().sum());
+			this.errorCounts = Collections.unmodifiableMap(counts);
+			this.bytes = values.bytes.sum();
+			this.elapsedNanos = elapsedNanos;
+			this.p50 = values.latency.getPercentile(50);
+			this.p99 = values.latency.getPercentile(99);
+			this.p999 = values.latency.getPercentile(99.9);
+			this.max = values.latency.getMax();
+			this.mean = values.latency.getMean();
+		}
+
+		/**
+		 * @return The name of the operation.
+		 */
+		public String getOperation() {
+			return operation;
+		}
+
+		/**
+		 * @return The number of calls, including the failed ones.
+		 */
+		public long getRequestCount() {
+			return requests;
+		}
+
+		/**
+		 * @return The number of failed calls.
+		 */
+		public long getErrorCount() {
+			return errors;
+		}
+
+		/**
+		 * @return The number of failed calls by error code, in error code order.
+		 */
+		public Map<String, Long> getErrorCounts() {
+			return errorCounts;
+		}
+
+		/**
+		 * @return The number of bytes transferred.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The number of calls per second since the metrics were created or reset.
+		 */
+		public double getRequestsPerSecond() {
+			return elapsedNanos == 0 ? 0 : requests * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return The number of bytes transferred per second since the metrics were created or reset.
+		 */
+		public double getBytesPerSecond() {
+			return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return The median latency.
+		 */
+		public long getP50() {
+			return p50;
+		}
+
+		/**
+		 * @return The 99th percentile of the latency.
+		 */
+		public long getP99() {
+			return p99;
+		}
+
+		/**
+		 * @return The 99.9th percentile of the latency.
+		 */
+		public long getP999() {
+			return p999;
+		}
+
+		/**
+		 * @return The largest latency.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return The mean latency.
+		 */
+		public double getMean() {
+			return mean;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d requests, %d errors %s, %d bytes, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms",
+					operation, requests, errors, errorCounts, bytes, p50 / 1e6, p99 / 1e6, p999 / 1e6);
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	private Values values(String operation) {
+		Values values = operations.get(operation);
+		if (values == null) {
+			Values created = new Values();
+			values = operations.putIfAbsent(operation, created);
+			if (values == null)
+				values = created;
+		}
+		return values;
+	}
+
+	/*
+	 * Values recorded for an operation.
+	 */
+	private static final class Values {
+
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> errorCounts = new ConcurrentHashMap<String, LongAdder>();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private LongAdder error(String errorCode) {
+			LongAdder count = errorCounts.get(errorCode);
+			if (count == null) {
+				LongAdder created = new LongAdder();
+				count = errorCounts.putIfAbsent(errorCode, created);
+				if (count == null)
+					count = created;
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package com.acloudysky.s3;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Lists very large buckets by splitting the key space into shards which are
+ * listed concurrently on a fork-join pool.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Shards are disjoint ranges of keys. They can be discovered from the common
+ * 	prefixes returned by a delimiter listing (see {@link #discoverShards(String, String, String)}),
+ * 	or built from split points supplied by the caller (see {@link #splitShards(String, String, List)}),
+ * 	which is the only option for flat key spaces</li>
+ * 	<li>An ordered stream returns the keys in the same order as a sequential listing.
+ * 	Shards run ahead of the consumer within a window of {@link #getParallelism()} shards.
+ * 	An unordered stream returns pages as soon as any shard produces them, which is
+ * 	faster when the consumer does not need the key order</li>
+ * 	<li>Each shard buffers at most two pages, so memory stays bounded by the
+ * 	number of shards in flight</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class ParallelLister {
+
+	/**
+	 * Number of shards listed at the same time.
+	 */
+	public static final int DEFAULT_PARALLELISM = 16;
+
+	// Pages buffered by each shard before it waits for the consumer.
+	private static final int PAGES_PER_SHARD = 2;
+
+	// Marks the end of a shard in its page queue.
+	private static final Page END = new Page(Collections.<S3ObjectSummary>emptyList(), null);
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a lister running the default number of shards at the same time.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public ParallelLister(AmazonS3 authorizedClient) {
+		this(authorizedClient, new ForkJoinPool(DEFAULT_PARALLELISM));
+	}
+
+	/**
+	 * Creates a lister running its shards on the specified pool.
+	 * The parallelism of the pool is the number of shards listed at the same time.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param pool The pool listing the shards
+	 */
+	public ParallelLister(AmazonS3 authorizedClient, ForkJoinPool pool) {
+		this.s3Client = authorizedClient;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return The number of shards listed at the same time.
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Discovers the shards of a key space from the common prefixes of a delimiter listing.
+	 * Every common prefix becomes a shard; the keys found directly under the prefix
+	 * (which contain no delimiter) are returned as already listed shards.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The prefix of the key space to shard, or null for the whole bucket
+	 * @param delimiter The delimiter separating the levels of the key names, usually "/"
+	 * @return The shards, in key order.
+	 */
+	public List<Shard> discoverShards(String bucketName, String prefix, String delimiter) {
+		List<Shard> shards = new ArrayList<Shard>();
+		List<S3ObjectSummary> keys = new ArrayList<S3ObjectSummary>();
+		ObjectIterator topLevel = new ObjectIterator(s3Client, bucketName, prefix, delimiter, null);
+		try {
+			while (topLevel.hasNext())
+				keys.add(topLevel.next());
+		}
+		finally {
+			topLevel.close();
+		}
+
+		// Merge the keys and the common prefixes in key order. The keys under a
+		// common prefix are contiguous, so the prefix takes the place of all of them.
+		List<String> prefixes = topLevel.getCommonPrefixes();
+		int k = 0;
+		for (String commonPrefix : prefixes) {
+			List<S3ObjectSummary> before = new ArrayList<S3ObjectSummary>();
+			while (k < keys.size() && keys.get(k).getKey().compareTo(commonPrefix) < 0)
+				before.add(keys.get(k++));
+			if (!before.isEmpty())
+				shards.add(Shard.listed(before));
+			shards.add(Shard.prefix(bucketName, commonPrefix));
+		}
+		if (k < keys.size())
+			shards.add(Shard.listed(new ArrayList<S3ObjectSummary>(keys.subList(k, keys.size()))));
+		return shards;
+	}
+
+	/**
+	 * Builds shards from caller-supplied split points. Each shard lists the keys
+	 * after its split point up to and including the next split point; the first shard
+	 * starts at the beginning of the key space and the last one runs to its end.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The prefix of the key space to shard, or null for the whole bucket
+	 * @param splitPoints The keys at which the key space is split, in any order
+	 * @return The shards, in key order.
+	 */
+	public List<Shard> splitShards(String bucketName, String prefix, List<String> splitPoints) {
+		List<Shard> shards = new ArrayList<Shard>();
+		String startAfter = null;
+		for (String splitPoint : new TreeSet<String>(splitPoints)) {
+			shards.add(Shard.range(bucketName, prefix, startAfter, splitPoint));
+			startAfter = splitPoint;
+		}
+		shards.add(Shard.range(bucketName, prefix, startAfter, null));
+		return shards;
+	}
+
+	/**
+	 * Lists the shards concurrently and merges them into a single stream.
+	 * Close the stream if it is not consumed to the end, so that the pending shards are cancelled.
+	 * @param shards The shards to list, in key order
+	 * @param ordered true to return the keys in key order, false to return them as
+	 * soon as they are listed
+	 * @return The stream of object summaries
+	 */
+	public Stream<S3ObjectSummary> stream(List<Shard> shards, boolean ordered) {
+		final ShardIterator iterator = ordered ? new OrderedIterator(shards) : new UnorderedIterator(shards);
+		int characteristics = Spliterator.NONNULL | Spliterator.DISTINCT | (ordered ? Spliterator.ORDERED : 0);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false)
+			.onClose(new Runnable() {
+				@Override
+				public void run() {
+					iterator.close();
+				}
+			});
+	}
+
+	/**
+	 * Discovers the shards of a bucket with the "/" delimiter and lists them in key order.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The prefix of the key space to list, or null for the whole bucket
+	 * @return The ordered stream of object summaries
+	 */
+	public Stream<S3ObjectSummary> stream(String bucketName, String prefix) {
+		return stream(discoverShards(bucketName, prefix, "/"), true);
+	}
+
+	/**
+	 * A disjoint range of keys: all the keys with a prefix, the keys between two
+	 * split points, or keys already listed during shard discovery.
+	 */
+	public static class Shard {
+
+		private final String bucketName;
+		private final String prefix;
+		private final String startAfter;
+		private final String endInclusive;
+		private final List<S3ObjectSummary> listed;
+
+		private Shard(String bucketName, String prefix, String startAfter, String endInclusive,
+				List<S3ObjectSummary> listed) {
+			this.bucketName = bucketName;
+			this.prefix = prefix;
+			this.startAfter = startAfter;
+			this.endInclusive = endInclusive;
+			this.listed = listed;
+		}
+
+		static Shard prefix(String bucketName, String prefix) {
+			return new Shard(bucketName, prefix, null, null, null);
+		}
+
+		static Shard range(String bucketName, String prefix, String startAfter, String endInclusive) {
+			return new Shard(bucketName, prefix, startAfter, endInclusive, null);
+		}
+
+		static Shard listed(List<S3ObjectSummary> keys) {
+			return new Shard(null, null, null, null, keys);
+		}
+
+		@Override
+		public String toString() {
+			if (listed != null)
+				return String.format("%d listed keys", listed.size());
+			return String.format("prefix=%s after=%s through=%s", prefix, startAfter, endInclusive);
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * A page of keys produced by a shard, or the error that stopped it.
+	 */
+	private static class Page {
+		final List<S3ObjectSummary> keys;
+		final RuntimeException error;
+
+		Page(List<S3ObjectSummary> keys, RuntimeException error) {
+			this.keys = keys;
+			this.error = error;
+		}
+	}
+
+	/*
+	 * Lists one shard on the pool, putting its pages into a queue.
+	 */
+	private class ShardTask implements Runnable {
+
+		private final Shard shard;
+		private final BlockingQueue<Page> queue;
+		private volatile boolean cancelled;
+
+		ShardTask(Shard shard, BlockingQueue<Page> queue) {
+			this.shard = shard;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (shard.listed != null)
+					put(new Page(shard.listed, null));
+				else
+					listShard();
+				put(END);
+			}
+			catch (RuntimeException re) {
+				put(new Page(null, re));
+			}
+		}
+
+		void cancel() {
+			cancelled = true;
+			queue.clear();
+		}
+
+		private void listShard() {
+			ListObjectsRequest request = new ListObjectsRequest(shard.bucketName, shard.prefix,
+					shard.startAfter, null, null);
+			ObjectListing listing;
+			do {
+				if (cancelled)
+					return;
+				listing = s3Client.listObjects(request);
+				List<S3ObjectSummary> keys = listing.getObjectSummaries();
+				if (shard.endInclusive != null) {
+					int end = 0;
+					while (end < keys.size() && keys.get(end).getKey().compareTo(shard.endInclusive) <= 0)
+						end++;
+					if (end < keys.size()) {
+						put(new Page(keys.subList(0, end), null));
+						return;
+					}
+				}
+				put(new Page(keys, null));
+				request.setMarker(ObjectIterator.nextMarker(listing));
+			} while (listing.isTruncated());
+		}
+
+		private void put(Page page) {
+			try {
+				// Wait for the consumer, checking periodically for cancellation.
+				while (!cancelled && !queue.offer(page, 100, TimeUnit.MILLISECONDS))
+					continue;
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Base of the iterators merging the shard pages.
+	 */
+	private abstract class ShardIterator implements Iterator<S3ObjectSummary>, Closeable {
+
+		protected final List<Shard> shards;
+		protected final List<ShardTask> tasks = new ArrayList<ShardTask>();
+		private Iterator<S3ObjectSummary> page = Collections.<S3ObjectSummary>emptyIterator();
+
+		ShardIterator(List<Shard> shards) {
+			this.shards = shards;
+		}
+
+		/*
+		 * Returns the next page, or null at the end of all the shards.
+		 */
+		protected abstract Page nextPage() throws InterruptedException;
+
+		protected ShardTask start(Shard shard, BlockingQueue<Page> queue) {
+			ShardTask task = new ShardTask(shard, queue);
+			tasks.add(task);
+			pool.execute(task);
+			return task;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!page.hasNext()) {
+				Page next;
+				try {
+					next = nextPage();
+				}
+				catch (InterruptedException ie) {
+					close();
+					Thread.currentThread().interrupt();
+					throw new AmazonClientException("Interrupted while listing objects", new InterruptedIOException());
+				}
+				if (next == null)
+					return false;
+				if (next.error != null) {
+					close();
+					throw next.error;
+				}
+				page = next.keys.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public S3ObjectSummary next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return page.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("remove");
+		}
+
+		@Override
+		public void close() {
+			for (ShardTask task : tasks)
+				task.cancel();
+			page = Collections.<S3ObjectSummary>emptyIterator();
+		}
+	}
+
+	/*
+	 * Drains the shards in order, keeping a window of shards running ahead.
+	 */
+	private class OrderedIterator extends ShardIterator {
+
+		private final List<BlockingQueue<Page>> queues = new ArrayList<BlockingQueue<Page>>();
+		private int current;
+
+		OrderedIterator(List<Shard> shards) {
+			super(shards);
+			int window = Math.min(getParallelism(), shards.size());
+			for (int i = 0; i < window; i++)
+				startNext();
+		}
+
+		private void startNext() {
+			BlockingQueue<Page> queue = new ArrayBlockingQueue<Page>(PAGES_PER_SHARD);
+			queues.add(queue);
+			start(shards.get(queues.size() - 1), queue);
+		}
+
+		@Override
+		protected Page nextPage() throws InterruptedException {
+			while (current < shards.size()) {
+				Page page = queues.get(current).take();
+				if (page != END)
+					return page;
+				// Release the finished shard and start the next one beyond the window.
+				queues.set(current, null);
+				tasks.set(current, null);
+				current++;
+				if (queues.size() < shards.size())
+					startNext();
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			tasks.removeAll(Collections.singleton(null));
+			super.close();
+		}
+	}
+
+	/*
+	 * Returns the pages of all the shards as soon as they are listed.
+	 */
+	private class UnorderedIterator extends ShardIterator {
+
+		private final BlockingQueue<Page> queue;
+		private int remaining;
+
+		UnorderedIterator(List<Shard> shards) {
+			super(shards);
+			this.queue = new ArrayBlockingQueue<Page>(PAGES_PER_SHARD * Math.max(1, getParallelism()));
+			this.remaining = shards.size();
+			for (Shard shard : shards)
+				start(shard, queue);
+		}
+
+		@Override
+		protected Page nextPage() throws InterruptedException {
+			while (remaining > 0) {
+				Page page = queue.take();
+				if (page != END)
+					return page;
+				remaining--;
+			}
+			return null;
+		}
+	}
+}
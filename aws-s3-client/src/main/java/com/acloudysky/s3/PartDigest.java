@@ -0,0 +1,420 @@
+package com.acloudysky.s3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/***
+ * Computes the MD5 and the CRC32C of a part of an object in a single pass over its bytes,
+ * as they are sent or received, so that a transfer is verified without reading its data twice.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The MD5 is what S3 checks: the ETag of a part, and of an object uploaded with a single
+ * 	PUT, is the MD5 of its bytes, and the ETag of an object uploaded in N parts is the MD5 of
+ * 	the concatenated part MD5s followed by <i>-N</i>. See {@link #compositeETag(List)}</li>
+ * 	<li>The CRC32C is computed alongside, and the CRC32Cs of consecutive parts are combined
+ * 	into the CRC32C of the whole object without reading it again. See
+ * 	{@link #combineCrc32c(int, int, long)}. It uses the intrinsic <i>java.util.zip.CRC32C</i>
+ * 	of Java 9 and later, and a table on older runtimes</li>
+ * 	<li>The ETags compared with an MD5 are those of unencrypted objects or of objects encrypted
+ * 	with S3-managed keys. With SSE-KMS or customer keys the ETag is not an MD5</li>
+ * 	<li>A digest is not thread-safe: each part has its own</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class PartDigest {
+
+	// Reversed Castagnoli polynomial.
+	private static final int CRC32C_POLYNOMIAL = 0x82f63b78;
+
+	// Size of the chunks read from a file.
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// Constructor of java.util.zip.CRC32C, or null before Java 9.
+	private static final Constructor<?> crc32cConstructor = crc32cConstructor();
+
+	// Its update(ByteBuffer), which reads a direct buffer without copying it, or null before Java 9.
+	private static final Method crc32cUpdateBuffer = crc32cUpdateBuffer();
+
+	// Byte-wise table of the fallback CRC32C.
+	private static final int[] crc32cTable = crc32cTable();
+
+	private final MessageDigest md5;
+	private final Checksum crc32c;
+	private long length;
+	private byte[] md5Value;
+
+	/**
+	 * Creates an empty digest.
+	 */
+	public PartDigest() {
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		this.crc32c = newCrc32c();
+	}
+
+	/**
+	 * Adds bytes to the digest.
+	 * @param bytes The array holding the bytes
+	 * @param offset The offset of the first byte
+	 * @param count The number of bytes
+	 */
+	public void update(byte[] bytes, int offset, int count) {
+		if (md5Value != null)
+			throw new IllegalStateException("Digest already completed");
+		md5.update(bytes, offset, count);
+		crc32c.update(bytes, offset, count);
+		length += count;
+	}
+
+	/**
+	 * Adds the bytes of a buffer between its position and its limit to the digest.
+	 * The position of the buffer is moved to its limit.
+	 * @param bytes The buffer, on or off the heap
+	 */
+	public void update(ByteBuffer bytes) {
+		if (md5Value != null)
+			throw new IllegalStateException("Digest already completed");
+		if (bytes.hasArray()) {
+			int count = bytes.remaining();
+			update(bytes.array(), bytes.arrayOffset() + bytes.position(), count);
+			((Buffer) bytes).position(bytes.limit());
+			return;
+		}
+		int start = bytes.position();
+		length += bytes.remaining();
+		md5.update(bytes);
+		((Buffer) bytes).position(start);
+		if (crc32c instanceof TableCrc32c)
+			((TableCrc32c) crc32c).update(bytes);
+		else {
+			try {
+				crc32cUpdateBuffer.invoke(crc32c, bytes);
+			}
+			catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+			catch (InvocationTargetException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @return The MD5 of the bytes. The digest cannot be updated afterwards.
+	 */
+	public byte[] getMd5() {
+		if (md5Value == null)
+			md5Value = md5.digest();
+		return md5Value.clone();
+	}
+
+	/**
+	 * @return The MD5 of the bytes in hexadecimal, as in an ETag.
+	 */
+	public String getMd5Hex() {
+		return RangedDownloader.toHex(getMd5());
+	}
+
+	/**
+	 * @return The MD5 of the bytes in Base64, as in a Content-MD5 header.
+	 */
+	public String getMd5Base64() {
+		return Base64.getEncoder().encodeToString(getMd5());
+	}
+
+	/**
+	 * @return The CRC32C of the bytes.
+	 */
+	public int getCrc32c() {
+		return (int) crc32c.getValue();
+	}
+
+	/**
+	 * @return The number of bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Checks an ETag returned for the bytes, ignoring the quotes and the case.
+	 * @param eTag The ETag of a part or of an object uploaded with a single PUT
+	 * @return true if the ETag is the MD5 of the bytes
+	 */
+	public boolean matches(String eTag) {
+		return eTag != null && unquote(eTag).equalsIgnoreCase(getMd5Hex());
+	}
+
+	/**
+	 * Computes the ETag of an object uploaded in parts.
+	 * @param parts The digests of the parts, in order
+	 * @return The MD5 of the part MD5s, followed by a dash and the number of parts.
+	 */
+	public static String compositeETag(List<PartDigest> parts) {
+		MessageDigest md5OfMd5s;
+		try {
+			md5OfMd5s = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (PartDigest part : parts)
+			md5OfMd5s.update(part.getMd5());
+		return RangedDownloader.toHex(md5OfMd5s.digest()) + "-" + parts.size();
+	}
+
+	/**
+	 * Computes the CRC32C of consecutive parts.
+	 * @param parts The digests of the parts, in order
+	 * @return The CRC32C of all the bytes.
+	 */
+	public static int combineCrc32c(List<PartDigest> parts) {
+		int crc = 0;
+		for (PartDigest part : parts)
+			crc = combineCrc32c(crc, part.getCrc32c(), part.getLength());
+		return crc;
+	}
+
+	/**
+	 * Computes the CRC32C of two consecutive sequences of bytes from their CRC32Cs,
+	 * in a time proportional to the logarithm of the length of the second one.
+	 * @param crc1 The CRC32C of the first bytes
+	 * @param crc2 The CRC32C of the next bytes
+	 * @param length2 The number of the next bytes
+	 * @return The CRC32C of the first bytes followed by the next ones.
+	 */
+	public static int combineCrc32c(int crc1, int crc2, long length2) {
+		if (length2 <= 0)
+			return crc1;
+		// The operator appending zero bits to a CRC, squared to append 2, 4, 8... bits. See zlib crc32_combine.
+		int[] even = new int[32];
+		int[] odd = new int[32];
+		odd[0] = CRC32C_POLYNOMIAL;
+		int row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+		long remaining = length2;
+		do {
+			// Appends one zero byte, then two, then four...
+			square(even, odd);
+			if ((remaining & 1) != 0)
+				crc1 = times(even, crc1);
+			remaining >>= 1;
+			if (remaining == 0)
+				break;
+			square(odd, even);
+			if ((remaining & 1) != 0)
+				crc1 = times(odd, crc1);
+			remaining >>= 1;
+		} while (remaining != 0);
+		return crc1 ^ crc2;
+	}
+
+	/**
+	 * Reads a region of a file into a new digest, through a buffer of the direct pool,
+	 * which the file channel fills without an intermediate copy.
+	 * @param channel The file
+	 * @param offset The offset of the region
+	 * @param count The length of the region
+	 * @return The digest of the region.
+	 * @throws IOException Error reading the file, or the file is shorter than the region
+	 */
+	public static PartDigest of(FileChannel channel, long offset, long count) throws IOException {
+		PartDigest digest = new PartDigest();
+		ByteBuffer buffer = BufferPool.direct().acquire(READ_BUFFER_SIZE);
+		// Positioned through Buffer, whose methods return ByteBuffer only from Java 9.
+		Buffer bounds = buffer;
+		try {
+			long position = offset;
+			long end = offset + count;
+			while (position < end) {
+				bounds.clear();
+				bounds.limit((int) Math.min(READ_BUFFER_SIZE, end - position));
+				int n = channel.read(buffer, position);
+				if (n < 0)
+					throw new IOException(String.format("File shorter than %d bytes", end));
+				bounds.flip();
+				digest.update(buffer);
+				position += n;
+			}
+		}
+		finally {
+			BufferPool.direct().release(buffer);
+		}
+		return digest;
+	}
+
+	/**
+	 * Wraps a stream with a stream adding the bytes read to a digest.
+	 * The returned stream does not support mark and reset, so that a byte
+	 * cannot be added twice: an SDK retry fails instead, and the part is sent again
+	 * with a new digest.
+	 * @param input The stream
+	 * @param digest The digest
+	 * @return The digesting stream. Closing it closes the stream.
+	 */
+	public static InputStream digesting(InputStream input, final PartDigest digest) {
+		return new FilterInputStream(input) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					digest.update(new byte[] { (byte) b }, 0, 1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0)
+					digest.update(b, off, n);
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				throw new IOException("A digested stream cannot skip");
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	static String unquote(String eTag) {
+		return eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\"")
+				? eTag.substring(1, eTag.length() - 1) : eTag;
+	}
+
+	/*
+	 * Checks if the ETag of an object is derived from the MD5 of its content. It is not
+	 * when the object is encrypted with a KMS key (SSE-KMS) or with a customer key (SSE-C).
+	 */
+	static boolean isContentMd5(String sseAlgorithm, String sseCustomerAlgorithm) {
+		return (sseAlgorithm == null || !sseAlgorithm.startsWith("aws:kms")) && sseCustomerAlgorithm == null;
+	}
+
+	private static int times(int[] matrix, int vector) {
+		int sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		}
+		return sum;
+	}
+
+	private static void square(int[] square, int[] matrix) {
+		for (int n = 0; n < 32; n++)
+			square[n] = times(matrix, matrix[n]);
+	}
+
+	private static Checksum newCrc32c() {
+		if (crc32cConstructor != null) {
+			try {
+				return (Checksum) crc32cConstructor.newInstance();
+			}
+			catch (ReflectiveOperationException e) {
+				// Use the table.
+			}
+		}
+		return new TableCrc32c();
+	}
+
+	private static Constructor<?> crc32cConstructor() {
+		try {
+			return Class.forName("java.util.zip.CRC32C").getConstructor();
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static Method crc32cUpdateBuffer() {
+		if (crc32cConstructor == null)
+			return null;
+		try {
+			return crc32cConstructor.getDeclaringClass().getMethod("update", ByteBuffer.class);
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static int[] crc32cTable() {
+		int[] table = new int[256];
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int k = 0; k < 8; k++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ CRC32C_POLYNOMIAL : crc >>> 1;
+			table[i] = crc;
+		}
+		return table;
+	}
+
+	/*
+	 * CRC32C of the runtimes without java.util.zip.CRC32C, a byte at a time.
+	 */
+	private static final class TableCrc32c implements Checksum {
+
+		private int crc = 0xffffffff;
+
+		@Override
+		public void update(int b) {
+			crc = (crc >>> 8) ^ crc32cTable[(crc ^ b) & 0xff];
+		}
+
+		@Override
+		public void update(byte[] b, int off, int len) {
+			int c = crc;
+			for (int i = off; i < off + len; i++)
+				c = (c >>> 8) ^ crc32cTable[(c ^ b[i]) & 0xff];
+			crc = c;
+		}
+
+		// Also overrides the default method of Checksum from Java 9.
+		public void update(ByteBuffer b) {
+			int c = crc;
+			for (int i = b.position(); i < b.limit(); i++)
+				c = (c >>> 8) ^ crc32cTable[(c ^ b.get(i)) & 0xff];
+			crc = c;
+			((Buffer) b).position(b.limit());
+		}
+
+		@Override
+		public long getValue() {
+			return ~crc & 0xffffffffL;
+		}
+
+		@Override
+		public void reset() {
+			crc = 0xffffffff;
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package com.acloudysky.s3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/***
+ * Downloads objects to local files using parallel byte-range GETs.
+ * Each range is written straight to its offset in a preallocated file
+ * through positional {@link FileChannel} writes.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>Progress is recorded in a companion <i>.download</i> file next to the
+ * 	target. If a download is interrupted, the next download of the same object
+ * 	to the same file only fetches the missing ranges</li>
+ * 	<li>Every range is requested with an If-Match constraint on the ETag, so an
+ * 	object overwritten during the download is detected instead of producing a
+ * 	mix of old and new content</li>
+ * 	<li>When all the ranges are written the file size and the ETag are verified. The MD5 of
+ * 	each range is computed as it is written, on the thread downloading it. When the ranges
+ * 	are the parts of the upload, which is the case with the default sizes of the uploaders of
+ * 	this application, the ETag is computed from the range MD5s without reading the file again.
+ * 	Otherwise the file is read again to compute it. See {@link PartDigest}. The ETag of an
+ * 	object encrypted with SSE-KMS or SSE-C is not an MD5, and only the size is verified</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/API/RESTObjectGET.html" target="_blank">GET Object</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class RangedDownloader {
+
+	/**
+	 * Size of each range (in bytes).
+	 */
+	public static final long DEFAULT_RANGE_SIZE = 8L * 1024 * 1024;
+
+	/**
+	 * Number of ranges downloaded at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 8;
+
+	/**
+	 * Number of times a range failing with a transient error is retried before the download stops.
+	 */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	// Suffix of the file recording the completed ranges.
+	static final String STATE_SUFFIX = ".download";
+
+	// Identifies the layout of the state file.
+	private static final int STATE_MAGIC = 0x53335244;
+
+	// Size of the chunks copied from the object stream to the file.
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	// Initial delay before retrying a failed range, doubled at each attempt.
+	private static final long RETRY_BASE_DELAY_MS = 200;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final long rangeSize;
+	private final int maxRetries;
+
+	// Bounded executor running the range downloads.
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a downloader with the default range size, concurrency and retries.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public RangedDownloader(AmazonS3 authorizedClient) {
+		this(authorizedClient, DEFAULT_RANGE_SIZE, DEFAULT_CONCURRENCY, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Creates a downloader.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param rangeSize Size of each range (in bytes)
+	 * @param concurrency Maximum number of ranges downloaded at the same time
+	 * @param maxRetries Number of times a range failing with a transient error is retried
+	 */
+	public RangedDownloader(AmazonS3 authorizedClient, long rangeSize, int concurrency, int maxRetries) {
+		if (rangeSize < 1)
+			throw new IllegalArgumentException("Range size must be positive");
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.s3Client = authorizedClient;
+		this.rangeSize = rangeSize;
+		this.maxRetries = maxRetries;
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-download-range", concurrency);
+	}
+
+	/**
+	 * Checks if an object of the specified length is downloaded in several ranges.
+	 * @param length The length of the object in bytes
+	 * @return true if the object is larger than the range size
+	 */
+	public boolean isRanged(long length) {
+		return length > rangeSize;
+	}
+
+	/**
+	 * Downloads an object to a file, resuming a previous partial download if any.
+	 * Blocks until the whole object is written and verified.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param file The file to write. It is created or overwritten
+	 * @return The metadata of the downloaded object
+	 * @throws IOException Error writing the file, the download was interrupted,
+	 * or the downloaded content does not match the object size or ETag
+	 * @throws AmazonClientException A range failed after all the retries
+	 */
+	public ObjectMetadata download(String bucketName, String keyName, File file) throws IOException {
+
+		// The ETag of the If-Match condition of the ranges must be the current one.
+		ObjectMetadata metadata = s3Client.getObjectMetadata(MetadataCache.uncached(bucketName, keyName));
+		long length = metadata.getContentLength();
+		String eTag = metadata.getETag();
+		int rangeCount = (int) ((length + rangeSize - 1) / rangeSize);
+
+		File stateFile = new File(file.getPath() + STATE_SUFFIX);
+		DownloadState state = DownloadState.resume(stateFile, file, eTag, length, rangeSize, rangeCount);
+		if (state.completedCount() > 0)
+			System.out.println(String.format("Resuming download of %s: %d of %d ranges already on disk",
+					keyName, state.completedCount(), rangeCount));
+
+		// MD5 of each range, at the index of the range.
+		PartDigest[] digests = new PartDigest[rangeCount];
+		RandomAccessFile target = new RandomAccessFile(file, "rw");
+		try {
+			// Preallocate, so that every range can be written at its final offset.
+			target.setLength(length);
+			FileChannel channel = target.getChannel();
+
+			List<Future<Void>> ranges = new ArrayList<Future<Void>>(rangeCount);
+			try {
+				for (int i = 0; i < rangeCount; i++) {
+					long start = i * rangeSize;
+					long end = Math.min(start + rangeSize, length) - 1;
+					ranges.add(executor.submit(new RangeTask(bucketName, keyName, eTag, i, start, end, channel, 
+							state, digests)));
+				}
+				for (Future<Void> range : ranges)
+					range.get();
+			}
+			catch (InterruptedException ie) {
+				cancel(ranges);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(String.format("Download of %s interrupted", keyName));
+			}
+			catch (ExecutionException ee) {
+				cancel(ranges);
+				Throwable cause = ee.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof AmazonClientException)
+					throw (AmazonClientException) cause;
+				throw new AmazonClientException(String.format("Download of %s failed", keyName), cause);
+			}
+			channel.force(false);
+		}
+		finally {
+			target.close();
+			state.close();
+		}
+
+		// The ETag of an object encrypted with SSE-KMS or SSE-C is not an MD5: only the size is checked.
+		String contentETag = PartDigest.isContentMd5(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm())
+				? eTag : null;
+		if (!matchesRanges(file, contentETag, digests))
+			verify(file, length, contentETag);
+		stateFile.delete();
+		return metadata;
+	}
+
+	/**
+	 * Stops the worker threads. Downloads in progress are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	private static void cancel(List<Future<Void>> ranges) {
+		for (Future<Void> range : ranges)
+			range.cancel(true);
+	}
+
+	/*
+	 * Checks the ETag against the MD5s of the ranges, when it can be computed from them:
+	 * a single range, or as many ranges as the parts of the upload. Returns false when it 
+	 * cannot be computed, or when the ranges are not the parts. Throws if the ETag is 
+	 * the MD5 of a single range and differs.
+	 */
+	private static boolean matchesRanges(File file, String eTag, PartDigest[] digests) throws IOException {
+		if (eTag == null)
+			return false;
+		String value = PartDigest.unquote(eTag);
+		int dash = value.indexOf('-');
+		if (dash < 0) {
+			if (digests.length != 1)
+				return false;
+			if (!digests[0].matches(value))
+				throw new IOException(String.format("ETag mismatch for %s: expected %s", file, eTag));
+			return true;
+		}
+		if (Integer.parseInt(value.substring(dash + 1)) != digests.length)
+			return false;
+		return PartDigest.compositeETag(Arrays.asList(digests)).equalsIgnoreCase(value);
+	}
+
+	/*
+	 * Checks the size of the downloaded file and its MD5 against the ETag.
+	 * The ETag of an object uploaded in parts is the MD5 of the part MD5s,
+	 * which can only be recomputed when the part size is known; in that case
+	 * the usual part sizes are tried.
+	 */
+	static void verify(File file, long length, String eTag) throws IOException {
+		if (file.length() != length)
+			throw new IOException(String.format("Size mismatch for %s: expected %d bytes, found %d",
+					file, length, file.length()));
+		if (eTag == null)
+			return;
+
+		Boolean matches = matchesETag(file, length, eTag);
+		if (matches == null)
+			System.out.println(String.format("ETag %s of %s could not be verified: unknown part size", eTag, file));
+		else if (!matches)
+			throw new IOException(String.format("ETag mismatch for %s: expected %s", file, eTag));
+	}
+
+	/*
+	 * Compares the MD5 of the first length bytes of a file with an ETag.
+	 * Returns null when the ETag is composite and none of the usual part
+	 * sizes reproduces it, since the part size of the upload is unknown.
+	 */
+	static Boolean matchesETag(File file, long length, String eTag) throws IOException {
+		int dash = eTag.indexOf('-');
+		if (dash < 0)
+			return toHex(digest(file, 0, length)).equalsIgnoreCase(eTag);
+
+		int partCount = Integer.parseInt(eTag.substring(dash + 1));
+		for (long partSize : candidatePartSizes(length, partCount)) {
+			if (compositeETag(file, length, partSize).equalsIgnoreCase(eTag))
+				return Boolean.TRUE;
+		}
+		return null;
+	}
+
+	/*
+	 * Part sizes which produce the specified number of parts: the ones used by
+	 * this application and by the AWS tools, plus the smallest whole number of MB.
+	 */
+	static List<Long> candidatePartSizes(long length, int partCount) {
+		long mb = 1024 * 1024;
+		long[] sizes = { MultipartUploader.DEFAULT_PART_SIZE, MultipartUploader.MIN_PART_SIZE,
+				8 * mb, 16 * mb, ((length / partCount) / mb + 1) * mb };
+		List<Long> candidates = new ArrayList<Long>();
+		for (long size : sizes) {
+			if ((length + size - 1) / size == partCount && !candidates.contains(size))
+				candidates.add(size);
+		}
+		return candidates;
+	}
+
+	private static String compositeETag(File file, long length, long partSize) throws IOException {
+		MessageDigest md5OfMd5s = newMd5();
+		int parts = 0;
+		for (long offset = 0; offset < length; offset += partSize, parts++)
+			md5OfMd5s.update(digest(file, offset, Math.min(partSize, length - offset)));
+		return toHex(md5OfMd5s.digest()) + "-" + parts;
+	}
+
+	private static byte[] digest(File file, long offset, long count) throws IOException {
+		MessageDigest md5 = newMd5();
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			// Filled by the file channel without an intermediate copy.
+			ByteBuffer buffer = BufferPool.direct().acquire(COPY_BUFFER_SIZE);
+			// Positioned through Buffer, whose methods return ByteBuffer only from Java 9.
+			Buffer bounds = buffer;
+			try {
+				long position = offset;
+				long end = offset + count;
+				while (position < end) {
+					bounds.clear();
+					bounds.limit((int) Math.min(COPY_BUFFER_SIZE, end - position));
+					int n = channel.read(buffer, position);
+					if (n < 0)
+						break;
+					bounds.flip();
+					md5.update(buffer);
+					position += n;
+				}
+			}
+			finally {
+				BufferPool.direct().release(buffer);
+			}
+		}
+		finally {
+			channel.close();
+		}
+		return md5.digest();
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+
+	/*
+	 * Downloads one range and writes it at its offset, retrying with exponential backoff.
+	 */
+	private class RangeTask implements Callable<Void> {
+
+		private final String bucketName, keyName, eTag;
+		private final int index;
+		private final long start, end;
+		private final FileChannel channel;
+		private final DownloadState state;
+
+		// Receives the digest of the range, at the index of the range.
+		private final PartDigest[] digests;
+
+		RangeTask(String bucketName, String keyName, String eTag, int index, long start, long end,
+				FileChannel channel, DownloadState state, PartDigest[] digests) {
+			this.bucketName = bucketName;
+			this.keyName = keyName;
+			this.eTag = eTag;
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.channel = channel;
+			this.state = state;
+			this.digests = digests;
+		}
+
+		@Override
+		public Void call() throws IOException, InterruptedException {
+			if (state.isCompleted(index)) {
+				// Written by a previous download: only its digest is needed.
+				digests[index] = PartDigest.of(channel, start, end - start + 1);
+				return null;
+			}
+			for (int attempt = 0; ; attempt++) {
+				try {
+					digests[index] = copyRange();
+					state.markCompleted(index);
+					return null;
+				}
+				catch (AmazonClientException ace) {
+					// A denied or missing object fails the same way however often it is requested.
+					if (attempt >= maxRetries || !RequestGovernor.isRetryable(ace))
+						throw ace;
+					retry(attempt, ace.getMessage());
+				}
+				catch (IOException ioe) {
+					if (attempt >= maxRetries || ioe instanceof InterruptedIOException)
+						throw ioe;
+					retry(attempt, ioe.getMessage());
+				}
+			}
+		}
+
+		private void retry(int attempt, String message) throws InterruptedException {
+			System.out.println(String.format("Retrying range %d-%d of %s: %s", start, end, keyName, message));
+			Thread.sleep(RETRY_BASE_DELAY_MS << attempt);
+		}
+
+		/*
+		 * Writes the range at its offset and returns its digest, computed from the same chunks.
+		 */
+		private PartDigest copyRange() throws IOException {
+			GetObjectRequest request = new GetObjectRequest(bucketName, keyName);
+			request.setRange(start, end);
+			if (eTag != null)
+				request.withMatchingETagConstraint(eTag);
+			S3Object object = s3Client.getObject(request);
+			if (object == null)
+				throw new IOException(String.format("%s changed during the download", keyName));
+
+			InputStream input = object.getObjectContent();
+			// The stream reads into an array; the file is written from a direct buffer, without
+			// the temporary direct copy the JDK makes of a heap buffer.
+			ByteBuffer chunk = BufferPool.heap().acquire(COPY_BUFFER_SIZE);
+			ByteBuffer buffer = BufferPool.direct().acquire(COPY_BUFFER_SIZE);
+			Buffer bounds = buffer;
+			try {
+				PartDigest digest = new PartDigest();
+				byte[] array = chunk.array();
+				long position = start;
+				int n;
+				while ((n = input.read(array, 0, COPY_BUFFER_SIZE)) >= 0) {
+					digest.update(array, 0, n);
+					bounds.clear();
+					buffer.put(array, 0, n);
+					bounds.flip();
+					while (buffer.hasRemaining())
+						position += channel.write(buffer, position);
+				}
+				if (position != end + 1)
+					throw new IOException(String.format("Short read of range %d-%d of %s", start, end, keyName));
+				return digest;
+			}
+			finally {
+				BufferPool.direct().release(buffer);
+				BufferPool.heap().release(chunk);
+				input.close();
+			}
+		}
+	}
+
+	/*
+	 * Records the completed ranges of a download in a small companion file:
+	 * a header identifying the object, followed by one byte per range.
+	 */
+	static class DownloadState {
+
+		private final RandomAccessFile stateFile;
+		private final long headerLength;
+		private final boolean[] completed;
+		private int completedCount;
+
+		private DownloadState(RandomAccessFile stateFile, long headerLength, boolean[] completed) {
+			this.stateFile = stateFile;
+			this.headerLength = headerLength;
+			this.completed = completed;
+			for (boolean c : completed)
+				if (c)
+					completedCount++;
+		}
+
+		/*
+		 * Opens the state of a previous download of the same object version,
+		 * or starts a new one when there is none or it does not match.
+		 */
+		static DownloadState resume(File stateFile, File target, String eTag, long length,
+				long rangeSize, int rangeCount) throws IOException {
+			if (stateFile.exists() && target.exists()) {
+				DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+				try {
+					if (in.readInt() == STATE_MAGIC && in.readUTF().equals(String.valueOf(eTag))
+							&& in.readLong() == length && in.readLong() == rangeSize && in.readInt() == rangeCount) {
+						boolean[] completed = new boolean[rangeCount];
+						for (int i = 0; i < rangeCount; i++)
+							completed[i] = in.readByte() == 1;
+						long headerLength = stateFile.length() - rangeCount;
+						return new DownloadState(new RandomAccessFile(stateFile, "rw"), headerLength, completed);
+					}
+				}
+				catch (IOException e) {
+					// Truncated or unreadable state: start over.
+				}
+				finally {
+					in.close();
+				}
+			}
+
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(stateFile));
+			try {
+				out.writeInt(STATE_MAGIC);
+				out.writeUTF(String.valueOf(eTag));
+				out.writeLong(length);
+				out.writeLong(rangeSize);
+				out.writeInt(rangeCount);
+				out.write(new byte[rangeCount]);
+			}
+			finally {
+				out.close();
+			}
+			return new DownloadState(new RandomAccessFile(stateFile, "rw"),
+					stateFile.length() - rangeCount, new boolean[rangeCount]);
+		}
+
+		synchronized boolean isCompleted(int index) {
+			return completed[index];
+		}
+
+		synchronized int completedCount() {
+			return completedCount;
+		}
+
+		synchronized void markCompleted(int index) throws IOException {
+			completed[index] = true;
+			completedCount++;
+			stateFile.getChannel().write(ByteBuffer.wrap(new byte[] { 1 }), headerLength + index);
+		}
+
+		synchronized void close() throws IOException {
+			stateFile.close();
+		}
+	}
+}
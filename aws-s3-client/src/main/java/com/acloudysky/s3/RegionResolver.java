@@ -0,0 +1,317 @@
+package com.acloudysky.s3;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.model.Region;
+
+/***
+ * Routes the requests of each bucket to a client of the bucket's region.
+ * A client sends its requests to the endpoint of one region, and a bucket of another region
+ * answers them with a <i>301 Permanent Redirect</i>, which the SDK does not follow. The resolver
+ * looks up the region of a bucket once, with <i>getBucketLocation</i>, keeps it, and sends the
+ * requests of the bucket to the client of that region. The regional clients are created on
+ * first use, each with its own connection pool, and are shared by all the buckets of the region.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The region of a bucket does not change while the bucket exists, so the regions are kept
+ * 	until the bucket is deleted through the resolver. A request redirected anyway, for example
+ * 	because the bucket was deleted and created again in another region by another client, makes
+ * 	the resolver look the region up again and send the request once more. Requests uploading a
+ * 	stream cannot be sent again</li>
+ * 	<li>The requests which do not name a bucket, such as <i>listBuckets</i>, go to the client of
+ * 	the home region</li>
+ * 	<li>A bucket whose location cannot be read, for example because it belongs to another account,
+ * 	is accessed through the client of the home region</li>
+ * 	<li>The regions unknown to the SDK are reached through their <i>s3.region.amazonaws.com</i>
+ * 	endpoint. See {@link S3ClientFactory#newClient(String)}</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/general/latest/gr/rande.html#s3_region" target="_blank">Regions and Endpoints</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class RegionResolver {
+
+	/** Region of the buckets whose location is reported as "US" or as no location. */
+	public static final String US_STANDARD = "us-east-1";
+
+	// Creates the regional clients.
+	private final S3ClientFactory clientFactory;
+
+	private final AmazonS3 homeClient;
+	private final String homeRegion;
+
+	// Client of each region, created on first use. The home region client is not shut down by the resolver.
+	private final ConcurrentMap<String, AmazonS3> clients = new ConcurrentHashMap<String, AmazonS3>();
+
+	// Region of each bucket looked up.
+	private final ConcurrentMap<String, String> bucketRegions = new ConcurrentHashMap<String, String>();
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong redirects = new AtomicLong();
+
+	/**
+	 * Creates a resolver.
+	 * @param clientFactory Creates the clients of the regions other than the home region.
+	 * @param homeClient Client of the home region. It sends the location lookups and the requests
+	 * which do not name a bucket.
+	 * @param homeRegion Name of the home region, for example us-west-2.
+	 */
+	public RegionResolver(S3ClientFactory clientFactory, AmazonS3 homeClient, String homeRegion) {
+		this.clientFactory = clientFactory;
+		this.homeClient = homeClient;
+		this.homeRegion = homeRegion;
+		clients.put(homeRegion, homeClient);
+	}
+
+	/**
+	 * Creates a client sending each request to the client of the region of its bucket.
+	 * @return The routing client. It is thread-safe, and shares the regional clients of the resolver.
+	 */
+	public AmazonS3 route() {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							if (method.getName().equals("equals"))
+								return proxy == args[0];
+							if (method.getName().equals("hashCode"))
+								return System.identityHashCode(proxy);
+							return "Routed " + RegionResolver.this;
+						}
+						return call(method, args);
+					}
+				});
+	}
+
+	/**
+	 * Gets the region of a bucket, looking it up the first time.
+	 * @param bucketName The name of the bucket.
+	 * @return The name of the region, or the home region if the bucket does not exist or
+	 * its location cannot be read.
+	 */
+	public String getBucketRegion(String bucketName) {
+		String region = bucketRegions.get(bucketName);
+		if (region != null)
+			return region;
+
+		lookups.incrementAndGet();
+		try {
+			region = regionName(homeClient.getBucketLocation(bucketName));
+		}
+		catch (AmazonServiceException ase) {
+			// Not kept: the bucket can still be created.
+			if (ase.getStatusCode() == 404)
+				return homeRegion;
+			region = reportedRegion(ase);
+			if (region == null)
+				region = homeRegion;
+		}
+		String known = bucketRegions.putIfAbsent(bucketName, region);
+		return known == null ? region : known;
+	}
+
+	/**
+	 * Gets the client of the region of a bucket.
+	 * @param bucketName The name of the bucket.
+	 * @return The client of the bucket's region.
+	 */
+	public AmazonS3 getClient(String bucketName) {
+		return client(getBucketRegion(bucketName));
+	}
+
+	/**
+	 * Forgets the region of a bucket. It is looked up again by the next request of the bucket.
+	 * @param bucketName The name of the bucket.
+	 */
+	public void forget(String bucketName) {
+		bucketRegions.remove(bucketName);
+	}
+
+	/**
+	 * @return The number of regions with a client, including the home region.
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return The number of bucket location lookups.
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return The number of requests redirected to another region and sent again.
+	 */
+	public long getRedirectCount() {
+		return redirects.get();
+	}
+
+	/**
+	 * Releases the connections of the regional clients created by the resolver.
+	 * The home region client is left to its owner.
+	 */
+	public void shutdown() {
+		synchronized (clients) {
+			Iterator<AmazonS3> iterator = clients.values().iterator();
+			while (iterator.hasNext()) {
+				AmazonS3 client = iterator.next();
+				if (client != homeClient) {
+					if (client instanceof AmazonS3Client)
+						((AmazonS3Client) client).shutdown();
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a bucket location, as returned by <i>getBucketLocation</i>, to a region name.
+	 * The buckets of the US Standard region have the location "US", the older buckets of
+	 * the EU (Ireland) region can have the location "EU".
+	 * @param location The bucket location.
+	 * @return The region name, for example eu-west-1.
+	 */
+	public static String regionName(String location) {
+		if (location == null || location.isEmpty() || "US".equals(location))
+			return US_STANDARD;
+		if ("EU".equals(location))
+			return "eu-west-1";
+		return location;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("home region %s, %d regions, %d buckets, %d lookups, %d redirects",
+				homeRegion, clients.size(), bucketRegions.size(), lookups.get(), redirects.get());
+	}
+
+	/**
+	 * Creates the client of a region. Overridden to create the clients differently.
+	 * @param region The name of the region.
+	 * @return The client.
+	 */
+	protected AmazonS3 newClient(String region) {
+		return clientFactory.newClient(region);
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Sends a request to the client of its bucket's region, and once more to the right region
+	 * if it is redirected.
+	 */
+	private Object call(Method method, Object[] args) throws Throwable {
+		String bucketName = RequestGovernor.target(args)[0];
+		if (bucketName == null)
+			return invoke(homeClient, method, args);
+
+		String name = method.getName();
+		if (name.equals("getBucketLocation")) {
+			String location = (String) invoke(homeClient, method, args);
+			bucketRegions.put(bucketName, regionName(location));
+			return location;
+		}
+		if (name.equals("createBucket")) {
+			bucketRegions.remove(bucketName);
+			return invoke(client(createdRegion(args)), method, args);
+		}
+
+		String region = getBucketRegion(bucketName);
+		try {
+			Object result = invoke(client(region), method, args);
+			if (name.equals("deleteBucket"))
+				bucketRegions.remove(bucketName);
+			return result;
+		}
+		catch (AmazonServiceException ase) {
+			if (!isRedirect(ase) || !RequestGovernor.isReplayable(args))
+				throw ase;
+			bucketRegions.remove(bucketName, region);
+			String reported = reportedRegion(ase);
+			if (reported != null)
+				bucketRegions.put(bucketName, reported);
+			String resolved = getBucketRegion(bucketName);
+			if (resolved.equals(region))
+				throw ase;
+			redirects.incrementAndGet();
+			return invoke(client(resolved), method, args);
+		}
+	}
+
+	private static Object invoke(AmazonS3 client, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(client, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/*
+	 * Returns the client of a region, creating it on first use.
+	 */
+	private AmazonS3 client(String region) {
+		AmazonS3 client = clients.get(region);
+		if (client == null) {
+			synchronized (clients) {
+				client = clients.get(region);
+				if (client == null) {
+					client = newClient(region);
+					clients.put(region, client);
+				}
+			}
+		}
+		return client;
+	}
+
+	/*
+	 * Returns the region a createBucket call creates the bucket in: its region argument, or the home region.
+	 */
+	private String createdRegion(Object[] args) {
+		if (args.length > 1 && args[1] instanceof Region)
+			return regionName(((Region) args[1]).toString());
+		String location = null;
+		if (args.length > 1 && args[1] instanceof String)
+			location = (String) args[1];
+		else if (args[0] instanceof CreateBucketRequest)
+			location = ((CreateBucketRequest) args[0]).getRegion();
+		return location == null || location.isEmpty() ? homeRegion : regionName(location);
+	}
+
+	/*
+	 * A bucket of another region answers 301 Permanent Redirect, or 400 Authorization Header Malformed
+	 * when the request is signed for the wrong region.
+	 */
+	private static boolean isRedirect(AmazonServiceException ase) {
+		return ase.getStatusCode() == 301 || "PermanentRedirect".equals(ase.getErrorCode())
+				|| "AuthorizationHeaderMalformed".equals(ase.getErrorCode()) && reportedRegion(ase) != null;
+	}
+
+	/*
+	 * Returns the region reported in the error details, or null.
+	 */
+	private static String reportedRegion(AmazonServiceException ase) {
+		if (!(ase instanceof AmazonS3Exception) || ((AmazonS3Exception) ase).getAdditionalDetails() == null)
+			return null;
+		return ((AmazonS3Exception) ase).getAdditionalDetails().get("Region");
+	}
+}
@@ -0,0 +1,468 @@
+package com.acloudysky.s3;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/***
+ * Adapts the request rate to the throttling of the S3 service.
+ * A governed client paces its requests per bucket, or per key prefix, and reacts to the
+ * <i>503 Slow Down</i> responses with additive-increase/multiplicative-decrease (AIMD)
+ * rate control: each throttling response cuts the rate of its prefix, and the rate then
+ * grows back slowly while the requests succeed. The throughput settles just under the
+ * limit of the service instead of collapsing into retry storms.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>A prefix is not paced until it is first throttled. Its rate then starts from the
+ * 	rate measured over the last second, multiplied by {@value #DEFAULT_DECREASE_FACTOR}, and
+ * 	grows by {@value #DEFAULT_INCREASE_STEP} requests per second every second</li>
+ * 	<li>The throttling responses arriving together, from the requests already in flight, cut
+ * 	the rate once</li>
+ * 	<li>A throttled request is retried up to the configured number of times, after a random
+ * 	delay between zero and an exponentially growing bound (full jitter), so the retries of the
+ * 	concurrent requests are spread out. Requests uploading a stream cannot be replayed and are
+ * 	not retried</li>
+ * 	<li>The client is governed by wrapping it with {@link #govern(AmazonS3)}; every caller
+ * 	sharing the wrapper, such as the transfer engines, shares the rates. The SDK retries of
+ * 	the client should leave the throttling responses to the governor. See
+ * 	{@link #configure(ClientConfiguration)}</li>
+ * 	<li>The rates are kept per bucket by default. S3 scales its limits per key prefix, so
+ * 	when the keys are spread over top-level "directories" the rates can be kept per prefix
+ * 	with the <i>prefixDepth</i> setting</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/request-rate-perf-considerations.html" target="_blank">Request Rate and Performance Considerations</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class RequestGovernor {
+
+	/** Default number of retries of a throttled request. */
+	public static final int DEFAULT_MAX_RETRIES = 8;
+
+	/** Default bound of the delay before the first retry, in milliseconds. */
+	public static final long DEFAULT_BASE_BACKOFF = 50;
+
+	/** Default largest bound of the delay before a retry, in milliseconds. */
+	public static final long DEFAULT_MAX_BACKOFF = 20 * 1000;
+
+	/** Factor applied to the rate of a prefix when it is throttled. */
+	public static final double DEFAULT_DECREASE_FACTOR = 0.7;
+
+	/** Requests per second added to the rate of a prefix every second without throttling. */
+	public static final double DEFAULT_INCREASE_STEP = 50;
+
+	/** Prefix of the property names read by {@link #configuration(Properties)}. */
+	public static final String PROPERTY_PREFIX = "s3.governor.";
+
+	// Lowest rate of a prefix, in requests per second.
+	private static final double MIN_RATE = 1;
+
+	// Time during which further throttling responses do not cut the rate again.
+	private static final long DECREASE_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	// Longest time counted at once by the additive increase.
+	private static final long MAX_INCREASE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final int prefixDepth;
+	private final int maxRetries;
+	private final long baseBackoff;
+	private final long maxBackoff;
+
+	// Rate of each bucket or prefix, created on its first request.
+	private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+
+	/**
+	 * Creates a governor keeping the rates per bucket, with the default retries.
+	 */
+	public RequestGovernor() {
+		this(0, DEFAULT_MAX_RETRIES, DEFAULT_BASE_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * Creates a governor.
+	 * @param prefixDepth Number of leading "/"-separated key segments identifying a prefix,
+	 * or 0 to keep the rates per bucket
+	 * @param maxRetries Number of retries of a throttled request
+	 * @param baseBackoff Bound of the delay before the first retry, in milliseconds. It doubles at each retry.
+	 * @param maxBackoff Largest bound of the delay before a retry, in milliseconds
+	 */
+	public RequestGovernor(int prefixDepth, int maxRetries, long baseBackoff, long maxBackoff) {
+		if (prefixDepth < 0 || maxRetries < 0)
+			throw new IllegalArgumentException("prefixDepth and maxRetries must not be negative");
+		if (baseBackoff < 1 || maxBackoff < baseBackoff)
+			throw new IllegalArgumentException("The backoff bounds must be positive and ordered");
+		this.prefixDepth = prefixDepth;
+		this.maxRetries = maxRetries;
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Creates a governor from properties. Missing properties take the default value.
+	 * <ul>
+	 * 	<li><i>s3.governor.prefixDepth</i></li>
+	 * 	<li><i>s3.governor.maxRetries</i></li>
+	 * 	<li><i>s3.governor.baseBackoff</i> in milliseconds</li>
+	 * 	<li><i>s3.governor.maxBackoff</i> in milliseconds</li>
+	 * </ul>
+	 * @param properties The properties, for example the system properties.
+	 * @return The governor.
+	 * @throws NumberFormatException A numeric property is not a valid integer.
+	 */
+	public static RequestGovernor configuration(Properties properties) {
+		return new RequestGovernor(
+				(int) longProperty(properties, "prefixDepth", 0),
+				(int) longProperty(properties, "maxRetries", DEFAULT_MAX_RETRIES),
+				longProperty(properties, "baseBackoff", DEFAULT_BASE_BACKOFF),
+				longProperty(properties, "maxBackoff", DEFAULT_MAX_BACKOFF));
+	}
+
+	/**
+	 * Wraps a client so that its requests are paced and their throttling is handled by this governor.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @return The governed client. It is thread-safe, and shares the connections of the wrapped one.
+	 */
+	public AmazonS3 govern(final AmazonS3 authorizedClient) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							if (method.getName().equals("equals"))
+								return proxy == args[0];
+							if (method.getName().equals("hashCode"))
+								return System.identityHashCode(proxy);
+							return "Governed " + authorizedClient;
+						}
+						return call(authorizedClient, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Copies client settings, changing the retry policy so that the SDK does not retry the
+	 * throttling responses itself: they reach the governor, which slows down the prefix before
+	 * retrying. The other retryable errors are still retried by the SDK.
+	 * @param configuration The client settings. They are not changed.
+	 * @return The settings to create the governed clients with.
+	 */
+	public ClientConfiguration configure(ClientConfiguration configuration) {
+		ClientConfiguration governed = new ClientConfiguration(configuration);
+		governed.setRetryPolicy(new RetryPolicy(new RetryPolicy.RetryCondition() {
+			@Override
+			public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception,
+					int retriesAttempted) {
+				if (exception instanceof AmazonServiceException && isThrottling((AmazonServiceException) exception))
+					return false;
+				return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted);
+			}
+		}, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, configuration.getMaxErrorRetry(), true));
+		return governed;
+	}
+
+	/**
+	 * Gets the current rate of a bucket or prefix.
+	 * @param bucketName The name of the bucket
+	 * @param key A key of the prefix, or null for the bucket
+	 * @return The rate in requests per second, or {@link Double#POSITIVE_INFINITY}
+	 * if the prefix has not been throttled.
+	 */
+	public double getRate(String bucketName, String key) {
+		Limiter limiter = limiters.get(prefixOf(bucketName, key));
+		return limiter == null ? Double.POSITIVE_INFINITY : limiter.getRate();
+	}
+
+	/**
+	 * @return The number of throttling responses received.
+	 */
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return The number of throttled requests retried.
+	 */
+	public long getRetryCount() {
+		return retried.get();
+	}
+
+	/**
+	 * Tells whether an error is a throttling response: <i>503 Slow Down</i> or
+	 * <i>Service Unavailable</i>, or one of the throttling error codes of the SDK.
+	 * @param ase The error.
+	 * @return true if the request was throttled.
+	 */
+	public static boolean isThrottling(AmazonServiceException ase) {
+		return ase.getStatusCode() == 503 || "SlowDown".equals(ase.getErrorCode())
+				|| RetryUtils.isThrottlingException(ase);
+	}
+
+	/**
+	 * Tells whether an error is transient, so that the request can succeed when sent again:
+	 * a throttling response, a server error (5xx), a request timeout, or an error of the client
+	 * such as a network failure. Errors of the request itself, such as <i>403 Access Denied</i>
+	 * or <i>404 Not Found</i>, are not.
+	 * @param ace The error.
+	 * @return true if the request can be retried.
+	 */
+	public static boolean isRetryable(AmazonClientException ace) {
+		if (!(ace instanceof AmazonServiceException))
+			return ace.isRetryable();
+		AmazonServiceException ase = (AmazonServiceException) ace;
+		return ase.getStatusCode() >= 500 || isThrottling(ase) || "RequestTimeout".equals(ase.getErrorCode());
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Calls a client method, pacing it and retrying it while it is throttled.
+	 */
+	private Object call(AmazonS3 authorizedClient, Method method, Object[] args) throws Throwable {
+		String[] target = target(args);
+		Limiter limiter = limiter(prefixOf(target[0], target[1]));
+		for (int attempt = 0; ; attempt++) {
+			sleep(limiter.reserve());
+			try {
+				Object result = method.invoke(authorizedClient, args);
+				limiter.succeeded();
+				return result;
+			}
+			catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof MultiObjectDeleteException) {
+					// The keys throttled within a multi-object delete are retried by the caller.
+					for (DeleteError error : ((MultiObjectDeleteException) cause).getErrors()) {
+						if ("SlowDown".equals(error.getCode())) {
+							throttled.incrementAndGet();
+							limiter.throttled();
+							break;
+						}
+					}
+				}
+				else if (cause instanceof AmazonServiceException && isThrottling((AmazonServiceException) cause)) {
+					throttled.incrementAndGet();
+					limiter.throttled();
+					if (attempt < maxRetries && isReplayable(args)) {
+						retried.incrementAndGet();
+						sleep(TimeUnit.MILLISECONDS.toNanos(backoff(attempt)));
+						continue;
+					}
+				}
+				throw cause;
+			}
+		}
+	}
+
+	/*
+	 * Returns a random delay between zero and the bound of the attempt, in milliseconds.
+	 */
+	private long backoff(int attempt) {
+		long bound = attempt >= 30 ? maxBackoff : Math.min(maxBackoff, baseBackoff << attempt);
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	private static void sleep(long nanos) {
+		if (nanos <= 0)
+			return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting to send a request", ie);
+		}
+	}
+
+	/*
+	 * Finds the bucket and the key, or prefix, of a call: the first two string arguments,
+	 * or the properties of the request argument. Either can be null.
+	 * Also used by the metadata cache.
+	 */
+	static String[] target(Object[] args) {
+		String[] target = new String[2];
+		if (args == null)
+			return target;
+		int strings = 0;
+		for (Object arg : args) {
+			if (arg instanceof String && strings < 2)
+				target[strings++] = (String) arg;
+			else if (strings == 0 && arg != null && !(arg instanceof InputStream)) {
+				target[0] = property(arg, "getDestinationBucketName", "getBucketName");
+				target[1] = property(arg, "getDestinationKey", "getKey", "getPrefix");
+				if (target[0] != null)
+					return target;
+			}
+		}
+		return target;
+	}
+
+	/*
+	 * Returns the first string property found, or null.
+	 */
+	private static String property(Object bean, String... getters) {
+		for (String getter : getters) {
+			try {
+				Object value = bean.getClass().getMethod(getter).invoke(bean);
+				if (value instanceof String)
+					return (String) value;
+			}
+			catch (ReflectiveOperationException e) {
+				// Not a property of this request.
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * A request uploading a stream cannot be sent again.
+	 * Also used by the region resolver.
+	 */
+	static boolean isReplayable(Object[] args) {
+		if (args == null)
+			return true;
+		for (Object arg : args) {
+			if (arg instanceof InputStream)
+				return false;
+			if (arg instanceof PutObjectRequest && ((PutObjectRequest) arg).getInputStream() != null)
+				return false;
+			if (arg instanceof UploadPartRequest && ((UploadPartRequest) arg).getInputStream() != null)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the bucket followed by the first prefixDepth segments of the key.
+	 */
+	private String prefixOf(String bucketName, String key) {
+		String bucket = bucketName == null ? "" : bucketName;
+		if (prefixDepth == 0 || key == null)
+			return bucket;
+		int end = -1;
+		for (int i = 0; i < prefixDepth; i++) {
+			end = key.indexOf('/', end + 1);
+			if (end < 0)
+				return bucket + "/" + key;
+		}
+		return bucket + "/" + key.substring(0, end + 1);
+	}
+
+	private Limiter limiter(String prefix) {
+		Limiter limiter = limiters.get(prefix);
+		if (limiter == null) {
+			Limiter created = new Limiter();
+			limiter = limiters.putIfAbsent(prefix, created);
+			if (limiter == null)
+				limiter = created;
+		}
+		return limiter;
+	}
+
+	private static long longProperty(Properties properties, String name, long defaultValue) {
+		String value = properties.getProperty(PROPERTY_PREFIX + name);
+		return value == null ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	/*
+	 * AIMD rate of one bucket or prefix. The requests are spaced evenly at the current rate.
+	 */
+	private static final class Limiter {
+
+		// Requests per second, infinite until the first throttling.
+		private double rate = Double.POSITIVE_INFINITY;
+
+		// Time at which the next request may be sent.
+		private long nextNanos = System.nanoTime();
+
+		// Time until which the throttling responses do not cut the rate again.
+		private long holdNanos;
+
+		// Time of the last additive increase.
+		private long increasedNanos;
+
+		// Requests sent in the current and in the previous second, to measure the rate.
+		private long windowNanos = System.nanoTime();
+		private long windowCount, previousCount;
+
+		/*
+		 * Books the next slot. Returns the time to wait before sending the request, in nanoseconds.
+		 */
+		synchronized long reserve() {
+			long now = System.nanoTime();
+			if (now - windowNanos >= SECOND_NANOS) {
+				previousCount = now - windowNanos < 2 * SECOND_NANOS ? windowCount : 0;
+				windowCount = 0;
+				windowNanos = now;
+			}
+			windowCount++;
+			if (Double.isInfinite(rate))
+				return 0;
+			long start = Math.max(now, nextNanos);
+			nextNanos = start + (long) (SECOND_NANOS / rate);
+			return start - now;
+		}
+
+		synchronized void succeeded() {
+			if (Double.isInfinite(rate))
+				return;
+			long now = System.nanoTime();
+			long elapsed = Math.min(now - increasedNanos, MAX_INCREASE_NANOS);
+			if (elapsed > 0) {
+				rate += DEFAULT_INCREASE_STEP * elapsed / SECOND_NANOS;
+				increasedNanos = now;
+			}
+		}
+
+		synchronized void throttled() {
+			long now = System.nanoTime();
+			if (!Double.isInfinite(rate) && now - holdNanos < 0)
+				return;
+			double current = rate;
+			if (Double.isInfinite(current)) {
+				// Rate measured over the last second.
+				long elapsed = Math.max(now - windowNanos, TimeUnit.MILLISECONDS.toNanos(1));
+				current = previousCount > 0
+						? (double) (previousCount + windowCount) * SECOND_NANOS / (SECOND_NANOS + elapsed)
+						: (double) windowCount * SECOND_NANOS / elapsed;
+			}
+			rate = Math.max(MIN_RATE, current * DEFAULT_DECREASE_FACTOR);
+			holdNanos = now + DECREASE_HOLD_NANOS;
+			increasedNanos = now;
+			nextNanos = Math.max(nextNanos, now);
+		}
+
+		synchronized double getRate() {
+			return rate;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.acloudysky.s3;
+
+import java.util.Properties;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/***
+ * Builds S3 clients with a tuned HTTP connection pool.
+ * A client is thread-safe and holds its own connection pool, so a single client
+ * should be created per region and shared by all the operations and threads.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The maximum number of connections must be at least the number of requests
+ * 	issued at the same time, otherwise the requests in excess wait for a free
+ * 	connection. The SDK default is 50, the factory default is
+ * 	{@value #DEFAULT_MAX_CONNECTIONS}</li>
+ * 	<li>TCP keep-alive is enabled by default, so that idle pooled connections are not
+ * 	silently dropped by the network between bursts of requests</li>
+ * 	<li>The settings can be read from properties, such as the system properties passed
+ * 	with <i>-Ds3.client.maxConnections=1024</i>. See {@link #configuration(Properties)}</li>
+ * 	<li>The credentials are read from the <i>~/.aws/credentials</i> file by default</li>
+ * </ul>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AWSSdkDocsJava/latest/DeveloperGuide/section-client-configuration.html" target="_blank">Client Networking Configuration</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class S3ClientFactory {
+
+	/** Default maximum number of open HTTP connections per client. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+	/** Default time to establish a connection, in milliseconds. */
+	public static final int DEFAULT_CONNECTION_TIMEOUT = 10 * 1000;
+
+	/** Default time to wait for data on an open connection, in milliseconds. */
+	public static final int DEFAULT_SOCKET_TIMEOUT = 50 * 1000;
+
+	/** Default number of retries of a failed retryable request. */
+	public static final int DEFAULT_MAX_ERROR_RETRY = 3;
+
+	/** Prefix of the property names read by {@link #configuration(Properties)}. */
+	public static final String PROPERTY_PREFIX = "s3.client.";
+
+	// Source of the credentials of the clients.
+	private final AWSCredentialsProvider credentialsProvider;
+
+	// Settings of the clients. Each client gets its own copy.
+	private final ClientConfiguration configuration;
+
+	/**
+	 * Creates a factory using the default profile credentials and
+	 * the default settings.
+	 * @see #defaultConfiguration()
+	 */
+	public S3ClientFactory() {
+		this(new ProfileCredentialsProvider(), defaultConfiguration());
+	}
+
+	/**
+	 * Creates a factory.
+	 * @param credentialsProvider Source of the credentials of the clients.
+	 * @param configuration Settings of the clients. The factory keeps a copy.
+	 */
+	public S3ClientFactory(AWSCredentialsProvider credentialsProvider, ClientConfiguration configuration) {
+		this.credentialsProvider = credentialsProvider;
+		this.configuration = new ClientConfiguration(configuration);
+	}
+
+	/**
+	 * Creates a client.
+	 * @param region The region the client sends its requests to, or null for the
+	 * SDK default endpoint.
+	 * @return The client. Call {@link AmazonS3Client#shutdown()} when it is no longer used,
+	 * to release its connections.
+	 */
+	public AmazonS3Client newClient(Regions region) {
+		AmazonS3Client s3Client = new AmazonS3Client(credentialsProvider, new ClientConfiguration(configuration));
+		if (region != null)
+			s3Client.setRegion(Region.getRegion(region));
+		return s3Client;
+	}
+
+	/**
+	 * Creates a client for a region given by name. The regions unknown to the SDK
+	 * are reached through their <i>s3.region.amazonaws.com</i> endpoint.
+	 * @param regionName The name of the region, for example eu-west-1.
+	 * @return The client. Call {@link AmazonS3Client#shutdown()} when it is no longer used,
+	 * to release its connections.
+	 */
+	public AmazonS3Client newClient(String regionName) {
+		for (Regions region : Regions.values()) {
+			if (region.getName().equals(regionName))
+				return newClient(region);
+		}
+		AmazonS3Client s3Client = new AmazonS3Client(credentialsProvider, new ClientConfiguration(configuration));
+		s3Client.setEndpoint("s3." + regionName + ".amazonaws.com");
+		return s3Client;
+	}
+
+	/**
+	 * Gets the settings of the clients.
+	 * @return A copy of the settings.
+	 */
+	public ClientConfiguration getConfiguration() {
+		return new ClientConfiguration(configuration);
+	}
+
+	/**
+	 * Creates the default settings: {@value #DEFAULT_MAX_CONNECTIONS} connections,
+	 * TCP keep-alive, {@value #DEFAULT_CONNECTION_TIMEOUT} ms connection timeout,
+	 * {@value #DEFAULT_SOCKET_TIMEOUT} ms socket timeout and
+	 * {@value #DEFAULT_MAX_ERROR_RETRY} retries.
+	 * @return The settings.
+	 */
+	public static ClientConfiguration defaultConfiguration() {
+		return configuration(DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECTION_TIMEOUT,
+				DEFAULT_SOCKET_TIMEOUT, true, DEFAULT_MAX_ERROR_RETRY);
+	}
+
+	/**
+	 * Creates the client settings.
+	 * @param maxConnections Maximum number of open HTTP connections.
+	 * @param connectionTimeout Time to establish a connection, in milliseconds.
+	 * @param socketTimeout Time to wait for data on an open connection, in milliseconds.
+	 * @param tcpKeepAlive Whether TCP keep-alive is enabled on the connections.
+	 * @param maxErrorRetry Number of retries of a failed retryable request.
+	 * @return The settings.
+	 */
+	public static ClientConfiguration configuration(int maxConnections, int connectionTimeout,
+			int socketTimeout, boolean tcpKeepAlive, int maxErrorRetry) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+		ClientConfiguration configuration = new ClientConfiguration();
+		configuration.setMaxConnections(maxConnections);
+		configuration.setConnectionTimeout(connectionTimeout);
+		configuration.setSocketTimeout(socketTimeout);
+		configuration.setUseTcpKeepAlive(tcpKeepAlive);
+		configuration.setMaxErrorRetry(maxErrorRetry);
+		return configuration;
+	}
+
+	/**
+	 * Creates the client settings from properties. Missing properties take the default value.
+	 * <ul>
+	 * 	<li><i>s3.client.maxConnections</i></li>
+	 * 	<li><i>s3.client.connectionTimeout</i> in milliseconds</li>
+	 * 	<li><i>s3.client.socketTimeout</i> in milliseconds</li>
+	 * 	<li><i>s3.client.tcpKeepAlive</i> true or false</li>
+	 * 	<li><i>s3.client.maxErrorRetry</i></li>
+	 * </ul>
+	 * @param properties The properties, for example the system properties.
+	 * @return The settings.
+	 * @throws NumberFormatException A numeric property is not a valid integer.
+	 */
+	public static ClientConfiguration configuration(Properties properties) {
+		return configuration(
+				intProperty(properties, "maxConnections", DEFAULT_MAX_CONNECTIONS),
+				intProperty(properties, "connectionTimeout", DEFAULT_CONNECTION_TIMEOUT),
+				intProperty(properties, "socketTimeout", DEFAULT_SOCKET_TIMEOUT),
+				Boolean.parseBoolean(properties.getProperty(PROPERTY_PREFIX + "tcpKeepAlive", "true")),
+				intProperty(properties, "maxErrorRetry", DEFAULT_MAX_ERROR_RETRY));
+	}
+
+	/*
+	 * Reads an integer property.
+	 */
+	private static int intProperty(Properties properties, String name, int defaultValue) {
+		String value = properties.getProperty(PROPERTY_PREFIX + name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+}
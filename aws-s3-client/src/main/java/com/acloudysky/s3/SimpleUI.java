@@ -21,13 +21,41 @@ import com.acloudysky.s3.Utility;
 public class SimpleUI extends UserInterface {
 	
 
-	private String bucketName, keyName;
+	// Standard input, shared by all the reads so that buffered input is not lost.
+	private static final BufferedReader br = new BufferedReader(new java.io.InputStreamReader(System.in));
+	
+	// Transfer buffers held longer than this are reported as possible leaks.
+	private static final long LEAK_AGE_MILLIS = 60000;
+	
+	private String bucketName, keyName, fileName;
+	
+	// Operations called for the user's selections.
+	private final BucketOperations bucketOperations;
+	private final ObjectOperations objectOperations;
+	
+	// Metrics recorded by the operations, displayed on the user's selection.
+	private final OperationMetrics metrics;
+	
+	/**
+	 * Instantiates SimpleUI class along with its superclass.
+	 * @param bucketOperations Bucket operations called for the user's selections.
+	 * @param objectOperations Object operations called for the user's selections.
+	 */
+	SimpleUI(BucketOperations bucketOperations, ObjectOperations objectOperations) {
+		this(bucketOperations, objectOperations, new OperationMetrics());
+	}
 	
 	/**
 	 * Instantiates SimpleUI class along with its superclass.
+	 * @param bucketOperations Bucket operations called for the user's selections.
+	 * @param objectOperations Object operations called for the user's selections.
+	 * @param metrics Metrics recorded by the operations.
 	 */
-	SimpleUI() {
+	SimpleUI(BucketOperations bucketOperations, ObjectOperations objectOperations, OperationMetrics metrics) {
 		super();
+		this.bucketOperations = bucketOperations;
+		this.objectOperations = objectOperations;
+		this.metrics = metrics;
 		// Display menu.
 		Utility.displayMenu(Utility.getMenuEntries());
 		
@@ -38,9 +66,6 @@ public class SimpleUI extends UserInterface {
 	 */
 	private static String readUserInput(String msg) {
 		
-		// Open standard input.
-		BufferedReader br = new BufferedReader(new java.io.InputStreamReader(System.in));
-
 		String selection = null;
 		
 		//  Read the selection from the command-line; need to use try/catch with the
@@ -77,7 +102,7 @@ public class SimpleUI extends UserInterface {
 						System.out.println(String.format("%s", "The bucket name must follow the format: chowx-i-92aea747.d.eanitea.com"));
 						bucketName = readUserInput("Bucket name: ").toLowerCase();	
 					} while(bucketName.isEmpty());
-					BucketOperations.createBucket(bucketName);
+					bucketOperations.createBucket(bucketName);
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -88,7 +113,7 @@ public class SimpleUI extends UserInterface {
 			case "lb": {
 				try{
 					// List the buckets contained in the account.
-					BucketOperations.listBuckets();
+					bucketOperations.listBuckets();
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -102,7 +127,7 @@ public class SimpleUI extends UserInterface {
 					do {
 						bucketName = readUserInput("Bucket name: ").toLowerCase();	
 					}while(bucketName.isEmpty());	
-					BucketOperations.deleteBucket(bucketName);
+					bucketOperations.deleteBucket(bucketName);
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -119,7 +144,26 @@ public class SimpleUI extends UserInterface {
 						bucketName = readUserInput("Bucket name: ").toLowerCase();	
 						keyName = readUserInput("Object (key) name: ").toLowerCase();	
 					}while(bucketName.isEmpty() || keyName.isEmpty());
-					ObjectOperations.uploadObject(bucketName, keyName, "sanmartino.txt");
+					objectOperations.uploadObject(bucketName, keyName, "sanmartino.txt");
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+				
+			case "su": {
+				try{
+					// Upload the new and changed files of a local directory.
+					String prefix, directoryName;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						prefix = readUserInput("Key prefix (empty for none): ").trim();	
+						directoryName = readUserInput("Directory: ").trim();	
+					}while(bucketName.isEmpty() || directoryName.isEmpty());
+					boolean checksum = "y".equalsIgnoreCase(readUserInput("Compare checksums (y/n): ").trim());
+					boolean deleteExtras = "y".equalsIgnoreCase(readUserInput("Delete objects without a file (y/n): ").trim());
+					objectOperations.uploadDirectory(bucketName, prefix, directoryName, checksum, deleteExtras);
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -134,7 +178,23 @@ public class SimpleUI extends UserInterface {
 						bucketName = readUserInput("Bucket name: ").toLowerCase();	
 						keyName = readUserInput("Object (key) name: ").toLowerCase();	
 					}while(bucketName.isEmpty() || keyName.isEmpty());
-					ObjectOperations.downloadObject(bucketName, keyName);
+					objectOperations.downloadObject(bucketName, keyName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "df": {
+				try{
+					// Download an object to a local file.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						fileName = readUserInput("File name: ").trim();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || fileName.isEmpty());
+					objectOperations.downloadObject(bucketName, keyName, fileName);
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -142,13 +202,33 @@ public class SimpleUI extends UserInterface {
 				break;
 			}
 			
+			case "sd": {
+				try{
+					// Download the new and changed objects to a local directory.
+					String prefix, directoryName;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						prefix = readUserInput("Key prefix (empty for none): ").trim();	
+						directoryName = readUserInput("Directory: ").trim();	
+					}while(bucketName.isEmpty() || directoryName.isEmpty());
+					// Checksums by default: the files are compared with the ETags.
+					boolean checksum = !"n".equalsIgnoreCase(readUserInput("Compare checksums (Y/n): ").trim());
+					boolean deleteExtras = "y".equalsIgnoreCase(readUserInput("Delete files without an object (y/n): ").trim());
+					objectOperations.downloadDirectory(bucketName, prefix, directoryName, checksum, deleteExtras);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+				
 			case "lo": {
 				try{
 					// List objects contained in the specified bucket.
 					do {
 						bucketName = readUserInput("Bucket name: ").toLowerCase();	
 					}while(bucketName.isEmpty());
-					ObjectOperations.listObject(bucketName);
+					objectOperations.listObject(bucketName);
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -163,7 +243,102 @@ public class SimpleUI extends UserInterface {
 						bucketName = readUserInput("Bucket name: ").toLowerCase();	
 						keyName = readUserInput("Object (key) name: ").toLowerCase();	
 					}while(bucketName.isEmpty() || keyName.isEmpty());
-					ObjectOperations.deleteObject(bucketName, keyName);
+					objectOperations.deleteObject(bucketName, keyName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "co": {
+				try{
+					// Copy an object inside S3.
+					String destinationBucketName, destinationKeyName;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						destinationBucketName = readUserInput("Destination bucket name: ").toLowerCase();	
+						destinationKeyName = readUserInput("Destination object (key) name: ").toLowerCase();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || destinationBucketName.isEmpty() 
+							|| destinationKeyName.isEmpty());
+					String eTag = objectOperations.copyObject(bucketName, keyName, destinationBucketName, destinationKeyName);
+					System.out.println(String.format("Copied %s to %s/%s, ETag %s", keyName, destinationBucketName, 
+							destinationKeyName, eTag));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "mo": {
+				try{
+					// Move (rename) an object inside S3.
+					String destinationBucketName, destinationKeyName;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						destinationBucketName = readUserInput("Destination bucket name: ").toLowerCase();	
+						destinationKeyName = readUserInput("Destination object (key) name: ").toLowerCase();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || destinationBucketName.isEmpty() 
+							|| destinationKeyName.isEmpty());
+					String eTag = objectOperations.moveObject(bucketName, keyName, destinationBucketName, destinationKeyName);
+					System.out.println(String.format("Moved %s to %s/%s, ETag %s", keyName, destinationBucketName, 
+							destinationKeyName, eTag));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "mp": {
+				try{
+					// Move all the objects of a prefix to another prefix inside S3.
+					String prefix, destinationBucketName, destinationPrefix;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						prefix = readUserInput("Key prefix: ").trim();	
+						destinationBucketName = readUserInput("Destination bucket name: ").toLowerCase();	
+						destinationPrefix = readUserInput("Destination key prefix (empty for none): ").trim();	
+					}while(bucketName.isEmpty() || prefix.isEmpty() || destinationBucketName.isEmpty());
+					objectOperations.movePrefix(bucketName, prefix, destinationBucketName, destinationPrefix);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "vd": {
+				try{
+					// Compare the checksums of a local directory with the objects of a prefix.
+					String prefix, directoryName;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						prefix = readUserInput("Key prefix (empty for none): ").trim();	
+						directoryName = readUserInput("Directory: ").trim();	
+					}while(bucketName.isEmpty() || directoryName.isEmpty());
+					objectOperations.verifyDirectory(bucketName, prefix, directoryName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "mt": {
+				try{
+					// Display the requests, errors, throughput and latency percentiles of each operation.
+					metrics.export(OperationMetrics.textExporter(System.out));
+					// And the occupancy of the transfer buffers.
+					System.out.print(BufferPool.heap());
+					System.out.print(BufferPool.direct());
+					for (BufferPool.Lease lease : BufferPool.heap().findLeaks(LEAK_AGE_MILLIS))
+						System.out.println(String.format("Possible leak: %s", lease));
+					for (BufferPool.Lease lease : BufferPool.direct().findLeaks(LEAK_AGE_MILLIS))
+						System.out.println(String.format("Possible leak: %s", lease));
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
@@ -0,0 +1,500 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/***
+ * Uploads data whose length is not known in advance, such as generated dumps or log streams,
+ * from an {@link InputStream}, a {@link ReadableByteChannel} or a {@link ByteBuffer}, without
+ * temporary files.
+ * The source is read into fixed-size parts which are uploaded concurrently with the multipart
+ * upload API while the next parts are read.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The parts are read into buffers lent by the shared heap {@link BufferPool}, at most
+ * 	concurrency + 1 at the same time for all the uploads of the uploader. A buffer returns to
+ * 	the pool as soon as its part is uploaded, and reading waits for one, so the memory stays at
+ * 	(concurrency + 1) x part size however large the data</li>
+ * 	<li>Data shorter than one part is sent with a single PUT</li>
+ * 	<li>Each part failing with a transient error is retried individually. If a part still fails
+ * 	after the configured number of retries, fails with another error, or the source cannot be
+ * 	read, the upload is aborted so that S3 does not keep (and bill) the uploaded parts</li>
+ * 	<li>Since S3 allows at most 10000 parts per upload, the largest object is 10000 x part size,
+ * 	about 80 GB with the default part size</li>
+ * 	<li>The MD5 and the CRC32C of each part are computed as the SDK reads its buffer. A part whose
+ * 	ETag is not its MD5 is sent again, and the ETag of the completed object is compared with the
+ * 	one computed from the part MD5s. The object is then stored, so a mismatch is reported in the
+ * 	result instead of failing the upload. The ETags of the objects encrypted with SSE-KMS or SSE-C
+ * 	are not MD5s, and are not compared. See {@link PartDigest}</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class StreamingUploader {
+
+	/**
+	 * Size of each part (in bytes).
+	 */
+	public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Number of parts uploaded at the same time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	// Initial delay before retrying a failed part, doubled at each attempt.
+	private static final long RETRY_BASE_DELAY_MS = 200;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	private final int partSize;
+	private final int maxRetries;
+
+	// Permits of the part buffers held at the same time.
+	private final Semaphore buffers;
+
+	// Bounded executor running the part uploads.
+	private final ExecutorService executor;
+
+	/**
+	 * Creates an uploader with the default part size, concurrency and retries.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public StreamingUploader(AmazonS3 authorizedClient) {
+		this(authorizedClient, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY, MultipartUploader.DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Creates an uploader.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param partSize Size of each part (in bytes). Must be at least 5 MB
+	 * @param concurrency Maximum number of parts uploaded at the same time. One more buffer
+	 * is used to read the next part
+	 * @param maxRetries Number of times a part failing with a transient error is retried
+	 */
+	public StreamingUploader(AmazonS3 authorizedClient, int partSize, int concurrency, int maxRetries) {
+		if (partSize < MultipartUploader.MIN_PART_SIZE)
+			throw new IllegalArgumentException(String.format("Part size must be at least %d bytes",
+					MultipartUploader.MIN_PART_SIZE));
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.s3Client = authorizedClient;
+		this.partSize = partSize;
+		this.maxRetries = maxRetries;
+		this.buffers = new Semaphore(concurrency + 1);
+		this.executor = ExecutionMode.getDefault().newExecutor("s3-stream-part", concurrency);
+	}
+
+	/**
+	 * Uploads the content of a stream, read to its end.
+	 * Blocks until all the parts are uploaded and the upload is completed or aborted.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param input The stream to upload. It is not closed
+	 * @return The result of the upload
+	 * @throws IOException Error reading the stream, or the upload was interrupted; the upload has been aborted
+	 * @throws AmazonClientException A part failed after all the retries; the upload has been aborted
+	 */
+	public Result upload(String bucketName, String keyName, InputStream input) throws IOException {
+		return upload(bucketName, keyName, input, null);
+	}
+
+	/**
+	 * Uploads the content of a stream, read to its end, with metadata such as the 
+	 * content type or the content encoding.
+	 * @see #upload(String, String, InputStream)
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param input The stream to upload. It is not closed
+	 * @param metadata The metadata of the object, or null. Do not set the content length, which is not known
+	 * @return The result of the upload
+	 * @throws IOException Error reading the stream, or the upload was interrupted; the upload has been aborted
+	 * @throws AmazonClientException A part failed after all the retries; the upload has been aborted
+	 */
+	public Result upload(String bucketName, String keyName, InputStream input, ObjectMetadata metadata) 
+			throws IOException {
+		return new Upload(bucketName, keyName, metadata).run(input);
+	}
+
+	/**
+	 * Uploads the content of a channel, read to its end.
+	 * @see #upload(String, String, InputStream)
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param channel The channel to upload. It must be in blocking mode, and is not closed
+	 * @return The result of the upload
+	 * @throws IOException Error reading the channel, or the upload was interrupted; the upload has been aborted
+	 */
+	public Result upload(String bucketName, String keyName, ReadableByteChannel channel) throws IOException {
+		return upload(bucketName, keyName, Channels.newInputStream(channel));
+	}
+
+	/**
+	 * Uploads the bytes of a buffer between its position and its limit.
+	 * The position of the buffer is not changed.
+	 * @see #upload(String, String, InputStream)
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param buffer The buffer to upload, on or off the heap
+	 * @return The result of the upload
+	 * @throws IOException The upload was interrupted; the upload has been aborted
+	 */
+	public Result upload(String bucketName, String keyName, ByteBuffer buffer) throws IOException {
+		final ByteBuffer source = buffer.duplicate();
+		return upload(bucketName, keyName, new InputStream() {
+			@Override
+			public int read() {
+				return source.hasRemaining() ? source.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (!source.hasRemaining())
+					return -1;
+				int n = Math.min(len, source.remaining());
+				source.get(b, off, n);
+				return n;
+			}
+		});
+	}
+
+	/**
+	 * Stops the worker threads. Uploads in progress are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Result of an upload.
+	 */
+	public static class Result {
+
+		private final long length;
+		private final int partCount;
+		private final String eTag;
+		private final int crc32c;
+		private final boolean verified;
+
+		Result(long length, int partCount, String eTag, int crc32c, boolean verified) {
+			this.length = length;
+			this.partCount = partCount;
+			this.eTag = eTag;
+			this.crc32c = crc32c;
+			this.verified = verified;
+		}
+
+		/**
+		 * @return The number of bytes uploaded.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return The number of parts, or 0 if the data was sent with a single PUT.
+		 */
+		public int getPartCount() {
+			return partCount;
+		}
+
+		/**
+		 * @return The ETag of the uploaded object.
+		 */
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @return The CRC32C of the uploaded bytes, combined from the CRC32Cs of the parts.
+		 */
+		public int getCrc32c() {
+			return crc32c;
+		}
+
+		/**
+		 * @return true if the ETag of the object matches the MD5s of the bytes read, false if it
+		 * differs or is not an MD5, for an object encrypted with SSE-KMS or SSE-C. The object
+		 * is stored in both cases.
+		 */
+		public boolean isVerified() {
+			return verified;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d bytes in %d parts, ETag %s%s, CRC32C %08x", length, partCount, eTag, 
+					verified ? "" : " (not verified)", crc32c);
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Takes a part buffer from the pool, waiting for a part to be uploaded when
+	 * all the buffers of the uploader are in use.
+	 */
+	private ByteBuffer takeBuffer() throws InterruptedException {
+		buffers.acquire();
+		return BufferPool.heap().acquire(partSize);
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		BufferPool.heap().release(buffer);
+		buffers.release();
+	}
+
+	/*
+	 * Reads from a stream until a part is read or the stream ends.
+	 */
+	private int fill(InputStream input, ByteBuffer buffer) throws IOException {
+		byte[] array = buffer.array();
+		int filled = 0;
+		while (filled < partSize) {
+			int n = input.read(array, filled, partSize - filled);
+			if (n < 0)
+				break;
+			filled += n;
+		}
+		return filled;
+	}
+
+	/*
+	 * One upload: reads the parts and submits them, then completes or aborts the upload.
+	 */
+	private class Upload {
+
+		private final String bucketName;
+		private final String keyName;
+		private final ObjectMetadata metadata;
+		private String uploadId;
+		private final List<PartTask> tasks = new ArrayList<PartTask>();
+		private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		// Parts before this index are known to have succeeded.
+		private int checked;
+
+		Upload(String bucketName, String keyName, ObjectMetadata metadata) {
+			this.bucketName = bucketName;
+			this.keyName = keyName;
+			this.metadata = metadata;
+		}
+
+		Result run(InputStream input) throws IOException {
+			ByteBuffer buffer = null;
+			try {
+				buffer = takeBuffer();
+				int n = fill(input, buffer);
+				if (n < partSize) {
+					// Shorter than a part: a single PUT.
+					ObjectMetadata single = metadata != null ? metadata.clone() : new ObjectMetadata();
+					single.setContentLength(n);
+					PartDigest digest = new PartDigest();
+					PutObjectResult put = s3Client.putObject(bucketName, keyName, PartDigest.digesting(
+							new ByteArrayInputStream(buffer.array(), 0, n), digest), single);
+					String eTag = put.getETag();
+					boolean verified = verify(digest.getLength() == n && digest.matches(eTag), 
+							put.getSSEAlgorithm(), put.getSSECustomerAlgorithm(), digest.getMd5Hex(), eTag);
+					return new Result(n, 0, eTag, digest.getCrc32c(), verified);
+				}
+
+				uploadId = s3Client.initiateMultipartUpload(
+						new InitiateMultipartUploadRequest(bucketName, keyName, metadata)).getUploadId();
+				System.out.println(String.format("Uploading %s in parts of %d bytes", keyName, partSize));
+				long length = 0;
+				while (n > 0) {
+					if (parts.size() == MultipartUploader.MAX_PARTS)
+						throw new IOException(String.format("%s is larger than %d parts of %d bytes",
+								keyName, MultipartUploader.MAX_PARTS, partSize));
+					submit(buffer, n);
+					length += n;
+					buffer = null;
+					checkCompleted();
+					if (n < partSize)
+						break;
+					buffer = takeBuffer();
+					n = fill(input, buffer);
+				}
+
+				List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+				for (Future<PartETag> part : parts)
+					partETags.add(part.get());
+				List<PartDigest> digests = new ArrayList<PartDigest>(tasks.size());
+				for (PartTask task : tasks)
+					digests.add(task.digest);
+				CompleteMultipartUploadResult completed = s3Client.completeMultipartUpload(
+						new CompleteMultipartUploadRequest(bucketName, keyName, uploadId, partETags));
+				uploadId = null;
+				String eTag = completed.getETag();
+				String expected = PartDigest.compositeETag(digests);
+				boolean verified = verify(expected.equalsIgnoreCase(PartDigest.unquote(eTag)), 
+						completed.getSSEAlgorithm(), completed.getSSECustomerAlgorithm(), expected, eTag);
+				return new Result(length, parts.size(), eTag, PartDigest.combineCrc32c(digests), verified);
+			}
+			catch (InterruptedException ie) {
+				abort();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(String.format("Upload of %s interrupted", keyName));
+			}
+			catch (ExecutionException ee) {
+				abort();
+				Throwable cause = ee.getCause();
+				if (cause instanceof AmazonClientException)
+					throw (AmazonClientException) cause;
+				throw new AmazonClientException(String.format("Upload of %s failed", keyName), cause);
+			}
+			catch (IOException ioe) {
+				abort();
+				throw ioe;
+			}
+			catch (RuntimeException re) {
+				abort();
+				throw re;
+			}
+			finally {
+				if (buffer != null)
+					releaseBuffer(buffer);
+			}
+		}
+
+		private void submit(ByteBuffer buffer, int length) {
+			PartTask task = new PartTask(new UploadPartRequest()
+				.withBucketName(bucketName)
+				.withKey(keyName)
+				.withUploadId(uploadId)
+				.withPartNumber(parts.size() + 1)
+				.withPartSize(length)
+				.withLastPart(length < partSize), buffer);
+			tasks.add(task);
+			parts.add(executor.submit(task));
+		}
+
+		/*
+		 * Checks the ETag of the stored object. The object is committed, so a mismatch is 
+		 * reported rather than thrown. The ETag of an encrypted object with SSE-KMS or SSE-C 
+		 * is not an MD5, and is not compared.
+		 */
+		private boolean verify(boolean matches, String sseAlgorithm, String sseCustomerAlgorithm, 
+				String expected, String eTag) {
+			if (!PartDigest.isContentMd5(sseAlgorithm, sseCustomerAlgorithm))
+				return false;
+			if (!matches)
+				System.out.println(String.format("ETag mismatch for %s: expected %s, S3 returned %s. "
+						+ "The object is stored, check its content", keyName, expected, eTag));
+			return matches;
+		}
+
+		/*
+		 * Stops reading as soon as a part has failed, instead of at the end of the source.
+		 */
+		private void checkCompleted() throws InterruptedException, ExecutionException {
+			while (checked < parts.size() && parts.get(checked).isDone())
+				parts.get(checked++).get();
+		}
+
+		/*
+		 * Cancels the pending parts, returns their buffers to the pool and aborts the upload.
+		 */
+		private void abort() {
+			for (int i = 0; i < tasks.size(); i++) {
+				tasks.get(i).cancel();
+				parts.get(i).cancel(true);
+			}
+			if (uploadId == null)
+				return;
+			try {
+				System.out.println(String.format("Aborting upload of %s", keyName));
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+			}
+			catch (AmazonClientException ace) {
+				System.out.println("Error Message: " + ace.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Uploads one part from its buffer, digesting it as it is sent, retrying with exponential backoff, 
+	 * and returns the buffer to the pool. A part cancelled before it starts returns its buffer at once.
+	 */
+	private class PartTask implements Callable<PartETag> {
+
+		private final UploadPartRequest request;
+		private final ByteBuffer buffer;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		// Digest of the part sent, read by the upload once the part is done.
+		private PartDigest digest;
+
+		PartTask(UploadPartRequest request, ByteBuffer buffer) {
+			this.request = request;
+			this.buffer = buffer;
+		}
+
+		void cancel() {
+			if (claimed.compareAndSet(false, true))
+				releaseBuffer(buffer);
+		}
+
+		@Override
+		public PartETag call() throws InterruptedException {
+			if (!claimed.compareAndSet(false, true))
+				throw new InterruptedException("Part cancelled");
+			try {
+				for (int attempt = 0; ; attempt++) {
+					try {
+						PartDigest sent = new PartDigest();
+						request.setInputStream(PartDigest.digesting(
+								new ByteArrayInputStream(buffer.array(), 0, (int) request.getPartSize()), sent));
+						UploadPartResult uploaded = s3Client.uploadPart(request);
+						PartETag partETag = uploaded.getPartETag();
+						// The ETag of a part encrypted with SSE-KMS or SSE-C is not its MD5.
+						boolean md5 = PartDigest.isContentMd5(uploaded.getSSEAlgorithm(), uploaded.getSSECustomerAlgorithm());
+						if (sent.getLength() != request.getPartSize() || (md5 && !sent.matches(partETag.getETag())))
+							throw new AmazonClientException(String.format("Part %d of %s: ETag %s is not the MD5 %s of the %d bytes sent",
+									request.getPartNumber(), request.getKey(), partETag.getETag(), sent.getMd5Hex(), sent.getLength()));
+						digest = sent;
+						return partETag;
+					}
+					catch (AmazonClientException ace) {
+						// A denied part, or an aborted upload, fails the same way however often it is sent.
+						if (attempt >= maxRetries || !RequestGovernor.isRetryable(ace))
+							throw ace;
+						System.out.println(String.format("Retrying part %d of %s: %s",
+								request.getPartNumber(), request.getKey(), ace.getMessage()));
+						Thread.sleep(RETRY_BASE_DELAY_MS << attempt);
+					}
+				}
+			}
+			finally {
+				releaseBuffer(buffer);
+			}
+		}
+	}
+}
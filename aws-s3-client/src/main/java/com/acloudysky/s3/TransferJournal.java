@@ -0,0 +1,548 @@
+package com.acloudysky.s3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+/***
+ * Records the progress of a bulk job in a local append-only log, so that a job restarted
+ * after a crash skips the work already done and resumes its multipart uploads.
+ * The journal records the completed operations, the multipart uploads in progress with
+ * their upload ID, and the ETag of each part uploaded.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The log is a memory-mapped file. An append copies the record into the mapping,
+ * 	without a system call, and the record is in the page cache as soon as it is written,
+ * 	so it survives the death of the process. {@link #sync()} also forces it to the disk, which
+ * 	only matters if the machine itself stops</li>
+ * 	<li>Each record carries a CRC32, and its length is written last. When the journal is
+ * 	opened, the log is replayed up to the first incomplete or corrupt record, which is
+ * 	where the process stopped</li>
+ * 	<li>The records of the finished uploads and their parts become garbage. When the garbage
+ * 	exceeds half of the live records, the log is compacted: the live state is written to a
+ * 	new file, which atomically replaces the log. When the log is full, the mapping is doubled</li>
+ * 	<li>The completed operations are kept in memory as a set of their identifiers. The
+ * 	methods are synchronized, so the journal can be shared by the worker threads of a job</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class TransferJournal implements Closeable {
+
+	// Identifies a journal file, and the layout of its records.
+	private static final int MAGIC = 0x53334a4c;
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+
+	// Size of the mapping of a new journal, doubled as needed.
+	private static final long INITIAL_CAPACITY = 1024 * 1024;
+
+	// Garbage below this size (in bytes) is never worth a compaction.
+	private static final long MIN_GARBAGE = 256 * 1024;
+
+	// Suffix of the file written by a compaction.
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	// Record types.
+	private static final byte COMPLETED = 1;
+	private static final byte UPLOAD_STARTED = 2;
+	private static final byte PART_COMPLETED = 3;
+	private static final byte UPLOAD_ENDED = 4;
+
+	private final File file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+
+	// Offset of the next record.
+	private int position;
+
+	// Bytes of the records still describing the state; the others are garbage.
+	private long liveBytes;
+
+	// True while compacting, so that a full log is grown instead of compacted again.
+	private boolean compacting;
+
+	// Body of the record being written, reused.
+	private ByteBuffer record = ByteBuffer.allocate(1024);
+	private final CRC32 crc = new CRC32();
+
+	// Replayed state.
+	private final Set<String> completed = new HashSet<String>();
+	private final Map<String, Upload> uploadsById = new HashMap<String, Upload>();
+	private final Map<String, Upload> uploadsByKey = new HashMap<String, Upload>();
+
+	/**
+	 * Opens a journal, or creates it if the file does not exist, and replays its records.
+	 * A journal holding more garbage than half of its live records is compacted.
+	 * @param file The journal file
+	 * @throws IOException The file could not be read or written, or is not a journal
+	 */
+	public TransferJournal(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityFor(Math.max(size, INITIAL_CAPACITY)));
+			if (size == 0) {
+				map.putInt(0, MAGIC);
+				map.putInt(4, VERSION);
+				position = HEADER_LENGTH;
+			}
+			else if (size < HEADER_LENGTH || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+				throw new IOException("Not a transfer journal: " + file);
+			else if (!replay() || isMostlyGarbage())
+				// Start from a clean log after a torn record, or when it is mostly garbage.
+				compact();
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks if an operation was completed.
+	 * @param id The identifier of the operation, unique in the job
+	 * @return true if the operation was recorded as completed
+	 */
+	public synchronized boolean isCompleted(String id) {
+		return completed.contains(id);
+	}
+
+	/**
+	 * Records the completion of an operation.
+	 * @param id The identifier of the operation, unique in the job
+	 * @throws IOException The journal could not be written
+	 */
+	public synchronized void markCompleted(String id) throws IOException {
+		if (completed.contains(id))
+			return;
+		begin(COMPLETED);
+		putString(id);
+		liveBytes += end();
+		completed.add(id);
+	}
+
+	/**
+	 * Finds the multipart upload in progress to an object.
+	 * @param bucketName The name of the bucket of the upload
+	 * @param keyName The name of the uploaded object
+	 * @return The upload with its completed parts, or null if none was recorded
+	 */
+	public synchronized Upload findUpload(String bucketName, String keyName) {
+		Upload upload = uploadsByKey.get(uploadKey(bucketName, keyName));
+		return upload == null ? null : upload.copy();
+	}
+
+	/**
+	 * Records the start of a multipart upload. It replaces the upload in progress to the same object, if any.
+	 * @param bucketName The name of the bucket of the upload
+	 * @param keyName The name of the uploaded object
+	 * @param source Description of the uploaded content, which must be identical to resume the upload,
+	 * such as the path, size and modification time of a file and the part size
+	 * @param uploadId The upload ID returned by S3
+	 * @throws IOException The journal could not be written
+	 */
+	public synchronized void uploadStarted(String bucketName, String keyName, String source, String uploadId)
+			throws IOException {
+		begin(UPLOAD_STARTED);
+		putString(bucketName);
+		putString(keyName);
+		putString(source);
+		putString(uploadId);
+		addUpload(new Upload(bucketName, keyName, source, uploadId), end());
+	}
+
+	/**
+	 * Records an uploaded part of a multipart upload in progress.
+	 * @param uploadId The upload ID
+	 * @param partETag The number and ETag of the part
+	 * @throws IOException The journal could not be written
+	 */
+	public synchronized void partCompleted(String uploadId, PartETag partETag) throws IOException {
+		Upload upload = uploadsById.get(uploadId);
+		if (upload == null)
+			return;
+		begin(PART_COMPLETED);
+		putString(uploadId);
+		record.putInt(partETag.getPartNumber());
+		putString(partETag.getETag());
+		int size = end();
+		upload.parts.put(partETag.getPartNumber(), partETag.getETag());
+		upload.bytes += size;
+		liveBytes += size;
+	}
+
+	/**
+	 * Records the end of a multipart upload, completed or aborted. Its records become garbage.
+	 * @param uploadId The upload ID
+	 * @throws IOException The journal could not be written
+	 */
+	public synchronized void uploadEnded(String uploadId) throws IOException {
+		if (!uploadsById.containsKey(uploadId))
+			return;
+		begin(UPLOAD_ENDED);
+		putString(uploadId);
+		end();
+		removeUpload(uploadId);
+		// The only record making others garbage: the log is compacted when the garbage
+		// grows too large, even if the mapping still has room.
+		if (isMostlyGarbage())
+			compact();
+	}
+
+	/**
+	 * Rewrites the journal with only its live records: the completed operations and the uploads
+	 * in progress. The new file replaces the journal atomically.
+	 * @throws IOException The journal could not be written
+	 */
+	public synchronized void compact() throws IOException {
+		File temp = new File(file.getPath() + COMPACT_SUFFIX);
+		FileChannel compactedChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		FileChannel oldChannel = channel;
+		MappedByteBuffer oldMap = map;
+		int oldPosition = position;
+		try {
+			channel = compactedChannel;
+			map = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					capacityFor(Math.max(INITIAL_CAPACITY, 2 * (HEADER_LENGTH + liveBytes))));
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			position = HEADER_LENGTH;
+			compacting = true;
+			liveBytes = 0;
+			for (String id : completed) {
+				begin(COMPLETED);
+				putString(id);
+				liveBytes += end();
+			}
+			for (Upload upload : uploadsById.values()) {
+				begin(UPLOAD_STARTED);
+				putString(upload.bucketName);
+				putString(upload.keyName);
+				putString(upload.source);
+				putString(upload.uploadId);
+				upload.bytes = end();
+				for (Map.Entry<Integer, String> part : upload.parts.entrySet()) {
+					begin(PART_COMPLETED);
+					putString(upload.uploadId);
+					record.putInt(part.getKey());
+					putString(part.getValue());
+					upload.bytes += end();
+				}
+				liveBytes += upload.bytes;
+			}
+			map.force();
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException | RuntimeException e) {
+			// Keep appending to the old log.
+			compactedChannel.close();
+			temp.delete();
+			channel = oldChannel;
+			map = oldMap;
+			position = oldPosition;
+			liveBytes = countLiveBytes();
+			throw e;
+		}
+		finally {
+			compacting = false;
+		}
+		oldChannel.close();
+	}
+
+	/**
+	 * Forces the records written so far to the disk.
+	 */
+	public synchronized void sync() {
+		map.force();
+	}
+
+	/**
+	 * @return The number of operations recorded as completed.
+	 */
+	public synchronized int getCompletedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * @return The number of multipart uploads in progress.
+	 */
+	public synchronized int getUploadCount() {
+		return uploadsById.size();
+	}
+
+	/**
+	 * @return The length of the log, in bytes.
+	 */
+	public synchronized long getLength() {
+		return position;
+	}
+
+	/**
+	 * Forces the records to the disk and closes the journal.
+	 * @throws IOException The journal could not be closed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!channel.isOpen())
+			return;
+		map.force();
+		channel.close();
+	}
+
+	/**
+	 * Closes and deletes the journal, typically once its job has fully succeeded.
+	 * @throws IOException The journal could not be deleted
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		Files.deleteIfExists(file.toPath());
+	}
+
+	/**
+	 * A multipart upload in progress, as recorded in the journal.
+	 */
+	public static class Upload {
+
+		private final String bucketName, keyName, source, uploadId;
+
+		// ETag of each uploaded part, by part number.
+		private final TreeMap<Integer, String> parts = new TreeMap<Integer, String>();
+
+		// Bytes of the records of the upload.
+		private long bytes;
+
+		Upload(String bucketName, String keyName, String source, String uploadId) {
+			this.bucketName = bucketName;
+			this.keyName = keyName;
+			this.source = source;
+			this.uploadId = uploadId;
+		}
+
+		/**
+		 * @return The name of the bucket of the upload.
+		 */
+		public String getBucketName() {
+			return bucketName;
+		}
+
+		/**
+		 * @return The name of the uploaded object.
+		 */
+		public String getKeyName() {
+			return keyName;
+		}
+
+		/**
+		 * @return The description of the uploaded content.
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * @return The upload ID.
+		 */
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		/**
+		 * @return The parts uploaded, in part number order.
+		 */
+		public List<PartETag> getParts() {
+			List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+			for (Map.Entry<Integer, String> part : parts.entrySet())
+				partETags.add(new PartETag(part.getKey(), part.getValue()));
+			return partETags;
+		}
+
+		private Upload copy() {
+			Upload copy = new Upload(bucketName, keyName, source, uploadId);
+			copy.parts.putAll(parts);
+			return copy;
+		}
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Replays the records of the log into the state, and places the position after the last
+	 * valid record. Returns false if the log ends with a torn or corrupt record.
+	 */
+	private boolean replay() {
+		position = HEADER_LENGTH;
+		while (position + 4 <= map.capacity()) {
+			int length = map.getInt(position);
+			if (length == 0)
+				return true;
+			if (length < 1 || (long) position + length + 8 > map.capacity())
+				return false;
+			ByteBuffer body = map.duplicate();
+			// Positioned through Buffer, whose methods return ByteBuffer only from Java 9.
+			((Buffer) body).limit(position + 4 + length).position(position + 4);
+			crc.reset();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != map.getInt(position + 4 + length))
+				return false;
+			int size = length + 8;
+			switch (body.get()) {
+				case COMPLETED:
+					if (completed.add(getString(body)))
+						liveBytes += size;
+					break;
+				case UPLOAD_STARTED:
+					addUpload(new Upload(getString(body), getString(body), getString(body), getString(body)), size);
+					break;
+				case PART_COMPLETED: {
+					Upload upload = uploadsById.get(getString(body));
+					if (upload != null) {
+						int partNumber = body.getInt();
+						upload.parts.put(partNumber, getString(body));
+						upload.bytes += size;
+						liveBytes += size;
+					}
+					break;
+				}
+				case UPLOAD_ENDED:
+					removeUpload(getString(body));
+					break;
+				default:
+					return false;
+			}
+			position += size;
+		}
+		return true;
+	}
+
+	/*
+	 * Checks if the garbage exceeds half of the live records, ignoring small amounts.
+	 */
+	private boolean isMostlyGarbage() {
+		long garbage = position - HEADER_LENGTH - liveBytes;
+		return garbage > Math.max(liveBytes / 2, MIN_GARBAGE);
+	}
+
+	private void addUpload(Upload upload, int size) {
+		Upload replaced = uploadsByKey.get(uploadKey(upload.bucketName, upload.keyName));
+		if (replaced != null)
+			removeUpload(replaced.uploadId);
+		upload.bytes = size;
+		liveBytes += size;
+		uploadsById.put(upload.uploadId, upload);
+		uploadsByKey.put(uploadKey(upload.bucketName, upload.keyName), upload);
+	}
+
+	private void removeUpload(String uploadId) {
+		Upload upload = uploadsById.remove(uploadId);
+		if (upload == null)
+			return;
+		uploadsByKey.remove(uploadKey(upload.bucketName, upload.keyName));
+		liveBytes -= upload.bytes;
+	}
+
+	private long countLiveBytes() {
+		long bytes = 0;
+		for (String id : completed)
+			bytes += 13 + id.getBytes(StandardCharsets.UTF_8).length;
+		for (Upload upload : uploadsById.values())
+			bytes += upload.bytes;
+		return bytes;
+	}
+
+	private static String uploadKey(String bucketName, String keyName) {
+		return bucketName + '\u0000' + keyName;
+	}
+
+	/*
+	 * Starts a record of the specified type.
+	 */
+	private void begin(byte type) {
+		((Buffer) record).clear();
+		record.put(type);
+	}
+
+	private void putString(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		// Room for the string and for a number after it.
+		if (record.remaining() < 8 + bytes.length) {
+			ByteBuffer larger = ByteBuffer.allocate(2 * (record.capacity() + bytes.length));
+			((Buffer) record).flip();
+			larger.put(record);
+			record = larger;
+		}
+		record.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer body) {
+		byte[] bytes = new byte[body.getInt()];
+		body.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Appends the record to the log: its length, its body and its CRC32.
+	 * The length is written last, so that a record torn by the death of the process
+	 * reads as the end of the log. Returns the size of the record in the log.
+	 */
+	private int end() throws IOException {
+		int length = record.position();
+		int size = length + 8;
+		if ((long) position + size + 4 > map.capacity()) {
+			// Compact when the log is mostly garbage, otherwise grow it.
+			if (!compacting && isMostlyGarbage()) {
+				// The compaction writes its own records through the record buffer.
+				byte[] pending = Arrays.copyOf(record.array(), length);
+				compact();
+				((Buffer) record).clear();
+				record.put(pending);
+			}
+			if ((long) position + size + 4 > map.capacity())
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityFor(2 * ((long) position + size)));
+		}
+		crc.reset();
+		crc.update(record.array(), 0, length);
+		ByteBuffer target = map.duplicate();
+		((Buffer) target).position(position + 4);
+		target.put(record.array(), 0, length);
+		target.putInt((int) crc.getValue());
+		map.putInt(position, length);
+		position += size;
+		return size;
+	}
+
+	/*
+	 * Rounds a capacity up to a whole number of initial capacities, within the limit of a mapping.
+	 */
+	private static long capacityFor(long bytes) throws IOException {
+		long capacity = (bytes + INITIAL_CAPACITY - 1) / INITIAL_CAPACITY * INITIAL_CAPACITY;
+		if (capacity > Integer.MAX_VALUE)
+			throw new IOException("Transfer journal too large, compact it or start a new one");
+		return capacity;
+	}
+}
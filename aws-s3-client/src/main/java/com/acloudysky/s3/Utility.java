@@ -1,12 +1,12 @@
 package com.acloudysky.s3;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -24,6 +24,13 @@ import com.amazonaws.regions.Regions;
 */
 public class Utility implements IUtility {
 	
+	// Size of the buffers displaying a stream.
+	private static final int DISPLAY_BUFFER_SIZE = 64 * 1024;
+	
+	// Written before each line displayed, and after it.
+	private static final byte[] INDENT = "    ".getBytes();
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+	
 	/**
 	 * Gets the application menu.
 	 * @return List containing the menu.
@@ -52,24 +59,8 @@ public class Utility implements IUtility {
 	 * @return The enumerated value representing the desired region. 
 	 */
 	public static Regions getRegion(String key) {
-		Regions currentRegion = null;
-		Set<?> set = s3Regions.entrySet();
-	    Iterator<?> iterator = set.iterator();
-		while(iterator.hasNext()) {
-	       Map.Entry<?, ?> mentry = (Map.Entry<?,?>)iterator.next();
-	       
-	       // Test
-	       // System.out.println(String.format("Key: %s Value: %s", mentry.getKey(), mentry.getValue()));
-	       
-	       // Check if the key exists in the list.
-	       int keyExist = key.trim().toLowerCase().compareTo(mentry.getKey().toString());
-	       
-	       if (keyExist == 0) {
-	    	   // Assign the selected region. 
-	    	   currentRegion = (Regions) mentry.getValue();
-	    	   break;
-	       }	 
-		} 
+		// Look the key up in the list.
+		Regions currentRegion = (Regions) s3Regions.get(key.trim().toLowerCase());
 		
 		if (currentRegion == null)
 			System.out.println(String.format("Selected region %s not allowed!", key.trim().toLowerCase()));
@@ -132,7 +123,8 @@ public class Utility implements IUtility {
 	 /**
 	  * Gets the specified resource file
 	  * @param fileName The name of the resource file.
-	  * @return The resource file.
+	  * @return The resource file, or null if the resource is not a file, for example when it is 
+	  * packed in a jar. Read it with {@link Class#getResourceAsStream(String)} then.
 	  * <b>Note</b>. The file should exist in the project resources folder. 
 	  */
 	 public static File getResourceFile(String fileName){
@@ -140,6 +132,8 @@ public class Utility implements IUtility {
 		 File resourceFile = null;
 		 
 		 URL resource = Utility.class.getResource("/" + fileName);
+		 if (resource == null || !"file".equals(resource.getProtocol()))
+			 return null;
 		 
 		 // Test
 		 // System.out.println(String.format("File name is: %s", fileName));
@@ -158,24 +152,78 @@ public class Utility implements IUtility {
 	 
 	 /**
       * Displays the contents of the specified input stream as text.
+      * Each line is indented. The bytes are copied to the standard output as they are, 
+      * through pooled buffers, without decoding them into strings.
       * @param input The input stream to display as text.
       * @throws IOException Error encountered while handling the stream.
       */
     public static void displayTextInputStream(InputStream input) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-        while (true) {
-            String line = reader.readLine();
-            if (line == null) break;
-
-            System.out.println("    " + line);
+        ByteBuffer in = BufferPool.heap().acquire(DISPLAY_BUFFER_SIZE);
+        ByteBuffer out = BufferPool.heap().acquire(DISPLAY_BUFFER_SIZE);
+        try {
+            byte[] chunk = in.array();
+            // Line ends are \n, \r or \r\n, as for BufferedReader.readLine.
+            boolean inLine = false, afterReturn = false;
+            int n;
+            while ((n = input.read(chunk, 0, DISPLAY_BUFFER_SIZE)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    byte b = chunk[i];
+                    if (b == '\n' && afterReturn) {
+                        afterReturn = false;
+                        start = i + 1;
+                        continue;
+                    }
+                    afterReturn = false;
+                    if (b == '\n' || b == '\r') {
+                        if (!inLine)
+                            append(out, INDENT, 0, INDENT.length);
+                        append(out, chunk, start, i - start);
+                        append(out, LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+                        inLine = false;
+                        afterReturn = b == '\r';
+                        start = i + 1;
+                    }
+                    else if (!inLine) {
+                        append(out, INDENT, 0, INDENT.length);
+                        inLine = true;
+                    }
+                }
+                append(out, chunk, start, n - start);
+            }
+            if (inLine)
+                append(out, LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+            append(out, LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+            System.out.write(out.array(), 0, out.position());
+            System.out.flush();
+        }
+        finally {
+            BufferPool.heap().release(out);
+            BufferPool.heap().release(in);
         }
-        System.out.println();
     }
 	 
 	 /*************************
 	  ** Internal utilities. **
 	  *************************/
 	 
+	 /*
+	  * Appends bytes to the output buffer, writing it to the standard output when full.
+	  */
+	 private static void append(ByteBuffer out, byte[] bytes, int offset, int length) {
+		 while (length > 0) {
+			 if (!out.hasRemaining()) {
+				 System.out.write(out.array(), 0, out.position());
+				 // Through Buffer, whose clear() returns ByteBuffer only from Java 9.
+				 ((Buffer) out).clear();
+			 }
+			 int n = Math.min(length, out.remaining());
+			 out.put(bytes, offset, n);
+			 offset += n;
+			 length -= n;
+		 }
+	 }
+	 
 	 /*
 	  * Creates the header to display.
 	  * @param headerText The text to display in the header.
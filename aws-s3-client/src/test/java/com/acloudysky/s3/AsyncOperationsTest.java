@@ -0,0 +1,180 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks that {@link AsyncOperations} overlaps the requests up to its in-flight limit, through a
+ * {@link LocalS3Stub} with 10 ms of latency per request, that a queued operation cancelled by the
+ * caller leaves the queue, and that it fails the operations submitted after a shutdown.
+ * @author Michael Miele
+ *
+ */
+public class AsyncOperationsTest {
+
+	private static final String BUCKET = "async-test";
+
+	private static final int OBJECTS = 2000;
+
+	private static final int MAX_IN_FLIGHT = 200;
+
+	private static final long LATENCY_MICROS = 10000;
+
+	@Test
+	public void overlapsRequestsUpToTheLimit() throws Exception {
+		AmazonS3 stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		for (int i = 0; i < OBJECTS; i++)
+			put(stub, key(i), content(i));
+		LocalS3Stub.of(stub).setLatencyMicros(LATENCY_MICROS);
+
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		AmazonS3 client = counting(stub, running, maxRunning);
+		AsyncOperations operations = new AsyncOperations(client, new MultipartUploader(client),
+				new RangedDownloader(client), new BatchDeleter(client), MAX_IN_FLIGHT);
+		try {
+			long start = System.nanoTime();
+			List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < OBJECTS; i++)
+				futures.add(operations.getObject(BUCKET, key(i)));
+			for (int i = 0; i < OBJECTS; i++)
+				assertArrayEquals(content(i), futures.get(i).get(30, TimeUnit.SECONDS));
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			// One at a time the gets would take OBJECTS * 10 ms = 20 s; 200 at a time, about 0.1 s.
+			assertTrue("took " + millis + " ms", millis < OBJECTS * LATENCY_MICROS / 1000 / 4);
+			assertTrue("ran " + maxRunning.get() + " at once", maxRunning.get() <= MAX_IN_FLIGHT);
+			assertTrue("ran " + maxRunning.get() + " at once", maxRunning.get() > 1);
+			awaitIdle(operations);
+			assertEquals(0, operations.getPendingCount());
+		}
+		finally {
+			operations.shutdown();
+		}
+	}
+
+	@Test
+	public void failsOperationsAfterShutdown() throws Exception {
+		AmazonS3 client = LocalS3Stub.newClient();
+		client.createBucket(BUCKET);
+		put(client, key(0), content(0));
+		AsyncOperations operations = new AsyncOperations(client, new MultipartUploader(client),
+				new RangedDownloader(client), new BatchDeleter(client), MAX_IN_FLIGHT);
+		assertArrayEquals(content(0), operations.getObject(BUCKET, key(0)).get(30, TimeUnit.SECONDS));
+		awaitIdle(operations);
+		operations.shutdown();
+
+		CompletableFuture<byte[]> future = operations.getObject(BUCKET, key(0));
+		try {
+			future.get(30, TimeUnit.SECONDS);
+			fail("An operation submitted after the shutdown ran");
+		}
+		catch (ExecutionException ee) {
+			assertTrue(String.valueOf(ee.getCause()), ee.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(0, operations.getInFlightCount());
+		assertEquals(0, operations.getPendingCount());
+	}
+
+	@Test
+	public void removesCancelledOperationsFromTheQueue() throws Exception {
+		AmazonS3 client = LocalS3Stub.newClient();
+		client.createBucket(BUCKET);
+		put(client, key(0), content(0));
+		LocalS3Stub.of(client).setLatencyMicros(200000);
+		long requests = LocalS3Stub.of(client).getRequestCount();
+		AsyncOperations operations = new AsyncOperations(client, new MultipartUploader(client),
+				new RangedDownloader(client), new BatchDeleter(client), 1);
+		try {
+			CompletableFuture<byte[]> running = operations.getObject(BUCKET, key(0));
+			CompletableFuture<byte[]> cancelled = operations.getObject(BUCKET, key(0));
+			CompletableFuture<byte[]> queued = operations.getObject(BUCKET, key(0));
+			assertEquals(2, operations.getPendingCount());
+			assertTrue(cancelled.cancel(false));
+			assertEquals(1, operations.getPendingCount());
+
+			assertArrayEquals(content(0), running.get(30, TimeUnit.SECONDS));
+			assertArrayEquals(content(0), queued.get(30, TimeUnit.SECONDS));
+			awaitIdle(operations);
+			// The cancelled operation sent no request.
+			assertEquals(requests + 2, LocalS3Stub.of(client).getRequestCount());
+		}
+		finally {
+			operations.shutdown();
+		}
+	}
+
+	/*
+	 * Waits for the worker threads to release their slots, which they do just after completing the futures.
+	 */
+	private static void awaitIdle(AsyncOperations operations) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (operations.getInFlightCount() > 0 && System.nanoTime() < deadline)
+			Thread.sleep(1);
+		assertEquals(0, operations.getInFlightCount());
+	}
+
+	/*
+	 * Wraps the client to record the highest number of gets running at the same time.
+	 */
+	private static AmazonS3 counting(final AmazonS3 client, final AtomicInteger running,
+			final AtomicInteger maxRunning) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						boolean get = "getObject".equals(method.getName());
+						if (get) {
+							int now = running.incrementAndGet();
+							for (int max; now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now); )
+								;
+						}
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+						finally {
+							if (get)
+								running.decrementAndGet();
+						}
+					}
+				});
+	}
+
+	private static void put(AmazonS3 client, String key, byte[] data) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		client.putObject(BUCKET, key, new ByteArrayInputStream(data), metadata);
+	}
+
+	private static String key(int i) {
+		return String.format("object-%05d", i);
+	}
+
+	private static byte[] content(int i) {
+		return ("content of object " + i).getBytes();
+	}
+}
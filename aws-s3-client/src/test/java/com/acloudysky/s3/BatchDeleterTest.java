@@ -0,0 +1,183 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+
+/**
+ * Checks that a {@link BatchDeleter} deletes the objects of a prefix from a {@link LocalS3Stub} in
+ * batches of at most 1000 keys, that it walks every page of versions and delete markers, which lets
+ * {@link BucketOperations} delete a versioned bucket, and that it submits again only the keys a
+ * multi-object delete reports as failed, returning the ones still failing after the retries.
+ * @author Michael Miele
+ *
+ */
+public class BatchDeleterTest {
+
+	private static final String BUCKET = "batch-delete-test";
+
+	private AmazonS3 stub;
+	// Number of keys of each delete request.
+	private final List<Integer> batches = new CopyOnWriteArrayList<Integer>();
+	// Keys whose deletion fails, and the number of requests in which they fail.
+	private final Set<String> failing = new HashSet<String>();
+	private final AtomicInteger failures = new AtomicInteger();
+	private BatchDeleter deleter;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		deleter = new BatchDeleter(intercepting(stub), 2, 1);
+	}
+
+	@After
+	public void tearDown() {
+		deleter.shutdown();
+	}
+
+	@Test
+	public void deletesObjectsInBatches() throws IOException {
+		for (int i = 0; i < 2500; i++)
+			put("data/" + i, 10);
+		put("kept", 10);
+		BatchDeleter.Result result = deleter.deleteObjects(BUCKET, "data/");
+		assertEquals(2500, result.getDeletedCount());
+		assertTrue(result.getErrors().isEmpty());
+		assertEquals(3, batches.size());
+		for (int batch : batches)
+			assertTrue("batch of " + batch + " keys", batch <= BatchDeleter.MAX_BATCH_SIZE);
+		assertTrue(stub.listObjects(BUCKET, "data/").getObjectSummaries().isEmpty());
+		assertEquals(1, stub.listObjects(BUCKET).getObjectSummaries().size());
+	}
+
+	@Test
+	public void purgesEveryVersionPage() throws IOException {
+		// Two versions and a delete marker per key: 2100 entries, over three pages.
+		for (int i = 0; i < 700; i++) {
+			put("key-" + i, 10);
+			put("key-" + i, 20);
+			stub.deleteObject(BUCKET, "key-" + i);
+		}
+		assertTrue(stub.listObjects(BUCKET).getObjectSummaries().isEmpty());
+		BatchDeleter.Result result = deleter.deleteVersions(BUCKET, null);
+		assertEquals(2100, result.getDeletedCount());
+		assertEquals(700 * 30, result.getBytesFreed());
+		assertTrue(result.getErrors().isEmpty());
+		assertTrue(batches.toString(), batches.size() >= 3);
+		List<S3VersionSummary> versions = stub.listVersions(BUCKET, null).getVersionSummaries();
+		assertTrue(versions.size() + " versions left", versions.isEmpty());
+
+		// The bucket is empty of versions too, so it can be deleted.
+		put("key-0", 10);
+		stub.deleteObject(BUCKET, "key-0");
+		new BucketOperations(stub, deleter).delete(BUCKET);
+		assertFalse(stub.doesBucketExist(BUCKET));
+	}
+
+	@Test
+	public void submitsFailedKeysAgain() throws IOException {
+		for (int i = 0; i < 10; i++)
+			put("key-" + i, 10);
+		failing.addAll(Arrays.asList("key-3", "key-7"));
+		failures.set(1);
+		BatchDeleter.Result result = deleter.deleteObjects(BUCKET, null);
+		assertEquals(10, result.getDeletedCount());
+		assertTrue(result.getErrors().isEmpty());
+		// The retry sends only the failed keys.
+		assertEquals(Arrays.asList(10, 2), batches);
+		assertTrue(stub.listObjects(BUCKET).getObjectSummaries().isEmpty());
+	}
+
+	@Test
+	public void returnsKeysFailingAfterRetries() throws IOException {
+		for (int i = 0; i < 10; i++)
+			put("key-" + i, 10);
+		failing.add("key-5");
+		failures.set(2);
+		BatchDeleter.Result result = deleter.deleteObjects(BUCKET, null);
+		assertEquals(9, result.getDeletedCount());
+		assertEquals(1, result.getErrors().size());
+		assertEquals("key-5", result.getErrors().get(0).getKey());
+		assertEquals("AccessDenied", result.getErrors().get(0).getCode());
+		assertEquals(Arrays.asList(10, 1), batches);
+		assertEquals(1, stub.listObjects(BUCKET).getObjectSummaries().size());
+	}
+
+	private void put(String key, int size) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(size);
+		stub.putObject(BUCKET, key, new ByteArrayInputStream(new byte[size]), metadata);
+	}
+
+	/*
+	 * Records the size of the delete requests, and fails the deletion of the failing keys
+	 * while failures remain, deleting the others as a partially failed request does.
+	 */
+	private AmazonS3 intercepting(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("deleteObjects")) {
+							DeleteObjectsRequest request = (DeleteObjectsRequest) args[0];
+							batches.add(request.getKeys().size());
+							if (failures.getAndDecrement() > 0)
+								return deletePartially(client, request);
+						}
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+	}
+
+	private Object deletePartially(AmazonS3 client, DeleteObjectsRequest request) {
+		List<KeyVersion> deleted = new ArrayList<KeyVersion>();
+		List<DeleteError> errors = new ArrayList<DeleteError>();
+		for (KeyVersion key : request.getKeys()) {
+			if (!failing.contains(key.getKey())) {
+				deleted.add(key);
+				continue;
+			}
+			DeleteError error = new DeleteError();
+			error.setKey(key.getKey());
+			error.setVersionId(key.getVersion());
+			error.setCode("AccessDenied");
+			errors.add(error);
+		}
+		if (!deleted.isEmpty())
+			client.deleteObjects(new DeleteObjectsRequest(request.getBucketName()).withKeys(deleted));
+		throw new MultiObjectDeleteException(errors, new ArrayList<DeletedObject>());
+	}
+}
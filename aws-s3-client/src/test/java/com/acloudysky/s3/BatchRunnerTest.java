@@ -0,0 +1,148 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Checks that a {@link BatchRunner} runs a manifest against a {@link LocalS3Stub}, creating a bucket
+ * before the operations which fill it and deleting it after them, that it reports failed operations
+ * and invalid lines with their exit codes, and that a second run with the same journal skips the
+ * operations completed by the first.
+ * @author Michael Miele
+ *
+ */
+public class BatchRunnerTest {
+
+	private static final String BUCKET = "batch-runner-test";
+
+	private static final int FILES = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 stub;
+	private ByteArrayOutputStream output;
+	private BatchRunner runner;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		// Gives the operations time to overlap, so that a missing barrier shows.
+		LocalS3Stub.of(stub).setLatencyMicros(2000);
+		output = new ByteArrayOutputStream();
+		runner = new BatchRunner(stub, 4, new PrintStream(output, true));
+	}
+
+	@After
+	public void tearDown() {
+		runner.shutdown();
+	}
+
+	@Test
+	public void runsManifestBetweenBarriers() throws IOException {
+		StringBuilder manifest = new StringBuilder("# Fills a bucket, then deletes it.\n\n");
+		manifest.append("cb\t").append(BUCKET).append('\n');
+		for (int i = 0; i < FILES; i++) {
+			File file = write("file-" + i, random(1000 + i));
+			manifest.append(String.format("uo %s key-%d %s%n", BUCKET, i, file.getPath()));
+		}
+		File downloaded = new File(folder.getRoot(), "downloaded");
+		manifest.append("wait\n")
+			.append("lo ").append(BUCKET).append('\n')
+			.append("wait\n")
+			.append("xo ").append(BUCKET).append(" key-1\n")
+			.append("do ").append(BUCKET).append(" key-0 ").append(downloaded.getPath()).append('\n')
+			.append("db ").append(BUCKET).append('\n');
+
+		BatchRunner.Summary summary = runner.run(new StringReader(manifest.toString()));
+		assertEquals(output.toString(), FILES + 5, summary.getSucceededCount());
+		assertEquals(0, summary.getFailedCount());
+		assertEquals(BatchRunner.EXIT_OK, summary.getExitCode());
+		assertTrue(output.toString(), output.toString().contains(String.format("%d objects", FILES)));
+		assertArrayEquals(random(1000), Files.readAllBytes(downloaded.toPath()));
+		assertFalse(stub.doesBucketExist(BUCKET));
+	}
+
+	@Test
+	public void reportsFailedOperations() throws IOException {
+		stub.createBucket(BUCKET);
+		String manifest = String.format("xo %s key%ndo %s missing %s%n", BUCKET, BUCKET,
+				new File(folder.getRoot(), "missing").getPath());
+		BatchRunner.Summary summary = runner.run(new StringReader(manifest));
+		assertEquals(1, summary.getSucceededCount());
+		assertEquals(1, summary.getFailedCount());
+		assertEquals(BatchRunner.EXIT_FAILED, summary.getExitCode());
+		assertTrue(output.toString(), output.toString().contains("\tFAILED\t"));
+	}
+
+	@Test
+	public void reportsInvalidLines() throws IOException {
+		String manifest = String.format("cb%nrm %s key%ncb %s%n", BUCKET, BUCKET);
+		BatchRunner.Summary summary = runner.run(new StringReader(manifest));
+		assertEquals(2, summary.getInvalidCount());
+		// The valid lines still run.
+		assertEquals(1, summary.getSucceededCount());
+		assertTrue(stub.doesBucketExist(BUCKET));
+		assertEquals(BatchRunner.EXIT_INVALID, summary.getExitCode());
+		assertTrue(output.toString(), output.toString().contains("1\tINVALID\t"));
+		assertTrue(output.toString(), output.toString().contains("rm is not allowed"));
+	}
+
+	@Test
+	public void skipsOperationsCompletedByPreviousRun() throws IOException {
+		File file = write("file", random(1000));
+		String manifest = String.format("cb %s%nuo %s key %s%n", BUCKET, BUCKET, file.getPath());
+		File journalFile = new File(folder.getRoot(), "batch.journal");
+		TransferJournal journal = new TransferJournal(journalFile);
+		try {
+			assertEquals(2, runner.run(new StringReader(manifest), journal).getSucceededCount());
+		}
+		finally {
+			journal.close();
+		}
+
+		stub.deleteObject(BUCKET, "key");
+		journal = new TransferJournal(journalFile);
+		try {
+			BatchRunner.Summary summary = runner.run(new StringReader(manifest), journal);
+			assertEquals(2, summary.getSkippedCount());
+			assertEquals(0, summary.getSucceededCount());
+			assertEquals(BatchRunner.EXIT_OK, summary.getExitCode());
+		}
+		finally {
+			journal.close();
+		}
+		assertTrue(output.toString(), output.toString().contains("2\tSKIPPED\t"));
+		assertTrue(stub.listObjects(BUCKET).getObjectSummaries().isEmpty());
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
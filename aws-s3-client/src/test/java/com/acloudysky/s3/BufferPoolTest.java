@@ -0,0 +1,195 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks that a {@link BufferPool} lends buffers of the size classes, reuses the released ones up to
+ * its limit of free bytes, rejects a buffer released twice, reports the buffers still lent, and that
+ * the transfer paths stop allocating once warm, against a {@link LocalS3Stub}.
+ * @author Michael Miele
+ *
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void lendsBuffersOfSizeClasses() {
+		BufferPool pool = new BufferPool(false, BufferPool.DEFAULT_HEAP_FREE_BYTES);
+		ByteBuffer buffer = pool.acquire(5000);
+		assertEquals(8192, buffer.capacity());
+		assertEquals(0, buffer.position());
+		assertEquals(5000, buffer.limit());
+		assertFalse(buffer.isDirect());
+		assertEquals(0, buffer.arrayOffset());
+		assertEquals(8192, pool.getBytesInUse());
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).capacity());
+
+		BufferPool direct = new BufferPool(true, BufferPool.DEFAULT_DIRECT_FREE_BYTES);
+		assertTrue(direct.isDirect());
+		assertTrue(direct.acquire(BufferPool.MIN_SIZE).isDirect());
+	}
+
+	@Test
+	public void reusesReleasedBuffers() {
+		BufferPool pool = new BufferPool(false, BufferPool.DEFAULT_HEAP_FREE_BYTES);
+		ByteBuffer buffer = pool.acquire(8192);
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		assertEquals(0, pool.getBytesInUse());
+		assertEquals(8192, pool.getFreeBytes());
+
+		// Same class, cleared.
+		ByteBuffer again = pool.acquire(6000);
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(6000, again.limit());
+		assertEquals(2, pool.getAcquireCount());
+		assertEquals(1, pool.getAllocationCount());
+		assertEquals(8192, pool.getPeakBytesInUse());
+	}
+
+	@Test
+	public void keepsFreeBytesUnderLimit() {
+		BufferPool pool = new BufferPool(false, 8192);
+		ByteBuffer first = pool.acquire(8192);
+		ByteBuffer second = pool.acquire(8192);
+		pool.release(first);
+		pool.release(second);
+		assertEquals(8192, pool.getFreeBytes());
+		assertEquals(0, pool.getBytesInUse());
+
+		// Larger than the largest class: allocated and forgotten.
+		ByteBuffer large = pool.acquire(BufferPool.MAX_SIZE + 1);
+		assertEquals(BufferPool.MAX_SIZE + 1, large.capacity());
+		pool.release(large);
+		assertEquals(8192, pool.getFreeBytes());
+		assertEquals(3, pool.getAllocationCount());
+	}
+
+	@Test
+	public void rejectsInvalidReleases() {
+		BufferPool pool = new BufferPool(false, BufferPool.DEFAULT_HEAP_FREE_BYTES);
+		ByteBuffer buffer = pool.acquire(100);
+		pool.release(buffer);
+		try {
+			pool.release(buffer);
+			fail("Released a buffer twice");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+		assertEquals(0, pool.getBytesInUse());
+		assertEquals(BufferPool.MIN_SIZE, pool.getFreeBytes());
+		try {
+			pool.release(ByteBuffer.allocate(BufferPool.MIN_SIZE));
+			fail("Released a buffer of another pool");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+		try {
+			pool.acquire(-1);
+			fail("Lent a buffer of negative size");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void reportsBuffersStillLent() {
+		BufferPool pool = new BufferPool(true, BufferPool.DEFAULT_DIRECT_FREE_BYTES);
+		pool.setLeakTracking(true);
+		ByteBuffer released = pool.acquire(100);
+		ByteBuffer leaked = pool.acquire(20000);
+		pool.release(released);
+
+		List<BufferPool.Lease> leaks = pool.findLeaks(0);
+		assertEquals(1, leaks.size());
+		BufferPool.Lease lease = leaks.get(0);
+		assertEquals(32768, lease.getCapacity());
+		assertEquals(Thread.currentThread().getName(), lease.getThreadName());
+		boolean found = false;
+		for (StackTraceElement element : lease.getSite())
+			found |= element.getMethodName().equals("reportsBuffersStillLent");
+		assertTrue(lease.toString(), found);
+		assertTrue(pool.findLeaks(60000).isEmpty());
+
+		pool.release(leaked);
+		assertTrue(pool.findLeaks(0).isEmpty());
+	}
+
+	@Test
+	public void lendsFromConcurrentThreads() throws InterruptedException {
+		final BufferPool pool = new BufferPool(false, BufferPool.DEFAULT_HEAP_FREE_BYTES);
+		final int threads = 8, calls = 20000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int t = 0; t < threads; t++) {
+			final byte value = (byte) t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < calls; i++) {
+							ByteBuffer buffer = pool.acquire(64 * 1024);
+							buffer.put(0, value);
+							Thread.yield();
+							// No other thread holds the buffer.
+							if (buffer.get(0) != value)
+								throw new AssertionError("Buffer lent twice");
+							pool.release(buffer);
+						}
+					}
+					catch (Throwable e) {
+						failure.set(e);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(null, failure.get());
+		assertEquals(0, pool.getBytesInUse());
+		assertEquals(threads * calls, pool.getAcquireCount());
+		assertTrue(pool.getAllocationCount() + " allocations", pool.getAllocationCount() <= threads);
+	}
+
+	@Test
+	public void transfersStopAllocating() throws Exception {
+		AmazonS3 s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket("buffer-pool-test");
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(64 * 1024);
+		s3Client.putObject("buffer-pool-test", "object", new ByteArrayInputStream(new byte[64 * 1024]), metadata);
+		ChannelDownloader downloader = new ChannelDownloader(s3Client);
+		WritableByteChannel sink = Channels.newChannel(new ByteArrayOutputStream());
+
+		downloader.download("buffer-pool-test", "object", sink);
+		long heapAllocations = BufferPool.heap().getAllocationCount();
+		long directAllocations = BufferPool.direct().getAllocationCount();
+		for (int i = 0; i < 100; i++)
+			downloader.download("buffer-pool-test", "object", sink);
+		assertEquals(heapAllocations, BufferPool.heap().getAllocationCount());
+		assertEquals(directAllocations, BufferPool.direct().getAllocationCount());
+	}
+}
@@ -0,0 +1,131 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks that a {@link ChannelDownloader} writes the bytes of objects of a {@link LocalS3Stub}
+ * unchanged to a channel, a range of them, or the decompressed content of a compressed object,
+ * and returns its pooled buffers.
+ * @author Michael Miele
+ *
+ */
+public class ChannelDownloaderTest {
+
+	private static final String BUCKET = "channel-download-test";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 s3Client;
+	private ChannelDownloader downloader;
+	private byte[] data;
+
+	@Before
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		// Every byte value, over several buffers.
+		data = new byte[3 * ChannelDownloader.BUFFER_SIZE + 1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		put("binary", data, null);
+		downloader = new ChannelDownloader(s3Client);
+	}
+
+	@Test
+	public void writesBytesUnchanged() throws IOException {
+		long heapInUse = BufferPool.heap().getBytesInUse();
+		long directInUse = BufferPool.direct().getBytesInUse();
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		assertEquals(data.length, downloader.download(BUCKET, "binary", Channels.newChannel(target)));
+		assertArrayEquals(data, target.toByteArray());
+		assertEquals(heapInUse, BufferPool.heap().getBytesInUse());
+		assertEquals(directInUse, BufferPool.direct().getBytesInUse());
+
+		File file = folder.newFile("binary");
+		assertEquals(data.length, ChannelDownloader.transfer(new ByteArrayInputStream(data), file.toPath()));
+		assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void writesRange() throws IOException {
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		GetObjectRequest request = new GetObjectRequest(BUCKET, "binary").withRange(1000, 200999);
+		assertEquals(200000, downloader.download(request, Channels.newChannel(target)));
+		assertArrayEquals(Arrays.copyOfRange(data, 1000, 201000), target.toByteArray());
+	}
+
+	@Test
+	public void decompressesCompressedObjects() throws IOException {
+		byte[] text = new byte[1024 * 1024];
+		Random random = new Random(1);
+		for (int i = 0; i < text.length; i++)
+			text[i] = (byte) (i % 81 == 80 ? '\n' : 'a' + random.nextInt(4));
+		for (CompressionCodec codec : CompressionCodec.values()) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			OutputStream output = codec.compress(compressed);
+			output.write(text);
+			output.close();
+			put(codec.name(), compressed.toByteArray(), codec.getContentEncoding());
+
+			ByteArrayOutputStream target = new ByteArrayOutputStream();
+			assertEquals(codec.name(), text.length, downloader.download(BUCKET, codec.name(), Channels.newChannel(target)));
+			assertArrayEquals(codec.name(), text, target.toByteArray());
+
+			// A range is written as it is stored.
+			target.reset();
+			GetObjectRequest request = new GetObjectRequest(BUCKET, codec.name()).withRange(0, 99);
+			assertEquals(codec.name(), 100, downloader.download(request, Channels.newChannel(target)));
+			assertArrayEquals(codec.name(), Arrays.copyOf(compressed.toByteArray(), 100), target.toByteArray());
+		}
+	}
+
+	@Test
+	public void reportsUnmetConstraints() throws IOException {
+		String eTag = s3Client.getObjectMetadata(BUCKET, "binary").getETag();
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		GetObjectRequest request = new GetObjectRequest(BUCKET, "binary").withNonmatchingETagConstraint(eTag);
+		assertEquals(-1, downloader.download(request, Channels.newChannel(target)));
+		assertEquals(0, target.size());
+
+		WritableByteChannel channel = Channels.newChannel(target);
+		try {
+			downloader.download(BUCKET, "missing", channel);
+			fail("Downloaded a missing object");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(404, ase.getStatusCode());
+		}
+	}
+
+	private void put(String key, byte[] content, String contentEncoding) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		if (contentEncoding != null)
+			metadata.setContentEncoding(contentEncoding);
+		s3Client.putObject(BUCKET, key, new ByteArrayInputStream(content), metadata);
+	}
+}
@@ -0,0 +1,200 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that each {@link CompressionCodec} run by a {@link CompressionStage} gives back the original
+ * text, including through an upload and a download against a {@link LocalS3Stub}, that a codec error
+ * reaches the reader, and that a stage closed early returns its chunks to the pool.
+ * @author Michael Miele
+ *
+ */
+public class CompressionStageTest {
+
+	private static final String BUCKET = "compression-test";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void compressesAndDecompressesEachCodec() throws IOException {
+		byte[] text = text(3 * CompressionStage.CHUNK_SIZE + 1000);
+		for (CompressionCodec codec : CompressionCodec.values()) {
+			CompressionStage compressing = CompressionStage.compress(new ByteArrayInputStream(text), codec);
+			byte[] compressed;
+			try {
+				compressed = IOUtils.toByteArray(compressing);
+				assertEquals(codec.name(), text.length, compressing.getBytesIn());
+				assertEquals(codec.name(), compressed.length, compressing.getBytesOut());
+			}
+			finally {
+				compressing.close();
+			}
+			// Text of log lines is at least halved.
+			assertTrue(codec + ": " + compressed.length, compressed.length < text.length / 2);
+
+			CompressionStage decompressing = CompressionStage.decompress(new ByteArrayInputStream(compressed), codec);
+			try {
+				assertArrayEquals(codec.name(), text, IOUtils.toByteArray(decompressing));
+			}
+			finally {
+				decompressing.close();
+			}
+
+			// In place, as a download to a file.
+			Path file = folder.newFile(codec.name()).toPath();
+			Files.write(file, compressed);
+			assertEquals(text.length, CompressionStage.decompress(file, codec));
+			assertArrayEquals(codec.name(), text, Files.readAllBytes(file));
+		}
+	}
+
+	@Test
+	public void uploadsAndDownloadsCompressed() throws IOException {
+		AmazonS3 s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		StreamingUploader uploader = new StreamingUploader(s3Client);
+		ChannelDownloader downloader = new ChannelDownloader(s3Client);
+		byte[] text = text(1024 * 1024);
+		try {
+			for (CompressionCodec codec : CompressionCodec.values()) {
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentEncoding(codec.getContentEncoding());
+				CompressionStage stage = CompressionStage.compress(new ByteArrayInputStream(text), codec);
+				try {
+					uploader.upload(BUCKET, codec.name(), stage, metadata);
+				}
+				finally {
+					stage.close();
+				}
+				ObjectMetadata stored = s3Client.getObjectMetadata(BUCKET, codec.name());
+				assertEquals(codec.getContentEncoding(), stored.getContentEncoding());
+				assertTrue(codec.name(), stored.getContentLength() < text.length / 2);
+
+				ByteArrayOutputStream target = new ByteArrayOutputStream();
+				assertEquals(text.length, downloader.download(BUCKET, codec.name(), Channels.newChannel(target)));
+				assertArrayEquals(codec.name(), text, target.toByteArray());
+			}
+		}
+		finally {
+			uploader.shutdown();
+		}
+	}
+
+	@Test
+	public void reportsCodecErrors() throws IOException {
+		byte[] garbage = text(10000);
+		for (CompressionCodec codec : CompressionCodec.values()) {
+			CompressionStage stage = CompressionStage.decompress(new ByteArrayInputStream(garbage), codec);
+			try {
+				IOUtils.toByteArray(stage);
+				fail(codec + " decompressed text which is not compressed");
+			}
+			catch (IOException ioe) {
+				// Expected.
+			}
+			finally {
+				stage.close();
+			}
+		}
+
+		Path file = folder.newFile("garbage").toPath();
+		Files.write(file, garbage);
+		try {
+			CompressionStage.decompress(file, CompressionCodec.GZIP);
+			fail("Decompressed a file which is not compressed");
+		}
+		catch (IOException ioe) {
+			// The file is left unchanged.
+			assertArrayEquals(garbage, Files.readAllBytes(file));
+		}
+	}
+
+	@Test
+	public void returnsChunksWhenClosedEarly() throws Exception {
+		long heapInUse = BufferPool.heap().getBytesInUse();
+		// Endless text: the codec thread fills the queue, then stops when the stage is closed.
+		InputStream endless = new InputStream() {
+			private final byte[] line = "2016-11-05 12:00:00 INFO GET /api/orders 200\n".getBytes(StandardCharsets.UTF_8);
+			private int position;
+
+			@Override
+			public int read() {
+				return line[position++ % line.length];
+			}
+		};
+		CompressionStage stage = CompressionStage.compress(endless, CompressionCodec.SNAPPY);
+		assertTrue(stage.read(new byte[100]) > 0);
+		stage.close();
+		for (int i = 0; i < 500 && BufferPool.heap().getBytesInUse() != heapInUse; i++)
+			Thread.sleep(10);
+		assertEquals(heapInUse, BufferPool.heap().getBytesInUse());
+		try {
+			stage.read();
+			fail("Read a closed stage");
+		}
+		catch (IOException ioe) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void parsesCodecNames() {
+		assertSame(CompressionCodec.GZIP, CompressionCodec.parse(" Gzip "));
+		assertSame(CompressionCodec.SNAPPY, CompressionCodec.parse("snappy"));
+		assertNull(CompressionCodec.parse("none"));
+		assertNull(CompressionCodec.parse(""));
+		assertNull(CompressionCodec.parse(null));
+		try {
+			CompressionCodec.parse("lz4");
+			fail("Parsed an unknown codec");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+		assertSame(CompressionCodec.SNAPPY, CompressionCodec.forContentEncoding("X-Snappy-Framed"));
+		assertSame(CompressionCodec.GZIP, CompressionCodec.forContentEncoding("gzip"));
+		assertNull(CompressionCodec.forContentEncoding("br"));
+		assertNull(CompressionCodec.forContentEncoding(null));
+	}
+
+	/*
+	 * Log lines with random values.
+	 */
+	private static byte[] text(int length) {
+		Random random = new Random(length);
+		String[] paths = { "/api/orders", "/api/customers", "/api/products", "/health", "/login" };
+		StringBuilder text = new StringBuilder(length + 100);
+		while (text.length() < length) {
+			text.append(String.format("2016-11-%02d %02d:%02d:%02d INFO [worker-%d] GET %s/%d %d %d ms%n",
+					random.nextInt(30) + 1, random.nextInt(24), random.nextInt(60), random.nextInt(60),
+					random.nextInt(16), paths[random.nextInt(paths.length)], random.nextInt(100000),
+					random.nextInt(10) == 0 ? 500 : 200, random.nextInt(800)));
+		}
+		text.setLength(length);
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,156 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks that a {@link ContentCache} revalidates its objects with conditional GETs against a
+ * {@link LocalS3Stub}, fetches them again when they change, evicts the least recently used ones
+ * beyond its budget, and finds its objects again after a restart.
+ * @author Michael Miele
+ *
+ */
+public class ContentCacheTest {
+
+	private static final String BUCKET = "content-cache-test";
+
+	private static final int SIZE = 64 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 stub;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		for (int i = 0; i < 4; i++)
+			put("reference/" + i, data(i));
+		directory = folder.newFolder("cache");
+	}
+
+	@Test
+	public void revalidatesCachedObjects() throws IOException {
+		ContentCache cache = new ContentCache(stub, directory);
+		try {
+			assertArrayEquals(data(0), read(cache, "reference/0"));
+			assertArrayEquals(data(0), read(cache, "reference/0"));
+			assertEquals(1, cache.getMissCount());
+			assertEquals(1, cache.getRevalidationCount());
+			assertEquals(1, cache.getHitCount());
+
+			// Overwritten: the conditional GET returns the new content.
+			put("reference/0", data(9));
+			assertArrayEquals(data(9), read(cache, "reference/0"));
+			assertEquals(2, cache.getMissCount());
+			assertEquals(1, cache.getEntryCount());
+			assertEquals(SIZE, cache.getBytes());
+		}
+		finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void servesFreshObjectsWithoutRequests() throws IOException {
+		ContentCache cache = new ContentCache(stub, null, directory, ContentCache.DEFAULT_MAX_BYTES, 60000);
+		try {
+			read(cache, "reference/0");
+			long before = LocalS3Stub.of(stub).getRequestCount();
+			assertArrayEquals(data(0), read(cache, "reference/0"));
+			assertEquals(before, LocalS3Stub.of(stub).getRequestCount());
+			assertEquals(0, cache.getRevalidationCount());
+		}
+		finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws IOException {
+		ContentCache cache = new ContentCache(stub, null, directory, SIZE * 5 / 2, 0);
+		try {
+			read(cache, "reference/0");
+			read(cache, "reference/1");
+			read(cache, "reference/0");
+			read(cache, "reference/2");
+			assertEquals(1, cache.getEvictionCount());
+			assertEquals(2, cache.getEntryCount());
+			assertEquals(2 * SIZE, cache.getBytes());
+
+			long misses = cache.getMissCount();
+			read(cache, "reference/0");
+			assertEquals(misses, cache.getMissCount());
+			read(cache, "reference/1");
+			assertEquals(misses + 1, cache.getMissCount());
+		}
+		finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void reloadsIndexAfterRestart() throws IOException {
+		ContentCache cache = new ContentCache(stub, directory);
+		read(cache, "reference/0");
+		read(cache, "reference/1");
+		cache.invalidatePrefix(BUCKET, "reference/1");
+		cache.close();
+
+		File foreign = new File(directory, "notes.txt");
+		Files.write(foreign.toPath(), new byte[1]);
+		File partial = new File(directory, "object123.tmp");
+		Files.write(partial.toPath(), new byte[1]);
+
+		cache = new ContentCache(stub, directory);
+		try {
+			assertEquals(1, cache.getEntryCount());
+			assertArrayEquals(data(0), read(cache, "reference/0"));
+			assertEquals(0, cache.getMissCount());
+			assertEquals(1, cache.getRevalidationCount());
+			assertTrue(foreign.exists());
+			assertFalse(partial.exists());
+		}
+		finally {
+			cache.close();
+		}
+	}
+
+	private byte[] read(ContentCache cache, String key) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertEquals(SIZE, cache.transferTo(BUCKET, key, Channels.newChannel(bytes)));
+		return bytes.toByteArray();
+	}
+
+	private void put(String key, byte[] data) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		stub.putObject(BUCKET, key, new ByteArrayInputStream(data), metadata);
+	}
+
+	private static byte[] data(int i) {
+		byte[] data = new byte[SIZE];
+		Arrays.fill(data, (byte) i);
+		return data;
+	}
+}
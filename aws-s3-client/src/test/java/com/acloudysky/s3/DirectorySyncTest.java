@@ -0,0 +1,257 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that a {@link DirectorySync} uploads to a {@link LocalS3Stub} only the new and changed
+ * files of a directory tree, and deletes the objects without a file only on request, and that it
+ * downloads only the new and changed objects, replacing a file only once its download completes,
+ * deletes the files without an object only on request, and rejects the keys which resolve
+ * outside of the directory.
+ * @author Michael Miele
+ *
+ */
+public class DirectorySyncTest {
+
+	private static final String BUCKET = "directory-sync-test";
+
+	private static final String PREFIX = "data/";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 stub;
+	// Keys whose GET fails.
+	private final Set<String> failing = new CopyOnWriteArraySet<String>();
+	private DirectorySync sync;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		sync = new DirectorySync(intercepting(stub), new MultipartUploader(stub), new RangedDownloader(stub),
+				new BatchDeleter(stub), new ParallelLister(stub), 4);
+		directory = folder.newFolder("local");
+	}
+
+	@After
+	public void tearDown() {
+		sync.shutdown();
+	}
+
+	@Test
+	public void uploadsOnlyChangedFiles() throws IOException {
+		for (int i = 0; i < 4; i++)
+			write("file-" + i, random(1000 + i));
+		write("sub/dir/file", random(2000));
+		DirectorySync.Result result = sync.upload(directory, BUCKET, "data", DirectorySync.Comparison.CHECKSUM, false);
+		assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+		assertEquals(5, result.getTransferredCount());
+		assertArrayEquals(random(2000), content(PREFIX + "sub/dir/file"));
+
+		// Same size and time, one byte changed: only the checksum sees it.
+		File file = new File(directory, "file-1");
+		long lastModified = file.lastModified();
+		RandomAccessFile changed = new RandomAccessFile(file, "rw");
+		try {
+			changed.seek(10);
+			int b = changed.read();
+			changed.seek(10);
+			changed.write(b ^ 1);
+		}
+		finally {
+			changed.close();
+		}
+		assertTrue(file.setLastModified(lastModified));
+		write("file-4", random(1004));
+		result = sync.upload(directory, BUCKET, PREFIX, DirectorySync.Comparison.SIZE_AND_TIME, false);
+		assertEquals(6, result.getScannedCount());
+		assertEquals(1, result.getTransferredCount());
+		assertEquals(5, result.getUnchangedCount());
+
+		result = sync.upload(directory, BUCKET, PREFIX, DirectorySync.Comparison.CHECKSUM, false);
+		assertEquals(1, result.getTransferredCount());
+		assertEquals(5, result.getUnchangedCount());
+		assertArrayEquals(Files.readAllBytes(file.toPath()), content(PREFIX + "file-1"));
+	}
+
+	@Test
+	public void deletesExtraObjectsOnRequest() throws IOException {
+		write("file", random(100));
+		stub.putObject(BUCKET, PREFIX + "extra", write("extra", random(10)));
+		stub.putObject(BUCKET, "outside", new File(directory, "extra"));
+		assertTrue(new File(directory, "extra").delete());
+
+		DirectorySync.Result result = sync.upload(directory, BUCKET, PREFIX, DirectorySync.Comparison.CHECKSUM, false);
+		assertEquals(1, result.getExtraCount());
+		assertEquals(0, result.getDeletedCount());
+		assertEquals(3, stub.listObjects(BUCKET).getObjectSummaries().size());
+
+		result = sync.upload(directory, BUCKET, PREFIX, DirectorySync.Comparison.CHECKSUM, true);
+		assertEquals(1, result.getDeletedCount());
+		assertEquals(1, result.getUnchangedCount());
+		assertEquals(2, stub.listObjects(BUCKET).getObjectSummaries().size());
+		assertEquals(1, stub.listObjects(BUCKET, "outside").getObjectSummaries().size());
+	}
+
+	@Test
+	public void downloadsOnlyChangedObjects() throws IOException {
+		put(PREFIX + "a", random(1000));
+		put(PREFIX + "sub/b", random(2000));
+		DirectorySync.Result result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, false);
+		assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+		assertEquals(2, result.getTransferredCount());
+		File a = new File(directory, "a");
+		assertArrayEquals(random(1000), Files.readAllBytes(a.toPath()));
+		assertArrayEquals(random(2000), Files.readAllBytes(new File(directory, "sub/b").toPath()));
+		// The file gets the upload time of its object.
+		assertEquals(stub.getObjectMetadata(BUCKET, PREFIX + "a").getLastModified().getTime() / 1000,
+				a.lastModified() / 1000);
+
+		result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.SIZE_AND_TIME, false);
+		assertEquals(0, result.getTransferredCount());
+		assertEquals(2, result.getUnchangedCount());
+
+		put(PREFIX + "a", random(1001));
+		result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, false);
+		assertEquals(1, result.getTransferredCount());
+		assertEquals(1, result.getUnchangedCount());
+		assertArrayEquals(random(1001), Files.readAllBytes(a.toPath()));
+	}
+
+	@Test
+	public void replacesFileOnlyWhenDownloadCompletes() throws IOException {
+		put(PREFIX + "a", random(1000));
+		sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, false);
+		File a = new File(directory, "a");
+
+		// A failed download leaves the file as it was.
+		put(PREFIX + "a", random(1001));
+		failing.add(PREFIX + "a");
+		DirectorySync.Result result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, true);
+		assertEquals(1, result.getErrors().size());
+		assertArrayEquals(random(1000), Files.readAllBytes(a.toPath()));
+
+		// The temporary file of an interrupted download is neither an extra file nor a target.
+		File temp = new File(directory, ".a" + DirectorySync.TEMP_SUFFIX);
+		Files.write(temp.toPath(), random(10));
+		failing.clear();
+		result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, true);
+		assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+		assertEquals(0, result.getDeletedCount());
+		assertEquals(1, result.getTransferredCount());
+		assertArrayEquals(random(1001), Files.readAllBytes(a.toPath()));
+		assertFalse(temp.exists());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void deletesExtraFilesOnRequest() throws IOException {
+		put(PREFIX + "a", random(100));
+		File extra = write("sub/extra", random(10));
+		DirectorySync.Result result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, false);
+		assertEquals(1, result.getExtraCount());
+		assertTrue(extra.exists());
+
+		result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, true);
+		assertEquals(1, result.getDeletedCount());
+		assertEquals(1, result.getUnchangedCount());
+		assertFalse(extra.exists());
+	}
+
+	@Test
+	public void rejectsKeysOutsideDirectory() throws IOException {
+		put(PREFIX + "ok", random(100));
+		put(PREFIX + "../escaped", random(100));
+		DirectorySync.Result result = sync.download(BUCKET, PREFIX, directory, DirectorySync.Comparison.CHECKSUM, false);
+		assertEquals(1, result.getTransferredCount());
+		assertEquals(1, result.getErrors().size());
+		assertTrue(result.getErrors().get(0), result.getErrors().get(0).contains("outside of"));
+		assertFalse(new File(folder.getRoot(), "escaped").exists());
+		assertTrue(new File(directory, "ok").exists());
+	}
+
+	private void put(String key, byte[] data) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		stub.putObject(BUCKET, key, new ByteArrayInputStream(data), metadata);
+	}
+
+	/*
+	 * Fails the GET of the failing keys with a server error.
+	 */
+	private AmazonS3 intercepting(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getObject") && args[0] instanceof GetObjectRequest
+								&& failing.contains(((GetObjectRequest) args[0]).getKey())) {
+							AmazonS3Exception error = new AmazonS3Exception("InternalError");
+							error.setStatusCode(500);
+							error.setErrorCode("InternalError");
+							throw error;
+						}
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+	}
+
+	private File write(String path, byte[] data) throws IOException {
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private byte[] content(String key) throws IOException {
+		InputStream content = stub.getObject(BUCKET, key).getObjectContent();
+		try {
+			return IOUtils.toByteArray(content);
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
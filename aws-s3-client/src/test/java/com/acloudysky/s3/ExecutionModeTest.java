@@ -0,0 +1,161 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that the executors of both {@link ExecutionMode}s run every GET against a {@link LocalS3Stub}
+ * with at most the configured concurrency, and that the virtual mode still runs its queued
+ * tasks after a shutdown.
+ * @author Michael Miele
+ *
+ */
+public class ExecutionModeTest {
+
+	private static final String BUCKET = "execution-mode-test";
+
+	private static final int OBJECTS = 400;
+
+	private static final int CONCURRENCY = 16;
+
+	@Test
+	public void parsesModeNames() {
+		assertEquals(ExecutionMode.PLATFORM, ExecutionMode.parse(null));
+		assertEquals(ExecutionMode.PLATFORM, ExecutionMode.parse(" "));
+		assertEquals(ExecutionMode.VIRTUAL, ExecutionMode.parse(" Virtual "));
+		try {
+			ExecutionMode.parse("green");
+			fail("Parsed an unknown mode");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void platformCapsConcurrentRequests() throws Exception {
+		capsConcurrentRequests(ExecutionMode.PLATFORM);
+	}
+
+	@Test
+	public void virtualCapsConcurrentRequests() throws Exception {
+		capsConcurrentRequests(ExecutionMode.VIRTUAL);
+	}
+
+	@Test
+	public void virtualRunsQueuedTasksAfterShutdown() throws Exception {
+		ExecutorService executor = ExecutionMode.VIRTUAL.newExecutor("test", 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				ran.incrementAndGet();
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					ran.incrementAndGet();
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					ran.incrementAndGet();
+				}
+			});
+			fail("Accepted a task after the shutdown");
+		}
+		catch (RejectedExecutionException ree) {
+			// Expected.
+		}
+		release.countDown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(6, ran.get());
+	}
+
+	/*
+	 * Gets every object of the stand-in through an executor of the mode, counting the GETs
+	 * running at the same time.
+	 */
+	private static void capsConcurrentRequests(ExecutionMode mode) throws Exception {
+		final AmazonS3 s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		final byte[] payload = new byte[256];
+		for (int i = 0; i < OBJECTS; i++) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(payload.length);
+			s3Client.putObject(BUCKET, "object-" + i, new ByteArrayInputStream(payload), metadata);
+		}
+		LocalS3Stub.of(s3Client).setLatencyMicros(2000);
+
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(OBJECTS);
+		ExecutorService executor = mode.newExecutor("test", CONCURRENCY);
+		try {
+			for (int i = 0; i < OBJECTS; i++) {
+				final String key = "object-" + i;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						int now = running.incrementAndGet();
+						for (int max; now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now); )
+							;
+						try {
+							InputStream content = s3Client.getObject(BUCKET, key).getObjectContent();
+							try {
+								if (IOUtils.toByteArray(content).length != payload.length)
+									failures.incrementAndGet();
+							}
+							finally {
+								content.close();
+							}
+						}
+						catch (Exception e) {
+							failures.incrementAndGet();
+						}
+						finally {
+							running.decrementAndGet();
+							done.countDown();
+						}
+					}
+				});
+			}
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertEquals(0, failures.get());
+		assertTrue(mode + " ran " + maxRunning.get() + " at once", maxRunning.get() <= CONCURRENCY);
+		assertTrue(mode + " ran " + maxRunning.get() + " at once", maxRunning.get() > 1);
+	}
+}
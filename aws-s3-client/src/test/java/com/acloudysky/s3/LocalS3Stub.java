@@ -0,0 +1,966 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.model.DeleteBucketRequest;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteVersionRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/**
+ * In-process, in-memory stand-in for the subset of the S3 API used by the application.
+ * It is meant for benchmarks and local experiments, not as a faithful emulation of S3.
+ * <b>Notes</b>
+ * <ul>
+ * 	<li>The client is a dynamic proxy of {@link AmazonS3}. Each supported API method is
+ * 	implemented by a method with the same name and parameter types in this class;
+ * 	the others throw {@link UnsupportedOperationException}</li>
+ * 	<li>Every bucket keeps the versions of its objects, so deletes add delete markers
+ * 	and version listings work as in a versioned bucket. Without versioning, a put replaces
+ * 	the object and a delete removes it, see {@link #setVersioned(boolean)}</li>
+ * 	<li>An optional fixed latency is added to every request, to approximate the
+ * 	round trip to the service</li>
+ * 	<li>An optional bandwidth limit makes the uploaded and downloaded content go through
+ * 	a link shared by all the requests, see {@link #setBandwidth(long)}</li>
+ * 	<li>An optional request rate limit makes the requests in excess fail with
+ * 	<i>503 Slow Down</i>, as S3 does when a prefix receives too many requests</li>
+ * 	<li>Stand-ins of several regions can share their bucket names, see
+ * 	{@link #newRegionalClient(AmazonS3, String)}. The requests sent to the wrong region fail with
+ * 	<i>301 Permanent Redirect</i></li>
+ * 	<li>An object put with SSE-KMS gets an ETag which is not the MD5 of its content, as in S3</li>
+ * </ul>
+ * @author Michael Miele
+ *
+ */
+public class LocalS3Stub implements InvocationHandler {
+
+	// Largest number of keys returned in a listing page.
+	private static final int MAX_KEYS = 1000;
+
+	// Shortest wait for the link of the bandwidth limit.
+	private static final long MIN_WAIT_NANOS = 2000000;
+
+	private final Map<String, ConcurrentSkipListMap<String, List<Version>>> buckets =
+			new ConcurrentHashMap<String, ConcurrentSkipListMap<String, List<Version>>>();
+	// Region of every bucket of the stand-ins sharing the bucket names, including this one.
+	private final Map<String, String> locations;
+	private final String region;
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+	private final AtomicLong ids = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private volatile long latencyMicros;
+	private volatile boolean versioned = true;
+
+	// Request rate limit, in requests per second, or 0 for no limit.
+	private volatile double rateLimit;
+	// Requests allowed before the next one is throttled, refilled at the rate limit.
+	private double tokens;
+	private long refilledNanos;
+	private final AtomicLong throttled = new AtomicLong();
+
+	// Bandwidth of the link shared by the transfers, in bytes per second, or 0 for no limit.
+	private volatile long bandwidth;
+	// Time at which the link has sent the content of the transfers so far.
+	private long linkFreeNanos;
+
+	/**
+	 * Creates the stand-in.
+	 * @param latencyMicros Latency added to every request, in microseconds.
+	 */
+	public LocalS3Stub(long latencyMicros) {
+		this(latencyMicros, RegionResolver.US_STANDARD, new ConcurrentHashMap<String, String>());
+	}
+
+	private LocalS3Stub(long latencyMicros, String region, Map<String, String> locations) {
+		this.latencyMicros = latencyMicros;
+		this.region = region;
+		this.locations = locations;
+	}
+
+	/**
+	 * Creates a client backed by a new, empty stand-in without added latency.
+	 * @return The client.
+	 */
+	public static AmazonS3 newClient() {
+		return newClient(0);
+	}
+
+	/**
+	 * Creates a client backed by a new, empty stand-in.
+	 * @param latencyMicros Latency added to every request, in microseconds.
+	 * @return The client.
+	 */
+	public static AmazonS3 newClient(long latencyMicros) {
+		return (AmazonS3) Proxy.newProxyInstance(LocalS3Stub.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new LocalS3Stub(latencyMicros));
+	}
+
+	/**
+	 * Creates a client backed by a new, empty stand-in of another region, with the same latency.
+	 * The two stand-ins share their bucket names: a bucket created in one region
+	 * answers the requests sent to the other with <i>301 Permanent Redirect</i>.
+	 * @param client A client created by {@link #newClient(long)} or by this method.
+	 * @param region The name of the region of the new stand-in, for example eu-west-1.
+	 * @return The client.
+	 */
+	public static AmazonS3 newRegionalClient(AmazonS3 client, String region) {
+		LocalS3Stub stub = of(client);
+		return (AmazonS3) Proxy.newProxyInstance(LocalS3Stub.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new LocalS3Stub(stub.latencyMicros, region, stub.locations));
+	}
+
+	/**
+	 * Gets the stand-in behind a client created by {@link #newClient(long)}.
+	 * @param client The client.
+	 * @return The stand-in.
+	 */
+	public static LocalS3Stub of(AmazonS3 client) {
+		return (LocalS3Stub) Proxy.getInvocationHandler(client);
+	}
+
+	/**
+	 * Changes the latency added to every request.
+	 * @param latencyMicros Latency in microseconds.
+	 */
+	public void setLatencyMicros(long latencyMicros) {
+		this.latencyMicros = latencyMicros;
+	}
+
+	/**
+	 * Turns the versioning of the buckets on or off. Without versioning, only the latest
+	 * version of each object is kept, so that repeated puts of large objects do not fill the memory.
+	 * @param versioned true (default) to keep every version and add delete markers.
+	 */
+	public void setVersioned(boolean versioned) {
+		this.versioned = versioned;
+	}
+
+	/**
+	 * Limits the request rate. The requests in excess fail with <i>503 Slow Down</i>.
+	 * Bursts of up to a tenth of a second of requests are accepted.
+	 * @param requestsPerSecond Rate limit of all the buckets together, or 0 for no limit.
+	 */
+	public synchronized void setRateLimit(double requestsPerSecond) {
+		this.rateLimit = requestsPerSecond;
+		this.tokens = requestsPerSecond / 10;
+		this.refilledNanos = System.nanoTime();
+	}
+
+	/**
+	 * Limits the bandwidth of the content of the puts, parts and gets, all the requests together.
+	 * An upload waits until its content has gone through the link; a download content is paced as it is read.
+	 * @param bytesPerSecond Bandwidth, or 0 for no limit.
+	 */
+	public synchronized void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+		this.linkFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return The number of requests throttled so far.
+	 */
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return The name of the region of the stand-in.
+	 */
+	public String getRegion() {
+		return region;
+	}
+
+	/**
+	 * @return The number of requests served so far.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			if (method.getName().equals("equals"))
+				return proxy == args[0];
+			if (method.getName().equals("hashCode"))
+				return System.identityHashCode(proxy);
+			return "LocalS3Stub";
+		}
+
+		Method implementation;
+		try {
+			implementation = LocalS3Stub.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+		}
+		catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("LocalS3Stub does not implement " + method);
+		}
+
+		requests.incrementAndGet();
+		if (latencyMicros > 0)
+			TimeUnit.MICROSECONDS.sleep(latencyMicros);
+		if (!admit()) {
+			throttled.incrementAndGet();
+			throw error(503, "SlowDown");
+		}
+		try {
+			return implementation.invoke(this, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/*************
+	 ** Buckets **
+	 *************/
+
+	Bucket createBucket(String bucketName) {
+		String location = locations.putIfAbsent(bucketName, region);
+		if (location != null && !location.equals(region))
+			throw error(409, "BucketAlreadyOwnedByYou");
+		buckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<String, List<Version>>());
+		return new Bucket(bucketName);
+	}
+
+	Bucket createBucket(String bucketName, String region) {
+		if (!RegionResolver.regionName(region).equals(this.region))
+			throw error(400, "IllegalLocationConstraintException");
+		return createBucket(bucketName);
+	}
+
+	Bucket createBucket(CreateBucketRequest request) {
+		if (request.getRegion() != null && !request.getRegion().isEmpty())
+			return createBucket(request.getBucketName(), request.getRegion());
+		return createBucket(request.getBucketName());
+	}
+
+	String getBucketLocation(String bucketName) {
+		String location = locations.get(bucketName);
+		if (location == null)
+			throw error(404, "NoSuchBucket");
+		return location.equals(RegionResolver.US_STANDARD) ? "US" : location;
+	}
+
+	boolean doesBucketExist(String bucketName) {
+		return locations.containsKey(bucketName);
+	}
+
+	List<Bucket> listBuckets() {
+		List<Bucket> list = new ArrayList<Bucket>();
+		for (String name : new TreeMap<String, Object>(locations).keySet())
+			list.add(new Bucket(name));
+		return list;
+	}
+
+	void deleteBucket(String bucketName) {
+		if (!bucket(bucketName).isEmpty())
+			throw error(409, "BucketNotEmpty");
+		buckets.remove(bucketName);
+		locations.remove(bucketName);
+	}
+
+	void deleteBucket(DeleteBucketRequest request) {
+		deleteBucket(request.getBucketName());
+	}
+
+	/*************
+	 ** Objects **
+	 *************/
+
+	PutObjectResult putObject(PutObjectRequest request) throws IOException {
+		byte[] data = request.getFile() != null
+				? Files.readAllBytes(request.getFile().toPath())
+				: readAll(request.getInputStream());
+		transmit(data.length);
+		ObjectMetadata metadata = request.getMetadata() != null ? request.getMetadata().clone() : new ObjectMetadata();
+		if (request.getSSEAwsKeyManagementParams() != null)
+			metadata.setSSEAlgorithm(request.getSSEAwsKeyManagementParams().getEncryption());
+		// The ETag of an object encrypted with SSE-KMS is not the MD5 of its content.
+		boolean kms = !PartDigest.isContentMd5(metadata.getSSEAlgorithm(), null);
+		Version version = store(request.getBucketName(), request.getKey(), data,
+				kms ? md5Hex(md5(data)) : md5Hex(data), metadata);
+		PutObjectResult result = new PutObjectResult();
+		result.setETag(version.eTag);
+		result.setVersionId(version.versionId);
+		return result;
+	}
+
+	PutObjectResult putObject(String bucketName, String key, File file) throws IOException {
+		return putObject(new PutObjectRequest(bucketName, key, file));
+	}
+
+	PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata)
+			throws IOException {
+		return putObject(new PutObjectRequest(bucketName, key, input, metadata));
+	}
+
+	S3Object getObject(String bucketName, String key) {
+		return getObject(new GetObjectRequest(bucketName, key));
+	}
+
+	S3Object getObject(GetObjectRequest request) {
+		Version version = latest(request.getBucketName(), request.getKey());
+		// Like the SDK, return null when an ETag constraint is not met.
+		if (matches(request.getNonmatchingETagConstraints(), version.eTag))
+			return null;
+		List<String> matching = request.getMatchingETagConstraints();
+		if (matching != null && !matching.isEmpty() && !matches(matching, version.eTag))
+			return null;
+
+		byte[] body = version.data;
+		long[] range = request.getRange();
+		if (range != null) {
+			if (range[0] >= body.length)
+				throw error(416, "InvalidRange");
+			int start = (int) range[0];
+			int end = (int) Math.min(range[1], body.length - 1);
+			byte[] slice = new byte[end - start + 1];
+			System.arraycopy(body, start, slice, 0, slice.length);
+			body = slice;
+		}
+
+		S3Object object = new S3Object();
+		object.setBucketName(request.getBucketName());
+		object.setKey(request.getKey());
+		ObjectMetadata metadata = metadataOf(version);
+		metadata.setContentLength(body.length);
+		object.setObjectMetadata(metadata);
+		object.setObjectContent(bandwidth > 0 ? new PacedInputStream(body) : new ByteArrayInputStream(body));
+		return object;
+	}
+
+	ObjectMetadata getObjectMetadata(String bucketName, String key) {
+		return metadataOf(latest(bucketName, key));
+	}
+
+	ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+		return getObjectMetadata(request.getBucketName(), request.getKey());
+	}
+
+	void deleteObject(String bucketName, String key) {
+		List<Version> versions = bucket(bucketName).get(key);
+		if (versions == null)
+			return;
+		synchronized (versions) {
+			if (versioned)
+				versions.add(new Version(nextId("v"), null, null, null, true));
+			else
+				bucket(bucketName).remove(key, versions);
+		}
+	}
+
+	void deleteObject(DeleteObjectRequest request) {
+		deleteObject(request.getBucketName(), request.getKey());
+	}
+
+	void deleteVersion(String bucketName, String key, String versionId) {
+		ConcurrentSkipListMap<String, List<Version>> bucket = bucket(bucketName);
+		List<Version> versions = bucket.get(key);
+		if (versions == null)
+			return;
+		synchronized (versions) {
+			for (Iterator<Version> i = versions.iterator(); i.hasNext(); ) {
+				if (i.next().versionId.equals(versionId))
+					i.remove();
+			}
+			if (versions.isEmpty())
+				bucket.remove(key, versions);
+		}
+	}
+
+	void deleteVersion(DeleteVersionRequest request) {
+		deleteVersion(request.getBucketName(), request.getKey(), request.getVersionId());
+	}
+
+	DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+		if (request.getKeys().size() > MAX_KEYS)
+			throw error(400, "MalformedXML");
+		List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<DeleteObjectsResult.DeletedObject>();
+		for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+			if (key.getVersion() != null)
+				deleteVersion(request.getBucketName(), key.getKey(), key.getVersion());
+			else
+				deleteObject(request.getBucketName(), key.getKey());
+			DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+			deletedObject.setKey(key.getKey());
+			deletedObject.setVersionId(key.getVersion());
+			deleted.add(deletedObject);
+		}
+		return new DeleteObjectsResult(request.getQuiet()
+				? Collections.<DeleteObjectsResult.DeletedObject>emptyList() : deleted);
+	}
+
+	CopyObjectResult copyObject(String sourceBucketName, String sourceKey,
+			String destinationBucketName, String destinationKey) {
+		return copyObject(new CopyObjectRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey));
+	}
+
+	CopyObjectResult copyObject(CopyObjectRequest request) {
+		Version source = latest(request.getSourceBucketName(), request.getSourceKey());
+		ObjectMetadata metadata = request.getNewObjectMetadata() != null
+				? request.getNewObjectMetadata().clone() : source.metadata.clone();
+		Version copy = store(request.getDestinationBucketName(), request.getDestinationKey(),
+				source.data, source.eTag, metadata);
+		CopyObjectResult result = new CopyObjectResult();
+		result.setETag(copy.eTag);
+		result.setVersionId(copy.versionId);
+		return result;
+	}
+
+	/**************
+	 ** Listings **
+	 **************/
+
+	ObjectListing listObjects(String bucketName) {
+		return listObjects(new ListObjectsRequest().withBucketName(bucketName));
+	}
+
+	ObjectListing listObjects(String bucketName, String prefix) {
+		return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+	}
+
+	ObjectListing listObjects(ListObjectsRequest request) {
+		ConcurrentSkipListMap<String, List<Version>> bucket = bucket(request.getBucketName());
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		String delimiter = request.getDelimiter();
+		int maxKeys = request.getMaxKeys() == null ? MAX_KEYS : Math.min(MAX_KEYS, request.getMaxKeys());
+		String marker = request.getMarker();
+		NavigableMap<String, List<Version>> view = marker != null && marker.compareTo(prefix) >= 0
+				? bucket.tailMap(marker, false) : bucket.tailMap(prefix, true);
+
+		ObjectListing listing = new ObjectListing();
+		listing.setBucketName(request.getBucketName());
+		listing.setPrefix(request.getPrefix());
+		listing.setMarker(marker);
+		listing.setDelimiter(delimiter);
+		listing.setMaxKeys(maxKeys);
+		List<String> commonPrefixes = new ArrayList<String>();
+		String last = null;
+		int count = 0;
+		for (Map.Entry<String, List<Version>> entry : view.entrySet()) {
+			String key = entry.getKey();
+			if (!key.startsWith(prefix))
+				break;
+			Version version = latestOrNull(entry.getValue());
+			if (version == null)
+				continue;
+			if (delimiter != null) {
+				int index = key.indexOf(delimiter, prefix.length());
+				if (index >= 0) {
+					String commonPrefix = key.substring(0, index + delimiter.length());
+					if (commonPrefixes.contains(commonPrefix)) {
+						last = key;
+						continue;
+					}
+					if (count == maxKeys) {
+						listing.setTruncated(true);
+						break;
+					}
+					commonPrefixes.add(commonPrefix);
+					last = key;
+					count++;
+					continue;
+				}
+			}
+			if (count == maxKeys) {
+				listing.setTruncated(true);
+				break;
+			}
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(request.getBucketName());
+			summary.setKey(key);
+			summary.setETag(version.eTag);
+			summary.setSize(version.data.length);
+			summary.setLastModified(version.lastModified);
+			listing.getObjectSummaries().add(summary);
+			last = key;
+			count++;
+		}
+		listing.setCommonPrefixes(commonPrefixes);
+		if (listing.isTruncated())
+			listing.setNextMarker(last);
+		return listing;
+	}
+
+	ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+		if (!previous.isTruncated()) {
+			ObjectListing empty = new ObjectListing();
+			empty.setBucketName(previous.getBucketName());
+			return empty;
+		}
+		return listObjects(new ListObjectsRequest(previous.getBucketName(), previous.getPrefix(),
+				previous.getNextMarker(), previous.getDelimiter(), previous.getMaxKeys()));
+	}
+
+	VersionListing listVersions(String bucketName, String prefix) {
+		return listVersions(new ListVersionsRequest().withBucketName(bucketName).withPrefix(prefix));
+	}
+
+	VersionListing listVersions(ListVersionsRequest request) {
+		ConcurrentSkipListMap<String, List<Version>> bucket = bucket(request.getBucketName());
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		int maxResults = request.getMaxResults() == null ? MAX_KEYS : Math.min(MAX_KEYS, request.getMaxResults());
+		String keyMarker = request.getKeyMarker();
+		String versionIdMarker = request.getVersionIdMarker();
+
+		VersionListing listing = new VersionListing();
+		listing.setBucketName(request.getBucketName());
+		listing.setPrefix(request.getPrefix());
+		listing.setKeyMarker(keyMarker);
+		listing.setVersionIdMarker(versionIdMarker);
+		listing.setMaxKeys(maxResults);
+		List<S3VersionSummary> summaries = new ArrayList<S3VersionSummary>();
+		NavigableMap<String, List<Version>> view = keyMarker == null
+				? bucket.tailMap(prefix, true) : bucket.tailMap(keyMarker, true);
+		scan:
+		for (Map.Entry<String, List<Version>> entry : view.entrySet()) {
+			String key = entry.getKey();
+			if (!key.startsWith(prefix)) {
+				if (key.compareTo(prefix) > 0)
+					break;
+				continue;
+			}
+			List<Version> versions;
+			synchronized (entry.getValue()) {
+				versions = new ArrayList<Version>(entry.getValue());
+			}
+			// Newest version first, as returned by S3.
+			Collections.reverse(versions);
+			boolean skipping = key.equals(keyMarker);
+			for (Version version : versions) {
+				if (skipping) {
+					if (versionIdMarker == null)
+						break;
+					if (version.versionId.equals(versionIdMarker))
+						skipping = false;
+					continue;
+				}
+				if (summaries.size() == maxResults) {
+					listing.setTruncated(true);
+					break scan;
+				}
+				S3VersionSummary summary = new S3VersionSummary();
+				summary.setBucketName(request.getBucketName());
+				summary.setKey(key);
+				summary.setVersionId(version.versionId);
+				summary.setIsDeleteMarker(version.deleteMarker);
+				summary.setIsLatest(version == versions.get(0));
+				if (!version.deleteMarker) {
+					summary.setSize(version.data.length);
+					summary.setETag(version.eTag);
+				}
+				summary.setLastModified(version.lastModified);
+				summaries.add(summary);
+			}
+		}
+		listing.setVersionSummaries(summaries);
+		if (listing.isTruncated()) {
+			S3VersionSummary last = summaries.get(summaries.size() - 1);
+			listing.setNextKeyMarker(last.getKey());
+			listing.setNextVersionIdMarker(last.getVersionId());
+		}
+		return listing;
+	}
+
+	VersionListing listNextBatchOfVersions(VersionListing previous) {
+		return listVersions(new ListVersionsRequest(previous.getBucketName(), previous.getPrefix(),
+				previous.getNextKeyMarker(), previous.getNextVersionIdMarker(),
+				previous.getDelimiter(), previous.getMaxKeys()));
+	}
+
+	/***********************
+	 ** Multipart uploads **
+	 ***********************/
+
+	InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		bucket(request.getBucketName());
+		String uploadId = nextId("upload-");
+		ObjectMetadata metadata = request.getObjectMetadata() != null
+				? request.getObjectMetadata().clone() : new ObjectMetadata();
+		uploads.put(uploadId, new Upload(request.getBucketName(), request.getKey(), metadata));
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setUploadId(uploadId);
+		return result;
+	}
+
+	UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+		Upload upload = upload(request.getUploadId());
+		byte[] data = new byte[(int) request.getPartSize()];
+		if (request.getFile() != null) {
+			RandomAccessFile file = new RandomAccessFile(request.getFile(), "r");
+			try {
+				file.seek(request.getFileOffset());
+				file.readFully(data);
+			}
+			finally {
+				file.close();
+			}
+		}
+		else {
+			InputStream input = request.getInputStream();
+			int offset = 0;
+			while (offset < data.length) {
+				int n = input.read(data, offset, data.length - offset);
+				if (n < 0)
+					throw new IOException(String.format("Part %d is %d bytes short",
+							request.getPartNumber(), data.length - offset));
+				offset += n;
+			}
+		}
+		transmit(data.length);
+		upload.parts.put(request.getPartNumber(), data);
+		UploadPartResult result = new UploadPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(md5Hex(data));
+		return result;
+	}
+
+	CopyPartResult copyPart(CopyPartRequest request) {
+		Upload upload = upload(request.getUploadId());
+		Version source = latest(request.getSourceBucketName(), request.getSourceKey());
+		// Like the SDK, return null when an ETag constraint is not met.
+		List<String> matching = request.getMatchingETagConstraints();
+		if (matching != null && !matching.isEmpty() && !matches(matching, source.eTag))
+			return null;
+		int first = request.getFirstByte() == null ? 0 : request.getFirstByte().intValue();
+		int last = request.getLastByte() == null ? source.data.length - 1 : request.getLastByte().intValue();
+		byte[] data = new byte[last - first + 1];
+		System.arraycopy(source.data, first, data, 0, data.length);
+		upload.parts.put(request.getPartNumber(), data);
+		CopyPartResult result = new CopyPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(md5Hex(data));
+		return result;
+	}
+
+	PartListing listParts(ListPartsRequest request) {
+		Upload upload = upload(request.getUploadId());
+		PartListing listing = new PartListing();
+		listing.setBucketName(upload.bucketName);
+		listing.setKey(upload.key);
+		listing.setUploadId(request.getUploadId());
+		List<PartSummary> parts = new ArrayList<PartSummary>();
+		for (Map.Entry<Integer, byte[]> part : new TreeMap<Integer, byte[]>(upload.parts).entrySet()) {
+			PartSummary summary = new PartSummary();
+			summary.setPartNumber(part.getKey());
+			summary.setETag(md5Hex(part.getValue()));
+			summary.setSize(part.getValue().length);
+			parts.add(summary);
+		}
+		listing.setParts(parts);
+		return listing;
+	}
+
+	CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) throws IOException {
+		Upload upload = uploads.remove(request.getUploadId());
+		if (upload == null)
+			throw error(404, "NoSuchUpload");
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		ByteArrayOutputStream digests = new ByteArrayOutputStream();
+		int expected = 1;
+		for (PartETag partETag : request.getPartETags()) {
+			if (partETag.getPartNumber() != expected++)
+				throw error(400, "InvalidPartOrder");
+			byte[] data = upload.parts.get(partETag.getPartNumber());
+			if (data == null || !md5Hex(data).equals(partETag.getETag()))
+				throw error(400, "InvalidPart");
+			content.write(data);
+			digests.write(md5(data));
+		}
+		String eTag = md5Hex(digests.toByteArray()) + "-" + request.getPartETags().size();
+		Version version = store(upload.bucketName, upload.key, content.toByteArray(), eTag, upload.metadata);
+		CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+		result.setBucketName(upload.bucketName);
+		result.setKey(upload.key);
+		result.setETag(eTag);
+		result.setVersionId(version.versionId);
+		return result;
+	}
+
+	void abortMultipartUpload(AbortMultipartUploadRequest request) {
+		uploads.remove(request.getUploadId());
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * A version of an object, or a delete marker.
+	 */
+	private static final class Version {
+		final String versionId;
+		final byte[] data;
+		final String eTag;
+		final ObjectMetadata metadata;
+		final Date lastModified = new Date();
+		final boolean deleteMarker;
+
+		Version(String versionId, byte[] data, String eTag, ObjectMetadata metadata, boolean deleteMarker) {
+			this.versionId = versionId;
+			this.data = data;
+			this.eTag = eTag;
+			this.metadata = metadata;
+			this.deleteMarker = deleteMarker;
+		}
+	}
+
+	/*
+	 * A multipart upload in progress.
+	 */
+	private static final class Upload {
+		final String bucketName;
+		final String key;
+		final ObjectMetadata metadata;
+		final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+		Upload(String bucketName, String key, ObjectMetadata metadata) {
+			this.bucketName = bucketName;
+			this.key = key;
+			this.metadata = metadata;
+		}
+	}
+
+	/*
+	 * Waits until the bytes have gone through the shared link, after the bytes of the other transfers.
+	 * Short waits are skipped and added to the next ones, since a sleep takes longer than asked.
+	 */
+	private void transmit(long bytes) throws InterruptedIOException {
+		if (bandwidth <= 0)
+			return;
+		long sentNanos;
+		synchronized (this) {
+			linkFreeNanos = Math.max(linkFreeNanos, System.nanoTime()) + bytes * 1000000000L / bandwidth;
+			sentNanos = linkFreeNanos;
+		}
+		try {
+			long wait = sentNanos - System.nanoTime();
+			if (wait > MIN_WAIT_NANOS)
+				TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Transfer interrupted");
+		}
+	}
+
+	/*
+	 * Content of a get, received through the shared link as it is read.
+	 */
+	private class PacedInputStream extends ByteArrayInputStream {
+
+		// Largest read, so that a large buffer does not receive the content at once.
+		private static final int PACKET_SIZE = 64 * 1024;
+
+		PacedInputStream(byte[] body) {
+			super(body);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			int n = super.read(b, off, Math.min(len, PACKET_SIZE));
+			if (n > 0)
+				pace(n);
+			return n;
+		}
+
+		@Override
+		public synchronized int read() {
+			int b = super.read();
+			if (b >= 0)
+				pace(1);
+			return b;
+		}
+
+		private void pace(int n) {
+			try {
+				transmit(n);
+			}
+			catch (InterruptedIOException e) {
+				// The interrupt status is kept for the reader.
+			}
+		}
+	}
+
+	/*
+	 * Takes a token of the rate limit. Returns false if none is left.
+	 */
+	private boolean admit() {
+		if (rateLimit <= 0)
+			return true;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(rateLimit / 10, tokens + rateLimit * (now - refilledNanos) / 1e9);
+			refilledNanos = now;
+			if (tokens < 1)
+				return false;
+			tokens--;
+			return true;
+		}
+	}
+
+	private String nextId(String prefix) {
+		return prefix + ids.incrementAndGet();
+	}
+
+	private ConcurrentSkipListMap<String, List<Version>> bucket(String bucketName) {
+		ConcurrentSkipListMap<String, List<Version>> bucket = buckets.get(bucketName);
+		if (bucket == null && locations.containsKey(bucketName))
+			throw error(301, "PermanentRedirect");
+		if (bucket == null)
+			throw error(404, "NoSuchBucket");
+		return bucket;
+	}
+
+	private Upload upload(String uploadId) {
+		Upload upload = uploads.get(uploadId);
+		if (upload == null)
+			throw error(404, "NoSuchUpload");
+		return upload;
+	}
+
+	private Version store(String bucketName, String key, byte[] data, String eTag, ObjectMetadata metadata) {
+		ConcurrentSkipListMap<String, List<Version>> bucket = bucket(bucketName);
+		Version version = new Version(nextId("v"), data, eTag, metadata, false);
+		while (true) {
+			List<Version> versions = bucket.get(key);
+			if (versions == null) {
+				versions = new ArrayList<Version>();
+				versions.add(version);
+				if (bucket.putIfAbsent(key, versions) == null)
+					return version;
+				continue;
+			}
+			synchronized (versions) {
+				// The list may have been removed by the deletion of its last version.
+				if (bucket.get(key) != versions)
+					continue;
+				if (!versioned)
+					versions.clear();
+				versions.add(version);
+				return version;
+			}
+		}
+	}
+
+	private Version latest(String bucketName, String key) {
+		List<Version> versions = bucket(bucketName).get(key);
+		Version version = versions == null ? null : latestOrNull(versions);
+		if (version == null)
+			throw error(404, "NoSuchKey");
+		return version;
+	}
+
+	private static Version latestOrNull(List<Version> versions) {
+		synchronized (versions) {
+			if (versions.isEmpty())
+				return null;
+			Version version = versions.get(versions.size() - 1);
+			return version.deleteMarker ? null : version;
+		}
+	}
+
+	private static boolean matches(List<String> eTags, String eTag) {
+		return eTags != null && (eTags.contains(eTag) || eTags.contains("\"" + eTag + "\""));
+	}
+
+	private static ObjectMetadata metadataOf(Version version) {
+		ObjectMetadata metadata = version.metadata.clone();
+		metadata.setHeader(Headers.ETAG, version.eTag);
+		metadata.setHeader(Headers.S3_VERSION_ID, version.versionId);
+		metadata.setContentLength(version.data.length);
+		metadata.setLastModified(version.lastModified);
+		return metadata;
+	}
+
+	private static AmazonServiceException error(int statusCode, String errorCode) {
+		AmazonServiceException error = new AmazonServiceException(errorCode);
+		error.setStatusCode(statusCode);
+		error.setErrorCode(errorCode);
+		error.setErrorType(statusCode >= 500
+				? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+		return error;
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = input.read(buffer)) >= 0)
+			output.write(buffer, 0, n);
+		return output.toByteArray();
+	}
+
+	private static byte[] md5(byte[] data) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(data);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String md5Hex(byte[] data) {
+		return RangedDownloader.toHex(md5(data));
+	}
+}
@@ -0,0 +1,162 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks the hits, the LRU eviction by weight, the expiry and the invalidation of a {@link MetadataCache},
+ * counting the requests that reach a {@link LocalS3Stub}.
+ * @author Michael Miele
+ *
+ */
+public class MetadataCacheTest {
+
+	private static final String BUCKET = "cache-test";
+
+	private AmazonS3 stub;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		for (int i = 0; i < 10; i++)
+			put(stub, "key-" + i, 1);
+	}
+
+	@Test
+	public void answersRepeatedLookups() {
+		MetadataCache cache = new MetadataCache();
+		AmazonS3 client = cache.cache(stub);
+		long before = requests();
+		ObjectMetadata metadata = client.getObjectMetadata(BUCKET, "key-0");
+		metadata.setContentLength(1000);
+		assertEquals(1, client.getObjectMetadata(BUCKET, "key-0").getContentLength());
+		client.getBucketLocation(BUCKET);
+		client.getBucketLocation(BUCKET);
+
+		assertEquals(2, requests() - before);
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		MetadataCache cache = new MetadataCache(3, MetadataCache.DEFAULT_TTL, false);
+		AmazonS3 client = cache.cache(stub);
+		client.getObjectMetadata(BUCKET, "key-0");
+		client.getObjectMetadata(BUCKET, "key-1");
+		client.getObjectMetadata(BUCKET, "key-2");
+		client.getObjectMetadata(BUCKET, "key-0");
+		client.getObjectMetadata(BUCKET, "key-3");
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.getWeight());
+
+		long before = requests();
+		client.getObjectMetadata(BUCKET, "key-0");
+		client.getObjectMetadata(BUCKET, "key-3");
+		assertEquals(0, requests() - before);
+		client.getObjectMetadata(BUCKET, "key-1");
+		assertEquals(1, requests() - before);
+	}
+
+	@Test
+	public void expiresEntries() throws InterruptedException {
+		MetadataCache cache = new MetadataCache(100, 50, false);
+		AmazonS3 client = cache.cache(stub);
+		long before = requests();
+		client.getObjectMetadata(BUCKET, "key-0");
+		client.getObjectMetadata(BUCKET, "key-0");
+		assertEquals(1, requests() - before);
+		Thread.sleep(100);
+		client.getObjectMetadata(BUCKET, "key-0");
+		assertEquals(2, requests() - before);
+	}
+
+	@Test
+	public void invalidatesWrites() {
+		MetadataCache cache = new MetadataCache();
+		AmazonS3 client = cache.cache(stub);
+		assertEquals(1, client.getObjectMetadata(BUCKET, "key-0").getContentLength());
+		put(client, "key-0", 5);
+		assertEquals(5, client.getObjectMetadata(BUCKET, "key-0").getContentLength());
+		client.deleteObject(BUCKET, "key-0");
+		try {
+			client.getObjectMetadata(BUCKET, "key-0");
+			fail("Found a deleted object");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(404, ase.getStatusCode());
+		}
+
+		// Errors are not cached.
+		long before = requests();
+		try {
+			client.getObjectMetadata(BUCKET, "key-0");
+			fail("Found a deleted object");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(1, requests() - before);
+		}
+
+		// An uncached request goes to the service and refreshes the entry.
+		client.getObjectMetadata(BUCKET, "key-1");
+		put(stub, "key-1", 7);
+		assertEquals(1, client.getObjectMetadata(BUCKET, "key-1").getContentLength());
+		assertEquals(7, client.getObjectMetadata(MetadataCache.uncached(BUCKET, "key-1")).getContentLength());
+		assertEquals(7, client.getObjectMetadata(BUCKET, "key-1").getContentLength());
+	}
+
+	@Test
+	public void weighsListingPages() {
+		MetadataCache cache = new MetadataCache(8, MetadataCache.DEFAULT_TTL, true);
+		AmazonS3 client = cache.cache(stub);
+		long before = requests();
+		ObjectListing page = client.listObjects(BUCKET, "key-");
+		assertEquals(10, page.getObjectSummaries().size());
+		// Larger than the whole cache: not kept.
+		client.listObjects(BUCKET, "key-");
+		assertEquals(2, requests() - before);
+		assertEquals(0, cache.getWeight());
+
+		client.listObjects(BUCKET, "key-1");
+		client.listObjects(BUCKET, "key-1");
+		assertEquals(3, requests() - before);
+		assertEquals(1, cache.getWeight());
+
+		// A write to the bucket discards its pages.
+		put(client, "key-10", 1);
+		assertEquals(2, client.listObjects(BUCKET, "key-1").getObjectSummaries().size());
+	}
+
+	@Test
+	public void isOffWithoutSize() {
+		Properties properties = new Properties();
+		assertNull(MetadataCache.configuration(properties));
+		properties.setProperty(MetadataCache.PROPERTY_PREFIX + "maxEntries", "100");
+		assertNotNull(MetadataCache.configuration(properties));
+	}
+
+	private long requests() {
+		return LocalS3Stub.of(stub).getRequestCount();
+	}
+
+	private static void put(AmazonS3 client, String key, int length) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(length);
+		client.putObject(BUCKET, key, new ByteArrayInputStream(new byte[length]), metadata);
+	}
+}
@@ -0,0 +1,201 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that a {@link MultipartUploader} stores a file in a {@link LocalS3Stub} in concurrent
+ * parts, that it retries a part failing with a transient error, and that it aborts the upload,
+ * leaving no object, when a part keeps failing or is denied.
+ * @author Michael Miele
+ *
+ */
+public class MultipartUploaderTest {
+
+	private static final String BUCKET = "multipart-upload-test";
+
+	private static final int PART_SIZE = (int) MultipartUploader.MIN_PART_SIZE;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 stub;
+	// Methods called on the stub.
+	private final List<String> calls = new CopyOnWriteArrayList<String>();
+	// Number of part uploads to fail, and the status code of their error.
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failureStatus = 500;
+	private MultipartUploader uploader;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		uploader = newUploader(MultipartUploader.DEFAULT_MAX_RETRIES);
+	}
+
+	@After
+	public void tearDown() {
+		uploader.shutdown();
+	}
+
+	@Test
+	public void uploadsFileInParts() throws IOException {
+		byte[] data = random(2 * PART_SIZE + 1000);
+		assertTrue(uploader.isMultipart(data.length));
+		assertFalse(uploader.isMultipart(0));
+		CompleteMultipartUploadResult result = uploader.upload(BUCKET, "parts", write("parts", data));
+		assertTrue(result.getETag(), result.getETag().endsWith("-3"));
+		assertEquals(3, count("uploadPart"));
+		assertEquals(0, count("abortMultipartUpload"));
+		assertArrayEquals(data, content("parts"));
+	}
+
+	@Test
+	public void retriesFailedPart() throws IOException {
+		byte[] data = random(2 * PART_SIZE + 1);
+		failures.set(1);
+		uploader.upload(BUCKET, "retried", write("retried", data));
+		assertEquals(4, count("uploadPart"));
+		assertEquals(0, count("abortMultipartUpload"));
+		assertArrayEquals(data, content("retried"));
+	}
+
+	@Test
+	public void abortsWhenPartKeepsFailing() throws IOException {
+		uploader.shutdown();
+		uploader = newUploader(0);
+		failures.set(1);
+		try {
+			uploader.upload(BUCKET, "failed", write("failed", random(3 * PART_SIZE)));
+			fail("Completed an upload whose part failed");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals("InternalError", ase.getErrorCode());
+		}
+		assertEquals(1, count("abortMultipartUpload"));
+		assertEquals(0, count("completeMultipartUpload"));
+		assertNotStored("failed");
+	}
+
+	@Test
+	public void abortsOnDeniedPartWithoutRetrying() throws IOException {
+		failureStatus = 403;
+		failures.set(1);
+		try {
+			uploader.upload(BUCKET, "denied", write("denied", random(3 * PART_SIZE)));
+			fail("Completed an upload whose part was denied");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals("AccessDenied", ase.getErrorCode());
+		}
+		// Each part is sent at most once: the denied one is not retried.
+		assertTrue(calls.toString(), count("uploadPart") <= 3);
+		assertEquals(1, count("abortMultipartUpload"));
+		assertNotStored("denied");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSmallParts() {
+		new MultipartUploader(stub, 0, PART_SIZE - 1, 2, 0);
+	}
+
+	private MultipartUploader newUploader(int maxRetries) {
+		return new MultipartUploader(intercepting(stub), 0, PART_SIZE, 2, maxRetries);
+	}
+
+	/*
+	 * Records the calls and fails the first parts while failures remain.
+	 */
+	private AmazonS3 intercepting(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						calls.add(method.getName());
+						if (method.getName().equals("uploadPart") && failures.getAndDecrement() > 0) {
+							String code = failureStatus == 403 ? "AccessDenied" : "InternalError";
+							AmazonS3Exception error = new AmazonS3Exception(code);
+							error.setStatusCode(failureStatus);
+							error.setErrorCode(code);
+							throw error;
+						}
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+	}
+
+	private void assertNotStored(String key) {
+		try {
+			stub.getObjectMetadata(BUCKET, key);
+			fail("Stored an aborted upload");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(404, ase.getStatusCode());
+		}
+	}
+
+	private int count(String method) {
+		int count = 0;
+		for (String call : calls) {
+			if (call.equals(method))
+				count++;
+		}
+		return count;
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private byte[] content(String key) throws IOException {
+		InputStream content = stub.getObject(BUCKET, key).getObjectContent();
+		try {
+			return IOUtils.toByteArray(content);
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,291 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that an {@link ObjectCopier} copies objects inside a {@link LocalS3Stub} with a single
+ * request or in parts, keeping their metadata, retries only the transient errors of a part, fails
+ * a copy whose source is overwritten meanwhile, and moves a prefix, deleting only the sources copied.
+ * @author Michael Miele
+ *
+ */
+public class ObjectCopierTest {
+
+	private static final String BUCKET = "copy-test";
+
+	private static final long PART_SIZE = MultipartUploader.MIN_PART_SIZE;
+
+	private AmazonS3 stub;
+	// Methods called on the stub.
+	private final List<String> calls = new CopyOnWriteArrayList<String>();
+	// Run before the first part copy, or null.
+	private volatile Runnable beforePart;
+	// Source key whose copy is denied, or null.
+	private volatile String deniedKey;
+	// Errors of the next part copies.
+	private final Queue<AmazonServiceException> partErrors = new ConcurrentLinkedQueue<AmazonServiceException>();
+	private ObjectCopier copier;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		// Deleted objects leave no delete marker, so that the listings only show the live ones.
+		LocalS3Stub.of(stub).setVersioned(false);
+		stub.createBucket(BUCKET);
+		AmazonS3 client = intercepting(stub);
+		// Objects larger than two parts are copied in parts.
+		copier = new ObjectCopier(client, 2 * PART_SIZE, PART_SIZE, 4, ObjectCopier.DEFAULT_MAX_RETRIES,
+				new BatchDeleter(client));
+	}
+
+	@After
+	public void tearDown() {
+		copier.shutdown();
+	}
+
+	@Test
+	public void copiesSmallObjectWithOneRequest() throws IOException {
+		byte[] data = put("small", 1000);
+		String eTag = copier.copy(BUCKET, "small", BUCKET, "copy");
+		assertEquals(stub.getObjectMetadata(BUCKET, "small").getETag(), eTag);
+		assertArrayEquals(data, content("copy"));
+		assertEquals("text/csv", stub.getObjectMetadata(BUCKET, "copy").getContentType());
+		assertEquals(1, count("copyObject"));
+		assertEquals(0, count("copyPart"));
+	}
+
+	@Test
+	public void copiesLargeObjectInParts() throws IOException {
+		byte[] data = put("large", (int) (2 * PART_SIZE + 1000));
+		String eTag = copier.copy(BUCKET, "large", BUCKET, "copy");
+		assertTrue(eTag, eTag.endsWith("-3"));
+		assertArrayEquals(data, content("copy"));
+		// The upload of the parts is given the metadata of the source.
+		ObjectMetadata metadata = stub.getObjectMetadata(BUCKET, "copy");
+		assertEquals("text/csv", metadata.getContentType());
+		assertEquals("test", metadata.getUserMetadata().get("origin"));
+		assertEquals(0, count("copyObject"));
+		assertEquals(3, count("copyPart"));
+	}
+
+	@Test
+	public void failsCopyOfOverwrittenSource() throws IOException {
+		put("large", (int) (2 * PART_SIZE + 1000));
+		beforePart = new Runnable() {
+			@Override
+			public void run() {
+				beforePart = null;
+				put("large", 10);
+			}
+		};
+		try {
+			copier.copy(BUCKET, "large", BUCKET, "copy");
+			fail("Copied an object overwritten during the copy");
+		}
+		catch (AmazonClientException ace) {
+			assertTrue(ace.getMessage(), ace.getMessage().contains("changed during the copy"));
+		}
+		assertEquals(1, count("abortMultipartUpload"));
+		assertEquals(0, count("completeMultipartUpload"));
+		assertFalse(exists("copy"));
+	}
+
+	@Test
+	public void retriesOnlyTransientPartErrors() throws IOException {
+		byte[] data = put("large", (int) (2 * PART_SIZE + 1000));
+		partErrors.add(error(500, "InternalError"));
+		copier.copy(BUCKET, "large", BUCKET, "copy");
+		assertArrayEquals(data, content("copy"));
+		assertEquals(4, count("copyPart"));
+
+		calls.clear();
+		partErrors.add(error(403, "AccessDenied"));
+		try {
+			copier.copy(BUCKET, "large", BUCKET, "denied");
+			fail("Copied a part whose source is denied");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals("AccessDenied", ase.getErrorCode());
+		}
+		// The denied part is not sent again.
+		assertTrue(calls.toString(), count("copyPart") <= 3);
+		assertEquals(1, count("abortMultipartUpload"));
+		assertFalse(exists("denied"));
+	}
+
+	@Test
+	public void movesObject() throws IOException {
+		byte[] data = put("source", 1000);
+		copier.move(BUCKET, "source", BUCKET, "moved");
+		assertArrayEquals(data, content("moved"));
+		assertFalse(exists("source"));
+		try {
+			copier.move(BUCKET, "moved", BUCKET, "moved");
+			fail("Moved an object onto itself");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void movesPrefix() throws IOException {
+		int objects = 2500;
+		for (int i = 0; i < objects; i++)
+			put("from/" + i, 100);
+		put("other", 100);
+		put("from/" + objects, (int) (2 * PART_SIZE + 1));
+
+		ObjectCopier.Result result = copier.movePrefix(BUCKET, "from/", BUCKET, "to/");
+		assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+		assertEquals(objects + 1, result.getCopiedCount());
+		assertEquals(objects + 1, result.getDeletedCount());
+		assertEquals(objects * 100L + 2 * PART_SIZE + 1, result.getBytesCopied());
+		assertEquals(0, stub.listObjects(BUCKET, "from/").getObjectSummaries().size());
+		assertEquals(objects + 1, count(new ObjectIterator(stub, BUCKET, "to/", null, null)));
+		assertTrue(exists("other"));
+		// Deleted in batches of at most 1000 keys, sent as the copies complete.
+		assertTrue(count("deleteObjects") + " batches", count("deleteObjects") >= 3);
+
+		try {
+			copier.movePrefix(BUCKET, "to/", BUCKET, "to/moved/");
+			fail("Moved a prefix into itself");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void keepsSourcesNotCopied() throws IOException {
+		for (int i = 0; i < 10; i++)
+			put("from/" + i, 100);
+		// The copy of one object is denied.
+		deniedKey = "from/3";
+
+		ObjectCopier.Result result = copier.movePrefix(BUCKET, "from/", BUCKET, "to/");
+		assertEquals(9, result.getCopiedCount());
+		assertEquals(9, result.getDeletedCount());
+		assertEquals(1, result.getErrors().size());
+		assertTrue(result.getErrors().containsKey("from/3"));
+		assertTrue(exists("from/3"));
+		assertFalse(exists("to/3"));
+	}
+
+	/*
+	 * Records the calls, runs the hook before the first part copy, fails the part copies
+	 * with the part errors, and denies the copy of the denied key.
+	 */
+	private AmazonS3 intercepting(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						calls.add(method.getName());
+						Runnable hook = beforePart;
+						if (method.getName().equals("copyPart")) {
+							if (hook != null)
+								hook.run();
+							AmazonServiceException error = partErrors.poll();
+							if (error != null)
+								throw error;
+						}
+						if (method.getName().equals("copyObject") && args.length == 1
+								&& ((CopyObjectRequest) args[0]).getSourceKey().equals(deniedKey))
+							throw error(403, "AccessDenied");
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+	}
+
+	private static AmazonServiceException error(int status, String code) {
+		AmazonS3Exception error = new AmazonS3Exception(code);
+		error.setStatusCode(status);
+		error.setErrorCode(code);
+		return error;
+	}
+
+	private int count(String method) {
+		int count = 0;
+		for (String call : calls) {
+			if (call.equals(method))
+				count++;
+		}
+		return count;
+	}
+
+	private static int count(Iterator<?> iterator) {
+		int count = 0;
+		for (; iterator.hasNext(); iterator.next())
+			count++;
+		return count;
+	}
+
+	private boolean exists(String key) {
+		try {
+			stub.getObjectMetadata(BUCKET, key);
+			return true;
+		}
+		catch (AmazonServiceException ase) {
+			if (ase.getStatusCode() != 404)
+				throw ase;
+			return false;
+		}
+	}
+
+	private byte[] put(String key, int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(length);
+		metadata.setContentType("text/csv");
+		metadata.addUserMetadata("origin", "test");
+		stub.putObject(BUCKET, key, new ByteArrayInputStream(data), metadata);
+		return data;
+	}
+
+	private byte[] content(String key) throws IOException {
+		InputStream content = stub.getObject(BUCKET, key).getObjectContent();
+		try {
+			return IOUtils.toByteArray(content);
+		}
+		finally {
+			content.close();
+		}
+	}
+}
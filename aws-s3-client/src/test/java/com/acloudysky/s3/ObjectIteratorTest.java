@@ -0,0 +1,162 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Checks that an {@link ObjectIterator} returns every object of a {@link LocalS3Stub} bucket in
+ * order across pages, when the listings carry no next marker too, that it fetches the next page
+ * while the current one is consumed and no further, and that closing its stream cancels the
+ * pending fetch.
+ * @author Michael Miele
+ *
+ */
+public class ObjectIteratorTest {
+
+	private static final String BUCKET = "object-iterator-test";
+
+	private AmazonS3 stub;
+	// Number of listing requests sent.
+	private final AtomicInteger listings = new AtomicInteger();
+	// Released to let the listings after the first one run, and counted down when one is interrupted.
+	private final CountDownLatch proceed = new CountDownLatch(1);
+	private final CountDownLatch interrupted = new CountDownLatch(1);
+	private volatile boolean blocking;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		for (int i = 0; i < 25; i++) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(1);
+			stub.putObject(BUCKET, String.format("key-%02d", i), new ByteArrayInputStream(new byte[1]), metadata);
+		}
+	}
+
+	@Test
+	public void iteratesEveryPageWithoutNextMarker() {
+		ObjectIterator objects = new ObjectIterator(intercepting(stub), BUCKET, null, null, 10);
+		List<String> keys = new ArrayList<String>();
+		while (objects.hasNext())
+			keys.add(objects.next().getKey());
+		assertEquals(25, keys.size());
+		for (int i = 0; i < keys.size(); i++)
+			assertEquals(String.format("key-%02d", i), keys.get(i));
+		assertEquals(3, listings.get());
+		assertFalse(objects.hasNext());
+	}
+
+	@Test
+	public void prefetchesOnlyTheNextPage() throws InterruptedException {
+		ObjectIterator objects = new ObjectIterator(intercepting(stub), BUCKET, null, null, 10);
+		try {
+			// The first page is requested before it is needed.
+			awaitListings(1);
+			assertEquals("key-00", objects.next().getKey());
+			// The second one while the first is consumed, and not the third.
+			awaitListings(2);
+			Thread.sleep(50);
+			assertEquals(2, listings.get());
+		}
+		finally {
+			objects.close();
+		}
+		assertFalse(objects.hasNext());
+	}
+
+	@Test
+	public void closingStreamCancelsPendingFetch() throws InterruptedException {
+		blocking = true;
+		ObjectIterator objects = new ObjectIterator(intercepting(stub), BUCKET, null, null, 10);
+		Stream<S3ObjectSummary> stream = objects.stream();
+		try {
+			assertEquals(5, stream.limit(5).count());
+			awaitListings(2);
+		}
+		finally {
+			stream.close();
+		}
+		// The fetch of the second page, blocked in the request, is interrupted.
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertFalse(objects.hasNext());
+	}
+
+	@Test
+	public void fallsBackToLastKeyOrPrefix() {
+		ObjectListing listing = new ObjectListing();
+		listing.setNextMarker("next");
+		assertEquals("next", ObjectIterator.nextMarker(listing));
+
+		listing.setNextMarker(null);
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey("b");
+		listing.getObjectSummaries().add(summary);
+		assertEquals("b", ObjectIterator.nextMarker(listing));
+		listing.setCommonPrefixes(Arrays.asList("a/"));
+		assertEquals("b", ObjectIterator.nextMarker(listing));
+		listing.setCommonPrefixes(Arrays.asList("a/", "c/"));
+		assertEquals("c/", ObjectIterator.nextMarker(listing));
+	}
+
+	private void awaitListings(int count) throws InterruptedException {
+		for (int i = 0; i < 500 && listings.get() < count; i++)
+			Thread.sleep(10);
+		assertEquals(count, listings.get());
+	}
+
+	/*
+	 * Counts the listings and removes their next marker, as the service does without a delimiter.
+	 * When blocking, the listings after the first one wait until they are released or interrupted.
+	 */
+	private AmazonS3 intercepting(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						boolean listing = method.getName().equals("listObjects");
+						if (listing && listings.incrementAndGet() > 1 && blocking) {
+							try {
+								proceed.await();
+							}
+							catch (InterruptedException ie) {
+								interrupted.countDown();
+								throw ie;
+							}
+						}
+						Object result;
+						try {
+							result = method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+						if (listing)
+							((ObjectListing) result).setNextMarker(null);
+						return result;
+					}
+				});
+	}
+}
@@ -0,0 +1,208 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that an {@link ObjectVerifier} verifies the files of objects uploaded with a single PUT
+ * and in parts against a {@link LocalS3Stub}, and reports a changed file as mismatched, a deleted
+ * one as missing, and an object compressed on the client, encrypted with SSE-KMS, or uploaded with
+ * an unusual part size, as unverifiable.
+ * @author Michael Miele
+ *
+ */
+public class ObjectVerifierTest {
+
+	private static final String BUCKET = "verifier-test";
+
+	private static final String PREFIX = "data/";
+
+	private static final int PART_SIZE = (int) MultipartUploader.MIN_PART_SIZE;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 s3Client;
+	private MultipartUploader uploader;
+	private ObjectVerifier verifier;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		uploader = new MultipartUploader(s3Client, 0, PART_SIZE, 4, 0);
+		verifier = new ObjectVerifier(s3Client, 4);
+		directory = folder.newFolder("data");
+	}
+
+	@After
+	public void tearDown() {
+		uploader.shutdown();
+		verifier.shutdown();
+	}
+
+	@Test
+	public void verifiesConsistentDirectory() throws IOException {
+		long bytes = 0;
+		for (int i = 0; i < 10; i++)
+			bytes += put("file-" + i, 1000 * i);
+		bytes += put("sub/dir/file", 70000);
+		byte[] multipart = random(2 * PART_SIZE + 1000);
+		File file = write("multipart", multipart);
+		String eTag = uploader.upload(BUCKET, PREFIX + "multipart", file).getETag();
+		bytes += multipart.length;
+		// Folders are skipped.
+		s3Client.putObject(BUCKET, PREFIX + "folder/", new ByteArrayInputStream(new byte[0]), new ObjectMetadata());
+
+		// The stub reproduces the ETag of S3 for an object uploaded in parts.
+		List<PartDigest> parts = new ArrayList<PartDigest>();
+		for (int offset = 0; offset < multipart.length; offset += PART_SIZE)
+			parts.add(digest(Arrays.copyOfRange(multipart, offset, Math.min(offset + PART_SIZE, multipart.length))));
+		assertEquals(PartDigest.unquote(eTag), PartDigest.compositeETag(parts));
+
+		ObjectVerifier.Result result = verifier.verify(BUCKET, PREFIX, directory);
+		assertTrue(result.toString(), result.isConsistent());
+		assertEquals(12, result.getVerifiedCount());
+		assertEquals(bytes, result.getBytesVerified());
+		assertTrue(result.getProblems().isEmpty());
+	}
+
+	@Test
+	public void reportsEachProblem() throws IOException {
+		put("same", 5000);
+		put("changed", 5000);
+		put("truncated", 5000);
+		put("deleted", 5000);
+
+		// Same size, one byte changed.
+		RandomAccessFile changed = new RandomAccessFile(new File(directory, "changed"), "rw");
+		try {
+			changed.seek(100);
+			int b = changed.read();
+			changed.seek(100);
+			changed.write(b ^ 1);
+		}
+		finally {
+			changed.close();
+		}
+		FileChannel truncated = FileChannel.open(new File(directory, "truncated").toPath(), StandardOpenOption.WRITE);
+		try {
+			truncated.truncate(4000);
+		}
+		finally {
+			truncated.close();
+		}
+		assertTrue(new File(directory, "deleted").delete());
+
+		// Compressed on the client: the object holds the gzip bytes of the file.
+		byte[] text = new byte[20000];
+		write("compressed", text);
+		CompressionStage stage = CompressionStage.compress(new ByteArrayInputStream(text), CompressionCodec.GZIP);
+		byte[] gzip;
+		try {
+			gzip = IOUtils.toByteArray(stage);
+		}
+		finally {
+			stage.close();
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(gzip.length);
+		metadata.setContentEncoding(CompressionCodec.GZIP.getContentEncoding());
+		s3Client.putObject(BUCKET, PREFIX + "compressed", new ByteArrayInputStream(gzip), metadata);
+
+		// Encrypted with SSE-KMS: the file is intact, but the ETag is not its MD5.
+		s3Client.putObject(new PutObjectRequest(BUCKET, PREFIX + "encrypted", write("encrypted", random(3000)))
+				.withSSEAwsKeyManagementParams(new SSEAwsKeyManagementParams()));
+
+		// Three parts of 6 MB, which none of the usual part sizes reproduces.
+		MultipartUploader unusual = new MultipartUploader(s3Client, 0, PART_SIZE + (1 << 20), 4, 0);
+		try {
+			unusual.upload(BUCKET, PREFIX + "unusual", write("unusual", random(2 * PART_SIZE + (3 << 20))));
+		}
+		finally {
+			unusual.shutdown();
+		}
+
+		ObjectVerifier.Result result = verifier.verify(BUCKET, PREFIX, directory);
+		assertFalse(result.isConsistent());
+		assertEquals(1, result.getVerifiedCount());
+		assertEquals(2, result.getMismatchedCount());
+		assertEquals(1, result.getMissingCount());
+		assertEquals(3, result.getUnverifiableCount());
+		Map<String, String> problems = result.getProblems();
+		assertEquals(6, problems.size());
+		assertTrue(problems.get(PREFIX + "changed"), problems.get(PREFIX + "changed").contains("differs from the MD5"));
+		assertEquals("size 4000, object 5000 bytes", problems.get(PREFIX + "truncated"));
+		assertEquals("no local file", problems.get(PREFIX + "deleted"));
+		assertEquals("compressed with gzip on the client", problems.get(PREFIX + "compressed"));
+		assertEquals("encrypted with SSE-KMS: the ETag is not an MD5", problems.get(PREFIX + "encrypted"));
+		assertTrue(problems.get(PREFIX + "unusual"), problems.get(PREFIX + "unusual").contains("no usual part size"));
+	}
+
+	@Test
+	public void rejectsFileAsDirectory() throws IOException {
+		try {
+			verifier.verify(BUCKET, PREFIX, folder.newFile("file"));
+			fail("Verified a file as a directory");
+		}
+		catch (IOException ioe) {
+			// Expected.
+		}
+	}
+
+	/*
+	 * Writes a file of random bytes and uploads it with a single PUT.
+	 */
+	private long put(String name, int size) throws IOException {
+		File file = write(name, random(size));
+		s3Client.putObject(BUCKET, PREFIX + name, file);
+		return size;
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+		File file = new File(directory, name);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static PartDigest digest(byte[] data) {
+		PartDigest digest = new PartDigest();
+		digest.update(data, 0, data.length);
+		return digest;
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
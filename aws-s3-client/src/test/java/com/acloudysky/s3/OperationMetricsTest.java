@@ -0,0 +1,187 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Checks the percentiles of the {@link LatencyHistogram} against the exact percentiles of a sorted
+ * sample, the counts of {@link OperationMetrics} recorded from concurrent threads, and the metrics
+ * of bucket operations against a {@link LocalS3Stub}.
+ * @author Michael Miele
+ *
+ */
+public class OperationMetricsTest {
+
+	/**
+	 * Exporter instantiated from its class name by the configuration.
+	 */
+	public static class CollectingExporter implements OperationMetrics.Exporter {
+
+		static final List<OperationMetrics.Snapshot> EXPORTED = new ArrayList<OperationMetrics.Snapshot>();
+
+		@Override
+		public void export(List<OperationMetrics.Snapshot> snapshots) {
+			synchronized (EXPORTED) {
+				EXPORTED.addAll(snapshots);
+			}
+		}
+	}
+
+	@Test
+	public void histogramPercentilesWithinOneBucket() {
+		// Latencies with a long tail: mostly 20 ms, with rare timeouts of seconds.
+		Random random = new Random(1);
+		long[] latencies = new long[200000];
+		LatencyHistogram histogram = new LatencyHistogram();
+		long sum = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			double millis = 20 * Math.exp(random.nextGaussian() * 0.5);
+			if (random.nextInt(1000) == 0)
+				millis *= 100;
+			latencies[i] = (long) (millis * 1e6);
+			histogram.record(latencies[i]);
+			sum += latencies[i];
+		}
+		Arrays.sort(latencies);
+		for (double percentile : new double[] { 50, 90, 99, 99.9, 99.99 }) {
+			long exact = latencies[(int) Math.ceil(percentile / 100 * latencies.length) - 1];
+			long recorded = histogram.getPercentile(percentile);
+			// The highest value of the bucket of the exact value.
+			assertTrue(percentile + ": " + recorded + " below " + exact, recorded >= exact);
+			assertTrue(percentile + ": " + recorded + " for " + exact, recorded - exact <= exact / 64);
+		}
+		assertEquals(latencies.length, histogram.getCount());
+		assertEquals(latencies[latencies.length - 1], histogram.getMax());
+		assertEquals(latencies[latencies.length - 1], histogram.getPercentile(100));
+		assertEquals((double) sum / latencies.length, histogram.getMean(), 1);
+	}
+
+	@Test
+	public void histogramCountsSmallValuesExactly() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+		for (int i = 1; i <= 100; i++)
+			histogram.record(i);
+		histogram.record(-5);
+		assertEquals(50, histogram.getPercentile(50));
+		assertEquals(0, histogram.getPercentile(0));
+		assertEquals(100, histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void countsConcurrentCalls() throws InterruptedException {
+		final OperationMetrics metrics = new OperationMetrics();
+		final int threads = 8, calls = 50000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < calls; i++) {
+						if (i % 100 == 0)
+							metrics.failed("getObject", System.nanoTime(), "SlowDown");
+						else
+							metrics.succeeded("getObject", System.nanoTime(), 1024);
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+
+		List<OperationMetrics.Snapshot> snapshots = metrics.snapshot();
+		assertEquals(1, snapshots.size());
+		OperationMetrics.Snapshot snapshot = snapshots.get(0);
+		assertEquals(threads * calls, snapshot.getRequestCount());
+		assertEquals(threads * calls / 100, snapshot.getErrorCount());
+		assertEquals(Long.valueOf(threads * calls / 100), snapshot.getErrorCounts().get("SlowDown"));
+		assertEquals(1024L * (threads * calls - threads * calls / 100), snapshot.getBytes());
+	}
+
+	@Test
+	public void recordsBucketOperations() throws Exception {
+		AmazonS3 s3Client = LocalS3Stub.newClient(5000);
+		OperationMetrics metrics = new OperationMetrics();
+		BucketOperations operations = new BucketOperations(s3Client, new BatchDeleter(s3Client), metrics);
+		try {
+			operations.create("metrics-test");
+			operations.delete("metrics-test");
+			try {
+				operations.delete("missing");
+				fail("Deleted a missing bucket");
+			}
+			catch (AmazonServiceException ase) {
+				assertEquals("NoSuchBucket", ase.getErrorCode());
+			}
+		}
+		finally {
+			operations.shutdown();
+		}
+
+		List<OperationMetrics.Snapshot> snapshots = metrics.snapshot();
+		assertEquals(2, snapshots.size());
+		OperationMetrics.Snapshot create = snapshots.get(0);
+		assertEquals("createBucket", create.getOperation());
+		assertEquals(1, create.getRequestCount());
+		// Two requests of 5 ms each.
+		assertTrue(create.getP50() + " ns", create.getP50() >= 10000000);
+		OperationMetrics.Snapshot delete = snapshots.get(1);
+		assertEquals("deleteBucket", delete.getOperation());
+		assertEquals(2, delete.getRequestCount());
+		assertEquals(Long.valueOf(1), delete.getErrorCounts().get("NoSuchBucket"));
+
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		metrics.export(OperationMetrics.textExporter(new PrintStream(text, true)));
+		assertTrue(text.toString(), text.toString().contains("NoSuchBucket"));
+	}
+
+	@Test
+	public void configuresExporter() throws InterruptedException {
+		Properties properties = new Properties();
+		properties.setProperty(OperationMetrics.PROPERTY_PREFIX + "exportPeriod", "20");
+		properties.setProperty(OperationMetrics.PROPERTY_PREFIX + "exporter", CollectingExporter.class.getName());
+		OperationMetrics metrics = OperationMetrics.configuration(properties);
+		try {
+			metrics.succeeded("listBuckets", System.nanoTime(), 0);
+			for (int i = 0; i < 500 && isEmpty(CollectingExporter.EXPORTED); i++)
+				Thread.sleep(10);
+			assertTrue(!isEmpty(CollectingExporter.EXPORTED));
+		}
+		finally {
+			metrics.shutdown();
+		}
+
+		properties.setProperty(OperationMetrics.PROPERTY_PREFIX + "exporter", String.class.getName());
+		try {
+			OperationMetrics.configuration(properties);
+			fail("Accepted an exporter which is not one");
+		}
+		catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+
+	private static boolean isEmpty(List<?> list) {
+		synchronized (list) {
+			return list.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Checks that a {@link ParallelLister} returns every key of a {@link LocalS3Stub} bucket exactly once,
+ * in the order of a sequential listing when the stream is ordered, whether the shards are
+ * discovered from the common prefixes or built from split points.
+ * @author Michael Miele
+ *
+ */
+public class ParallelListerTest {
+
+	private static final String BUCKET = "lister-test";
+
+	// Several pages per prefix, so that the shards are listed in more than one request.
+	private static final int OBJECTS = 12000;
+
+	private static final int PREFIXES = 4;
+
+	private AmazonS3 s3Client;
+	private ParallelLister lister;
+	private List<String> expected;
+
+	@Before
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		for (int i = 0; i < OBJECTS; i++)
+			put(String.format("p%04d/object-%09d", i % PREFIXES, i));
+		// Keys without a delimiter, before, between and after the prefixes.
+		put("a-top-level");
+		put("p0001-top-level");
+		put("z-top-level");
+		lister = new ParallelLister(s3Client, new ForkJoinPool(3));
+		expected = keys(new ObjectIterator(s3Client, BUCKET, null, null, null));
+	}
+
+	@Test
+	public void listsDiscoveredShardsInKeyOrder() {
+		assertEquals(OBJECTS + 3, expected.size());
+		List<ParallelLister.Shard> shards = lister.discoverShards(BUCKET, null, "/");
+		assertEquals(PREFIXES + 3, shards.size());
+		assertEquals(expected, keys(lister.stream(shards, true)));
+	}
+
+	@Test
+	public void listsDiscoveredShardsUnordered() {
+		LocalS3Stub.of(s3Client).setLatencyMicros(1000);
+		List<String> listed = keys(lister.stream(lister.discoverShards(BUCKET, null, "/"), false));
+		Collections.sort(listed);
+		assertEquals(expected, listed);
+	}
+
+	@Test
+	public void listsSplitPointsOnce() {
+		// The split points are keys of the bucket: each belongs to the shard it ends.
+		List<String> splitPoints = Arrays.asList(expected.get(7000), expected.get(10), expected.get(3000));
+		List<ParallelLister.Shard> shards = lister.splitShards(BUCKET, null, splitPoints);
+		assertEquals(4, shards.size());
+		assertEquals(expected, keys(lister.stream(shards, true)));
+	}
+
+	@Test
+	public void listsPrefix() {
+		List<String> prefixed = new ArrayList<String>();
+		for (String key : expected) {
+			if (key.startsWith("p0002/"))
+				prefixed.add(key);
+		}
+		assertEquals(OBJECTS / PREFIXES, prefixed.size());
+		assertEquals(prefixed, keys(lister.stream(lister.splitShards(BUCKET, "p0002/",
+				Arrays.asList(prefixed.get(100))), true)));
+	}
+
+	private void put(String key) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(0);
+		s3Client.putObject(BUCKET, key, new ByteArrayInputStream(new byte[0]), metadata);
+	}
+
+	private static List<String> keys(ObjectIterator objects) {
+		List<String> keys = new ArrayList<String>();
+		while (objects.hasNext())
+			keys.add(objects.next().getKey());
+		return keys;
+	}
+
+	private static List<String> keys(Stream<S3ObjectSummary> summaries) {
+		List<String> keys = new ArrayList<String>();
+		try {
+			for (Iterator<S3ObjectSummary> i = summaries.iterator(); i.hasNext(); )
+				keys.add(i.next().getKey());
+		}
+		finally {
+			summaries.close();
+		}
+		return keys;
+	}
+}
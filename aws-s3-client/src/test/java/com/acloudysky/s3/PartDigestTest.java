@@ -0,0 +1,165 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks the MD5 and the CRC32C of a {@link PartDigest} against known values, the CRC32C of
+ * consecutive parts combined from theirs, the composite ETag of a multipart upload, and the
+ * digests of a file region and of a digesting stream.
+ * @author Michael Miele
+ *
+ */
+public class PartDigestTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void digestsKnownValues() {
+		PartDigest empty = new PartDigest();
+		assertEquals("d41d8cd98f00b204e9800998ecf8427e", empty.getMd5Hex());
+		assertEquals(0, empty.getCrc32c());
+
+		byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+		PartDigest digest = digest(check);
+		assertEquals(0xe3069283, digest.getCrc32c());
+		assertEquals("25f9e794323b453885f5181f1b624d0b", digest.getMd5Hex());
+		assertEquals("JfnnlDI7RTiF9RgfG2JNCw==", digest.getMd5Base64());
+		assertEquals(9, digest.getLength());
+		assertTrue(digest.matches("\"25F9E794323B453885F5181F1B624D0B\""));
+		assertFalse(digest.matches("d41d8cd98f00b204e9800998ecf8427e"));
+		assertFalse(digest.matches(null));
+		try {
+			digest.update(check, 0, 1);
+			fail("Updated a completed digest");
+		}
+		catch (IllegalStateException ise) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void digestsDirectBuffersAsArrays() {
+		byte[] data = random(100000);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+		direct.put(new byte[10]).put(data).position(10);
+		PartDigest fromBuffer = new PartDigest();
+		fromBuffer.update(direct);
+		assertEquals(direct.limit(), direct.position());
+		PartDigest fromArray = digest(data);
+		assertEquals(fromArray.getCrc32c(), fromBuffer.getCrc32c());
+		assertEquals(fromArray.getMd5Hex(), fromBuffer.getMd5Hex());
+		assertEquals(data.length, fromBuffer.getLength());
+	}
+
+	@Test
+	public void combinesCrc32cOfParts() {
+		byte[] data = random(1000003);
+		int whole = digest(data).getCrc32c();
+		for (int split : new int[] { 0, 1, 7, 4096, 500000, data.length - 1, data.length }) {
+			int crc1 = digest(Arrays.copyOfRange(data, 0, split)).getCrc32c();
+			int crc2 = digest(Arrays.copyOfRange(data, split, data.length)).getCrc32c();
+			assertEquals("split at " + split, whole, PartDigest.combineCrc32c(crc1, crc2, data.length - split));
+		}
+
+		List<PartDigest> parts = new ArrayList<PartDigest>();
+		for (int offset = 0; offset < data.length; offset += 300000)
+			parts.add(digest(Arrays.copyOfRange(data, offset, Math.min(offset + 300000, data.length))));
+		assertEquals(whole, PartDigest.combineCrc32c(parts));
+	}
+
+	@Test
+	public void computesCompositeETag() throws Exception {
+		byte[] data = random(250000);
+		List<PartDigest> parts = new ArrayList<PartDigest>();
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		ByteArrayOutputStream md5s = new ByteArrayOutputStream();
+		for (int offset = 0; offset < data.length; offset += 100000) {
+			byte[] part = Arrays.copyOfRange(data, offset, Math.min(offset + 100000, data.length));
+			parts.add(digest(part));
+			md5s.write(md5.digest(part));
+		}
+		String expected = RangedDownloader.toHex(md5.digest(md5s.toByteArray())) + "-3";
+		assertEquals(expected, PartDigest.compositeETag(parts));
+	}
+
+	@Test
+	public void digestsFileRegions() throws IOException {
+		byte[] data = random(200000);
+		File file = folder.newFile("data");
+		Files.write(file.toPath(), data);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			PartDigest region = PartDigest.of(channel, 1000, 150000);
+			PartDigest expected = digest(Arrays.copyOfRange(data, 1000, 151000));
+			assertEquals(expected.getMd5Hex(), region.getMd5Hex());
+			assertEquals(expected.getCrc32c(), region.getCrc32c());
+			try {
+				PartDigest.of(channel, 100000, 100001);
+				fail("Digested a region past the end of the file");
+			}
+			catch (IOException ioe) {
+				// Expected.
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	@Test
+	public void digestsStreamAsItIsRead() throws IOException {
+		byte[] data = random(70000);
+		PartDigest digest = new PartDigest();
+		InputStream input = PartDigest.digesting(new ByteArrayInputStream(data), digest);
+		assertFalse(input.markSupported());
+		assertEquals(data[0] & 0xff, input.read());
+		assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), IOUtils.toByteArray(input));
+		assertEquals(digest(data).getMd5Hex(), digest.getMd5Hex());
+		try {
+			PartDigest.digesting(new ByteArrayInputStream(data), new PartDigest()).skip(10);
+			fail("Skipped bytes of a digested stream");
+		}
+		catch (IOException ioe) {
+			// Expected.
+		}
+	}
+
+	private static PartDigest digest(byte[] data) {
+		PartDigest digest = new PartDigest();
+		digest.update(data, 0, data.length);
+		return digest;
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
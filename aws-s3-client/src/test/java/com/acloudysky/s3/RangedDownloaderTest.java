@@ -0,0 +1,231 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+
+/**
+ * Checks that a {@link RangedDownloader} writes the ranges of an object from a {@link LocalS3Stub}
+ * to a file and verifies it, including an object encrypted with SSE-KMS, whose ETag is not an MD5,
+ * that an interrupted download resumes from its <i>.download</i> file with the missing ranges, that
+ * an object overwritten during a download is detected, and that a file of the wrong size or content
+ * is rejected.
+ * @author Michael Miele
+ *
+ */
+public class RangedDownloaderTest {
+
+	private static final String BUCKET = "ranged-download-test";
+
+	private static final int RANGE_SIZE = 64 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AmazonS3 s3Client;
+	private RangedDownloader downloader;
+
+	@Before
+	public void setUp() {
+		s3Client = LocalS3Stub.newClient();
+		s3Client.createBucket(BUCKET);
+		downloader = new RangedDownloader(s3Client, RANGE_SIZE, 4, 0);
+	}
+
+	@After
+	public void tearDown() {
+		downloader.shutdown();
+	}
+
+	@Test
+	public void downloadsEncryptedObject() throws IOException {
+		byte[] data = random(3 * RANGE_SIZE + 1000);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		s3Client.putObject(new PutObjectRequest(BUCKET, "encrypted", new ByteArrayInputStream(data), metadata)
+				.withSSEAwsKeyManagementParams(new SSEAwsKeyManagementParams()));
+		assertFalse(digest(data).matches(s3Client.getObjectMetadata(BUCKET, "encrypted").getETag()));
+
+		File file = new File(folder.getRoot(), "encrypted");
+		assertEquals(data.length, downloader.download(BUCKET, "encrypted", file).getContentLength());
+		assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		assertFalse(new File(file.getPath() + RangedDownloader.STATE_SUFFIX).exists());
+	}
+
+	@Test
+	public void resumesFromStateFile() throws IOException {
+		byte[] data = random(5 * RANGE_SIZE + 10);
+		put("resumed", data);
+		File file = new File(folder.getRoot(), "resumed");
+		File stateFile = new File(file.getPath() + RangedDownloader.STATE_SUFFIX);
+
+		// One range at a time, and the last one denied: the first five stay on disk.
+		AtomicInteger requests = new AtomicInteger();
+		RangedDownloader failing = new RangedDownloader(counting(requests, 6), RANGE_SIZE, 1, 0);
+		try {
+			failing.download(BUCKET, "resumed", file);
+			fail("Completed a download whose range was denied");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals("AccessDenied", ase.getErrorCode());
+		}
+		finally {
+			failing.shutdown();
+		}
+		assertTrue(stateFile.exists());
+
+		requests.set(0);
+		RangedDownloader resuming = new RangedDownloader(counting(requests, 0), RANGE_SIZE, 4, 0);
+		try {
+			resuming.download(BUCKET, "resumed", file);
+		}
+		finally {
+			resuming.shutdown();
+		}
+		assertEquals(1, requests.get());
+		assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		assertFalse(stateFile.exists());
+	}
+
+	@Test
+	public void detectsObjectChangedDuringDownload() throws IOException {
+		put("changed", random(3 * RANGE_SIZE));
+		final byte[] replacement = random(3 * RANGE_SIZE + 1);
+		// The object is overwritten before the first range is requested.
+		AmazonS3 overwriting = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+					private boolean overwritten;
+
+					@Override
+					public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getObject") && !overwritten) {
+							put("changed", replacement);
+							overwritten = true;
+						}
+						try {
+							return method.invoke(s3Client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+		RangedDownloader changing = new RangedDownloader(overwriting, RANGE_SIZE, 1, 0);
+		try {
+			changing.download(BUCKET, "changed", new File(folder.getRoot(), "changed"));
+			fail("Downloaded an object overwritten during the download");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().contains("changed during the download"));
+		}
+		finally {
+			changing.shutdown();
+		}
+	}
+
+	@Test
+	public void verifiesSizeAndETag() throws IOException {
+		byte[] data = random(2 * RANGE_SIZE);
+		File file = folder.newFile("verified");
+		Files.write(file.toPath(), data);
+		String eTag = digest(data).getMd5Hex();
+		RangedDownloader.verify(file, data.length, eTag);
+		// No ETag to compare, for an encrypted object: only the size is checked.
+		RangedDownloader.verify(file, data.length, null);
+		try {
+			RangedDownloader.verify(file, data.length + 1, null);
+			fail("Verified a file of the wrong size");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("Size mismatch"));
+		}
+
+		RandomAccessFile changed = new RandomAccessFile(file, "rw");
+		try {
+			changed.seek(100);
+			changed.write(data[100] ^ 1);
+		}
+		finally {
+			changed.close();
+		}
+		try {
+			RangedDownloader.verify(file, data.length, eTag);
+			fail("Verified a file whose content changed");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("ETag mismatch"));
+		}
+		// A composite ETag which none of the usual part sizes reproduces cannot be verified.
+		assertNull(RangedDownloader.matchesETag(file, data.length, eTag + "-2"));
+	}
+
+	/*
+	 * Counts the range requests, and denies the one with the specified number, counted from 1.
+	 */
+	private AmazonS3 counting(final AtomicInteger requests, final int denied) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getObject") && requests.incrementAndGet() == denied) {
+							AmazonS3Exception error = new AmazonS3Exception("AccessDenied");
+							error.setStatusCode(403);
+							error.setErrorCode("AccessDenied");
+							throw error;
+						}
+						try {
+							return method.invoke(s3Client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+	}
+
+	private void put(String key, byte[] data) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		s3Client.putObject(BUCKET, key, new ByteArrayInputStream(data), metadata);
+	}
+
+	private static PartDigest digest(byte[] data) {
+		PartDigest digest = new PartDigest();
+		digest.update(data, 0, data.length);
+		return digest;
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
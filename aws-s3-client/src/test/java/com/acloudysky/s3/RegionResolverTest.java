@@ -0,0 +1,135 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks that a {@link RegionResolver} sends the requests of each bucket to the {@link LocalS3Stub}
+ * of the bucket's region, looking the region up once, and follows a bucket moved to another region.
+ * @author Michael Miele
+ *
+ */
+public class RegionResolverTest {
+
+	private static final String HOME_REGION = "us-west-2";
+
+	private static final String[] REGIONS = { HOME_REGION, "eu-west-1", "ap-southeast-2" };
+
+	// Stand-in of each region, sharing the bucket names.
+	private final Map<String, AmazonS3> regionalClients = new HashMap<String, AmazonS3>();
+
+	private RegionResolver resolver;
+
+	@Before
+	public void setUp() {
+		AmazonS3 namespace = LocalS3Stub.newClient();
+		for (String region : REGIONS) {
+			AmazonS3 client = LocalS3Stub.newRegionalClient(namespace, region);
+			// Deleted objects leave no delete marker, so that their bucket can be deleted.
+			LocalS3Stub.of(client).setVersioned(false);
+			regionalClients.put(region, client);
+			client.createBucket(bucket(region));
+			put(client, bucket(region));
+		}
+		resolver = new RegionResolver(null, regionalClients.get(HOME_REGION), HOME_REGION) {
+			@Override
+			protected AmazonS3 newClient(String region) {
+				return regionalClients.get(region);
+			}
+		};
+	}
+
+	@Test
+	public void routesEachBucketToItsRegion() {
+		AmazonS3 homeClient = regionalClients.get(HOME_REGION);
+		try {
+			homeClient.getObjectMetadata(bucket("eu-west-1"), "object");
+			fail("The home region served a bucket of another region");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(301, ase.getStatusCode());
+		}
+
+		AmazonS3 routedClient = resolver.route();
+		long before = sent();
+		for (int i = 0; i < 30; i++)
+			assertEquals(1, routedClient.getObjectMetadata(bucket(REGIONS[i % REGIONS.length]), "object").getContentLength());
+		// One location lookup per bucket, then every request goes straight to its region.
+		assertEquals(30 + REGIONS.length, sent() - before);
+		assertEquals(REGIONS.length, resolver.getLookupCount());
+		assertEquals(0, resolver.getRedirectCount());
+		assertEquals(REGIONS.length, resolver.getClientCount());
+		assertEquals("ap-southeast-2", resolver.getBucketRegion(bucket("ap-southeast-2")));
+	}
+
+	@Test
+	public void followsMovedBucket() {
+		AmazonS3 routedClient = resolver.route();
+		String bucketName = bucket("eu-west-1");
+		routedClient.getObjectMetadata(bucketName, "object");
+
+		// Deleted and created again in another region by another client.
+		AmazonS3 euClient = regionalClients.get("eu-west-1");
+		euClient.deleteObject(bucketName, "object");
+		euClient.deleteBucket(bucketName);
+		AmazonS3 apClient = regionalClients.get("ap-southeast-2");
+		apClient.createBucket(bucketName);
+		put(apClient, bucketName);
+
+		assertEquals(1, routedClient.getObjectMetadata(bucketName, "object").getContentLength());
+		assertEquals(1, resolver.getRedirectCount());
+		assertEquals("ap-southeast-2", resolver.getBucketRegion(bucketName));
+	}
+
+	@Test
+	public void createsBucketsInTheirRegion() {
+		AmazonS3 routedClient = resolver.route();
+		routedClient.createBucket(new CreateBucketRequest("created", "eu-west-1"));
+		put(routedClient, "created");
+		assertEquals("eu-west-1", regionalClients.get(HOME_REGION).getBucketLocation("created"));
+		assertEquals(1, regionalClients.get("eu-west-1").getObjectMetadata("created", "object").getContentLength());
+
+		routedClient.createBucket("created-home");
+		assertEquals(HOME_REGION, resolver.getBucketRegion("created-home"));
+	}
+
+	@Test
+	public void convertsLocations() {
+		assertEquals(RegionResolver.US_STANDARD, RegionResolver.regionName(null));
+		assertEquals(RegionResolver.US_STANDARD, RegionResolver.regionName("US"));
+		assertEquals("eu-west-1", RegionResolver.regionName("EU"));
+		assertEquals("ap-southeast-2", RegionResolver.regionName("ap-southeast-2"));
+	}
+
+	private static String bucket(String region) {
+		return "region-test-" + region;
+	}
+
+	private static void put(AmazonS3 client, String bucketName) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(1);
+		client.putObject(bucketName, "object", new ByteArrayInputStream(new byte[1]), metadata);
+	}
+
+	/*
+	 * Returns the number of requests received by all the stand-ins.
+	 */
+	private long sent() {
+		long sent = 0;
+		for (AmazonS3 client : regionalClients.values())
+			sent += LocalS3Stub.of(client).getRequestCount();
+		return sent;
+	}
+}
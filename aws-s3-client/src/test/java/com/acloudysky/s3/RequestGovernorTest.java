@@ -0,0 +1,250 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Checks the AIMD rate control and the retries of the {@link RequestGovernor}: against a
+ * {@link LocalS3Stub} that throttles above a rate limit, and against a client failing with
+ * scripted errors.
+ * @author Michael Miele
+ *
+ */
+public class RequestGovernorTest {
+
+	private static final String BUCKET = "governor-test";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void settlesUnderTheRateLimit() throws Exception {
+		File file = folder.newFile("object.bin");
+		Files.write(file.toPath(), new byte[256]);
+		int objects = 1500;
+		double rateLimit = 1000;
+
+		AmazonS3 immediate = LocalS3Stub.newClient(1000);
+		immediate.createBucket(BUCKET);
+		LocalS3Stub.of(immediate).setRateLimit(rateLimit);
+		long immediateFailed = upload(immediate, true, file, objects);
+
+		AmazonS3 stub = LocalS3Stub.newClient(1000);
+		stub.createBucket(BUCKET);
+		LocalS3Stub.of(stub).setRateLimit(rateLimit);
+		RequestGovernor governor = new RequestGovernor(0, RequestGovernor.DEFAULT_MAX_RETRIES, 10, 1000);
+		assertEquals(Double.POSITIVE_INFINITY, governor.getRate(BUCKET, null), 0);
+		long governedFailed = upload(governor.govern(stub), false, file, objects);
+
+		assertEquals(0, governedFailed);
+		assertTrue(governor.getThrottledCount() > 0);
+		assertEquals(LocalS3Stub.of(stub).getThrottledCount(), governor.getThrottledCount());
+		double rate = governor.getRate(BUCKET, null);
+		assertTrue("rate " + rate, rate < 2 * rateLimit);
+		// Immediate retries hammer the limit; the governor slows down instead.
+		long immediateThrottled = LocalS3Stub.of(immediate).getThrottledCount();
+		assertTrue(governor.getThrottledCount() + " throttled, " + immediateThrottled + " with immediate retries ("
+				+ immediateFailed + " failed)", governor.getThrottledCount() * 4 < immediateThrottled);
+	}
+
+	@Test
+	public void cutsTheRateOncePerBurst() {
+		final RequestGovernor governor = new RequestGovernor(0, 5, 1, 1);
+		final List<Double> rates = Collections.synchronizedList(new ArrayList<Double>());
+		AmazonS3 client = governor.govern(scripted(LocalS3Stub.newClient(), new Runnable() {
+			@Override
+			public void run() {
+				rates.add(governor.getRate(BUCKET, null));
+			}
+		}, slowDown(), slowDown(), slowDown()));
+		client.createBucket(BUCKET);
+
+		assertEquals(3, governor.getThrottledCount());
+		assertEquals(3, governor.getRetryCount());
+		// First attempt unpaced, then the rate cut by the first response and held during the retries.
+		assertEquals(4, rates.size());
+		assertEquals(Double.POSITIVE_INFINITY, rates.get(0), 0);
+		assertFalse(Double.isInfinite(rates.get(1)));
+		assertEquals(rates.get(1), rates.get(3), 1);
+	}
+
+	@Test
+	public void stopsRetryingAfterTheLimit() {
+		RequestGovernor governor = new RequestGovernor(0, 2, 1, 1);
+		AmazonS3 client = governor.govern(scripted(LocalS3Stub.newClient(), null,
+				slowDown(), slowDown(), slowDown(), slowDown()));
+		try {
+			client.createBucket(BUCKET);
+			fail("The throttled request succeeded");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(503, ase.getStatusCode());
+		}
+		assertEquals(3, governor.getThrottledCount());
+		assertEquals(2, governor.getRetryCount());
+	}
+
+	@Test
+	public void doesNotRetryOtherErrorsOrStreams() {
+		RequestGovernor governor = new RequestGovernor(0, 5, 1, 1);
+		AmazonS3 stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		AmazonS3 client = governor.govern(scripted(stub, null, error(403, "AccessDenied"), slowDown()));
+		try {
+			client.getObjectMetadata(BUCKET, "key");
+			fail("The denied request succeeded");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(403, ase.getStatusCode());
+		}
+		assertEquals(Double.POSITIVE_INFINITY, governor.getRate(BUCKET, null), 0);
+
+		// A stream is consumed by the first attempt.
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(1);
+		try {
+			client.putObject(BUCKET, "key", new ByteArrayInputStream(new byte[1]), metadata);
+			fail("The throttled request succeeded");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(503, ase.getStatusCode());
+		}
+		assertEquals(1, governor.getThrottledCount());
+		assertEquals(0, governor.getRetryCount());
+	}
+
+	@Test
+	public void keepsRatesPerPrefix() {
+		RequestGovernor governor = new RequestGovernor(1, 5, 1, 1);
+		AmazonS3 stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(0);
+		stub.putObject(BUCKET, "logs/a", new ByteArrayInputStream(new byte[0]), metadata);
+		AmazonS3 client = governor.govern(scripted(stub, null, slowDown()));
+		client.getObjectMetadata(BUCKET, "logs/a");
+
+		assertFalse(Double.isInfinite(governor.getRate(BUCKET, "logs/b")));
+		assertEquals(Double.POSITIVE_INFINITY, governor.getRate(BUCKET, "images/a"), 0);
+		assertEquals(Double.POSITIVE_INFINITY, governor.getRate(BUCKET, null), 0);
+	}
+
+	@Test
+	public void classifiesRetryableErrors() {
+		assertTrue(RequestGovernor.isRetryable(slowDown()));
+		assertTrue(RequestGovernor.isRetryable(error(500, "InternalError")));
+		assertTrue(RequestGovernor.isRetryable(error(400, "RequestTimeout")));
+		assertTrue(RequestGovernor.isRetryable(new AmazonClientException("Connection reset")));
+		assertFalse(RequestGovernor.isRetryable(error(403, "AccessDenied")));
+		assertFalse(RequestGovernor.isRetryable(error(404, "NoSuchKey")));
+		assertTrue(RequestGovernor.isThrottling(slowDown()));
+		assertFalse(RequestGovernor.isThrottling(error(500, "InternalError")));
+	}
+
+	/*
+	 * Uploads the file under as many keys from 128 threads. Without a governor, a throttled
+	 * request is sent again at once, like a naive retry loop.
+	 * Returns the number of uploads which failed.
+	 */
+	private static long upload(final AmazonS3 s3Client, final boolean retry, final File file, int objects)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(objects);
+		final AtomicLong failed = new AtomicLong();
+		ExecutorService executor = ExecutionMode.PLATFORM.newExecutor("test", 128);
+		for (int i = 0; i < objects; i++) {
+			final String key = "objects/" + i;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int attempt = 0; ; attempt++) {
+							try {
+								s3Client.putObject(BUCKET, key, file);
+								return;
+							}
+							catch (AmazonServiceException ase) {
+								if (!retry || attempt >= RequestGovernor.DEFAULT_MAX_RETRIES
+										|| !RequestGovernor.isThrottling(ase)) {
+									failed.incrementAndGet();
+									return;
+								}
+							}
+						}
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		executor.shutdown();
+		return failed.get();
+	}
+
+	/*
+	 * Wraps a client so that its next calls fail with the errors, in order, before it answers again.
+	 * The callback, if any, runs before each call.
+	 */
+	private static AmazonS3 scripted(final AmazonS3 client, final Runnable callback, AmazonServiceException... errors) {
+		final Queue<AmazonServiceException> script = new ConcurrentLinkedQueue<AmazonServiceException>();
+		Collections.addAll(script, errors);
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (callback != null)
+							callback.run();
+						AmazonServiceException error = script.poll();
+						if (error != null)
+							throw error;
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+					}
+				});
+	}
+
+	private static AmazonServiceException slowDown() {
+		return error(503, "SlowDown");
+	}
+
+	private static AmazonServiceException error(int status, String code) {
+		AmazonS3Exception error = new AmazonS3Exception(code);
+		error.setStatusCode(status);
+		error.setErrorCode(code);
+		return error;
+	}
+}
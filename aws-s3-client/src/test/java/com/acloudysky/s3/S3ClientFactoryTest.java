@@ -0,0 +1,82 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+
+/**
+ * Checks that {@link S3ClientFactory} reads the client settings from properties, with the defaults
+ * for the missing ones, rejects invalid values, and keeps its own copy of the settings.
+ * @author Michael Miele
+ *
+ */
+public class S3ClientFactoryTest {
+
+	@Test
+	public void readsDefaultsForMissingProperties() {
+		Properties properties = new Properties();
+		properties.setProperty("unrelated.maxConnections", "1");
+		ClientConfiguration configuration = S3ClientFactory.configuration(properties);
+		assertEquals(S3ClientFactory.DEFAULT_MAX_CONNECTIONS, configuration.getMaxConnections());
+		assertEquals(S3ClientFactory.DEFAULT_CONNECTION_TIMEOUT, configuration.getConnectionTimeout());
+		assertEquals(S3ClientFactory.DEFAULT_SOCKET_TIMEOUT, configuration.getSocketTimeout());
+		assertEquals(S3ClientFactory.DEFAULT_MAX_ERROR_RETRY, configuration.getMaxErrorRetry());
+		assertTrue(configuration.useTcpKeepAlive());
+	}
+
+	@Test
+	public void readsProperties() {
+		Properties properties = new Properties();
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "maxConnections", " 1024 ");
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "connectionTimeout", "2000");
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "socketTimeout", "30000");
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "tcpKeepAlive", "false");
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "maxErrorRetry", "0");
+		ClientConfiguration configuration = S3ClientFactory.configuration(properties);
+		assertEquals(1024, configuration.getMaxConnections());
+		assertEquals(2000, configuration.getConnectionTimeout());
+		assertEquals(30000, configuration.getSocketTimeout());
+		assertFalse(configuration.useTcpKeepAlive());
+		assertEquals(0, configuration.getMaxErrorRetry());
+	}
+
+	@Test
+	public void rejectsInvalidValues() {
+		Properties properties = new Properties();
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "socketTimeout", "50s");
+		try {
+			S3ClientFactory.configuration(properties);
+			fail("Read a socket timeout which is not a number");
+		}
+		catch (NumberFormatException nfe) {
+			// Expected.
+		}
+
+		properties.clear();
+		properties.setProperty(S3ClientFactory.PROPERTY_PREFIX + "maxConnections", "0");
+		try {
+			S3ClientFactory.configuration(properties);
+			fail("Accepted a pool without connections");
+		}
+		catch (IllegalArgumentException iae) {
+			assertTrue(iae.getMessage(), iae.getMessage().contains("maxConnections"));
+		}
+	}
+
+	@Test
+	public void keepsCopyOfSettings() {
+		ClientConfiguration configuration = S3ClientFactory.defaultConfiguration();
+		S3ClientFactory factory = new S3ClientFactory(null, configuration);
+		configuration.setMaxConnections(1);
+		assertEquals(S3ClientFactory.DEFAULT_MAX_CONNECTIONS, factory.getConfiguration().getMaxConnections());
+		factory.getConfiguration().setMaxConnections(1);
+		assertEquals(S3ClientFactory.DEFAULT_MAX_CONNECTIONS, factory.getConfiguration().getMaxConnections());
+	}
+}
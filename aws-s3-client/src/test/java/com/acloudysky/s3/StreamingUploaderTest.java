@@ -0,0 +1,247 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Checks that a {@link StreamingUploader} stores data of unknown length in a {@link LocalS3Stub}
+ * with a single PUT or in concurrent parts, verified by their digests, that it retries a part failing
+ * with a transient error and aborts the upload when a part keeps failing or is denied, and that it
+ * returns its buffers to the pool.
+ * @author Michael Miele
+ *
+ */
+public class StreamingUploaderTest {
+
+	private static final String BUCKET = "streaming-upload-test";
+
+	private static final int PART_SIZE = (int) MultipartUploader.MIN_PART_SIZE;
+
+	private static final int CONCURRENCY = 2;
+
+	private AmazonS3 stub;
+	// Methods called on the stub, and the parts being uploaded.
+	private final List<String> calls = new CopyOnWriteArrayList<String>();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger maxRunning = new AtomicInteger();
+	// Number of part uploads to fail, and the status code of their error.
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failureStatus = 500;
+	private StreamingUploader uploader;
+
+	@Before
+	public void setUp() {
+		stub = LocalS3Stub.newClient();
+		stub.createBucket(BUCKET);
+		uploader = newUploader(MultipartUploader.DEFAULT_MAX_RETRIES);
+	}
+
+	@After
+	public void tearDown() {
+		uploader.shutdown();
+	}
+
+	@Test
+	public void sendsShortDataWithSinglePut() throws IOException {
+		byte[] data = random(1000);
+		StreamingUploader.Result result = uploader.upload(BUCKET, "short", new ByteArrayInputStream(data));
+		assertEquals(data.length, result.getLength());
+		assertEquals(0, result.getPartCount());
+		assertTrue(result.isVerified());
+		assertEquals(digest(data).getCrc32c(), result.getCrc32c());
+		assertArrayEquals(data, content("short"));
+		assertTrue(calls.toString(), calls.contains("putObject"));
+	}
+
+	@Test
+	public void uploadsPartsConcurrently() throws Exception {
+		long heapInUse = BufferPool.heap().getBytesInUse();
+		LocalS3Stub.of(stub).setLatencyMicros(20000);
+		byte[] data = random(4 * PART_SIZE + 7);
+		StreamingUploader.Result result = uploader.upload(BUCKET, "parts", new ByteArrayInputStream(data));
+		assertEquals(data.length, result.getLength());
+		assertEquals(5, result.getPartCount());
+		assertTrue(result.getETag(), result.getETag().endsWith("-5"));
+		assertTrue(result.isVerified());
+		assertEquals(digest(data).getCrc32c(), result.getCrc32c());
+		assertTrue("ran " + maxRunning.get() + " parts at once", maxRunning.get() <= CONCURRENCY);
+		assertTrue("ran " + maxRunning.get() + " parts at once", maxRunning.get() > 1);
+		awaitReleased(heapInUse);
+		LocalS3Stub.of(stub).setLatencyMicros(0);
+		assertArrayEquals(data, content("parts"));
+
+		// A buffer between its position and its limit, which is not moved.
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).position(PART_SIZE);
+		result = uploader.upload(BUCKET, "buffer", buffer);
+		assertEquals(data.length - PART_SIZE, result.getLength());
+		assertEquals(PART_SIZE, buffer.position());
+		assertArrayEquals(Arrays.copyOfRange(data, PART_SIZE, data.length), content("buffer"));
+	}
+
+	@Test
+	public void retriesFailedPart() throws IOException {
+		byte[] data = random(2 * PART_SIZE + 1);
+		failures.set(1);
+		StreamingUploader.Result result = uploader.upload(BUCKET, "retried", new ByteArrayInputStream(data));
+		assertEquals(3, result.getPartCount());
+		assertTrue(result.isVerified());
+		assertEquals(4, count("uploadPart"));
+		assertArrayEquals(data, content("retried"));
+	}
+
+	@Test
+	public void abortsWhenPartKeepsFailing() throws Exception {
+		long heapInUse = BufferPool.heap().getBytesInUse();
+		uploader.shutdown();
+		uploader = newUploader(0);
+		failures.set(1);
+		try {
+			uploader.upload(BUCKET, "failed", new ByteArrayInputStream(random(3 * PART_SIZE)));
+			fail("Completed an upload whose part failed");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals("InternalError", ase.getErrorCode());
+		}
+		assertEquals(1, count("abortMultipartUpload"));
+		assertEquals(0, count("completeMultipartUpload"));
+		awaitReleased(heapInUse);
+		try {
+			stub.getObjectMetadata(BUCKET, "failed");
+			fail("Stored an aborted upload");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals(404, ase.getStatusCode());
+		}
+	}
+
+	@Test
+	public void abortsOnDeniedPartWithoutRetrying() throws Exception {
+		long heapInUse = BufferPool.heap().getBytesInUse();
+		failureStatus = 403;
+		failures.set(1);
+		try {
+			uploader.upload(BUCKET, "denied", new ByteArrayInputStream(random(3 * PART_SIZE)));
+			fail("Completed an upload whose part was denied");
+		}
+		catch (AmazonServiceException ase) {
+			assertEquals("AccessDenied", ase.getErrorCode());
+		}
+		// Each part is sent at most once: the denied one is not retried.
+		assertTrue(calls.toString(), count("uploadPart") <= 3);
+		assertEquals(1, count("abortMultipartUpload"));
+		awaitReleased(heapInUse);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSmallParts() {
+		new StreamingUploader(stub, PART_SIZE - 1, CONCURRENCY, 0);
+	}
+
+	private StreamingUploader newUploader(int maxRetries) {
+		return new StreamingUploader(intercepting(stub), PART_SIZE, CONCURRENCY, maxRetries);
+	}
+
+	/*
+	 * Records the calls, counts the parts uploaded at the same time and fails the first parts
+	 * while failures remain.
+	 */
+	private AmazonS3 intercepting(final AmazonS3 client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] { AmazonS3.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						calls.add(method.getName());
+						boolean part = method.getName().equals("uploadPart");
+						if (part && failures.getAndDecrement() > 0) {
+							String code = failureStatus == 403 ? "AccessDenied" : "InternalError";
+							AmazonS3Exception error = new AmazonS3Exception(code);
+							error.setStatusCode(failureStatus);
+							error.setErrorCode(code);
+							throw error;
+						}
+						if (part) {
+							int now = running.incrementAndGet();
+							while (now > maxRunning.get() && !maxRunning.compareAndSet(maxRunning.get(), now))
+								;
+						}
+						try {
+							return method.invoke(client, args);
+						}
+						catch (InvocationTargetException ite) {
+							throw ite.getCause();
+						}
+						finally {
+							if (part)
+								running.decrementAndGet();
+						}
+					}
+				});
+	}
+
+	/*
+	 * Waits for the parts still running to return their buffers: a part cancelled while it
+	 * is sent returns its buffer when the request ends.
+	 */
+	private static void awaitReleased(long heapInUse) throws InterruptedException {
+		for (int i = 0; i < 500 && BufferPool.heap().getBytesInUse() != heapInUse; i++)
+			Thread.sleep(10);
+		assertEquals(heapInUse, BufferPool.heap().getBytesInUse());
+	}
+
+	private int count(String method) {
+		int count = 0;
+		for (String call : calls) {
+			if (call.equals(method))
+				count++;
+		}
+		return count;
+	}
+
+	private byte[] content(String key) throws IOException {
+		InputStream content = stub.getObject(BUCKET, key).getObjectContent();
+		try {
+			return IOUtils.toByteArray(content);
+		}
+		finally {
+			content.close();
+		}
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static PartDigest digest(byte[] data) {
+		PartDigest digest = new PartDigest();
+		digest.update(data, 0, data.length);
+		return digest;
+	}
+}
@@ -0,0 +1,172 @@
+package com.acloudysky.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Checks that a {@link TransferJournal} reopened after a run, or after a crash which tore
+ * its last record, replays the completed operations and the uploads in progress, also once
+ * it has outgrown its first mapping, and that it refuses a file which is not a journal.
+ * @author Michael Miele
+ *
+ */
+public class TransferJournalTest {
+
+	private static final int OPERATIONS = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysCompletedOperationsAndUploads() throws Exception {
+		File file = folder.newFile("transfer.journal");
+		TransferJournal journal = new TransferJournal(file);
+		for (int i = 0; i < OPERATIONS; i++)
+			journal.markCompleted(id(i));
+		journal.uploadStarted("bucket", "pending", "file-1", "upload-1");
+		journal.partCompleted("upload-1", new PartETag(1, "etag-1"));
+		journal.partCompleted("upload-1", new PartETag(2, "etag-2"));
+		journal.uploadStarted("bucket", "done", "file-2", "upload-2");
+		journal.uploadEnded("upload-2");
+		journal.close();
+
+		journal = new TransferJournal(file);
+		try {
+			assertEquals(OPERATIONS, journal.getCompletedCount());
+			assertTrue(journal.isCompleted(id(0)));
+			assertTrue(journal.isCompleted(id(OPERATIONS - 1)));
+			assertEquals(1, journal.getUploadCount());
+			assertNull(journal.findUpload("bucket", "done"));
+			TransferJournal.Upload upload = journal.findUpload("bucket", "pending");
+			assertNotNull(upload);
+			assertEquals("upload-1", upload.getUploadId());
+			assertEquals("file-1", upload.getSource());
+			assertEquals(2, upload.getParts().size());
+			assertEquals("etag-2", upload.getParts().get(1).getETag());
+		}
+		finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void stopsReplayAtTornRecord() throws Exception {
+		File file = folder.newFile("transfer.journal");
+		TransferJournal journal = new TransferJournal(file);
+		for (int i = 0; i < OPERATIONS; i++)
+			journal.markCompleted(id(i));
+		long length = journal.getLength();
+		journal.close();
+
+		// Cut the last record in the middle, as the death of the process while writing it would.
+		RandomAccessFile torn = new RandomAccessFile(file, "rw");
+		try {
+			torn.setLength(length - 10);
+		}
+		finally {
+			torn.close();
+		}
+
+		journal = new TransferJournal(file);
+		try {
+			assertEquals(OPERATIONS - 1, journal.getCompletedCount());
+			assertFalse(journal.isCompleted(id(OPERATIONS - 1)));
+			// The log is usable again after the torn record.
+			journal.markCompleted(id(OPERATIONS - 1));
+		}
+		finally {
+			journal.close();
+		}
+
+		journal = new TransferJournal(file);
+		try {
+			assertEquals(OPERATIONS, journal.getCompletedCount());
+		}
+		finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void replaysAfterCompaction() throws Exception {
+		File file = folder.newFile("transfer.journal");
+		TransferJournal journal = new TransferJournal(file);
+		journal.markCompleted(id(0));
+		// Enough finished uploads for their records to be compacted away.
+		for (int u = 0; u < 2000; u++) {
+			String uploadId = "upload-" + u;
+			journal.uploadStarted("bucket", "key-" + u, "file-" + u, uploadId);
+			for (int part = 1; part <= 10; part++)
+				journal.partCompleted(uploadId, new PartETag(part, "0123456789abcdef0123456789abcdef"));
+			journal.uploadEnded(uploadId);
+		}
+		journal.uploadStarted("bucket", "last", "file", "upload-last");
+		assertTrue(journal.getLength() < 256 * 1024 * 2);
+		journal.close();
+
+		journal = new TransferJournal(file);
+		try {
+			assertEquals(1, journal.getCompletedCount());
+			assertEquals(1, journal.getUploadCount());
+			assertNotNull(journal.findUpload("bucket", "last"));
+		}
+		finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void growsPastItsFirstMapping() throws Exception {
+		File file = folder.newFile("transfer.journal");
+		TransferJournal journal = new TransferJournal(file);
+		// About 80 bytes per record, several times the first mapping of 1 MB.
+		int operations = 20 * OPERATIONS;
+		for (int i = 0; i < operations; i++)
+			journal.markCompleted(id(i));
+		assertTrue(journal.getLength() > 4 * 1024 * 1024);
+		journal.close();
+
+		journal = new TransferJournal(file);
+		try {
+			assertEquals(operations, journal.getCompletedCount());
+			assertTrue(journal.isCompleted(id(operations - 1)));
+		}
+		finally {
+			journal.delete();
+		}
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws Exception {
+		File file = folder.newFile("transfer.log");
+		Files.write(file.toPath(), "0\tuo bucket key file\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			new TransferJournal(file).close();
+			fail("Opened a file which is not a journal");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("Not a transfer journal"));
+		}
+	}
+
+	private static String id(int i) {
+		return i + "\tuo nightly-bucket backups/object-" + i + " /data/backups/object-" + i;
+	}
+}